@@ -8,7 +8,7 @@ set ARGS=-server -Dnashorn.args=--no-deprecation-warning
 
 FOR %%a IN (%*) DO (
 
-    IF NOT "%%a"=="--debug" IF NOT "%%a"=="--systemjre" (
+    IF NOT "%%a"=="--debug" IF NOT "%%a"=="--systemjre" IF NOT "%%a"=="--headless" (
 		echo Unknow parameter: %%a
 		exit 1;
 	)
@@ -21,6 +21,10 @@ FOR %%a IN (%*) DO (
 		SET JAVA_EXE=javaw
 	)
 
+	IF "%%a"=="--headless" (
+		SET APP_ARGS=--headless
+	)
+
 )
 
 IF NOT DEFINED JAVA_EXE set JAVA_EXE=jdk/bin/javaw
@@ -28,4 +32,4 @@ IF NOT DEFINED JAVA_EXE set JAVA_EXE=jdk/bin/javaw
 echo JAVA_EXE=%JAVA_EXE%
 echo ARGS=%ARGS%
 
-start %JAVA_EXE% %ARGS% -cp . -jar winfoom.jar
\ No newline at end of file
+start %JAVA_EXE% %ARGS% -cp . -jar winfoom.jar %APP_ARGS%
\ No newline at end of file
@@ -0,0 +1,161 @@
+/*
+ * Copyright (c) 2020. Eugen Covaci
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and limitations under the License.
+ */
+
+package org.kpax.winfoom;
+
+import com.sun.net.httpserver.HttpServer;
+import org.openjdk.jmh.annotations.*;
+
+import java.io.IOException;
+import java.io.Writer;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.jar.JarFile;
+
+/**
+ * The time to the first accepted connection: from launching the application, in headless mode,
+ * until the local proxy accepts a connection.
+ * <p>Each launch mode is a startup optimization level:
+ * <ul>
+ *     <li>{@code EAGER}: the repackaged jar, all the beans created on startup and the components
+ *     found by classpath scanning (as before the startup optimizations).</li>
+ *     <li>{@code LAZY}: the repackaged jar, the beans created on first use and the components read from the index.</li>
+ *     <li>{@code APPCDS}: like {@code LAZY}, plus the classes mapped from the class-data-sharing archive.</li>
+ * </ul>
+ * The application is configured for a {@code DIRECT} proxy, with a loopback test URL.
+ * <p>Run with: {@code mvn -Pappcds,benchmark integration-test -DskipTests -Djmh.args="StartupBenchmark"},
+ * the {@code appcds} profile being needed only by the {@code APPCDS} mode.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.SingleShotTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Fork(1)
+@Warmup(iterations = 1)
+@Measurement(iterations = 5)
+public class StartupBenchmark {
+
+    private static final Path FAT_JAR = Paths.get("target", "winfoom.jar");
+
+    private static final Path APPCDS_DIR = Paths.get("target", "appcds");
+
+    @Param({"EAGER", "LAZY", "APPCDS"})
+    private LaunchMode launchMode;
+
+    private HttpServer testServer;
+
+    private Path userHome;
+
+    private String appVersion;
+
+    private int localPort;
+
+    private Process process;
+
+    @Setup(Level.Trial)
+    public void setup() throws IOException {
+        if (!Files.exists(FAT_JAR)) {
+            throw new IllegalStateException("Build the application first: mvn package");
+        }
+        if (launchMode == LaunchMode.APPCDS && !Files.exists(APPCDS_DIR.resolve("winfoom.jsa"))) {
+            throw new IllegalStateException("Build the archive first: mvn -Pappcds package");
+        }
+        testServer = HttpServer.create(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0), 0);
+        testServer.createContext("/", exchange -> {
+            exchange.sendResponseHeaders(200, -1);
+            exchange.close();
+        });
+        testServer.start();
+        try (JarFile jarFile = new JarFile(FAT_JAR.toFile())) {
+            appVersion = jarFile.getManifest().getMainAttributes().getValue("Implementation-Version");
+        }
+        userHome = Files.createTempDirectory("winfoom-startup");
+        Files.createDirectories(userHome.resolve(".winfoom"));
+    }
+
+    @Setup(Level.Invocation)
+    public void launch() throws IOException {
+        localPort = freePort();
+        try (Writer writer = Files.newBufferedWriter(userHome.resolve(".winfoom").resolve("proxy.properties"))) {
+            // Without a matching version, the application moves the file away
+            writer.write("app.version=" + appVersion + "\n");
+            writer.write("proxy.type=DIRECT\n");
+            writer.write("local.port=" + localPort + "\n");
+            writer.write("proxy.test.url=http://127.0.0.1:" + testServer.getAddress().getPort() + "\n");
+        }
+        List<String> command = new ArrayList<>();
+        command.add(Paths.get(System.getProperty("java.home"), "bin", "java").toString());
+        command.add("-Duser.home=" + userHome);
+        command.addAll(Arrays.asList(launchMode.jvmArgs));
+        command.add(FoomApplication.HEADLESS_ARG);
+        process = new ProcessBuilder(command)
+                .redirectOutput(ProcessBuilder.Redirect.DISCARD)
+                .redirectError(ProcessBuilder.Redirect.DISCARD)
+                .start();
+    }
+
+    @TearDown(Level.Invocation)
+    public void stop() throws InterruptedException {
+        process.destroy();
+        if (!process.waitFor(30, TimeUnit.SECONDS)) {
+            process.destroyForcibly().waitFor();
+        }
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws IOException {
+        testServer.stop(0);
+        try (var paths = Files.walk(userHome)) {
+            paths.sorted((p1, p2) -> p2.compareTo(p1)).forEach(path -> path.toFile().delete());
+        }
+    }
+
+    @Benchmark
+    public int firstAcceptedConnection() throws Exception {
+        while (process.isAlive()) {
+            try (Socket socket = new Socket(InetAddress.getLoopbackAddress(), localPort)) {
+                return socket.getLocalPort();
+            } catch (IOException e) {
+                Thread.sleep(5);
+            }
+        }
+        throw new IllegalStateException("The application has exited with code " + process.exitValue());
+    }
+
+    private static int freePort() throws IOException {
+        try (ServerSocket serverSocket = new ServerSocket(0)) {
+            return serverSocket.getLocalPort();
+        }
+    }
+
+    public enum LaunchMode {
+        EAGER("-Dspring.main.lazy-initialization=false", "-Dspring.index.ignore=true", "-jar", FAT_JAR.toString()),
+        LAZY("-jar", FAT_JAR.toString()),
+        APPCDS("-XX:SharedArchiveFile=" + APPCDS_DIR.resolve("winfoom.jsa"), "-Xshare:auto",
+                "-jar", APPCDS_DIR.resolve("winfoom-appcds.jar").toString());
+
+        private final String[] jvmArgs;
+
+        LaunchMode(String... jvmArgs) {
+            this.jvmArgs = jvmArgs;
+        }
+    }
+
+}
@@ -0,0 +1,100 @@
+/*
+ * Copyright (c) 2020. Eugen Covaci
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and limitations under the License.
+ */
+
+package org.kpax.winfoom.pac;
+
+import org.apache.commons.io.IOUtils;
+import org.kpax.winfoom.config.SystemConfig;
+import org.openjdk.jmh.annotations.*;
+import org.springframework.context.annotation.AnnotationConfigApplicationContext;
+
+import javax.script.Invocable;
+import javax.script.ScriptEngine;
+import javax.script.ScriptEngineManager;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Compare the cost of a {@code FindProxyForURL} lookup evaluated by the Nashorn engine
+ * with the same lookup evaluated by {@link DeclarativePacScript}.
+ * <p>The script is a typical corporate PAC file and the hosts are IP addresses, so no DNS lookup is involved.
+ * <p>Run with: {@code mvn -Pbenchmark integration-test -DskipTests -Djmh.args="DeclarativePacScriptBenchmark -prof gc"}.
+ */
+@State(Scope.Benchmark)
+@Fork(1)
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+public class DeclarativePacScriptBenchmark {
+
+    private static final String PAC_SOURCE = "function FindProxyForURL(url, host) {\n" +
+            "    if (dnsDomainIs(host, 'localdomain.com') || dnsDomainIs(host, 'example.org') ||\n" +
+            "        shExpMatch(host, '(*.localdomain.com)'))\n" +
+            "        return 'DIRECT';\n" +
+            "    if (url.substring(0, 4) == 'ftp:' || shExpMatch(url, 'http://localdomain.com/folder/*'))\n" +
+            "        return 'DIRECT';\n" +
+            "    if (isPlainHostName(host) || shExpMatch(host, '*.local') ||\n" +
+            "        isInNet(dnsResolve(host), '10.0.0.0', '255.0.0.0') ||\n" +
+            "        isInNet(dnsResolve(host), '172.16.0.0', '255.240.0.0') ||\n" +
+            "        isInNet(dnsResolve(host), '192.168.0.0', '255.255.0.0') ||\n" +
+            "        isInNet(dnsResolve(host), '127.0.0.0', '255.255.255.0'))\n" +
+            "        return 'DIRECT';\n" +
+            "    return 'PROXY 1.2.3.4:3128; PROXY 5.6.7.8:3128';\n" +
+            "}\n";
+
+    @Param({"http://192.168.1.1/index.html", "https://8.8.8.8:443/"})
+    private String url;
+
+    private String host;
+
+    private Invocable scriptEngine;
+
+    private DeclarativePacScript declarativePacScript;
+
+    private AnnotationConfigApplicationContext context;
+
+    @Setup(Level.Trial)
+    public void setup() throws Exception {
+        host = new java.net.URI(url).getHost();
+
+        // Only the beans needed by the helper methods, including the caches
+        context = new AnnotationConfigApplicationContext(SystemConfig.class,                 GlobPatternMatcher.class, DnsResolverCache.class, DefaultPacHelperMethods.class);
+        DefaultPacHelperMethods pacHelperMethods = context.getBean(DefaultPacHelperMethods.class);
+
+        ScriptEngine engine = new ScriptEngineManager().getEngineByName("Nashorn");
+        engine.eval(PAC_SOURCE);
+        ((Invocable) engine).invokeMethod(engine.eval(IOUtils.toString(getClass().getClassLoader().
+                        getResourceAsStream("javascript/pacFunctions.js"), StandardCharsets.UTF_8)),
+                "call", null, pacHelperMethods);
+        scriptEngine = (Invocable) engine;
+
+        declarativePacScript = DeclarativePacScript.compile(PAC_SOURCE, pacHelperMethods).
+                orElseThrow(() -> new IllegalStateException("The benchmark script is not declarative"));
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        context.close();
+    }
+
+    @Benchmark
+    public Object nashorn() throws Exception {
+        return scriptEngine.invokeFunction(PacScriptEvaluator.STANDARD_PAC_MAIN_FUNCTION, url, host);
+    }
+
+    @Benchmark
+    public String declarative() {
+        return declarativePacScript.findProxyForURL(url, host);
+    }
+
+}
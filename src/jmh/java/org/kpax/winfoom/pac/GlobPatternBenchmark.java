@@ -0,0 +1,110 @@
+/*
+ * Copyright (c) 2020. Eugen Covaci
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and limitations under the License.
+ */
+
+package org.kpax.winfoom.pac;
+
+import org.openjdk.jmh.annotations.*;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.regex.Pattern;
+
+/**
+ * Compare the {@code shExpMatch} implementations: the regular expressions created by
+ * {@link GlobPatternMatcher#toPattern(String)} against {@link GlobPattern},
+ * and, for many patterns, a loop over the regular expressions against {@link GlobPatternSet}.
+ * <p>The patterns are precompiled in both cases, so this is the best case for the regular expressions.
+ * <p>Run with: {@code mvn -Pbenchmark integration-test -DskipTests -Djmh.args="GlobPatternBenchmark -prof gc"}.
+ */
+@State(Scope.Benchmark)
+@Fork(1)
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+public class GlobPatternBenchmark {
+
+    private static final String GLOB = "*.localdomain.com";
+
+    /**
+     * The number of patterns in the multi-pattern benchmarks.
+     */
+    private static final int PATTERN_COUNT = 300;
+
+    @Param({"www.intranet.localdomain.com", "www.example.org"})
+    private String host;
+
+    private Pattern regexPattern;
+
+    private GlobPattern globPattern;
+
+    private List<Pattern> regexPatterns;
+
+    private GlobPatternSet globPatternSet;
+
+    @Setup(Level.Trial)
+    public void setup() {
+        regexPattern = Pattern.compile(GlobPatternMatcher.convertGlobToRegEx(GLOB));
+        globPattern = GlobPattern.compile(GLOB);
+
+        // A large PAC file: suffix, literal, prefix and mixed patterns
+        regexPatterns = new ArrayList<>();
+        globPatternSet = new GlobPatternSet();
+        for (int i = 0; i < PATTERN_COUNT; i++) {
+            String glob;
+            switch (i % 4) {
+                case 0:
+                    glob = "*.domain" + i + ".com";
+                    break;
+                case 1:
+                    glob = "host" + i + ".example.com";
+                    break;
+                case 2:
+                    glob = "10.0." + i + ".*";
+                    break;
+                default:
+                    glob = "*.app" + i + ".*.net";
+            }
+            regexPatterns.add(Pattern.compile(GlobPatternMatcher.convertGlobToRegEx(glob)));
+            globPatternSet.add(glob);
+        }
+        regexPatterns.add(regexPattern);
+        globPatternSet.add(GLOB);
+    }
+
+    @Benchmark
+    public boolean singleRegex() {
+        return regexPattern.matcher(host).matches();
+    }
+
+    @Benchmark
+    public boolean singleGlob() {
+        return globPattern.matches(host);
+    }
+
+    @Benchmark
+    public boolean multiRegex() {
+        for (Pattern pattern : regexPatterns) {
+            if (pattern.matcher(host).matches()) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    @Benchmark
+    public boolean multiGlob() {
+        return globPatternSet.matchesAny(host);
+    }
+
+}
@@ -0,0 +1,101 @@
+/*
+ * Copyright (c) 2020. Eugen Covaci
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and limitations under the License.
+ */
+
+package org.kpax.winfoom.pac;
+
+import inet.ipaddr.IPAddressString;
+import org.kpax.winfoom.pac.net.IpAddressMatcher;
+import org.kpax.winfoom.pac.net.NetworkMatcher;
+import org.kpax.winfoom.pac.net.NetworkMatcherSet;
+import org.openjdk.jmh.annotations.*;
+
+import java.net.UnknownHostException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Compare the former {@code isInNet} and {@code isInNetEx} implementations, building the networks on each call,
+ * with the compiled networks of {@link DefaultPacHelperMethods},
+ * and, for many networks, a loop over the {@code isInNet} calls with a {@link NetworkMatcherSet}.
+ * <p>Run with: {@code mvn -Pbenchmark integration-test -DskipTests -Djmh.args="NetworkMatcherBenchmark -prof gc"}.
+ * The {@code gc} profiler reports the allocation per call ({@code gc.alloc.rate.norm}).
+ */
+@State(Scope.Benchmark)
+@Fork(1)
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+public class NetworkMatcherBenchmark {
+
+    /**
+     * The number of networks in the multi-network benchmarks.
+     */
+    private static final int NETWORK_COUNT = 50;
+
+    private final String address = "192.168.1.1";
+
+    private DefaultPacHelperMethods pacHelperMethods;
+
+    private List<String[]> netmasks;
+
+    private NetworkMatcherSet matcherSet;
+
+    @Setup(Level.Trial)
+    public void setup() {
+        pacHelperMethods = new DefaultPacHelperMethods();
+        netmasks = new ArrayList<>();
+        matcherSet = new NetworkMatcherSet();
+        for (int i = 0; i < NETWORK_COUNT; i++) {
+            String[] netmask = {"10." + i + ".0.0", "255.255.0.0"};
+            netmasks.add(netmask);
+            matcherSet.add(NetworkMatcher.forNetmask(netmask[0], netmask[1]));
+        }
+    }
+
+    @Benchmark
+    public boolean isInNetFormer() {
+        return new IPAddressString("192.168.0.0" + "/" + "255.255.0.0").contains(new IPAddressString(address));
+    }
+
+    @Benchmark
+    public boolean isInNetCompiled() {
+        return pacHelperMethods.isInNet(address, "192.168.0.0", "255.255.0.0");
+    }
+
+    @Benchmark
+    public boolean isInNetExFormer() throws UnknownHostException {
+        return new IpAddressMatcher("192.168.0.0/16").matches(address);
+    }
+
+    @Benchmark
+    public boolean isInNetExCompiled() {
+        return pacHelperMethods.isInNetEx(address, "192.168.0.0/16");
+    }
+
+    @Benchmark
+    public boolean multiIsInNet() {
+        for (String[] netmask : netmasks) {
+            if (pacHelperMethods.isInNet(address, netmask[0], netmask[1])) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    @Benchmark
+    public boolean multiNetworkSet() throws UnknownHostException {
+        return matcherSet.matchesAny(address);
+    }
+
+}
@@ -0,0 +1,94 @@
+/*
+ * Copyright (c) 2020. Eugen Covaci
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and limitations under the License.
+ */
+
+package org.kpax.winfoom.pac;
+
+import org.kpax.winfoom.config.ProxyConfig;
+import org.kpax.winfoom.config.SystemConfig;
+import org.kpax.winfoom.proxy.ProxyInfo;
+import org.mockito.Mockito;
+import org.openjdk.jmh.annotations.*;
+import org.springframework.context.annotation.AnnotationConfigApplicationContext;
+import org.springframework.core.env.MapPropertySource;
+
+import java.net.URI;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measure {@link DefaultPacScriptEvaluator#findProxyForURL(URI)} on the test PAC files,
+ * with and without the result cache.
+ * <p>The hosts are IP addresses, so no DNS lookup is involved.
+ * <p>Run with: {@code mvn -Pbenchmark integration-test -DskipTests -Djmh.args="PacScriptEvaluatorBenchmark -prof gc"}.
+ */
+@State(Scope.Benchmark)
+@Fork(1)
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+public class PacScriptEvaluatorBenchmark {
+
+    @Param({"proxy-simple.pac", "proxy-complex.pac"})
+    private String pacFile;
+
+    @Param({"0", "300"})
+    private String cacheTtl;
+
+    @Param({"true", "false"})
+    private String nativeEnabled;
+
+    private final URI uri = URI.create("http://192.168.1.1/index.html");
+
+    private AnnotationConfigApplicationContext context;
+
+    private DefaultPacScriptEvaluator pacScriptEvaluator;
+
+    @Setup(Level.Trial)
+    public void setup() throws Exception {
+        ProxyConfig proxyConfig = Mockito.mock(ProxyConfig.class);
+        Mockito.when(proxyConfig.getProxyPacFileLocationAsURL()).
+                thenReturn(getClass().getClassLoader().getResource(pacFile));
+
+        // Only the beans needed by the evaluator, outside the proxy session scope
+        context = new AnnotationConfigApplicationContext();
+        Map<String, Object> properties = new HashMap<>();
+        properties.put("pac.cache.ttl", cacheTtl);
+        properties.put("pac.native.enabled", nativeEnabled);
+        properties.put("pac.refresh.interval", "0");
+        context.getEnvironment().getPropertySources().addFirst(new MapPropertySource("benchmark", properties));
+        context.register(SystemConfig.class, GlobPatternMatcher.class,
+                DnsResolverCache.class, DefaultPacHelperMethods.class);
+        context.registerBean(ProxyConfig.class, () -> proxyConfig);
+        context.refresh();
+
+        pacScriptEvaluator = new DefaultPacScriptEvaluator();
+        context.getAutowireCapableBeanFactory().autowireBean(pacScriptEvaluator);
+
+        // Load the script
+        pacScriptEvaluator.findProxyForURL(uri);
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws Exception {
+        pacScriptEvaluator.close();
+        context.close();
+    }
+
+    @Benchmark
+    public List<ProxyInfo> findProxyForURL() throws Exception {
+        return pacScriptEvaluator.findProxyForURL(uri);
+    }
+
+}
@@ -0,0 +1,83 @@
+/*
+ * Copyright (c) 2020. Eugen Covaci
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and limitations under the License.
+ */
+
+package org.kpax.winfoom.proxy;
+
+import org.apache.http.HttpException;
+import org.openjdk.jmh.annotations.*;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measure the parsing of a client's request by {@link ClientConnection}: request line, headers and request URI.
+ * <p>Run with: {@code mvn -Pbenchmark integration-test -DskipTests -Djmh.args="ClientConnectionBenchmark -prof gc"}.
+ */
+@State(Scope.Benchmark)
+@Fork(1)
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+public class ClientConnectionBenchmark {
+
+    @Param({"GET", "POST", "CONNECT"})
+    private String method;
+
+    private byte[] request;
+
+    private Socket socket;
+
+    @Setup(Level.Trial)
+    public void setup() {
+        StringBuilder builder = new StringBuilder();
+        if ("CONNECT".equals(method)) {
+            builder.append("CONNECT www.example.com:443 HTTP/1.1\r\n")
+                    .append("Host: www.example.com:443\r\n");
+        } else {
+            builder.append(method).append(" http://www.example.com/path/to/resource?query=value HTTP/1.1\r\n")
+                    .append("Host: www.example.com\r\n")
+                    .append("Accept: text/html,application/xhtml+xml,application/xml;q=0.9,*/*;q=0.8\r\n")
+                    .append("Accept-Language: en-US,en;q=0.5\r\n")
+                    .append("Accept-Encoding: gzip, deflate\r\n")
+                    .append("Cookie: session=0123456789abcdef; preferences=compact\r\n");
+        }
+        builder.append("User-Agent: Mozilla/5.0 (Windows NT 10.0; Win64; x64; rv:80.0) Gecko/20100101 Firefox/80.0\r\n")
+                .append("Proxy-Connection: keep-alive\r\n");
+        if ("POST".equals(method)) {
+            builder.append("Content-Type: application/x-www-form-urlencoded\r\n")
+                    .append("Content-Length: 11\r\n\r\n")
+                    .append("name=value1");
+        } else {
+            builder.append("\r\n");
+        }
+        request = builder.toString().getBytes(StandardCharsets.UTF_8);
+
+        // Only the output stream of the socket is required
+        socket = new Socket() {
+            @Override
+            public OutputStream getOutputStream() {
+                return OutputStream.nullOutputStream();
+            }
+        };
+    }
+
+    @Benchmark
+    public ClientConnection parse() throws IOException, HttpException {
+        return new ClientConnection(socket, new ByteArrayInputStream(request));
+    }
+
+}
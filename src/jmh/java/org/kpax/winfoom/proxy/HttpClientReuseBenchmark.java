@@ -0,0 +1,118 @@
+/*
+ * Copyright (c) 2020. Eugen Covaci
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and limitations under the License.
+ */
+
+package org.kpax.winfoom.proxy;
+
+import com.sun.net.httpserver.HttpServer;
+import org.apache.http.HttpHost;
+import org.apache.http.client.methods.CloseableHttpResponse;
+import org.apache.http.client.methods.HttpGet;
+import org.apache.http.impl.client.BasicCredentialsProvider;
+import org.apache.http.impl.client.CloseableHttpClient;
+import org.apache.http.impl.conn.PoolingHttpClientConnectionManager;
+import org.apache.http.util.EntityUtils;
+import org.kpax.winfoom.config.SystemConfig;
+import org.kpax.winfoom.util.InputOutputs;
+import org.mockito.Mockito;
+import org.openjdk.jmh.annotations.*;
+import org.springframework.test.util.ReflectionTestUtils;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Compare building a {@link CloseableHttpClient} for each request (the former behavior of
+ * {@link NonConnectClientConnectionProcessor}) with the clients cached by {@link HttpClientBuilderFactory}.
+ * <p>Both execute a GET request against a loopback HTTP server through the same pooled connection manager,
+ * so the difference is the cost of building the client.
+ * <p>Run with: {@code mvn -Pbenchmark integration-test -DskipTests -Djmh.args="HttpClientReuseBenchmark -prof gc"}.
+ * The {@code gc} profiler reports the allocation per request ({@code gc.alloc.rate.norm}).
+ */
+@State(Scope.Benchmark)
+@Fork(1)
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+public class HttpClientReuseBenchmark {
+
+    private final ProxyInfo proxyInfo = new ProxyInfo(ProxyInfo.PacType.DIRECT);
+
+    private HttpServer httpServer;
+
+    private HttpHost target;
+
+    private PoolingHttpClientConnectionManager connectionManager;
+
+    private HttpClientBuilderFactory clientBuilderFactory;
+
+    @Setup(Level.Trial)
+    public void setup() throws IOException {
+        // Otherwise, Nagle's algorithm delays each response by tens of milliseconds
+        System.setProperty("sun.net.httpserver.nodelay", "true");
+
+        byte[] body = "Hello".getBytes(StandardCharsets.US_ASCII);
+        httpServer = HttpServer.create(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0), 0);
+        httpServer.createContext("/", exchange -> {
+            exchange.sendResponseHeaders(200, body.length);
+            try (OutputStream outputStream = exchange.getResponseBody()) {
+                outputStream.write(body);
+            }
+        });
+        httpServer.start();
+        target = new HttpHost(InetAddress.getLoopbackAddress().getHostAddress(),
+                httpServer.getAddress().getPort());
+
+        SystemConfig systemConfig = new SystemConfig();
+        ReflectionTestUtils.setField(systemConfig, "socketSoTimeout", 30);
+        ReflectionTestUtils.setField(systemConfig, "socketConnectTimeout", 10);
+
+        connectionManager = new PoolingHttpClientConnectionManager();
+        ConnectionPoolingManager connectionPoolingManager = Mockito.mock(ConnectionPoolingManager.class);
+        Mockito.when(connectionPoolingManager.getHttpConnectionManager()).thenReturn(connectionManager);
+
+        clientBuilderFactory = new HttpClientBuilderFactory();
+        ReflectionTestUtils.setField(clientBuilderFactory, "systemConfig", systemConfig);
+        ReflectionTestUtils.setField(clientBuilderFactory, "credentialsProvider", new BasicCredentialsProvider());
+        ReflectionTestUtils.setField(clientBuilderFactory, "connectionPoolingManager", connectionPoolingManager);
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        clientBuilderFactory.close();
+        InputOutputs.close(connectionManager);
+        httpServer.stop(0);
+    }
+
+    @Benchmark
+    public String buildPerRequest() throws IOException {
+        try (CloseableHttpClient httpClient = clientBuilderFactory.createClientBuilder(proxyInfo).build()) {
+            return execute(httpClient);
+        }
+    }
+
+    @Benchmark
+    public String cachedClient() throws IOException {
+        return execute(clientBuilderFactory.getHttpClient(proxyInfo));
+    }
+
+    private String execute(CloseableHttpClient httpClient) throws IOException {
+        try (CloseableHttpResponse response = httpClient.execute(target, new HttpGet("/"))) {
+            return EntityUtils.toString(response.getEntity());
+        }
+    }
+
+}
@@ -0,0 +1,102 @@
+/*
+ * Copyright (c) 2020. Eugen Covaci
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and limitations under the License.
+ */
+
+package org.kpax.winfoom.proxy;
+
+import org.apache.http.HttpException;
+import org.apache.http.HttpRequest;
+import org.apache.http.impl.io.DefaultHttpRequestParser;
+import org.apache.http.impl.io.SessionInputBufferImpl;
+import org.kpax.winfoom.util.BoundedBufferPool;
+import org.openjdk.jmh.annotations.*;
+import org.springframework.util.FileSystemUtils;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measure the buffering of a request body by {@link RepeatableHttpEntity}:
+ * the body is streamed once, as for the first request, then replayed, as for an authentication retry.
+ * <p>The bodies up to the internal buffer are cached into pooled chunks, heap or direct,
+ * the larger ones spill into a temporary file.
+ * <p>Run with: {@code mvn -Pbenchmark integration-test -DskipTests -Djmh.args="RepeatableHttpEntityBenchmark -prof gc"}.
+ */
+@State(Scope.Benchmark)
+@Fork(1)
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+public class RepeatableHttpEntityBenchmark {
+
+    /**
+     * The default value of the {@code internalBuffer.length} setting.
+     */
+    private static final int INTERNAL_BUFFER_LENGTH = 102400;
+
+    /**
+     * The default value of the {@code requestBody.chunkSize} setting.
+     */
+    private static final int CHUNK_SIZE = 16384;
+
+    /**
+     * The default value of the {@code requestBody.memoryBudget} setting.
+     */
+    private static final long MEMORY_BUDGET = 33554432;
+
+    @Param({"1024", "65536", "1048576"})
+    private int bodySize;
+
+    @Param({"false", "true"})
+    private boolean directBuffers;
+
+    private BoundedBufferPool bufferPool;
+
+    private byte[] request;
+
+    private Path tempDirectory;
+
+    @Setup(Level.Trial)
+    public void setup() throws IOException {
+        byte[] headers = ("POST http://www.example.com/upload HTTP/1.1\r\n" +
+                "Host: www.example.com\r\n" +
+                "Content-Type: application/octet-stream\r\n" +
+                "Content-Length: " + bodySize + "\r\n\r\n").getBytes(StandardCharsets.UTF_8);
+        request = Arrays.copyOf(headers, headers.length + bodySize);
+        Arrays.fill(request, headers.length, request.length, (byte) 'x');
+        tempDirectory = Files.createTempDirectory("winfoom-benchmark");
+        bufferPool = new BoundedBufferPool(CHUNK_SIZE, MEMORY_BUDGET, directBuffers);
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws IOException {
+        FileSystemUtils.deleteRecursively(tempDirectory);
+    }
+
+    @Benchmark
+    public void writeAndReplay() throws IOException, HttpException {
+        SessionInputBufferImpl inputBuffer = ClientConnection.createSessionInputBuffer(new ByteArrayInputStream(request));
+        HttpRequest httpRequest = new DefaultHttpRequestParser(inputBuffer).parse();
+        try (RepeatableHttpEntity entity = new RepeatableHttpEntity(inputBuffer, tempDirectory, bufferPool, httpRequest,
+                INTERNAL_BUFFER_LENGTH)) {
+            entity.writeTo(OutputStream.nullOutputStream());
+            entity.writeTo(OutputStream.nullOutputStream());
+        }
+    }
+
+}
@@ -0,0 +1,190 @@
+/*
+ * Copyright (c) 2020. Eugen Covaci
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and limitations under the License.
+ */
+
+package org.kpax.winfoom.proxy;
+
+import org.kpax.winfoom.config.SystemConfig;
+import org.kpax.winfoom.util.InputOutputs;
+import org.openjdk.jmh.annotations.*;
+
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Compare the platform and the virtual threads execution modes of {@link ProxyContext}.
+ * <p>A loopback tunnel is made of a relay that pumps the bytes with {@link InputOutputs#duplex}
+ * (like a CONNECT tunnel does) and an echo server behind it.
+ * <ul>
+ *     <li>{@link #tunnelSetup()}: the latency of opening a tunnel and doing a one byte round trip.</li>
+ *     <li>{@link #idleTunnels(IdleTunnels)}: the memory footprint of keeping many tunnels open.</li>
+ * </ul>
+ * Run with: {@code mvn -Pbenchmark integration-test -DskipTests -Djmh.args="ThreadTypeTunnelBenchmark"}.
+ * The virtual threads mode requires a JVM supporting them, otherwise it silently measures the platform threads.
+ */
+@State(Scope.Benchmark)
+@Fork(1)
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+public class ThreadTypeTunnelBenchmark {
+
+    @Param({"PLATFORM", "VIRTUAL"})
+    private SystemConfig.ThreadType threadType;
+
+    /**
+     * The number of tunnels kept open by {@link #idleTunnels(IdleTunnels)}.
+     */
+    @Param({"1000"})
+    private int tunnelCount;
+
+    private ExecutorService executorService;
+
+    private ServerSocket echoServer;
+
+    private ServerSocket relayServer;
+
+    @Setup(Level.Trial)
+    public void setup() throws IOException {
+        executorService = ProxyContext.createExecutorService(threadType);
+        echoServer = new ServerSocket(0, 1024, InetAddress.getLoopbackAddress());
+        relayServer = new ServerSocket(0, 1024, InetAddress.getLoopbackAddress());
+        startAcceptor(echoServer, socket -> socket.getInputStream().transferTo(socket.getOutputStream()));
+        startAcceptor(relayServer, socket -> {
+            try (Socket upstream = new Socket(InetAddress.getLoopbackAddress(), echoServer.getLocalPort())) {
+                InputOutputs.duplex(executorService,
+                        socket.getInputStream(), socket.getOutputStream(),
+                        upstream.getInputStream(), upstream.getOutputStream());
+            }
+        });
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        InputOutputs.close(relayServer);
+        InputOutputs.close(echoServer);
+        executorService.shutdownNow();
+    }
+
+    @Benchmark
+    @BenchmarkMode(Mode.SampleTime)
+    @OutputTimeUnit(TimeUnit.MICROSECONDS)
+    public int tunnelSetup() throws IOException {
+        try (Socket tunnel = openTunnel()) {
+            return tunnel.getInputStream().read();
+        }
+    }
+
+    @Benchmark
+    @BenchmarkMode(Mode.AverageTime)
+    @OutputTimeUnit(TimeUnit.MILLISECONDS)
+    public void idleTunnels(IdleTunnels idleTunnels) throws IOException {
+        for (int i = 0; i < tunnelCount; i++) {
+            Socket tunnel = openTunnel();
+            idleTunnels.tunnels.add(tunnel);
+            tunnel.getInputStream().read();
+        }
+        idleTunnels.measure();
+    }
+
+    /**
+     * Open a tunnel and send one byte through it.
+     */
+    private Socket openTunnel() throws IOException {
+        Socket tunnel = new Socket(InetAddress.getLoopbackAddress(), relayServer.getLocalPort());
+        tunnel.getOutputStream().write(1);
+        tunnel.getOutputStream().flush();
+        return tunnel;
+    }
+
+    private void startAcceptor(ServerSocket serverSocket, SocketHandler handler) {
+        Thread acceptor = new Thread(() -> {
+            while (!serverSocket.isClosed()) {
+                try {
+                    Socket socket = serverSocket.accept();
+                    executorService.execute(() -> {
+                        try (socket) {
+                            handler.handle(socket);
+                        } catch (Exception e) {
+                            // Ignore, the peer has closed the connection
+                        }
+                    });
+                } catch (IOException e) {
+                    // Ignore, the server has been closed
+                }
+            }
+        }, "acceptor-" + serverSocket.getLocalPort());
+        acceptor.setDaemon(true);
+        acceptor.start();
+    }
+
+    @FunctionalInterface
+    private interface SocketHandler {
+        void handle(Socket socket) throws Exception;
+    }
+
+    /**
+     * Keeps the tunnels open while the memory footprint is measured.
+     * <p>The footprint, measured while the tunnels are open, is reported as secondary results.
+     */
+    @State(Scope.Thread)
+    @AuxCounters(AuxCounters.Type.EVENTS)
+    public static class IdleTunnels {
+
+        public long heapUsedKb;
+
+        public long residentSetKb;
+
+        public long liveThreads;
+
+        private final List<Socket> tunnels = new ArrayList<>();
+
+        @TearDown(Level.Invocation)
+        public void closeTunnels() {
+            tunnels.forEach(InputOutputs::close);
+            tunnels.clear();
+        }
+
+        void measure() throws IOException {
+            System.gc();
+            Runtime runtime = Runtime.getRuntime();
+            heapUsedKb = (runtime.totalMemory() - runtime.freeMemory()) / 1024;
+            liveThreads = ManagementFactory.getThreadMXBean().getThreadCount();
+            residentSetKb = readResidentSetKb();
+        }
+
+        /**
+         * @return the process' resident set size, or zero if not available (non Linux systems).
+         */
+        private static long readResidentSetKb() throws IOException {
+            Path status = Paths.get("/proc/self/status");
+            if (Files.isReadable(status)) {
+                for (String line : Files.readAllLines(status, StandardCharsets.US_ASCII)) {
+                    if (line.startsWith("VmRSS:")) {
+                        return Long.parseLong(line.replaceAll("\\D", ""));
+                    }
+                }
+            }
+            return 0;
+        }
+    }
+
+}
@@ -0,0 +1,71 @@
+/*
+ * Copyright (c) 2020. Eugen Covaci
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and limitations under the License.
+ */
+
+package org.kpax.winfoom.util;
+
+import org.apache.http.HttpVersion;
+import org.apache.http.RequestLine;
+import org.apache.http.message.BasicRequestLine;
+import org.kpax.winfoom.proxy.ProxyInfo;
+import org.openjdk.jmh.annotations.*;
+
+import java.net.URI;
+import java.net.URISyntaxException;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measure the request URI parsing and the PAC proxy line parsing, called for each request.
+ * <p>Run with: {@code mvn -Pbenchmark integration-test -DskipTests -Djmh.args="HttpUtilsBenchmark -prof gc"}.
+ */
+@State(Scope.Benchmark)
+@Fork(1)
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+public class HttpUtilsBenchmark {
+
+    private final RequestLine getRequestLine = new BasicRequestLine("GET",
+            "http://www.example.com:8080/path/to/resource?query=value&other=1", HttpVersion.HTTP_1_1);
+
+    private final RequestLine connectRequestLine = new BasicRequestLine("CONNECT",
+            "www.example.com:443", HttpVersion.HTTP_1_1);
+
+    /**
+     * Contains non-standard encoded Unicode characters (%uxxxx format).
+     */
+    private final String nonStandardUri = "http://www.example.com/search?q=%u00e9t%u00e9&lang=fr";
+
+    private final String proxyLine = "PROXY 1.2.3.4:3128; SOCKS 5.6.7.8:1080; HTTPS 9.10.11.12:443; DIRECT";
+
+    @Benchmark
+    public URI parseRequestUri() throws URISyntaxException {
+        return HttpUtils.parseRequestUri(getRequestLine);
+    }
+
+    @Benchmark
+    public URI parseConnectRequestUri() throws URISyntaxException {
+        return HttpUtils.parseRequestUri(connectRequestLine);
+    }
+
+    @Benchmark
+    public URI toUri() throws URISyntaxException {
+        return HttpUtils.toUri(nonStandardUri);
+    }
+
+    @Benchmark
+    public List<ProxyInfo> parsePacProxyLine() {
+        return HttpUtils.parsePacProxyLine(proxyLine);
+    }
+
+}
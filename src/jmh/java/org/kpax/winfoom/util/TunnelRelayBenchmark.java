@@ -0,0 +1,134 @@
+/*
+ * Copyright (c) 2020. Eugen Covaci
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and limitations under the License.
+ */
+
+package org.kpax.winfoom.util;
+
+import org.openjdk.jmh.annotations.*;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.concurrent.*;
+
+/**
+ * Compare the tunnel relays: {@link InputOutputs#duplex}, {@link ChannelRelay} with heap buffers
+ * and {@link ChannelRelay} with pooled direct buffers.
+ * <p>Each operation pushes {@link #PAYLOAD_MB} megabytes through a loopback tunnel,
+ * so the score is the throughput in MB/s.
+ * <p>Run with: {@code mvn -Pbenchmark integration-test -DskipTests -Djmh.args="TunnelRelayBenchmark -prof gc"}.
+ * The {@code gc} profiler reports the allocation rate ({@code gc.alloc.rate.norm} is per MB relayed).
+ */
+@State(Scope.Benchmark)
+@Fork(1)
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+public class TunnelRelayBenchmark {
+
+    /**
+     * The size of the data relayed by an operation (megabytes).
+     */
+    private static final int PAYLOAD_MB = 64;
+
+    private static final int CHUNK_SIZE = 64 * 1024;
+
+    @Param({"DUPLEX", "HEAP", "DIRECT"})
+    private RelayType relayType;
+
+    private ExecutorService executorService;
+
+    private ServerSocketChannel serverChannel;
+
+    private DirectBufferPool bufferPool;
+
+    @Setup(Level.Trial)
+    public void setup() throws IOException {
+        executorService = Executors.newCachedThreadPool();
+        serverChannel = ServerSocketChannel.open()
+                .bind(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0));
+        bufferPool = new DirectBufferPool(InputOutputs.DEFAULT_BUFFER_SIZE, 1024 * 1024);
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        InputOutputs.close(serverChannel);
+        executorService.shutdownNow();
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(PAYLOAD_MB)
+    public long relay() throws Exception {
+        try (SocketChannel client = SocketChannel.open(serverChannel.getLocalAddress());
+             SocketChannel clientSide = serverChannel.accept();
+             SocketChannel server = SocketChannel.open(serverChannel.getLocalAddress());
+             SocketChannel serverSide = serverChannel.accept()) {
+            Future<?> relay = executorService.submit(() -> {
+                relayType.relay(clientSide, serverSide, this);
+                return null;
+            });
+            Future<?> writer = executorService.submit(() -> {
+                byte[] chunk = new byte[CHUNK_SIZE];
+                OutputStream outputStream = client.socket().getOutputStream();
+                for (long written = 0; written < PAYLOAD_MB * 1024L * 1024L; written += chunk.length) {
+                    outputStream.write(chunk);
+                }
+                client.shutdownOutput();
+                return null;
+            });
+
+            long total = 0;
+            byte[] chunk = new byte[CHUNK_SIZE];
+            InputStream inputStream = server.socket().getInputStream();
+            for (int read; total < PAYLOAD_MB * 1024L * 1024L && (read = inputStream.read(chunk)) != -1; ) {
+                total += read;
+            }
+            writer.get();
+
+            // Both directions are done, the relay ends
+            server.shutdownOutput();
+            relay.get(10, TimeUnit.SECONDS);
+            return total;
+        }
+    }
+
+    public enum RelayType {
+        DUPLEX {
+            @Override
+            void relay(SocketChannel first, SocketChannel second, TunnelRelayBenchmark benchmark) throws IOException {
+                InputOutputs.duplex(benchmark.executorService,
+                        first.socket().getInputStream(), first.socket().getOutputStream(),
+                        second.socket().getInputStream(), second.socket().getOutputStream());
+            }
+        },
+        HEAP {
+            @Override
+            void relay(SocketChannel first, SocketChannel second, TunnelRelayBenchmark benchmark) {
+                new ChannelRelay(first, second, InputOutputs.DEFAULT_BUFFER_SIZE, 0).run();
+            }
+        },
+        DIRECT {
+            @Override
+            void relay(SocketChannel first, SocketChannel second, TunnelRelayBenchmark benchmark) {
+                new ChannelRelay(first, second, benchmark.bufferPool, 0).run();
+            }
+        };
+
+        abstract void relay(SocketChannel first, SocketChannel second, TunnelRelayBenchmark benchmark)
+                throws IOException;
+    }
+
+}
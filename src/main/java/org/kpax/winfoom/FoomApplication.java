@@ -15,6 +15,7 @@ package org.kpax.winfoom;
 import org.apache.commons.configuration2.Configuration;
 import org.apache.commons.configuration2.builder.fluent.Configurations;
 import org.apache.commons.configuration2.ex.ConfigurationException;
+import org.apache.commons.lang3.StringUtils;
 import org.kpax.winfoom.config.ProxyConfig;
 import org.kpax.winfoom.config.SystemConfig;
 import org.kpax.winfoom.util.InputOutputs;
@@ -30,18 +31,33 @@ import org.springframework.scheduling.annotation.EnableScheduling;
 import javax.swing.*;
 import java.awt.*;
 import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryMXBean;
 import java.nio.file.Files;
 import java.nio.file.Path;
 import java.nio.file.Paths;
 import java.nio.file.StandardCopyOption;
+import java.util.Arrays;
 
 /**
  * The entry point for Winfoom application.
+ * <p>With the {@code --headless} argument (or the {@code headless} profile active), no graphical interface
+ * is created: the proxy is driven by {@link org.kpax.winfoom.headless.HeadlessProxyController}.
  */
 @EnableScheduling
 @SpringBootApplication
 public class FoomApplication {
 
+    public static final String HEADLESS_PROFILE = "headless";
+
+    static final String HEADLESS_ARG = "--headless";
+
+    /**
+     * When this system property is {@code true}, the application exits as soon as it is started.
+     * <p>Used by the class-data-sharing training run (see the {@code appcds} Maven profile).
+     */
+    static final String EXIT_AFTER_STARTUP = "winfoom.exitAfterStartup";
+
     private static final Logger logger = LoggerFactory.getLogger(FoomApplication.class);
 
     public static void main(String[] args) {
@@ -50,30 +66,80 @@ public class FoomApplication {
         // within the PAC script for safety reasons
         System.setProperty("nashorn.args", "--no-java");
 
-        try {
-            UIManager.setLookAndFeel("com.sun.java.swing.plaf.windows.WindowsLookAndFeel");
-        } catch (Exception e) {
-            logger.warn("Failed to set Windows L&F, use the default look and feel", e);
+        boolean headless = isHeadless(args);
+
+        if (!headless) {
+            try {
+                UIManager.setLookAndFeel("com.sun.java.swing.plaf.windows.WindowsLookAndFeel");
+            } catch (Exception e) {
+                logger.warn("Failed to set Windows L&F, use the default look and feel", e);
+            }
         }
 
         // Check version
         try {
-            checkAppVersion();
+            checkAppVersion(!headless);
         } catch (Exception e) {
             logger.error("Failed to verify app version", e);
-            SwingUtils.showErrorMessage(null, String.format("Failed to verify application version.<br>" +
-                            "Remove the %s directory then try again.",
-                    Paths.get(System.getProperty("user.home"), SystemConfig.APP_HOME_DIR_NAME)));
+            if (!headless) {
+                SwingUtils.showErrorMessage(null, String.format("Failed to verify application version.<br>" +
+                                "Remove the %s directory then try again.",
+                        Paths.get(System.getProperty("user.home"), SystemConfig.APP_HOME_DIR_NAME)));
+            }
             System.exit(1);
         }
 
         logger.info("Bootstrap Spring's application context");
-        ApplicationContext applicationContext = SpringApplication.run(FoomApplication.class, args);
+        SpringApplication springApplication = new SpringApplication(FoomApplication.class);
+        if (headless) {
+            springApplication.setAdditionalProfiles(HEADLESS_PROFILE);
+        }
+        ApplicationContext applicationContext = springApplication.run(args);
+        logStartup(headless);
+
+        if (Boolean.getBoolean(EXIT_AFTER_STARTUP)) {
+            logger.info("Exit after startup");
+            System.exit(SpringApplication.exit(applicationContext));
+        }
+
+        if (!headless) {
+            launchGui(applicationContext);
+        }
+    }
+
+    /**
+     * @param args the command line arguments.
+     * @return {@code true} if the {@code --headless} argument is present
+     * or the {@code headless} profile is activated by the {@code spring.profiles.active} system property.
+     */
+    static boolean isHeadless(String[] args) {
+        return Arrays.asList(args).contains(HEADLESS_ARG)
+                || Arrays.stream(StringUtils.split(System.getProperty("spring.profiles.active", ""), ','))
+                .map(String::trim).anyMatch(HEADLESS_PROFILE::equals);
+    }
 
+    /**
+     * Log the startup time and the memory in use, to compare the headless and the GUI modes.
+     */
+    private static void logStartup(boolean headless) {
+        MemoryMXBean memoryMXBean = ManagementFactory.getMemoryMXBean();
+        logger.info("Started in {} mode in {} ms (JVM uptime), heap used {} KB, non-heap used {} KB",
+                headless ? "headless" : "GUI",
+                ManagementFactory.getRuntimeMXBean().getUptime(),
+                memoryMXBean.getHeapMemoryUsage().getUsed() / 1024,
+                memoryMXBean.getNonHeapMemoryUsage().getUsed() / 1024);
+    }
+
+    /**
+     * Show the {@link AppFrame}.
+     * <p>No method signature (lambdas included) of this class may refer to a {@code view} class,
+     * otherwise the reflective lookup of {@link #main(String[])} loads it, even in headless mode.
+     */
+    private static void launchGui(ApplicationContext applicationContext) {
         logger.info("Launch the GUI");
-        final AppFrame frame = applicationContext.getBean(AppFrame.class);
         EventQueue.invokeLater(() -> {
             try {
+                AppFrame frame = applicationContext.getBean(AppFrame.class);
                 frame.pack();
                 frame.setLocationRelativeTo(null);
                 frame.setVisible(true);
@@ -91,10 +157,11 @@ public class FoomApplication {
      * the application version (extracted from the MANIFEST file) are the same or backward compatible.
      * If not, the existent *.properties file are moved into a backup location.
      *
+     * @param withWarning if {@code true} a warning will popup when a file is moved
      * @throws IOException
      * @throws ConfigurationException
      */
-    private static void checkAppVersion() throws IOException, ConfigurationException {
+    private static void checkAppVersion(boolean withWarning) throws IOException, ConfigurationException {
         logger.info("Check the application's version");
         Path appHomePath = Paths.get(System.getProperty("user.home"), SystemConfig.APP_HOME_DIR_NAME);
         if (Files.exists(appHomePath)) {
@@ -120,7 +187,7 @@ public class FoomApplication {
                             logger.info("Backup the existent proxy.properties file since is invalid" +
                                     " (from a previous incompatible version)");
                             InputOutputs.backupFile(proxyConfigPath,
-                                    true,
+                                    withWarning,
                                     StandardCopyOption.REPLACE_EXISTING);
                         }
                     }
@@ -128,17 +195,17 @@ public class FoomApplication {
                     logger.info("Version not found within proxy.properties, " +
                             "backup both config files since they are invalid (from a previous incompatible version)");
                     InputOutputs.backupFile(proxyConfigPath,
-                            true,
+                            withWarning,
                             StandardCopyOption.REPLACE_EXISTING);
                     InputOutputs.backupFile(appHomePath.resolve(SystemConfig.FILENAME),
-                            true,
+                            withWarning,
                             StandardCopyOption.REPLACE_EXISTING);
                 }
             } else {
                 logger.info("No proxy.properties found, backup the system.properties file " +
                         "since is invalid (from a previous incompatible version)");
                 InputOutputs.backupFile(appHomePath.resolve(SystemConfig.FILENAME),
-                        true,
+                        withWarning,
                         StandardCopyOption.REPLACE_EXISTING);
             }
         }
@@ -1,39 +0,0 @@
-/*
- *  Copyright (c) 2020. Eugen Covaci
- *  Licensed under the Apache License, Version 2.0 (the "License");
- *  you may not use this file except in compliance with the License.
- *   You may obtain a copy of the License at
- *   http://www.apache.org/licenses/LICENSE-2.0
- *  Unless required by applicable law or agreed to in writing, software
- *  distributed under the License is distributed on an "AS IS" BASIS,
- *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
- *  See the License for the specific language governing permissions and limitations under the License.
- */
-
-package org.kpax.winfoom.config;
-
-import org.cache2k.extra.spring.SpringCache2kCacheManager;
-import org.springframework.beans.factory.annotation.Autowired;
-import org.springframework.cache.CacheManager;
-import org.springframework.cache.annotation.EnableCaching;
-import org.springframework.context.annotation.Bean;
-import org.springframework.context.annotation.Configuration;
-import org.springframework.context.annotation.Profile;
-
-@Configuration
-@EnableCaching
-public class CacheConfiguration {
-
-    @Autowired
-    private SystemConfig systemConfig;
-
-    @Profile("!test")
-    @Bean
-    public CacheManager cacheManager() {
-        return new SpringCache2kCacheManager().addCaches(
-                b -> b.name("precompiledGlobPattern").
-                        eternal(true).
-                        entryCapacity(systemConfig.getCacheGlobPatternCapacity()));
-    }
-
-}
\ No newline at end of file
@@ -257,6 +257,29 @@ public class ProxyConfig {
         tempDirectory = Paths.get(userHome, SystemConfig.APP_HOME_DIR_NAME, "temp");
     }
 
+    /**
+     * Re-read the settings from the home application directory, overwriting the current values.
+     * <p>A missing setting gets its default value.
+     *
+     * @throws ConfigurationException
+     */
+    public void reload() throws ConfigurationException {
+        File userProperties = Paths.get(System.getProperty("user.home"), SystemConfig.APP_HOME_DIR_NAME,
+                ProxyConfig.FILENAME).toFile();
+        logger.info("Reload the proxy settings from {}", userProperties);
+        Configuration config = new Configurations().propertiesBuilder(userProperties).getConfiguration();
+        localPort = config.getInteger("local.port", 3129);
+        proxyHost = config.getString("proxy.host", "");
+        proxyTestUrl = config.getString("proxy.test.url", "http://example.com");
+        proxyPort = config.getInteger("proxy.port", 0);
+        proxyType = Type.valueOf(config.getString("proxy.type", Type.HTTP.name()));
+        proxyUsername = config.getString("proxy.username", null);
+        proxyStorePassword = config.getBoolean("proxy.storePassword", false);
+        proxyPassword = config.getString("proxy.password", null);
+        proxyPacFileLocation = config.getString("proxy.pac.fileLocation", null);
+        blacklistTimeout = config.getInteger("blacklist.timeout", 30);
+    }
+
     /**
      * Save the current settings to the home application directory, overwriting the existing values.
      *
@@ -51,11 +51,43 @@ public class SystemConfig {
     private Integer maxConnections;
 
     /**
-     * The max size of the entity buffer (bytes).
+     * The max size of a request body cached in memory, a larger one spills into a temp file (bytes).
      */
     @Value("${internalBuffer.length:102400}")
     private Integer internalBufferLength;
 
+    /**
+     * The size of each pooled chunk caching a request body in memory (bytes).
+     */
+    @Value("${requestBody.chunkSize:16384}")
+    private Integer requestBodyChunkSize;
+
+    /**
+     * The maximum total size of the request bodies cached in memory, across the concurrent requests (bytes).
+     */
+    @Value("${requestBody.memoryBudget:33554432}")
+    private Long requestBodyMemoryBudget;
+
+    /**
+     * Whether the request body chunks are direct (off-heap) buffers.
+     */
+    @Value("${requestBody.directBuffers:false}")
+    private boolean requestBodyDirectBuffers;
+
+    /**
+     * The number of consecutive exchanges on a route without an authentication challenge,
+     * after which the request bodies are streamed without caching, {@code 0} disables streaming.
+     */
+    @Value("${requestBody.streamAfter:3}")
+    private Integer requestBodyStreamAfter;
+
+    /**
+     * How long to wait for the upstream's {@code 100 Continue} before sending
+     * the body of a request carrying {@code Expect: 100-continue} (milliseconds).
+     */
+    @Value("${expectContinue.waitTimeout:3000}")
+    private Integer expectContinueWaitTimeout;
+
     /**
      * The frequency of running purge idle
      * on the connection manager pool (seconds).
@@ -76,6 +108,78 @@ public class SystemConfig {
     @Value("${serverSocket.backlog:1000}")
     private Integer serverSocketBacklog;
 
+    /**
+     * The local proxy server engine.
+     */
+    @Value("${server.engine:BLOCKING}")
+    private ServerEngine serverEngine;
+
+    /**
+     * The number of I/O threads used by the selector engine.
+     */
+    @Value("${server.selector.ioThreads:2}")
+    private Integer serverSelectorIoThreads;
+
+    /**
+     * The type of threads used for handling the connections.
+     */
+    @Value("${executor.threadType:PLATFORM}")
+    private ThreadType executorThreadType;
+
+    /**
+     * The maximum number of connections handled concurrently.
+     */
+    @Value("${admission.maxConnections:1000}")
+    private Integer admissionMaxConnections;
+
+    /**
+     * The maximum number of concurrently open CONNECT tunnels.
+     */
+    @Value("${admission.maxTunnels:800}")
+    private Integer admissionMaxTunnels;
+
+    /**
+     * The maximum number of connections waiting for admission.
+     */
+    @Value("${admission.queue.capacity:1000}")
+    private Integer admissionQueueCapacity;
+
+    /**
+     * The maximum waiting time for admission (seconds).
+     */
+    @Value("${admission.queue.timeout:10}")
+    private Integer admissionQueueTimeout;
+
+    /**
+     * The value of the Retry-After header sent with a 503 response (seconds).
+     */
+    @Value("${admission.retryAfter:5}")
+    private Integer admissionRetryAfter;
+
+    /**
+     * The maximum idle time of a persistent client's connection between two requests (seconds).
+     */
+    @Value("${keepAlive.idleTimeout:15}")
+    private Integer keepAliveIdleTimeout;
+
+    /**
+     * The maximum number of requests handled on a persistent client's connection.
+     */
+    @Value("${keepAlive.maxRequests:100}")
+    private Integer keepAliveMaxRequests;
+
+    /**
+     * The size of each direct buffer used for relaying the tunnels (bytes).
+     */
+    @Value("${relay.buffer.size:16384}")
+    private Integer relayBufferSize;
+
+    /**
+     * The maximum total size of the pooled direct buffers used for relaying the tunnels (bytes).
+     */
+    @Value("${relay.buffer.maxTotalSize:33554432}")
+    private Long relayBufferMaxTotalSize;
+
     /**
      * The timeout for read/write through socket channel (seconds).
      */
@@ -88,6 +192,19 @@ public class SystemConfig {
     @Value("${socket.connectTimeout:10}")
     private Integer socketConnectTimeout;
 
+    /**
+     * The number of idle sockets kept connected to each upstream proxy, for the CONNECT tunnels
+     * (0 disables the pooling).
+     */
+    @Value("${tunnel.pool.spareSockets:2}")
+    private Integer tunnelPoolSpareSockets;
+
+    /**
+     * How long an idle socket to an upstream proxy is kept (seconds).
+     */
+    @Value("${tunnel.pool.idleTimeout:20}")
+    private Integer tunnelPoolIdleTimeout;
+
     /**
      * Whether to use the environment properties
      * when configuring a HTTP client builder.
@@ -106,11 +223,101 @@ public class SystemConfig {
     private boolean preferIPv6Addresses;
 
     /**
-     * The cache2k default capacity.
+     * The maximum number of precompiled GLOB patterns.
      */
-    @Value("${cache.globPattern.capacity:100}")
+    @Value("${cache.globPattern.capacity:1000}")
     private Integer cacheGlobPatternCapacity;
 
+    /**
+     * The maximum number of cached PAC results.
+     */
+    @Value("${pac.cache.capacity:1000}")
+    private Integer pacCacheCapacity;
+
+    /**
+     * The time to live of a cached PAC result (seconds), zero disables the cache.
+     */
+    @Value("${pac.cache.ttl:300}")
+    private Integer pacCacheTtl;
+
+    /**
+     * The time to live of a cached PAC result when the script is time dependent (seconds), zero disables the cache.
+     */
+    @Value("${pac.cache.timeSensitiveTtl:0}")
+    private Integer pacCacheTimeSensitiveTtl;
+
+    /**
+     * The maximum number of PAC script engines, zero means the number of available processors.
+     */
+    @Value("${pac.engine.poolSize:0}")
+    private Integer pacEnginePoolSize;
+
+    /**
+     * The maximum waiting time for a PAC script engine to become available (seconds).
+     */
+    @Value("${pac.engine.borrowTimeout:10}")
+    private Integer pacEngineBorrowTimeout;
+
+    /**
+     * Whether to evaluate the declarative PAC scripts natively, without any script engine.
+     */
+    @Value("${pac.native.enabled:true}")
+    private boolean pacNativeEnabled;
+
+    /**
+     * The interval between two checks for a changed PAC file (seconds), zero disables the refresh.
+     */
+    @Value("${pac.refresh.interval:300}")
+    private Integer pacRefreshInterval;
+
+    /**
+     * The maximum number of cached DNS resolutions.
+     */
+    @Value("${dns.cache.capacity:1000}")
+    private Integer dnsCacheCapacity;
+
+    /**
+     * The time to live of a cached DNS resolution (seconds), zero disables the cache.
+     */
+    @Value("${dns.cache.ttl:60}")
+    private Integer dnsCacheTtl;
+
+    /**
+     * The time to live of a cached unknown host (seconds).
+     */
+    @Value("${dns.cache.negativeTtl:10}")
+    private Integer dnsCacheNegativeTtl;
+
+    /**
+     * How long an expired DNS resolution is still used while refreshed in background (seconds), zero disables it.
+     */
+    @Value("${dns.cache.staleTtl:0}")
+    private Integer dnsCacheStaleTtl;
+
+    /**
+     * A request taking longer is logged into the slow requests log (milliseconds), zero disables the log.
+     */
+    @Value("${slowRequest.threshold:3000}")
+    private Integer slowRequestThreshold;
+
+    /**
+     * Whether to register the proxy metrics as a JMX MBean.
+     */
+    @Value("${metrics.jmx.enabled:true}")
+    private boolean metricsJmxEnabled;
+
+    /**
+     * The loopback port of the read-only HTTP metrics endpoint, zero disables it.
+     */
+    @Value("${metrics.http.port:0}")
+    private Integer metricsHttpPort;
+
+    /**
+     * The loopback port of the headless mode's control endpoint, zero disables it.
+     */
+    @Value("${headless.control.port:0}")
+    private Integer headlessControlPort;
+
     public Integer getMaxConnectionsPerRoute() {
         return maxConnectionsPerRoute;
     }
@@ -127,6 +334,26 @@ public class SystemConfig {
         return internalBufferLength;
     }
 
+    public Integer getRequestBodyChunkSize() {
+        return requestBodyChunkSize;
+    }
+
+    public Long getRequestBodyMemoryBudget() {
+        return requestBodyMemoryBudget;
+    }
+
+    public boolean isRequestBodyDirectBuffers() {
+        return requestBodyDirectBuffers;
+    }
+
+    public Integer getRequestBodyStreamAfter() {
+        return requestBodyStreamAfter;
+    }
+
+    public Integer getExpectContinueWaitTimeout() {
+        return expectContinueWaitTimeout;
+    }
+
     public Integer getConnectionManagerCleanInterval() {
         return connectionManagerCleanInterval;
     }
@@ -139,6 +366,54 @@ public class SystemConfig {
         return serverSocketBacklog;
     }
 
+    public ServerEngine getServerEngine() {
+        return serverEngine;
+    }
+
+    public Integer getServerSelectorIoThreads() {
+        return serverSelectorIoThreads;
+    }
+
+    public ThreadType getExecutorThreadType() {
+        return executorThreadType;
+    }
+
+    public Integer getAdmissionMaxConnections() {
+        return admissionMaxConnections;
+    }
+
+    public Integer getAdmissionMaxTunnels() {
+        return admissionMaxTunnels;
+    }
+
+    public Integer getAdmissionQueueCapacity() {
+        return admissionQueueCapacity;
+    }
+
+    public Integer getAdmissionQueueTimeout() {
+        return admissionQueueTimeout;
+    }
+
+    public Integer getAdmissionRetryAfter() {
+        return admissionRetryAfter;
+    }
+
+    public Integer getKeepAliveIdleTimeout() {
+        return keepAliveIdleTimeout;
+    }
+
+    public Integer getKeepAliveMaxRequests() {
+        return keepAliveMaxRequests;
+    }
+
+    public Integer getRelayBufferSize() {
+        return relayBufferSize;
+    }
+
+    public Long getRelayBufferMaxTotalSize() {
+        return relayBufferMaxTotalSize;
+    }
+
     public Integer getSocketSoTimeout() {
         return socketSoTimeout;
     }
@@ -147,6 +422,14 @@ public class SystemConfig {
         return socketConnectTimeout;
     }
 
+    public Integer getTunnelPoolSpareSockets() {
+        return tunnelPoolSpareSockets;
+    }
+
+    public Integer getTunnelPoolIdleTimeout() {
+        return tunnelPoolIdleTimeout;
+    }
+
     public boolean isPreferIPv6Addresses() {
         return preferIPv6Addresses;
     }
@@ -155,10 +438,111 @@ public class SystemConfig {
         return cacheGlobPatternCapacity;
     }
 
+    public Integer getPacCacheCapacity() {
+        return pacCacheCapacity;
+    }
+
+    public Integer getPacCacheTtl() {
+        return pacCacheTtl;
+    }
+
+    public Integer getPacCacheTimeSensitiveTtl() {
+        return pacCacheTimeSensitiveTtl;
+    }
+
+    public Integer getPacEnginePoolSize() {
+        return pacEnginePoolSize;
+    }
+
+    public Integer getPacEngineBorrowTimeout() {
+        return pacEngineBorrowTimeout;
+    }
+
+    public boolean isPacNativeEnabled() {
+        return pacNativeEnabled;
+    }
+
+    public Integer getPacRefreshInterval() {
+        return pacRefreshInterval;
+    }
+
+    public Integer getDnsCacheCapacity() {
+        return dnsCacheCapacity;
+    }
+
+    public Integer getDnsCacheTtl() {
+        return dnsCacheTtl;
+    }
+
+    public Integer getDnsCacheNegativeTtl() {
+        return dnsCacheNegativeTtl;
+    }
+
+    public Integer getDnsCacheStaleTtl() {
+        return dnsCacheStaleTtl;
+    }
+
+    public Integer getSlowRequestThreshold() {
+        return slowRequestThreshold;
+    }
+
+    public boolean isMetricsJmxEnabled() {
+        return metricsJmxEnabled;
+    }
+
+    public Integer getMetricsHttpPort() {
+        return metricsHttpPort;
+    }
+
+    public Integer getHeadlessControlPort() {
+        return headlessControlPort;
+    }
+
     public RequestConfig.Builder applyConfig(final RequestConfig.Builder configBuilder) {
         return configBuilder.setConnectTimeout(socketConnectTimeout * 1000)
                 .setConnectionRequestTimeout(socketSoTimeout * 1000)
                 .setSocketTimeout(socketSoTimeout * 1000);
     }
 
+    /**
+     * The way the local proxy server accepts the client's connections.
+     */
+    public enum ServerEngine {
+
+        /**
+         * A blocking accept loop, each accepted connection is handled on its own thread.
+         */
+        BLOCKING,
+
+        /**
+         * A selector based accept and request reading with a fixed number of I/O threads,
+         * a connection is handed to a thread only when its request head has arrived.
+         */
+        SELECTOR;
+
+        public boolean isSelector() {
+            return this == SELECTOR;
+        }
+    }
+
+    /**
+     * The type of threads executing the connection handlers and the full duplex transfers.
+     */
+    public enum ThreadType {
+
+        /**
+         * Platform threads, pooled.
+         */
+        PLATFORM,
+
+        /**
+         * Virtual threads, one per task. Falls back to {@link #PLATFORM} when the JVM does not support them.
+         */
+        VIRTUAL;
+
+        public boolean isVirtual() {
+            return this == VIRTUAL;
+        }
+    }
+
 }
@@ -0,0 +1,235 @@
+/*
+ * Copyright (c) 2020. Eugen Covaci
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and limitations under the License.
+ */
+
+package org.kpax.winfoom.headless;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+import org.apache.http.HttpHeaders;
+import org.apache.http.HttpStatus;
+import org.kpax.winfoom.config.SystemConfig;
+import org.kpax.winfoom.util.HttpExchanges;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.context.annotation.Lazy;
+import org.springframework.context.annotation.Profile;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+import java.io.IOException;
+import java.net.Inet6Address;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.FileSystems;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.attribute.PosixFilePermissions;
+import java.security.MessageDigest;
+import java.security.SecureRandom;
+import java.util.Arrays;
+import java.util.Base64;
+import java.util.List;
+
+/**
+ * An HTTP endpoint, bound to the loopback interface, that controls the {@link HeadlessProxyController}:
+ * {@code POST /start}, {@code POST /stop}, {@code POST /reload} and {@code GET /status}.
+ * <p>Each one answers with the proxy's status. Disabled unless the {@code headless.control.port} setting is positive.
+ * <p>A request must carry the {@code Authorization: Bearer <token>} header, the token being generated on each start
+ * into the {@code control.token} file of the application's home directory, readable by the current user only.
+ * Since a browser cannot read this file, nor set this header on a cross-site request without a preflight,
+ * the web pages cannot drive the proxy. On top of that, the requests with an {@code Origin} header,
+ * or with a {@code Host} header other than the loopback address and port (DNS rebinding), are rejected.
+ * Never lazily initialized, since no other bean depends on it.
+ *
+ * @author Eugen Covaci
+ */
+@Lazy(false)
+@Profile("headless")
+@Component
+class ControlEndpoint {
+
+    static final String START_PATH = "/start";
+
+    static final String STOP_PATH = "/stop";
+
+    static final String RELOAD_PATH = "/reload";
+
+    static final String STATUS_PATH = "/status";
+
+    static final String TOKEN_FILENAME = "control.token";
+
+    private static final String BEARER_PREFIX = "Bearer ";
+
+    private static final String ORIGIN_HEADER = "Origin";
+
+    private static final String CONTENT_TYPE = "text/plain; charset=utf-8";
+
+    private final Logger logger = LoggerFactory.getLogger(ControlEndpoint.class);
+
+    @Autowired
+    private SystemConfig systemConfig;
+
+    @Autowired
+    private HeadlessProxyController headlessProxyController;
+
+    private final Path tokenFile = Paths.get(System.getProperty("user.home"), SystemConfig.APP_HOME_DIR_NAME,
+            TOKEN_FILENAME);
+
+    private byte[] token;
+
+    private HttpServer httpServer;
+
+    @PostConstruct
+    private void init() {
+        if (systemConfig.getHeadlessControlPort() > 0) {
+            try {
+                token = writeToken();
+                httpServer = HttpServer.create(
+                        new InetSocketAddress(InetAddress.getLoopbackAddress(), systemConfig.getHeadlessControlPort()), 0);
+                httpServer.createContext("/", this::handle);
+                httpServer.start();
+                logger.info("Control endpoint listening on http://{}:{}",
+                        InetAddress.getLoopbackAddress().getHostAddress(), getPort());
+            } catch (IOException e) {
+                logger.warn("Cannot start the control endpoint", e);
+            }
+        }
+    }
+
+    @PreDestroy
+    private void destroy() {
+        if (httpServer != null) {
+            httpServer.stop(0);
+            try {
+                Files.deleteIfExists(tokenFile);
+            } catch (IOException e) {
+                logger.debug("Cannot delete the token file", e);
+            }
+        }
+    }
+
+    /**
+     * Generate a new random token and write it into the token file, readable by the current user only
+     * where the file system supports POSIX permissions (the user's home directory is private on Windows).
+     *
+     * @return the token's bytes.
+     * @throws IOException on writing the token file.
+     */
+    private byte[] writeToken() throws IOException {
+        byte[] randomBytes = new byte[32];
+        new SecureRandom().nextBytes(randomBytes);
+        String text = Base64.getUrlEncoder().withoutPadding().encodeToString(randomBytes);
+        Files.createDirectories(tokenFile.getParent());
+        Files.deleteIfExists(tokenFile);
+        if (FileSystems.getDefault().supportedFileAttributeViews().contains("posix")) {
+            Files.createFile(tokenFile, PosixFilePermissions.asFileAttribute(PosixFilePermissions.fromString("rw-------")));
+        }
+        Files.write(tokenFile, text.getBytes(StandardCharsets.US_ASCII));
+        return text.getBytes(StandardCharsets.US_ASCII);
+    }
+
+    /**
+     * @return the file containing the token, valid while the endpoint is running.
+     */
+    Path getTokenFile() {
+        return tokenFile;
+    }
+
+    /**
+     * @return the bound port, {@code -1} if the endpoint is not running.
+     */
+    int getPort() {
+        return httpServer != null ? httpServer.getAddress().getPort() : -1;
+    }
+
+    private void handle(HttpExchange exchange) throws IOException {
+        try {
+            if (!isLocalRequest(exchange)) {
+                HttpExchanges.respond(exchange, HttpStatus.SC_FORBIDDEN, CONTENT_TYPE, "Forbidden\n");
+                return;
+            }
+            if (!isAuthorized(exchange)) {
+                HttpExchanges.respond(exchange, HttpStatus.SC_UNAUTHORIZED, CONTENT_TYPE,
+                        "Missing or wrong token, see the " + TOKEN_FILENAME + " file\n");
+                return;
+            }
+            String path = exchange.getRequestURI().getPath();
+            String method = STATUS_PATH.equals(path) ? "GET" : "POST";
+            if (!START_PATH.equals(path) && !STOP_PATH.equals(path)
+                    && !RELOAD_PATH.equals(path) && !STATUS_PATH.equals(path)) {
+                HttpExchanges.respond(exchange, HttpStatus.SC_NOT_FOUND, CONTENT_TYPE, "Unknown command\n");
+                return;
+            }
+            if (!method.equalsIgnoreCase(exchange.getRequestMethod())) {
+                exchange.getResponseHeaders().set("Allow", method);
+                HttpExchanges.respond(exchange, HttpStatus.SC_METHOD_NOT_ALLOWED, CONTENT_TYPE, "Use " + method + "\n");
+                return;
+            }
+            int statusCode = HttpStatus.SC_OK;
+            try {
+                if (START_PATH.equals(path)) {
+                    headlessProxyController.start();
+                } else if (STOP_PATH.equals(path)) {
+                    headlessProxyController.stop();
+                } else if (RELOAD_PATH.equals(path)) {
+                    headlessProxyController.reload();
+                }
+            } catch (Exception e) {
+                logger.error("Error on executing the {} command", path, e);
+                statusCode = HttpStatus.SC_INTERNAL_SERVER_ERROR;
+            }
+            HttpExchanges.respond(exchange, statusCode, CONTENT_TYPE, headlessProxyController.getStatus());
+        } catch (Exception e) {
+            logger.debug("Error on serving the control request", e);
+            throw e;
+        } finally {
+            exchange.close();
+        }
+    }
+
+    /**
+     * @return {@code true} iff the request has no {@code Origin} header
+     * and its {@code Host} header names the loopback address and the endpoint's port.
+     */
+    private boolean isLocalRequest(HttpExchange exchange) {
+        if (exchange.getRequestHeaders().containsKey(ORIGIN_HEADER)) {
+            logger.debug("Reject a request with Origin header");
+            return false;
+        }
+        String host = exchange.getRequestHeaders().getFirst(HttpHeaders.HOST);
+        InetAddress loopbackAddress = InetAddress.getLoopbackAddress();
+        String loopbackHost = loopbackAddress instanceof Inet6Address ?
+                "[" + loopbackAddress.getHostAddress() + "]" : loopbackAddress.getHostAddress();
+        List<String> allowedHosts = Arrays.asList(loopbackHost + ":" + getPort(), "localhost:" + getPort());
+        if (host == null || allowedHosts.stream().noneMatch(host::equalsIgnoreCase)) {
+            logger.debug("Reject a request with Host header {}", host);
+            return false;
+        }
+        return true;
+    }
+
+    /**
+     * @return {@code true} iff the request carries the token.
+     */
+    private boolean isAuthorized(HttpExchange exchange) {
+        String authorization = exchange.getRequestHeaders().getFirst(HttpHeaders.AUTHORIZATION);
+        return authorization != null
+                && authorization.startsWith(BEARER_PREFIX)
+                && MessageDigest.isEqual(token,
+                authorization.substring(BEARER_PREFIX.length()).trim().getBytes(StandardCharsets.US_ASCII));
+    }
+
+}
@@ -0,0 +1,173 @@
+/*
+ * Copyright (c) 2020. Eugen Covaci
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and limitations under the License.
+ */
+
+package org.kpax.winfoom.headless;
+
+import org.apache.commons.lang3.StringUtils;
+import org.kpax.winfoom.config.ProxyConfig;
+import org.kpax.winfoom.exception.InvalidProxySettingsException;
+import org.kpax.winfoom.proxy.ProxyContext;
+import org.kpax.winfoom.proxy.ProxyValidator;
+import org.kpax.winfoom.util.HttpUtils;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.context.event.ApplicationReadyEvent;
+import org.springframework.context.annotation.Profile;
+import org.springframework.context.event.EventListener;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.PreDestroy;
+import java.util.concurrent.CountDownLatch;
+
+/**
+ * Drive the proxy session without the graphical interface, from the settings found in {@code proxy.properties}.
+ * <p>The proxy is started once the application is ready and it can be stopped, started, reloaded (the settings
+ * re-read from the file, then the proxy restarted) and queried by the {@link ControlEndpoint}.
+ * <p>A non-daemon thread keeps the application alive until the Spring context is closed,
+ * even when the proxy is stopped and no control endpoint is running.
+ * <p>Active only in the {@code headless} profile, instead of {@link org.kpax.winfoom.view.AppFrame}.
+ *
+ * @author Eugen Covaci
+ */
+@Profile("headless")
+@Component
+public class HeadlessProxyController {
+
+    private final Logger logger = LoggerFactory.getLogger(HeadlessProxyController.class);
+
+    @Autowired
+    private ProxyConfig proxyConfig;
+
+    @Autowired
+    private ProxyContext proxyContext;
+
+    @Autowired
+    private ProxyValidator proxyValidator;
+
+    /**
+     * The error of the last failed start, {@code null} if none.
+     */
+    private volatile String lastError;
+
+    private final CountDownLatch shutdownLatch = new CountDownLatch(1);
+
+    @EventListener(ApplicationReadyEvent.class)
+    void onApplicationReady() {
+        Thread keepAlive = new Thread(() -> {
+            try {
+                shutdownLatch.await();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }, "headless-keep-alive");
+        keepAlive.setDaemon(false);
+        keepAlive.start();
+
+        try {
+            start();
+        } catch (Exception e) {
+            logger.error("Error on starting the proxy, fix the settings then reload", e);
+        }
+    }
+
+    @PreDestroy
+    void onDestroy() {
+        shutdownLatch.countDown();
+    }
+
+    /**
+     * Validate the settings then begin the proxy session, if not already running.
+     *
+     * @throws Exception when the settings are invalid or the proxy cannot be started.
+     */
+    public synchronized void start() throws Exception {
+        if (proxyContext.isRunning()) {
+            logger.info("The proxy is already running");
+            return;
+        }
+        try {
+            validateSettings();
+            proxyValidator.testProxyConfig();
+            proxyContext.start();
+            lastError = null;
+            logger.info("The proxy is listening on port {}", proxyConfig.getLocalPort());
+        } catch (Exception e) {
+            lastError = e.getMessage() != null ? e.getMessage() : e.getClass().getName();
+            if (proxyContext.isRunning()) {
+                proxyContext.stop();
+            }
+            throw e;
+        }
+    }
+
+    /**
+     * End the proxy session, if running.
+     */
+    public synchronized void stop() {
+        if (proxyContext.isRunning()) {
+            proxyContext.stop();
+            logger.info("The proxy is stopped");
+        }
+    }
+
+    /**
+     * Stop the proxy, re-read the settings from {@code proxy.properties}, then start the proxy.
+     *
+     * @throws Exception when the settings cannot be read, are invalid or the proxy cannot be started.
+     */
+    public synchronized void reload() throws Exception {
+        stop();
+        proxyConfig.reload();
+        start();
+    }
+
+    /**
+     * @return the proxy's state, as {@code key=value} lines.
+     */
+    public synchronized String getStatus() {
+        StringBuilder builder = new StringBuilder();
+        builder.append("state=").append(proxyContext.isRunning() ? "running" : "stopped").append('\n');
+        builder.append("proxyType=").append(proxyConfig.getProxyType()).append('\n');
+        builder.append("localPort=").append(proxyConfig.getLocalPort()).append('\n');
+        if (lastError != null) {
+            builder.append("lastError=").append(lastError).append('\n');
+        }
+        return builder.toString();
+    }
+
+    /**
+     * The same checks as the graphical interface, before testing the settings.
+     *
+     * @throws InvalidProxySettingsException
+     */
+    private void validateSettings() throws InvalidProxySettingsException {
+        if (proxyConfig.getProxyType().isSocks() || proxyConfig.getProxyType().isHttp()) {
+            if (StringUtils.isBlank(proxyConfig.getProxyHost())) {
+                throw new InvalidProxySettingsException("Fill in the proxy host");
+            }
+            if (proxyConfig.getProxyPort() == null || !HttpUtils.isValidPort(proxyConfig.getProxyPort())) {
+                throw new InvalidProxySettingsException("Fill in a valid proxy port, between 1 and 65535");
+            }
+        }
+        if (proxyConfig.isAutoConfig() && StringUtils.isBlank(proxyConfig.getProxyPacFileLocation())) {
+            throw new InvalidProxySettingsException("Fill in a valid Pac file location");
+        }
+        if (proxyConfig.getLocalPort() == null || !HttpUtils.isValidPort(proxyConfig.getLocalPort())) {
+            throw new InvalidProxySettingsException("Fill in a valid local proxy port, between 1 and 65535");
+        }
+        if (StringUtils.isBlank(proxyConfig.getProxyTestUrl())) {
+            throw new InvalidProxySettingsException("Fill in the proxy test URL");
+        }
+    }
+
+}
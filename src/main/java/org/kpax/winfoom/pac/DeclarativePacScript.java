@@ -0,0 +1,779 @@
+/*
+ * Copyright (c) 2020. Eugen Covaci
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and limitations under the License.
+ */
+
+package org.kpax.winfoom.pac;
+
+import org.kpax.winfoom.pac.net.NetworkMatcher;
+import org.kpax.winfoom.pac.net.NetworkMatcherSet;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.util.Assert;
+
+import java.net.UnknownHostException;
+import java.util.*;
+import java.util.regex.PatternSyntaxException;
+
+/**
+ * A PAC script compiled into a Java decision structure, evaluated without any script engine.
+ * <p>Only the declarative subset of the PAC grammar is recognized: a single {@code FindProxyForURL(url, host)}
+ * function made of {@code if/else} statements and blocks that return constant proxy strings (or {@code null}).
+ * The conditions may combine with {@code ||}, {@code &&} and {@code !}:
+ * <ul>
+ *     <li>{@code isPlainHostName}, {@code dnsDomainIs}, {@code localHostOrDomainIs}, {@code isResolvable},
+ *     {@code shExpMatch} and {@code isInNet} calls with constant patterns,</li>
+ *     <li>string comparisons ({@code ==}, {@code !=}, {@code ===}, {@code !==}) between {@code url}, {@code host},
+ *     {@code dnsResolve(...)}, {@code substring(start, end)} and string literals.</li>
+ * </ul>
+ * The constant arguments are compiled once: consecutive {@code dnsDomainIs} checks become a hash lookup,
+ * consecutive {@code shExpMatch} checks a set of precompiled patterns and consecutive {@code isInNet} checks
+ * a sorted set of address ranges sharing a single DNS resolution.
+ * <p>The result is the same as the one computed by the script engine with the {@link PacHelperMethodsNetscape}
+ * helpers, including their quirks. Any other script is rejected by {@link #compile(String, PacHelperMethodsNetscape)}.
+ *
+ * @author Eugen Covaci
+ */
+public final class DeclarativePacScript {
+
+    private static final Logger logger = LoggerFactory.getLogger(DeclarativePacScript.class);
+
+    private static final StringExpression HOST = context -> context.host;
+
+    private static final StringExpression URL = context -> context.url;
+
+    private static final StringExpression RESOLVED_HOST = context -> context.dnsResolve(context.host);
+
+    private final Statement body;
+
+    private final PacHelperMethodsNetscape helperMethods;
+
+    private DeclarativePacScript(Statement body, PacHelperMethodsNetscape helperMethods) {
+        this.body = body;
+        this.helperMethods = helperMethods;
+    }
+
+    /**
+     * Try to compile the PAC script.
+     *
+     * @param pacSource     the PAC script.
+     * @param helperMethods the helper methods used for the non constant parts.
+     * @return the compiled script or an empty {@link Optional} when the script is outside the declarative subset.
+     */
+    public static Optional<DeclarativePacScript> compile(String pacSource, PacHelperMethodsNetscape helperMethods) {
+        Assert.notNull(pacSource, "pacSource cannot be null");
+        Assert.notNull(helperMethods, "helperMethods cannot be null");
+        try {
+            Statement body = new Parser(new Tokenizer(pacSource).tokenize()).parseScript();
+            return Optional.of(new DeclarativePacScript(body, helperMethods));
+        } catch (UnsupportedScriptException e) {
+            logger.debug("The PAC script is not declarative: {}", e.getMessage());
+            return Optional.empty();
+        }
+    }
+
+    /**
+     * Evaluate the script.
+     *
+     * @param url  the URL.
+     * @param host the URL's host.
+     * @return the proxy line, as returned by the {@code FindProxyForURL} function.
+     */
+    public String findProxyForURL(String url, String host) {
+        Return result = body.execute(new Context(url, host, helperMethods));
+
+        // The parser guarantees that the function always returns
+        return result.value;
+    }
+
+    /**
+     * The state of a single evaluation.
+     */
+    private static class Context {
+
+        private final String url;
+
+        private final String host;
+
+        private final PacHelperMethodsNetscape helperMethods;
+
+        /**
+         * The {@code dnsResolve} results, computed at most once per evaluation.
+         */
+        private Map<String, String> resolved;
+
+        Context(String url, String host, PacHelperMethodsNetscape helperMethods) {
+            this.url = url;
+            this.host = host;
+            this.helperMethods = helperMethods;
+        }
+
+        /**
+         * Like the {@code dnsResolve} script function, which converts {@code null} into {@code "null"}.
+         */
+        String dnsResolve(String name) {
+            if (resolved == null) {
+                resolved = new HashMap<>();
+            }
+            return resolved.computeIfAbsent(name, key -> String.valueOf(helperMethods.dnsResolve(key)));
+        }
+    }
+
+    private static class Return {
+
+        private final String value;
+
+        Return(String value) {
+            this.value = value;
+        }
+    }
+
+    private interface Statement {
+
+        /**
+         * @return the function's result or {@code null} if the execution continues with the next statement.
+         */
+        Return execute(Context context);
+
+        /**
+         * @return {@code true} iff the execution never goes beyond this statement.
+         */
+        boolean alwaysReturns();
+    }
+
+    private interface Condition {
+        boolean test(Context context);
+    }
+
+    private interface StringExpression {
+        String evaluate(Context context);
+    }
+
+    private static class Block implements Statement {
+
+        private final List<Statement> statements;
+
+        Block(List<Statement> statements) {
+            this.statements = statements;
+        }
+
+        @Override
+        public Return execute(Context context) {
+            for (Statement statement : statements) {
+                Return result = statement.execute(context);
+                if (result != null) {
+                    return result;
+                }
+            }
+            return null;
+        }
+
+        @Override
+        public boolean alwaysReturns() {
+            return statements.stream().anyMatch(Statement::alwaysReturns);
+        }
+    }
+
+    private static class If implements Statement {
+
+        private final Condition condition;
+
+        private final Statement thenStatement;
+
+        private final Statement elseStatement;
+
+        If(Condition condition, Statement thenStatement, Statement elseStatement) {
+            this.condition = condition;
+            this.thenStatement = thenStatement;
+            this.elseStatement = elseStatement;
+        }
+
+        @Override
+        public Return execute(Context context) {
+            if (condition.test(context)) {
+                return thenStatement.execute(context);
+            }
+            return elseStatement != null ? elseStatement.execute(context) : null;
+        }
+
+        @Override
+        public boolean alwaysReturns() {
+            return elseStatement != null && thenStatement.alwaysReturns() && elseStatement.alwaysReturns();
+        }
+    }
+
+    private static class ReturnStatement implements Statement {
+
+        private final Return result;
+
+        ReturnStatement(String value) {
+            this.result = new Return(value);
+        }
+
+        @Override
+        public Return execute(Context context) {
+            return result;
+        }
+
+        @Override
+        public boolean alwaysReturns() {
+            return true;
+        }
+    }
+
+    /**
+     * Consecutive {@code dnsDomainIs} checks on the same subject, as a hash lookup.
+     * <p>Same as {@link DefaultPacHelperMethods#dnsDomainIs(String, String)}: the part of the host
+     * starting with the first dot, with or without the dot, must equal the domain.
+     */
+    private static class DomainSet implements Condition {
+
+        private final StringExpression subject;
+
+        private final Set<String> domains = new HashSet<>();
+
+        DomainSet(StringExpression subject) {
+            this.subject = subject;
+        }
+
+        @Override
+        public boolean test(Context context) {
+            String host = subject.evaluate(context);
+            int dotPos = host.indexOf('.');
+            if (dotPos != -1 && dotPos < host.length() - 1) {
+                return domains.contains(host.substring(dotPos)) || domains.contains(host.substring(dotPos + 1));
+            }
+            return false;
+        }
+    }
+
+    /**
+     * Consecutive {@code shExpMatch} checks on the same subject, as a {@link GlobPatternSet}.
+     */
+    private static class GlobSet implements Condition {
+
+        private final StringExpression subject;
+
+        private final GlobPatternSet patterns = new GlobPatternSet();
+
+        GlobSet(StringExpression subject) {
+            this.subject = subject;
+        }
+
+        @Override
+        public boolean test(Context context) {
+            return patterns.matchesAny(subject.evaluate(context));
+        }
+    }
+
+    /**
+     * Consecutive {@code isInNet} checks on the same subject, as a {@link NetworkMatcherSet}.
+     * <p>Same as {@link DefaultPacHelperMethods#isInNet(String, String, String)}: the subject must be resolvable
+     * and, as an address, contained in the range.
+     */
+    private static class NetworkSet implements Condition {
+
+        private final StringExpression subject;
+
+        private final NetworkMatcherSet networks = new NetworkMatcherSet();
+
+        NetworkSet(StringExpression subject) {
+            this.subject = subject;
+        }
+
+        @Override
+        public boolean test(Context context) {
+            String host = subject.evaluate(context);
+            // An IPv4 address is always resolvable
+            if (NetworkMatcher.parseIPv4(host) == -1 && context.helperMethods.dnsResolve(host) == null) {
+                return false;
+            }
+            try {
+                return networks.matchesAny(host);
+            } catch (UnknownHostException e) {
+                return false;
+            }
+        }
+    }
+
+    /**
+     * The JavaScript {@code String.prototype.substring}, with integer literal arguments.
+     */
+    private static class Substring implements StringExpression {
+
+        private final StringExpression target;
+
+        private final int start;
+
+        private final int end;
+
+        Substring(StringExpression target, int start, int end) {
+            this.target = target;
+            this.start = start;
+            this.end = end;
+        }
+
+        @Override
+        public String evaluate(Context context) {
+            String str = target.evaluate(context);
+            int from = Math.min(Math.max(start, 0), str.length());
+            int to = Math.min(Math.max(end, 0), str.length());
+            return str.substring(Math.min(from, to), Math.max(from, to));
+        }
+    }
+
+    private static class UnsupportedScriptException extends Exception {
+        UnsupportedScriptException(String message) {
+            super(message);
+        }
+    }
+
+    private enum TokenType {
+        IDENTIFIER, STRING, NUMBER, PUNCTUATOR, END
+    }
+
+    private static class Token {
+
+        private final TokenType type;
+
+        private final String text;
+
+        Token(TokenType type, String text) {
+            this.type = type;
+            this.text = text;
+        }
+
+        boolean is(String punctuatorOrKeyword) {
+            return (type == TokenType.PUNCTUATOR || type == TokenType.IDENTIFIER) && text.equals(punctuatorOrKeyword);
+        }
+
+        @Override
+        public String toString() {
+            return type + " [" + text + "]";
+        }
+    }
+
+    private static class Tokenizer {
+
+        private static final String[] PUNCTUATORS = {"===", "!==", "==", "!=", "||", "&&",
+                "(", ")", "{", "}", ",", ";", ".", "!"};
+
+        private final String source;
+
+        private int pos;
+
+        Tokenizer(String source) {
+            this.source = source;
+        }
+
+        List<Token> tokenize() throws UnsupportedScriptException {
+            List<Token> tokens = new ArrayList<>();
+            while (true) {
+                skipWhitespaceAndComments();
+                if (pos >= source.length()) {
+                    tokens.add(new Token(TokenType.END, ""));
+                    return tokens;
+                }
+                char c = source.charAt(pos);
+                if (Character.isJavaIdentifierStart(c)) {
+                    int start = pos;
+                    while (pos < source.length() && Character.isJavaIdentifierPart(source.charAt(pos))) {
+                        pos++;
+                    }
+                    tokens.add(new Token(TokenType.IDENTIFIER, source.substring(start, pos)));
+                } else if (Character.isDigit(c)) {
+                    int start = pos;
+                    while (pos < source.length() && Character.isDigit(source.charAt(pos))) {
+                        pos++;
+                    }
+                    tokens.add(new Token(TokenType.NUMBER, source.substring(start, pos)));
+                } else if (c == '"' || c == '\'') {
+                    tokens.add(new Token(TokenType.STRING, readString(c)));
+                } else {
+                    tokens.add(new Token(TokenType.PUNCTUATOR, readPunctuator()));
+                }
+            }
+        }
+
+        private void skipWhitespaceAndComments() throws UnsupportedScriptException {
+            while (pos < source.length()) {
+                if (Character.isWhitespace(source.charAt(pos))) {
+                    pos++;
+                } else if (source.startsWith("//", pos)) {
+                    while (pos < source.length() && source.charAt(pos) != '\n') {
+                        pos++;
+                    }
+                } else if (source.startsWith("/*", pos)) {
+                    int end = source.indexOf("*/", pos + 2);
+                    if (end == -1) {
+                        throw new UnsupportedScriptException("Unterminated comment");
+                    }
+                    pos = end + 2;
+                } else {
+                    return;
+                }
+            }
+        }
+
+        private String readString(char quote) throws UnsupportedScriptException {
+            StringBuilder value = new StringBuilder();
+            pos++;
+            while (pos < source.length()) {
+                char c = source.charAt(pos++);
+                if (c == quote) {
+                    return value.toString();
+                } else if (c == '\\') {
+                    if (pos >= source.length()) {
+                        break;
+                    }
+                    char escaped = source.charAt(pos++);
+                    if (escaped == '\\' || escaped == '"' || escaped == '\'') {
+                        value.append(escaped);
+                    } else {
+                        throw new UnsupportedScriptException("Unsupported escape sequence: \\" + escaped);
+                    }
+                } else if (c == '\n' || c == '\r') {
+                    break;
+                } else {
+                    value.append(c);
+                }
+            }
+            throw new UnsupportedScriptException("Unterminated string literal");
+        }
+
+        private String readPunctuator() throws UnsupportedScriptException {
+            for (String punctuator : PUNCTUATORS) {
+                if (source.startsWith(punctuator, pos)) {
+                    pos += punctuator.length();
+                    return punctuator;
+                }
+            }
+            throw new UnsupportedScriptException("Unsupported character: " + source.charAt(pos));
+        }
+    }
+
+    /**
+     * A recursive descent parser for the declarative subset.
+     */
+    private static class Parser {
+
+        private final List<Token> tokens;
+
+        private int pos;
+
+        private String urlParameter;
+
+        private String hostParameter;
+
+        Parser(List<Token> tokens) {
+            this.tokens = tokens;
+        }
+
+        Statement parseScript() throws UnsupportedScriptException {
+            expect("function");
+            Token name = next();
+            if (!name.is(PacScriptEvaluator.STANDARD_PAC_MAIN_FUNCTION)) {
+                throw new UnsupportedScriptException("Unsupported function: " + name);
+            }
+            expect("(");
+            urlParameter = expectIdentifier();
+            expect(",");
+            hostParameter = expectIdentifier();
+            expect(")");
+            Statement body = parseBlock();
+            if (peek().type != TokenType.END) {
+                throw new UnsupportedScriptException("Unexpected token after the function: " + peek());
+            }
+            if (!body.alwaysReturns()) {
+                throw new UnsupportedScriptException("The function does not always return");
+            }
+            return body;
+        }
+
+        private Block parseBlock() throws UnsupportedScriptException {
+            expect("{");
+            List<Statement> statements = new ArrayList<>();
+            while (!peek().is("}")) {
+                statements.add(parseStatement());
+            }
+            expect("}");
+            return new Block(statements);
+        }
+
+        private Statement parseStatement() throws UnsupportedScriptException {
+            Token token = peek();
+            if (token.is("{")) {
+                return parseBlock();
+            } else if (token.is(";")) {
+                next();
+                return new Block(Collections.emptyList());
+            } else if (token.is("if")) {
+                next();
+                expect("(");
+                Condition condition = parseOr();
+                expect(")");
+                Statement thenStatement = parseStatement();
+                Statement elseStatement = null;
+                if (peek().is("else")) {
+                    next();
+                    elseStatement = parseStatement();
+                }
+                return new If(condition, thenStatement, elseStatement);
+            } else if (token.is("return")) {
+                next();
+                Token value = next();
+                ReturnStatement statement;
+                if (value.type == TokenType.STRING) {
+                    statement = new ReturnStatement(value.text);
+                } else if (value.is("null")) {
+                    statement = new ReturnStatement(null);
+                } else {
+                    throw new UnsupportedScriptException("Unsupported return value: " + value);
+                }
+                if (peek().is(";")) {
+                    next();
+                }
+                return statement;
+            }
+            throw new UnsupportedScriptException("Unsupported statement: " + token);
+        }
+
+        /**
+         * Parse an {@code ||} chain, merging the consecutive checks of the same kind on the same subject.
+         */
+        private Condition parseOr() throws UnsupportedScriptException {
+            List<Condition> conditions = new ArrayList<>();
+            conditions.add(parseAnd());
+            while (peek().is("||")) {
+                next();
+                Condition condition = parseAnd();
+                Condition last = conditions.get(conditions.size() - 1);
+                if (!merge(last, condition)) {
+                    conditions.add(condition);
+                }
+            }
+            if (conditions.size() == 1) {
+                return conditions.get(0);
+            }
+            return context -> {
+                for (Condition condition : conditions) {
+                    if (condition.test(context)) {
+                        return true;
+                    }
+                }
+                return false;
+            };
+        }
+
+        private boolean merge(Condition target, Condition source) {
+            if (target instanceof DomainSet && source instanceof DomainSet
+                    && ((DomainSet) target).subject == ((DomainSet) source).subject) {
+                ((DomainSet) target).domains.addAll(((DomainSet) source).domains);
+                return true;
+            } else if (target instanceof GlobSet && source instanceof GlobSet
+                    && ((GlobSet) target).subject == ((GlobSet) source).subject) {
+                ((GlobSet) target).patterns.addAll(((GlobSet) source).patterns);
+                return true;
+            } else if (target instanceof NetworkSet && source instanceof NetworkSet
+                    && ((NetworkSet) target).subject == ((NetworkSet) source).subject) {
+                ((NetworkSet) target).networks.addAll(((NetworkSet) source).networks);
+                return true;
+            }
+            return false;
+        }
+
+        private Condition parseAnd() throws UnsupportedScriptException {
+            Condition condition = parseUnary();
+            while (peek().is("&&")) {
+                next();
+                Condition left = condition;
+                Condition right = parseUnary();
+                condition = context -> left.test(context) && right.test(context);
+            }
+            return condition;
+        }
+
+        private Condition parseUnary() throws UnsupportedScriptException {
+            if (peek().is("!")) {
+                next();
+                Condition condition = parseUnary();
+                return context -> !condition.test(context);
+            }
+            if (peek().is("(")) {
+                next();
+                Condition condition = parseOr();
+                expect(")");
+                return condition;
+            }
+            Token token = peek();
+            if (token.type == TokenType.IDENTIFIER && tokens.get(pos + 1).is("(")
+                    && !token.is("dnsResolve")) {
+                return parseCall();
+            }
+            return parseComparison();
+        }
+
+        private Condition parseCall() throws UnsupportedScriptException {
+            String function = next().text;
+            expect("(");
+            Condition condition;
+            switch (function) {
+                case "isPlainHostName": {
+                    StringExpression host = parseStringExpression();
+                    condition = context -> context.helperMethods.isPlainHostName(host.evaluate(context));
+                    break;
+                }
+                case "isResolvable": {
+                    StringExpression host = parseStringExpression();
+                    condition = context -> context.helperMethods.isResolvable(host.evaluate(context));
+                    break;
+                }
+                case "localHostOrDomainIs": {
+                    StringExpression host = parseStringExpression();
+                    expect(",");
+                    String hostdom = expectString();
+                    condition = context -> context.helperMethods.localHostOrDomainIs(host.evaluate(context), hostdom);
+                    break;
+                }
+                case "dnsDomainIs": {
+                    DomainSet domainSet = new DomainSet(parseStringExpression());
+                    expect(",");
+                    domainSet.domains.add(expectString());
+                    condition = domainSet;
+                    break;
+                }
+                case "shExpMatch": {
+                    GlobSet globSet = new GlobSet(parseStringExpression());
+                    expect(",");
+                    String glob = expectString();
+                    try {
+                        globSet.patterns.add(glob);
+                    } catch (PatternSyntaxException e) {
+                        // Let the script engine report it
+                        throw new UnsupportedScriptException("Invalid glob: " + glob);
+                    }
+                    condition = globSet;
+                    break;
+                }
+                case "isInNet": {
+                    NetworkSet networkSet = new NetworkSet(parseStringExpression());
+                    expect(",");
+                    String pattern = expectString();
+                    expect(",");
+                    String mask = expectString();
+                    networkSet.networks.add(NetworkMatcher.forNetmask(pattern, mask));
+                    condition = networkSet;
+                    break;
+                }
+                default:
+                    throw new UnsupportedScriptException("Unsupported function call: " + function);
+            }
+            expect(")");
+            return condition;
+        }
+
+        private Condition parseComparison() throws UnsupportedScriptException {
+            StringExpression left = parseStringExpression();
+            Token operator = next();
+            boolean negate;
+            if (operator.is("==") || operator.is("===")) {
+                negate = false;
+            } else if (operator.is("!=") || operator.is("!==")) {
+                negate = true;
+            } else {
+                throw new UnsupportedScriptException("Unsupported operator: " + operator);
+            }
+            StringExpression right = parseStringExpression();
+            return context -> negate != Objects.equals(left.evaluate(context), right.evaluate(context));
+        }
+
+        /**
+         * Parse a string expression.
+         * <p>The parameters are returned as shared instances, so the subjects can be compared by identity.
+         */
+        private StringExpression parseStringExpression() throws UnsupportedScriptException {
+            Token token = next();
+            StringExpression expression;
+            if (token.type == TokenType.STRING) {
+                String value = token.text;
+                expression = context -> value;
+            } else if (token.is("dnsResolve")) {
+                expect("(");
+                StringExpression name = parseStringExpression();
+                expect(")");
+                expression = name == HOST ? RESOLVED_HOST : context -> context.dnsResolve(name.evaluate(context));
+            } else if (token.type == TokenType.IDENTIFIER && token.text.equals(hostParameter)) {
+                expression = HOST;
+            } else if (token.type == TokenType.IDENTIFIER && token.text.equals(urlParameter)) {
+                expression = URL;
+            } else {
+                throw new UnsupportedScriptException("Unsupported expression: " + token);
+            }
+            while (peek().is(".")) {
+                next();
+                Token method = next();
+                if (!method.is("substring")) {
+                    throw new UnsupportedScriptException("Unsupported method: " + method);
+                }
+                expect("(");
+                int start = expectNumber();
+                expect(",");
+                int end = expectNumber();
+                expect(")");
+                expression = new Substring(expression, start, end);
+            }
+            return expression;
+        }
+
+        private Token peek() {
+            return tokens.get(pos);
+        }
+
+        private Token next() {
+            Token token = tokens.get(pos);
+            if (token.type != TokenType.END) {
+                pos++;
+            }
+            return token;
+        }
+
+        private void expect(String text) throws UnsupportedScriptException {
+            Token token = next();
+            if (!token.is(text)) {
+                throw new UnsupportedScriptException("Expected [" + text + "] but found " + token);
+            }
+        }
+
+        private String expectIdentifier() throws UnsupportedScriptException {
+            Token token = next();
+            if (token.type != TokenType.IDENTIFIER) {
+                throw new UnsupportedScriptException("Expected identifier but found " + token);
+            }
+            return token.text;
+        }
+
+        private String expectString() throws UnsupportedScriptException {
+            Token token = next();
+            if (token.type != TokenType.STRING) {
+                throw new UnsupportedScriptException("Expected string literal but found " + token);
+            }
+            return token.text;
+        }
+
+        private int expectNumber() throws UnsupportedScriptException {
+            Token token = next();
+            if (token.type != TokenType.NUMBER || token.text.length() > 9) {
+                throw new UnsupportedScriptException("Expected number but found " + token);
+            }
+            return Integer.parseInt(token.text);
+        }
+    }
+
+}
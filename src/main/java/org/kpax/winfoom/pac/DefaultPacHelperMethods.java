@@ -30,12 +30,13 @@
  */
 package org.kpax.winfoom.pac;
 
-import inet.ipaddr.IPAddressString;
 import org.apache.commons.lang3.StringUtils;
+import org.cache2k.Cache;
+import org.cache2k.Cache2kBuilder;
 import org.kpax.winfoom.config.SystemConfig;
 import org.kpax.winfoom.pac.datetime.PacDateTimeUtils;
-import org.kpax.winfoom.pac.net.IpAddressMatcher;
 import org.kpax.winfoom.pac.net.IpAddresses;
+import org.kpax.winfoom.pac.net.NetworkMatcher;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.springframework.beans.factory.annotation.Autowired;
@@ -64,6 +65,12 @@ public class DefaultPacHelperMethods implements PacHelperMethodsNetscape, PacHel
 
     private static final Predicate<InetAddress> isIPv4Predicate = a -> a.getClass() == Inet4Address.class;
 
+    /**
+     * The maximum number of compiled networks of each kind: the networks come from the PAC script,
+     * so only computed ones can exceed it, in which case the least used are evicted.
+     */
+    private static final int MAX_CACHED_NETWORKS = 1000;
+
     @Autowired
     private SystemConfig systemConfig;
 
@@ -71,6 +78,25 @@ public class DefaultPacHelperMethods implements PacHelperMethodsNetscape, PacHel
     @Autowired
     private GlobPatternMatcher globPatternMatcher;
 
+    @Autowired
+    private DnsResolverCache dnsResolverCache;
+
+    /**
+     * The compiled {@code isInNet} networks, keyed by {@code pattern/mask}.
+     */
+    private final Cache<String, NetworkMatcher> netmaskMatchers = new Cache2kBuilder<String, NetworkMatcher>() {
+    }.entryCapacity(MAX_CACHED_NETWORKS)
+            .eternal(true)
+            .build();
+
+    /**
+     * The compiled {@code isInNetEx} networks, keyed by prefix.
+     */
+    private final Cache<String, NetworkMatcher> prefixMatchers = new Cache2kBuilder<String, NetworkMatcher>() {
+    }.entryCapacity(MAX_CACHED_NETWORKS)
+            .eternal(true)
+            .build();
+
     // *************************************************************
     //  Official helper functions.
     // *************************************************************
@@ -108,7 +134,7 @@ public class DefaultPacHelperMethods implements PacHelperMethodsNetscape, PacHel
     public boolean isResolvable(String host) {
         try {
 
-            return !IpAddresses.resolve(host, isIPv4Predicate).isEmpty();
+            return !dnsResolverCache.resolve(host, isIPv4Predicate).isEmpty();
         } catch (UnknownHostException ex) {
             logger.debug("Error on resolving host [{}]", host);
             return false;
@@ -118,7 +144,7 @@ public class DefaultPacHelperMethods implements PacHelperMethodsNetscape, PacHel
     @Override
     public String dnsResolve(String host) {
         try {
-            List<InetAddress> addresses = IpAddresses.resolve(host, isIPv4Predicate);
+            List<InetAddress> addresses = dnsResolverCache.resolve(host, isIPv4Predicate);
             if (!addresses.isEmpty()) {
                 return addresses.get(0).getHostAddress();
             }
@@ -141,11 +167,15 @@ public class DefaultPacHelperMethods implements PacHelperMethodsNetscape, PacHel
 
     @Override
     public boolean isInNet(String host, String pattern, String mask) {
-        final String dnsResolve = dnsResolve(host);
-        if (dnsResolve == null) {
+        // An IPv4 address is always resolvable
+        if (NetworkMatcher.parseIPv4(host) == -1 && dnsResolve(host) == null) {
+            return false;
+        }
+        try {
+            return getNetmaskMatcher(String.valueOf(pattern), String.valueOf(mask)).matches(host);
+        } catch (UnknownHostException e) {
             return false;
         }
-        return new IPAddressString(pattern + "/" + mask).contains(new IPAddressString(host));
     }
 
     @Override
@@ -155,7 +185,7 @@ public class DefaultPacHelperMethods implements PacHelperMethodsNetscape, PacHel
 
     @Override
     public boolean shExpMatch(String str, String shexp) {
-        return globPatternMatcher.toPattern(shexp).matcher(str).matches();
+        return globPatternMatcher.toGlobPattern(shexp).matches(str);
     }
 
     @Override
@@ -199,7 +229,7 @@ public class DefaultPacHelperMethods implements PacHelperMethodsNetscape, PacHel
     @Override
     public boolean isResolvableEx(String host) {
         try {
-            return !IpAddresses.resolve(host).isEmpty();
+            return !dnsResolverCache.resolve(host, null).isEmpty();
         } catch (UnknownHostException ex) {
             return false;
         }
@@ -208,7 +238,7 @@ public class DefaultPacHelperMethods implements PacHelperMethodsNetscape, PacHel
     @Override
     public String dnsResolveEx(String host) {
         try {
-            List<InetAddress> addresses = IpAddresses.resolve(host);
+            List<InetAddress> addresses = dnsResolverCache.resolve(host, null);
             if (!addresses.isEmpty()) {
                 if (addresses.size() > 1) {
                     addresses.sort(IpAddresses.addressComparator(systemConfig.isPreferIPv6Addresses()));
@@ -263,8 +293,11 @@ public class DefaultPacHelperMethods implements PacHelperMethodsNetscape, PacHel
 
     @Override
     public boolean isInNetEx(String ipAddress, String ipPrefix) {
+        if (ipPrefix == null) {
+            return false;
+        }
         try {
-            return new IpAddressMatcher(ipPrefix).matches(ipAddress);
+            return getPrefixMatcher(ipPrefix).matches(ipAddress);
         } catch (UnknownHostException e) {
             return false;
         }
@@ -278,6 +311,25 @@ public class DefaultPacHelperMethods implements PacHelperMethodsNetscape, PacHel
     //  exposed to the JavaScript engine.
     // *************************************************************
 
+    private NetworkMatcher getNetmaskMatcher(String pattern, String mask) {
+        String network = pattern + "/" + mask;
+        NetworkMatcher matcher = netmaskMatchers.peek(network);
+        if (matcher == null) {
+            matcher = NetworkMatcher.forNetmask(pattern, mask);
+            netmaskMatchers.put(network, matcher);
+        }
+        return matcher;
+    }
+
+    private NetworkMatcher getPrefixMatcher(String ipPrefix) {
+        NetworkMatcher matcher = prefixMatchers.peek(ipPrefix);
+        if (matcher == null) {
+            matcher = NetworkMatcher.forPrefix(ipPrefix);
+            prefixMatchers.put(ipPrefix, matcher);
+        }
+        return matcher;
+    }
+
     public void alert(String message) {
         logger.debug("PAC script says : {}", message);
     }
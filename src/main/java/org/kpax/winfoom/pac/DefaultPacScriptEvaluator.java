@@ -31,14 +31,17 @@
 package org.kpax.winfoom.pac;
 
 import org.apache.commons.io.IOUtils;
+import org.cache2k.Cache;
+import org.cache2k.Cache2kBuilder;
+import org.cache2k.integration.CacheLoaderException;
 import org.kpax.winfoom.annotation.ProxySessionScope;
 import org.kpax.winfoom.config.ProxyConfig;
+import org.kpax.winfoom.config.SystemConfig;
 import org.kpax.winfoom.exception.MissingResourceException;
 import org.kpax.winfoom.exception.PacFileException;
 import org.kpax.winfoom.exception.PacScriptException;
 import org.kpax.winfoom.proxy.ProxyInfo;
 import org.kpax.winfoom.util.HttpUtils;
-import org.kpax.winfoom.util.functional.DoubleExceptionSingletonSupplier;
 import org.kpax.winfoom.util.functional.SingletonSupplier;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -54,11 +57,21 @@ import javax.script.ScriptEngineManager;
 import javax.script.ScriptException;
 import java.io.IOException;
 import java.io.InputStream;
+import java.net.HttpURLConnection;
 import java.net.URI;
 import java.net.URL;
+import java.net.URLConnection;
 import java.nio.charset.StandardCharsets;
 import java.util.List;
 import java.util.Objects;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.regex.Pattern;
 
 @Order(2)
 @Lazy
@@ -66,16 +79,27 @@ import java.util.Objects;
 @ProxySessionScope
 public class DefaultPacScriptEvaluator implements PacScriptEvaluator, AutoCloseable {
 
+    /**
+     * Matches the calls of the helper functions that make the result time dependent.
+     */
+    private static final Pattern TIME_SENSITIVE_CALL = Pattern.compile("\\b(timeRange|dateRange|weekdayRange)\\s*\\(");
+
+    /**
+     * The delay before closing the result cache of a replaced script,
+     * so that the evaluations still using it can complete (seconds).
+     */
+    private static final int REPLACED_CACHE_CLOSE_DELAY = 60;
+
     private final Logger logger = LoggerFactory.getLogger(DefaultPacScriptEvaluator.class);
 
     @Autowired
     private ProxyConfig proxyConfig;
 
     @Autowired
-    private DefaultPacHelperMethods pacHelperMethods;
+    private SystemConfig systemConfig;
 
-    private final DoubleExceptionSingletonSupplier<PacScriptEngine, PacFileException, IOException> scriptEngineSupplier =
-            new DoubleExceptionSingletonSupplier<PacScriptEngine, PacFileException, IOException>(this::createScriptEngine);
+    @Autowired
+    private DefaultPacHelperMethods pacHelperMethods;
 
     private final SingletonSupplier<String> helperJSScriptSupplier = new SingletonSupplier<>(() -> {
         try {
@@ -87,24 +111,167 @@ public class DefaultPacScriptEvaluator implements PacScriptEvaluator, AutoClosea
     });
 
     /**
-     * Load and parse the PAC script file.
+     * The current script, replaced as a whole when the PAC file changes.
+     * <p>It is {@code null} until the first evaluation.
+     */
+    private volatile LoadedPacScript loadedScript;
+
+    /**
+     * Runs the PAC file refresh, {@code null} when the refresh is disabled or not started yet.
+     */
+    private ScheduledExecutorService refreshExecutor;
+
+    private final LongAdder cacheRequests = new LongAdder();
+
+    private final LongAdder cacheMisses = new LongAdder();
+
+    /**
+     * Get the current script, loading it on first call.
      *
-     * @return the {@link DefaultPacScriptEvaluator} instance.
+     * @return the current script.
+     * @throws PacFileException
      * @throws IOException
      */
-    private String loadScript() throws IOException {
+    private LoadedPacScript getLoadedScript() throws PacFileException, IOException {
+        LoadedPacScript current = loadedScript;
+        if (current == null) {
+            synchronized (this) {
+                current = loadedScript;
+                if (current == null) {
+                    current = createLoadedScript(loadScript(null));
+                    loadedScript = current;
+                    scheduleRefresh();
+                }
+            }
+        }
+        return current;
+    }
+
+    /**
+     * Load the PAC script file.
+     * <p>When the previous content is given, the file is downloaded only if changed:
+     * an HTTP location is requested with {@code If-None-Match}/{@code If-Modified-Since},
+     * any other location is compared by its modification time.
+     *
+     * @param previous the previously loaded content, or {@code null}.
+     * @return the loaded content or {@code null} if not modified since {@code previous}.
+     * @throws IOException
+     */
+    private PacFileContent loadScript(PacFileContent previous) throws IOException {
         URL url = proxyConfig.getProxyPacFileLocationAsURL();
         Assert.state(url != null, "No proxy PAC file location found");
-        logger.info("Get PAC file from: {}", url);
-        try (InputStream inputStream = url.openStream()) {
+        logger.debug("Get PAC file from: {}", url);
+        URLConnection connection = url.openConnection();
+        connection.setConnectTimeout(systemConfig.getSocketConnectTimeout() * 1000);
+        connection.setReadTimeout(systemConfig.getSocketSoTimeout() * 1000);
+        boolean notModified = false;
+        if (connection instanceof HttpURLConnection) {
+            HttpURLConnection httpConnection = (HttpURLConnection) connection;
+            if (previous != null) {
+                if (previous.etag != null) {
+                    httpConnection.setRequestProperty("If-None-Match", previous.etag);
+                }
+                if (previous.lastModified > 0) {
+                    httpConnection.setIfModifiedSince(previous.lastModified);
+                }
+            }
+            notModified = httpConnection.getResponseCode() == HttpURLConnection.HTTP_NOT_MODIFIED;
+        } else if (previous != null && previous.lastModified > 0) {
+            notModified = connection.getLastModified() == previous.lastModified;
+        }
+        try (InputStream inputStream = connection.getInputStream()) {
+            if (notModified) {
+                return null;
+            }
             String content = IOUtils.toString(inputStream, StandardCharsets.UTF_8);
-            logger.info("PAC content: {}", content);
-            return content;
+            logger.info("PAC content loaded from {}: {}", url, content);
+            return new PacFileContent(content, connection.getHeaderField("ETag"), connection.getLastModified());
         }
     }
 
-    private PacScriptEngine createScriptEngine() throws PacFileException, IOException {
-        String pacSource = loadScript();
+    /**
+     * Prepare the PAC script for evaluation.
+     * <p>A declarative script is compiled into a {@link DeclarativePacScript}, if enabled.
+     * Otherwise, an engine pool is created, with a first engine to validate the script.
+     *
+     * @param content the PAC file content.
+     * @return the new {@link LoadedPacScript} instance.
+     * @throws PacFileException
+     */
+    private LoadedPacScript createLoadedScript(PacFileContent content) throws PacFileException {
+        PacScript pacScript = null;
+        if (systemConfig.isPacNativeEnabled()) {
+            pacScript = DeclarativePacScript.compile(content.source, pacHelperMethods).map(declarativePacScript -> {
+                logger.info("The PAC script is declarative, evaluate it natively");
+                return new NativePacScript(declarativePacScript);
+            }).orElse(null);
+        }
+        if (pacScript == null) {
+            int poolSize = systemConfig.getPacEnginePoolSize() > 0 ?
+                    systemConfig.getPacEnginePoolSize() : Runtime.getRuntime().availableProcessors();
+            pacScript = new PacScriptEnginePool(content.source, poolSize);
+        }
+        return new LoadedPacScript(content, pacScript, createResultCache(content.source));
+    }
+
+    private void scheduleRefresh() {
+        int interval = systemConfig.getPacRefreshInterval();
+        if (interval > 0) {
+            logger.info("PAC file refresh every {} seconds", interval);
+            refreshExecutor = Executors.newSingleThreadScheduledExecutor(runnable -> {
+                Thread thread = new Thread(runnable, "pac-refresh");
+                thread.setDaemon(true);
+                return thread;
+            });
+            refreshExecutor.scheduleWithFixedDelay(this::refresh, interval, interval, TimeUnit.SECONDS);
+        }
+    }
+
+    /**
+     * Reload the PAC file if changed, then replace the current script.
+     * <p>The new script is prepared on the refresh thread, the evaluations in progress
+     * complete with the replaced one. On failure, the current script is kept.
+     */
+    private void refresh() {
+        LoadedPacScript current = loadedScript;
+        if (current == null) {
+            return;
+        }
+        try {
+            PacFileContent content = loadScript(current.content);
+            if (content == null) {
+                logger.debug("PAC file not modified");
+                return;
+            }
+            LoadedPacScript refreshed;
+            if (content.source.equals(current.content.source)) {
+                logger.debug("PAC file content not changed");
+                refreshed = new LoadedPacScript(content, current.pacScript, current.resultCache);
+            } else {
+                refreshed = createLoadedScript(content);
+            }
+            boolean replaced = refreshed.pacScript != current.pacScript;
+            synchronized (this) {
+                if (loadedScript != current) {
+                    // Closed meanwhile
+                    if (replaced) {
+                        closeResultCache(refreshed.resultCache);
+                    }
+                    return;
+                }
+                loadedScript = refreshed;
+                if (replaced) {
+                    logger.info("PAC script replaced");
+                    refreshExecutor.schedule(() -> closeResultCache(current.resultCache),
+                            REPLACED_CACHE_CLOSE_DELAY, TimeUnit.SECONDS);
+                }
+            }
+        } catch (Exception e) {
+            logger.warn("Cannot refresh the PAC file, keep the current script", e);
+        }
+    }
+
+    private PacScriptEngine createScriptEngine(String pacSource) throws PacFileException {
         try {
             ScriptEngine engine = new ScriptEngineManager().getEngineByName("Nashorn");
             Assert.notNull(engine, "Nashorn engine not found");
@@ -155,14 +322,67 @@ public class DefaultPacScriptEvaluator implements PacScriptEvaluator, AutoClosea
         }
     }
 
+    /**
+     * Create the cache for the {@code FindProxyForURL} results.
+     * <p>If the script calls any of {@code timeRange}, {@code dateRange} or {@code weekdayRange},
+     * the result depends on the moment of the call, so the time sensitive TTL applies.
+     *
+     * @param pacSource the PAC script.
+     * @return the new cache or {@code null} if the TTL is not positive (no caching).
+     */
+    private Cache<String, List<ProxyInfo>> createResultCache(String pacSource) {
+        boolean timeSensitive = TIME_SENSITIVE_CALL.matcher(pacSource).find();
+        int ttl = timeSensitive ? systemConfig.getPacCacheTimeSensitiveTtl() : systemConfig.getPacCacheTtl();
+        if (ttl <= 0) {
+            logger.info("PAC result cache disabled (time sensitive script: {})", timeSensitive);
+            return null;
+        }
+        logger.info("PAC result cache enabled: ttl={}s, capacity={}, time sensitive script: {}",
+                ttl, systemConfig.getPacCacheCapacity(), timeSensitive);
+        return new Cache2kBuilder<String, List<ProxyInfo>>() {
+        }.entryCapacity(systemConfig.getPacCacheCapacity())
+                .expireAfterWrite(ttl, TimeUnit.SECONDS)
+                .build();
+    }
+
+    /**
+     * Find the proxies for the URI, using the cached result if available.
+     * <p>Concurrent calls for the same stripped URL share a single script evaluation.
+     */
     @Override
     public List<ProxyInfo> findProxyForURL(URI uri) throws PacScriptException, PacFileException, IOException {
-        PacScriptEngine scriptEngine = scriptEngineSupplier.get();
+        LoadedPacScript current = getLoadedScript();
+        PacScript pacScript = current.pacScript;
+        String strippedUrl = HttpUtils.toStrippedURLStr(uri);
+        Cache<String, List<ProxyInfo>> cache = current.resultCache;
+        if (cache == null) {
+            return evaluate(pacScript, strippedUrl, uri.getHost());
+        }
+        cacheRequests.increment();
         try {
-            Object obj = scriptEngine.findProxyForURL(HttpUtils.toStrippedURLStr(uri), uri.getHost());
-            String proxyLine = Objects.toString(obj, null);
+            return cache.computeIfAbsent(strippedUrl, () -> {
+                cacheMisses.increment();
+                return evaluate(pacScript, strippedUrl, uri.getHost());
+            });
+        } catch (CacheLoaderException e) {
+            // The failed evaluations are not cached
+            if (e.getCause() instanceof PacScriptException) {
+                throw (PacScriptException) e.getCause();
+            } else if (e.getCause() instanceof PacFileException) {
+                throw (PacFileException) e.getCause();
+            }
+            throw new PacScriptException("Error when executing PAC script function: " + pacScript.getMainFunction(), e);
+        }
+    }
+
+    private List<ProxyInfo> evaluate(PacScript pacScript, String url, String host)
+            throws PacScriptException, PacFileException {
+        try {
+            String proxyLine = pacScript.findProxyForURL(url, host);
             logger.debug("proxyLine [{}]", proxyLine);
             return HttpUtils.parsePacProxyLine(proxyLine);
+        } catch (PacScriptException | PacFileException e) {
+            throw e;
         } catch (Exception ex) {
             if (ex.getCause() != null) {
                 if (ex.getCause() instanceof ClassNotFoundException) {
@@ -173,10 +393,24 @@ public class DefaultPacScriptEvaluator implements PacScriptEvaluator, AutoClosea
                 }
             }
             // other unforeseen errors
-            throw new PacScriptException("Error when executing PAC script function: " + scriptEngine.jsMainFunction, ex);
+            throw new PacScriptException("Error when executing PAC script function: " + pacScript.getMainFunction(), ex);
         }
     }
 
+    /**
+     * @return the number of {@code FindProxyForURL} results served from the cache.
+     */
+    public long getCacheHits() {
+        return cacheRequests.sum() - cacheMisses.sum();
+    }
+
+    /**
+     * @return the number of script evaluations caused by a cache miss.
+     */
+    public long getCacheMisses() {
+        return cacheMisses.sum();
+    }
+
     private boolean isJsFunctionAvailable(ScriptEngine eng, String functionName) {
         // We want to test if the function is there, but without actually
         // invoking it.
@@ -192,7 +426,202 @@ public class DefaultPacScriptEvaluator implements PacScriptEvaluator, AutoClosea
 
     @Override
     public void close() throws Exception {
-        scriptEngineSupplier.reset();
+        LoadedPacScript current;
+        synchronized (this) {
+            current = loadedScript;
+            loadedScript = null;
+            if (refreshExecutor != null) {
+                // The pending closing of the replaced caches still runs
+                refreshExecutor.shutdown();
+                refreshExecutor = null;
+            }
+        }
+        if (current != null && current.resultCache != null) {
+            logger.debug("PAC result cache statistics: hits {}, misses {}", getCacheHits(), getCacheMisses());
+            closeResultCache(current.resultCache);
+        }
+    }
+
+    private void closeResultCache(Cache<String, List<ProxyInfo>> cache) {
+        if (cache != null) {
+            cache.close();
+        }
+    }
+
+    /**
+     * The content of a loaded PAC file, with its validators.
+     */
+    private static class PacFileContent {
+
+        private final String source;
+
+        /**
+         * The {@code ETag} response header, if any.
+         */
+        private final String etag;
+
+        /**
+         * The {@code Last-Modified} response header or the file's modification time, {@code 0} if unknown.
+         */
+        private final long lastModified;
+
+        PacFileContent(String source, String etag, long lastModified) {
+            this.source = source;
+            this.etag = etag;
+            this.lastModified = lastModified;
+        }
+    }
+
+    /**
+     * A PAC script ready for evaluation, with the cache of its results.
+     */
+    private static class LoadedPacScript {
+
+        private final PacFileContent content;
+
+        private final PacScript pacScript;
+
+        /**
+         * The {@code FindProxyForURL} results, keyed by the stripped URL.
+         * <p>It is {@code null} when the cache is disabled for this script.
+         */
+        private final Cache<String, List<ProxyInfo>> resultCache;
+
+        LoadedPacScript(PacFileContent content, PacScript pacScript, Cache<String, List<ProxyInfo>> resultCache) {
+            this.content = content;
+            this.pacScript = pacScript;
+            this.resultCache = resultCache;
+        }
+    }
+
+    /**
+     * A PAC script ready for evaluation.
+     */
+    private interface PacScript {
+
+        /**
+         * Call the script's main function.
+         *
+         * @param url  the URL.
+         * @param host the URL's host.
+         * @return the proxy line.
+         * @throws Exception
+         */
+        String findProxyForURL(String url, String host) throws Exception;
+
+        String getMainFunction();
+    }
+
+    /**
+     * A declarative PAC script, evaluated without any script engine.
+     */
+    private static class NativePacScript implements PacScript {
+
+        private final DeclarativePacScript declarativePacScript;
+
+        NativePacScript(DeclarativePacScript declarativePacScript) {
+            this.declarativePacScript = declarativePacScript;
+        }
+
+        @Override
+        public String findProxyForURL(String url, String host) {
+            return declarativePacScript.findProxyForURL(url, host);
+        }
+
+        @Override
+        public String getMainFunction() {
+            return PacScriptEvaluator.STANDARD_PAC_MAIN_FUNCTION;
+        }
+    }
+
+    /**
+     * A bounded pool of script engines, all initialized with the same PAC script.
+     * <p>A Nashorn engine is not meant to be called concurrently,
+     * so each evaluation borrows an engine for exclusive use.
+     * The engines are created on demand, up to the pool size.
+     */
+    private class PacScriptEnginePool implements PacScript {
+
+        private final String pacSource;
+
+        private final int size;
+
+        private final BlockingQueue<PacScriptEngine> idleEngines;
+
+        private final AtomicInteger engineCount = new AtomicInteger();
+
+        private final String jsMainFunction;
+
+        PacScriptEnginePool(String pacSource, int size) throws PacFileException {
+            this.pacSource = pacSource;
+            this.size = size;
+            this.idleEngines = new ArrayBlockingQueue<>(size);
+            PacScriptEngine scriptEngine = createScriptEngine(pacSource);
+            this.jsMainFunction = scriptEngine.jsMainFunction;
+            engineCount.incrementAndGet();
+            idleEngines.offer(scriptEngine);
+            logger.info("PAC script engine pool size: {}", size);
+        }
+
+        /**
+         * Borrow an idle engine, creating a new one if the pool is not full.
+         * <p>Otherwise, wait up to the borrow timeout for an engine to be released.
+         *
+         * @return the borrowed engine, to be given back with {@link #release(PacScriptEngine)}.
+         * @throws PacScriptException when no engine is available in time.
+         * @throws PacFileException
+         */
+        PacScriptEngine borrow() throws PacScriptException, PacFileException {
+            PacScriptEngine scriptEngine = idleEngines.poll();
+            if (scriptEngine != null) {
+                return scriptEngine;
+            }
+            int count;
+            while ((count = engineCount.get()) < size) {
+                if (engineCount.compareAndSet(count, count + 1)) {
+                    logger.debug("Create PAC script engine #{}", count + 1);
+                    try {
+                        return createScriptEngine(pacSource);
+                    } catch (Exception e) {
+                        engineCount.decrementAndGet();
+                        throw e;
+                    }
+                }
+            }
+            try {
+                scriptEngine = idleEngines.poll(systemConfig.getPacEngineBorrowTimeout(), TimeUnit.SECONDS);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new PacScriptException("Interrupted while waiting for a PAC script engine", e);
+            }
+            if (scriptEngine == null) {
+                throw new PacScriptException("No PAC script engine available within " +
+                        systemConfig.getPacEngineBorrowTimeout() + " seconds");
+            }
+            return scriptEngine;
+        }
+
+        void release(PacScriptEngine scriptEngine) {
+            idleEngines.offer(scriptEngine);
+        }
+
+        /**
+         * Call the script's main function on a borrowed engine.
+         */
+        @Override
+        public String findProxyForURL(String url, String host) throws Exception {
+            PacScriptEngine scriptEngine = borrow();
+            try {
+                return Objects.toString(scriptEngine.findProxyForURL(url, host), null);
+            } finally {
+                release(scriptEngine);
+            }
+        }
+
+        @Override
+        public String getMainFunction() {
+            return jsMainFunction;
+        }
     }
 
     private class PacScriptEngine {
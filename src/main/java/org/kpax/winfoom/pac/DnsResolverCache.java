@@ -0,0 +1,320 @@
+/*
+ * Copyright (c) 2020. Eugen Covaci
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and limitations under the License.
+ */
+
+package org.kpax.winfoom.pac;
+
+import org.cache2k.Cache;
+import org.cache2k.Cache2kBuilder;
+import org.kpax.winfoom.config.SystemConfig;
+import org.kpax.winfoom.pac.net.IpAddresses;
+import org.kpax.winfoom.proxy.ProxyContext;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.context.annotation.Lazy;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.PostConstruct;
+import java.net.InetAddress;
+import java.net.UnknownHostException;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.LongSupplier;
+import java.util.function.Predicate;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+/**
+ * The DNS resolver used by the PAC helper functions and by the pool of sockets to the upstream proxies.
+ * <p>The hostname lookups are cached: the resolved addresses for {@code dns.cache.ttl} seconds,
+ * the unknown hosts for {@code dns.cache.negativeTtl} seconds. There is at most one lookup in flight per hostname,
+ * the concurrent callers wait for its result.
+ * <p>When {@code dns.cache.staleTtl} is positive, an expired entry is still returned during this period
+ * while a new lookup is made in background (stale-while-revalidate).
+ * <p>The IP addresses are never cached since they don't need any DNS lookup.
+ *
+ * @author Eugen Covaci
+ */
+@Component
+public class DnsResolverCache implements AutoCloseable {
+
+    private static final Logger logger = LoggerFactory.getLogger(DnsResolverCache.class);
+
+    @Autowired
+    private SystemConfig systemConfig;
+
+    @Lazy
+    @Autowired
+    private ProxyContext proxyContext;
+
+    /**
+     * The actual DNS lookup.
+     */
+    private HostLookup hostLookup = InetAddress::getAllByName;
+
+    /**
+     * The clock the freshness of the resolutions is checked against, in {@link System#nanoTime()} units.
+     */
+    private LongSupplier nanoClock = System::nanoTime;
+
+    /**
+     * The lookups in progress, keyed by hostname.
+     */
+    private final Map<String, CompletableFuture<Resolution>> inFlightLookups = new ConcurrentHashMap<>();
+
+    private final LongAdder hits = new LongAdder();
+
+    private final LongAdder staleHits = new LongAdder();
+
+    private final LongAdder misses = new LongAdder();
+
+    private final LongAdder lookups = new LongAdder();
+
+    private final LongAdder lookupTimeNanos = new LongAdder();
+
+    /**
+     * The cached resolutions, {@code null} when the cache is disabled.
+     */
+    private Cache<String, Resolution> cache;
+
+    @PostConstruct
+    private void init() {
+        if (systemConfig.getDnsCacheTtl() > 0) {
+            // The entries are removed when they cannot be used anymore,
+            // the freshness is checked on each access
+            long maxAge = Math.max(systemConfig.getDnsCacheTtl() + Math.max(systemConfig.getDnsCacheStaleTtl(), 0),
+                    systemConfig.getDnsCacheNegativeTtl());
+            cache = new Cache2kBuilder<String, Resolution>() {
+            }.entryCapacity(systemConfig.getDnsCacheCapacity())
+                    .expireAfterWrite(maxAge, TimeUnit.SECONDS)
+                    .build();
+        } else {
+            logger.info("DNS cache disabled");
+        }
+    }
+
+    /**
+     * If the host is an IP address, the corresponding {@link InetAddress} is returned.
+     * Otherwise the host is DNS resolved, or taken from the cache.
+     *
+     * @param host   the IP address or hostname.
+     * @param filter for filtering the result, can be {@code null}.
+     * @return the filtered, modifiable, list (possible empty) of {@link InetAddress} instances.
+     * @throws UnknownHostException if no IP address for the host could be found.
+     * @see IpAddresses#resolve(String, Predicate)
+     */
+    public List<InetAddress> resolve(String host, Predicate<InetAddress> filter) throws UnknownHostException {
+        if (host == null || IpAddresses.isValidIPAddress(host)) {
+            return IpAddresses.resolve(host, filter);
+        }
+        Resolution resolution = getResolution(host);
+        if (resolution.addresses == null) {
+            throw new UnknownHostException(host);
+        }
+        Stream<InetAddress> addressStream = Arrays.stream(resolution.addresses);
+        if (filter != null) {
+            addressStream = addressStream.filter(filter);
+        }
+        return addressStream.collect(Collectors.toList());
+    }
+
+    private Resolution getResolution(String host) throws UnknownHostException {
+        Cache<String, Resolution> cache = this.cache;
+        if (cache == null) {
+            return lookup(host);
+        }
+        Resolution resolution = cache.peek(host);
+        if (resolution != null) {
+            long now = nanoClock.getAsLong();
+            if (now < resolution.freshUntil) {
+                hits.increment();
+                return resolution;
+            }
+            if (now < resolution.staleUntil) {
+                staleHits.increment();
+                refreshAsync(host);
+                return resolution;
+            }
+        }
+        misses.increment();
+        return awaitLookup(host);
+    }
+
+    /**
+     * Wait for the lookup in flight for this host, if any, or make a new one.
+     */
+    private Resolution awaitLookup(String host) throws UnknownHostException {
+        CompletableFuture<Resolution> future = new CompletableFuture<>();
+        CompletableFuture<Resolution> inFlight = inFlightLookups.putIfAbsent(host, future);
+        if (inFlight == null) {
+            return lookupAndCache(host, future);
+        }
+        try {
+            return inFlight.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new UnknownHostException(host + ": interrupted");
+        } catch (ExecutionException e) {
+            throw new UnknownHostException(host + ": " + e.getCause().getMessage());
+        } catch (CancellationException e) {
+            // The background refresh could not be started
+            return lookupAndCache(host, new CompletableFuture<>());
+        }
+    }
+
+    /**
+     * Make a new lookup in background, unless there is already one in flight for this host.
+     */
+    private void refreshAsync(String host) {
+        CompletableFuture<Resolution> future = new CompletableFuture<>();
+        if (inFlightLookups.putIfAbsent(host, future) == null) {
+            try {
+                proxyContext.executorService().execute(() -> {
+                    try {
+                        lookupAndCache(host, future);
+                    } catch (Exception e) {
+                        logger.debug("Error on refreshing host [{}]", host, e);
+                    }
+                });
+            } catch (RejectedExecutionException e) {
+                logger.debug("Cannot refresh host [{}]", host, e);
+                inFlightLookups.remove(host, future);
+                future.cancel(false);
+            }
+        }
+    }
+
+    private Resolution lookupAndCache(String host, CompletableFuture<Resolution> future) throws UnknownHostException {
+        try {
+            Resolution resolution = lookup(host);
+            Cache<String, Resolution> cache = this.cache;
+            if (cache != null) {
+                cache.put(host, resolution);
+            }
+            future.complete(resolution);
+            return resolution;
+        } catch (UnknownHostException | RuntimeException e) {
+            future.completeExceptionally(e);
+            throw e;
+        } finally {
+            inFlightLookups.remove(host, future);
+        }
+    }
+
+    /**
+     * The actual DNS lookup. An unknown host is a (negative) resolution,
+     * any other error is propagated and not cached.
+     */
+    private Resolution lookup(String host) throws UnknownHostException {
+        long resolvedAt = nanoClock.getAsLong();
+        long start = System.nanoTime();
+        try {
+            InetAddress[] addresses = hostLookup.lookup(host);
+            return new Resolution(addresses, resolvedAt,
+                    systemConfig.getDnsCacheTtl(), systemConfig.getDnsCacheStaleTtl());
+        } catch (UnknownHostException e) {
+            logger.debug("Unknown host [{}]", host);
+            return new Resolution(null, resolvedAt, systemConfig.getDnsCacheNegativeTtl(), 0);
+        } finally {
+            lookups.increment();
+            lookupTimeNanos.add(System.nanoTime() - start);
+        }
+    }
+
+    /**
+     * Remove all the cached resolutions, since the network state might have changed.
+     */
+    public void clear() {
+        Cache<String, Resolution> cache = this.cache;
+        if (cache != null) {
+            logger.debug("Clear DNS cache");
+            cache.clear();
+        }
+    }
+
+    /**
+     * @return the number of requests answered by a fresh cached resolution.
+     */
+    public long getHits() {
+        return hits.sum();
+    }
+
+    /**
+     * @return the number of requests answered by a stale cached resolution, while refreshing it.
+     */
+    public long getStaleHits() {
+        return staleHits.sum();
+    }
+
+    /**
+     * @return the number of requests that had to wait for a DNS lookup.
+     */
+    public long getMisses() {
+        return misses.sum();
+    }
+
+    /**
+     * @return the number of DNS lookups, including the background ones.
+     */
+    public long getLookups() {
+        return lookups.sum();
+    }
+
+    /**
+     * @return the average duration of a DNS lookup, in milliseconds.
+     */
+    public double getAverageLookupMillis() {
+        long count = lookups.sum();
+        return count > 0 ? lookupTimeNanos.sum() / (count * 1_000_000.0) : 0;
+    }
+
+    @Override
+    public void close() {
+        Cache<String, Resolution> cache = this.cache;
+        if (cache != null) {
+            cache.close();
+        }
+    }
+
+    /**
+     * Resolve a hostname into all its IP addresses.
+     */
+    @FunctionalInterface
+    interface HostLookup {
+        InetAddress[] lookup(String host) throws UnknownHostException;
+    }
+
+    /**
+     * The result of a DNS lookup with its freshness deadlines (in {@code nanoClock} units).
+     */
+    private static class Resolution {
+
+        /**
+         * The resolved addresses, {@code null} for an unknown host.
+         */
+        private final InetAddress[] addresses;
+
+        private final long freshUntil;
+
+        private final long staleUntil;
+
+        Resolution(InetAddress[] addresses, long resolvedAt, long ttl, long staleTtl) {
+            this.addresses = addresses;
+            this.freshUntil = resolvedAt + TimeUnit.SECONDS.toNanos(ttl);
+            this.staleUntil = this.freshUntil + TimeUnit.SECONDS.toNanos(Math.max(staleTtl, 0));
+        }
+    }
+
+}
@@ -0,0 +1,439 @@
+/*
+ * Copyright (c) 2020. Eugen Covaci
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and limitations under the License.
+ */
+
+package org.kpax.winfoom.pac;
+
+import org.springframework.util.Assert;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.regex.Pattern;
+
+/**
+ * A compiled GLOB pattern, matched without any regular expression.
+ * <p>It matches exactly like the {@link Pattern} returned by {@link GlobPatternMatcher#toPattern(String)}:
+ * <ul>
+ *  <li>{@code *} matches zero or more characters, {@code ?} exactly one character,</li>
+ *  <li>{@code [abc]}, {@code [a-z]} match a character in the range, {@code [!abc]} or {@code [^abc]}
+ *  a character not in the range,</li>
+ *  <li>{@code (ab|cd|ef)} matches one of the parts, each part being itself a GLOB expression.</li>
+ * </ul>
+ * The groups are expanded at compile time into alternatives made only of single character tokens and stars,
+ * which are matched in {@code O(pattern length * input length)} time at most, without allocating.
+ * <p>Any other regular expression construct that the GLOB conversion lets through (like {@code +} or {@code {n}}),
+ * as well as a {@code *} or {@code ?} inside a character class, makes this pattern fall back to the regular expression.
+ *
+ * @author Eugen Covaci
+ */
+public final class GlobPattern {
+
+    /**
+     * Above this number of alternatives, the regular expression is used instead.
+     */
+    private static final int MAX_ALTERNATIVES = 256;
+
+    private final String glob;
+
+    /**
+     * The expanded alternatives, {@code null} when falling back to the regular expression.
+     */
+    private final Alternative[] alternatives;
+
+    /**
+     * The regular expression, only compiled when needed.
+     */
+    private volatile Pattern regexPattern;
+
+    private GlobPattern(String glob, Alternative[] alternatives, Pattern regexPattern) {
+        this.glob = glob;
+        this.alternatives = alternatives;
+        this.regexPattern = regexPattern;
+    }
+
+    /**
+     * Compile a GLOB pattern.
+     *
+     * @param glob the GLOB pattern, leading and trailing whitespaces are ignored.
+     * @return the compiled pattern.
+     * @throws java.util.regex.PatternSyntaxException if the GLOB falls back to an invalid regular expression.
+     */
+    public static GlobPattern compile(String glob) {
+        Assert.notNull(glob, "glob cannot be null");
+        String trimmedGlob = glob.trim();
+        List<List<Token>> expanded = new Parser(trimmedGlob).parse();
+        if (expanded == null) {
+            return new GlobPattern(trimmedGlob, null, toRegexPattern(trimmedGlob));
+        }
+        Alternative[] alternatives = new Alternative[expanded.size()];
+        for (int i = 0; i < alternatives.length; i++) {
+            alternatives[i] = new Alternative(expanded.get(i));
+        }
+        return new GlobPattern(trimmedGlob, alternatives, null);
+    }
+
+    private static Pattern toRegexPattern(String glob) {
+        return Pattern.compile(GlobPatternMatcher.convertGlobToRegEx(glob));
+    }
+
+    /**
+     * Match the entire input against this pattern.
+     *
+     * @param input the input.
+     * @return {@code true} iff the input matches.
+     */
+    public boolean matches(String input) {
+        if (alternatives == null || !isPlain(input)) {
+            return getRegexPattern().matcher(input).matches();
+        }
+        for (Alternative alternative : alternatives) {
+            if (alternative.matches(input)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private Pattern getRegexPattern() {
+        Pattern pattern = regexPattern;
+        if (pattern == null) {
+            regexPattern = pattern = toRegexPattern(glob);
+        }
+        return pattern;
+    }
+
+    /**
+     * @return the (trimmed) GLOB pattern.
+     */
+    public String getGlob() {
+        return glob;
+    }
+
+    /**
+     * @return the expanded alternatives, or {@code null} if this pattern falls back to the regular expression.
+     */
+    Alternative[] getAlternatives() {
+        return alternatives;
+    }
+
+    /**
+     * Check whether the input can be matched character by character: the regular expression's {@code .}
+     * matches neither line terminators nor half of a surrogate pair, so such inputs go to the regular expression.
+     */
+    static boolean isPlain(String input) {
+        for (int i = 0; i < input.length(); i++) {
+            char c = input.charAt(i);
+            if (c == '\n' || c == '\r' || c == '\u0085' || c == '\u2028' || c == '\u2029'
+                    || Character.isSurrogate(c)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    @Override
+    public String toString() {
+        return glob;
+    }
+
+    /**
+     * A single character token or a star.
+     */
+    static class Token {
+
+        static final Token STAR = new Token(null, false);
+
+        static final Token ANY = new Token(null, true);
+
+        /**
+         * The sorted, inclusive, character ranges: {@code [from0, to0, from1, to1, ...]}.
+         */
+        private final char[] ranges;
+
+        private final boolean negated;
+
+        private Token(char[] ranges, boolean negated) {
+            this.ranges = ranges;
+            this.negated = negated;
+        }
+
+        static Token literal(char c) {
+            return new Token(new char[]{c, c}, false);
+        }
+
+        boolean isStar() {
+            return this == STAR;
+        }
+
+        /**
+         * @return the literal character or {@code -1} if this token is not a literal.
+         */
+        int literal() {
+            return ranges != null && !negated && ranges.length == 2 && ranges[0] == ranges[1] ? ranges[0] : -1;
+        }
+
+        boolean matches(char c) {
+            if (ranges == null) {
+                return this == ANY;
+            }
+            for (int i = 0; i < ranges.length; i += 2) {
+                if (c >= ranges[i] && c <= ranges[i + 1]) {
+                    return !negated;
+                }
+            }
+            return negated;
+        }
+    }
+
+    /**
+     * A sequence of tokens, without groups.
+     */
+    static class Alternative {
+
+        private final Token[] tokens;
+
+        /**
+         * The number of non star tokens, that is the minimum input length.
+         */
+        private final int minLength;
+
+        /**
+         * The index of the first token after the last star (zero without any star).
+         */
+        private final int tailIndex;
+
+        Alternative(List<Token> tokens) {
+            this.tokens = tokens.toArray(new Token[0]);
+            int minLength = 0;
+            int tailIndex = 0;
+            for (int i = 0; i < this.tokens.length; i++) {
+                if (this.tokens[i].isStar()) {
+                    tailIndex = i + 1;
+                } else {
+                    minLength++;
+                }
+            }
+            this.minLength = minLength;
+            this.tailIndex = tailIndex;
+        }
+
+        Token[] getTokens() {
+            return tokens;
+        }
+
+        /**
+         * The classic wildcard matching: only the last star is ever backtracked into.
+         */
+        boolean matches(String input) {
+            int inputLength = input.length();
+            if (inputLength < minLength || (tailIndex == 0 && inputLength != minLength)) {
+                return false;
+            }
+            // The tokens after the last star match the input's end
+            for (int i = tokens.length - 1, j = inputLength - 1; i >= tailIndex; i--, j--) {
+                if (!tokens[i].matches(input.charAt(j))) {
+                    return false;
+                }
+            }
+            if (tailIndex == 0) {
+                return true;
+            }
+            // The remaining tokens, ending with a star, match the remaining input
+            int headLength = inputLength - (tokens.length - tailIndex);
+            int inputIndex = 0;
+            int tokenIndex = 0;
+            int starIndex = -1;
+            int starInputIndex = 0;
+            while (inputIndex < headLength) {
+                if (tokenIndex < tailIndex) {
+                    Token token = tokens[tokenIndex];
+                    if (token.isStar()) {
+                        starIndex = tokenIndex++;
+                        starInputIndex = inputIndex;
+                        continue;
+                    }
+                    if (token.matches(input.charAt(inputIndex))) {
+                        tokenIndex++;
+                        inputIndex++;
+                        continue;
+                    }
+                }
+                if (starIndex == -1) {
+                    return false;
+                }
+                // Let the last star swallow one more character
+                tokenIndex = starIndex + 1;
+                inputIndex = ++starInputIndex;
+            }
+            while (tokenIndex < tailIndex && tokens[tokenIndex].isStar()) {
+                tokenIndex++;
+            }
+            return tokenIndex == tailIndex;
+        }
+    }
+
+    /**
+     * Parse the GLOB into the expanded alternatives, or {@code null} for the constructs
+     * that need the regular expression.
+     */
+    private static class Parser {
+
+        private final String glob;
+
+        private int position;
+
+        Parser(String glob) {
+            this.glob = glob;
+        }
+
+        List<List<Token>> parse() {
+            List<List<Token>> alternatives = new ArrayList<>();
+            alternatives.add(new ArrayList<>());
+            while (position < glob.length()) {
+                char c = glob.charAt(position);
+                if (c == '(') {
+                    position++;
+                    List<List<Token>> parts = parseGroup();
+                    if (parts == null || alternatives.size() * parts.size() > MAX_ALTERNATIVES) {
+                        return null;
+                    }
+                    List<List<Token>> product = new ArrayList<>();
+                    for (List<Token> alternative : alternatives) {
+                        for (List<Token> part : parts) {
+                            List<Token> tokens = new ArrayList<>(alternative);
+                            tokens.addAll(part);
+                            product.add(tokens);
+                        }
+                    }
+                    alternatives = product;
+                } else {
+                    Token token = parseToken();
+                    if (token == null) {
+                        return null;
+                    }
+                    for (List<Token> alternative : alternatives) {
+                        alternative.add(token);
+                    }
+                }
+            }
+            return alternatives;
+        }
+
+        /**
+         * Parse the group's parts, the opening parenthesis being consumed.
+         */
+        private List<List<Token>> parseGroup() {
+            List<List<Token>> parts = new ArrayList<>();
+            List<Token> part = new ArrayList<>();
+            while (position < glob.length()) {
+                char c = glob.charAt(position);
+                if (c == ')') {
+                    position++;
+                    parts.add(part);
+                    return parts;
+                } else if (c == '|') {
+                    position++;
+                    parts.add(part);
+                    part = new ArrayList<>();
+                } else if (c == '(') {
+                    // Nested groups are left to the regular expression
+                    return null;
+                } else {
+                    Token token = parseToken();
+                    if (token == null) {
+                        return null;
+                    }
+                    part.add(token);
+                }
+            }
+            // Unclosed group
+            return null;
+        }
+
+        private Token parseToken() {
+            char c = glob.charAt(position);
+            switch (c) {
+                case '*':
+                    position++;
+                    return Token.STAR;
+                case '?':
+                    position++;
+                    return Token.ANY;
+                case '[':
+                    position++;
+                    return parseCharacterClass();
+                case '+':
+                case '{':
+                case '}':
+                case '^':
+                case '$':
+                case '|':
+                case ')':
+                case ']':
+                case '&':
+                    return null;
+                default:
+                    if (!isPlain(String.valueOf(c))) {
+                        return null;
+                    }
+                    position++;
+                    return Token.literal(c);
+            }
+        }
+
+        /**
+         * Parse a character class, the opening bracket being consumed.
+         */
+        private Token parseCharacterClass() {
+            boolean negated = false;
+            if (position < glob.length() && (glob.charAt(position) == '!' || glob.charAt(position) == '^')) {
+                negated = true;
+                position++;
+            }
+            // The inclusive ranges, as pairs of characters
+            StringBuilder ranges = new StringBuilder();
+            boolean lastIsRange = false;
+            while (position < glob.length()) {
+                char c = glob.charAt(position++);
+                if (c == ']') {
+                    // An empty class is a regular expression error
+                    return ranges.length() > 0 ? new Token(ranges.toString().toCharArray(), negated) : null;
+                }
+                if (!isClassLiteral(c)) {
+                    return null;
+                }
+                if (c == '-' && ranges.length() > 0 && position < glob.length() && glob.charAt(position) != ']') {
+                    char to = glob.charAt(position++);
+                    char from = ranges.charAt(ranges.length() - 1);
+                    if (lastIsRange || to == '-' || !isClassLiteral(to) || to < from) {
+                        return null;
+                    }
+                    ranges.setCharAt(ranges.length() - 1, to);
+                    lastIsRange = true;
+                } else {
+                    ranges.append(c).append(c);
+                    lastIsRange = false;
+                }
+            }
+            // Unclosed class
+            return null;
+        }
+
+        /**
+         * The GLOB conversion turns {@code *} and {@code ?} into regular expression constructs even inside
+         * a character class, so such a class is left to the regular expression.
+         */
+        private boolean isClassLiteral(char c) {
+            return c != '[' && c != '&' && c != '^' && c != '*' && c != '?' && isPlain(String.valueOf(c));
+        }
+    }
+
+}
@@ -12,17 +12,24 @@
 
 package org.kpax.winfoom.pac;
 
+import org.kpax.winfoom.config.SystemConfig;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
-import org.springframework.cache.annotation.Cacheable;
+import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.context.annotation.Lazy;
 import org.springframework.stereotype.Component;
 import org.springframework.util.Assert;
 
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.Function;
 import java.util.regex.Pattern;
 
 /**
  * GLOB pattern matcher.
+ * <p>The patterns are compiled once per GLOB: the PAC scripts use a small, fixed set of literals.
+ * Above {@code cache.globPattern.capacity} distinct GLOBs (computed ones), the new GLOBs are compiled
+ * on every call, without touching the ones already compiled.
  */
 @Lazy
 @Component
@@ -30,6 +37,12 @@ public class GlobPatternMatcher {
 
     private final Logger logger = LoggerFactory.getLogger(getClass());
 
+    @Autowired
+    private SystemConfig systemConfig;
+
+    private final Map<String, Pattern> precompiledPatterns = new ConcurrentHashMap<>();
+
+    private final Map<String, GlobPattern> globPatterns = new ConcurrentHashMap<>();
 
     /**
      * Translate a GLOB pattern into a {@link Pattern} instance.
@@ -40,13 +53,43 @@ public class GlobPatternMatcher {
      * @return the {@link Pattern} instance.
      * @see #convertGlobToRegEx(String)
      */
-    @Cacheable("precompiledGlobPattern")
     public Pattern toPattern(String glob) {
         Assert.notNull(glob, "glob cannot be null");
-        logger.debug("Create Pattern for {}", glob);
-        String regexPattern = convertGlobToRegEx(glob.trim());
-        logger.debug("glob regexPattern={}", regexPattern);
-        return Pattern.compile(regexPattern);
+        return precompiled(precompiledPatterns, glob, key -> {
+            logger.debug("Create Pattern for {}", key);
+            String regexPattern = convertGlobToRegEx(key.trim());
+            logger.debug("glob regexPattern={}", regexPattern);
+            return Pattern.compile(regexPattern);
+        });
+    }
+
+    /**
+     * Compile a GLOB pattern into a {@link GlobPattern} instance, matched without regular expressions.
+     * <p>
+     * <b>Note:</b> The result is cached.
+     *
+     * @param glob the GLOB pattern.
+     * @return the {@link GlobPattern} instance.
+     * @see GlobPattern#compile(String)
+     */
+    public GlobPattern toGlobPattern(String glob) {
+        Assert.notNull(glob, "glob cannot be null");
+        return precompiled(globPatterns, glob, key -> {
+            logger.debug("Create GlobPattern for {}", key);
+            return GlobPattern.compile(key);
+        });
+    }
+
+    private <T> T precompiled(Map<String, T> patterns, String glob, Function<String, T> compiler) {
+        T pattern = patterns.get(glob);
+        if (pattern == null) {
+            if (patterns.size() < systemConfig.getCacheGlobPatternCapacity()) {
+                pattern = patterns.computeIfAbsent(glob, compiler);
+            } else {
+                pattern = compiler.apply(glob);
+            }
+        }
+        return pattern;
     }
 
     /**
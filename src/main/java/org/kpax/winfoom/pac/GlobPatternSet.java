@@ -0,0 +1,233 @@
+/*
+ * Copyright (c) 2020. Eugen Covaci
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and limitations under the License.
+ */
+
+package org.kpax.winfoom.pac;
+
+import org.springframework.util.Assert;
+
+import java.util.*;
+
+/**
+ * A set of {@link GlobPattern}s, testing an input against all of them in one pass.
+ * <p>The most common shapes are indexed:
+ * <ul>
+ *     <li>the literal patterns ({@code www.example.com}) in a hash set,</li>
+ *     <li>the suffix patterns ({@code *.example.com}) in a trie walked from the input's end,</li>
+ *     <li>the prefix patterns ({@code http://intranet/*}) in a trie walked from the input's start.</li>
+ * </ul>
+ * Only the other patterns are matched one by one.
+ * <p>The patterns are added before the set is shared, the matching is thread safe.
+ *
+ * @author Eugen Covaci
+ */
+public final class GlobPatternSet {
+
+    private final List<GlobPattern> patterns = new ArrayList<>();
+
+    private final Set<String> literals = new HashSet<>();
+
+    private final TrieNode suffixes = new TrieNode();
+
+    private final TrieNode prefixes = new TrieNode();
+
+    private final List<GlobPattern.Alternative> others = new ArrayList<>();
+
+    private final List<GlobPattern> regexPatterns = new ArrayList<>();
+
+    /**
+     * Compile and add a GLOB pattern.
+     *
+     * @param glob the GLOB pattern.
+     * @return this instance.
+     * @see GlobPattern#compile(String)
+     */
+    public GlobPatternSet add(String glob) {
+        return add(GlobPattern.compile(glob));
+    }
+
+    /**
+     * Add all the patterns of another set.
+     *
+     * @param other the other set.
+     * @return this instance.
+     */
+    public GlobPatternSet addAll(GlobPatternSet other) {
+        Assert.notNull(other, "other cannot be null");
+        for (GlobPattern pattern : new ArrayList<>(other.patterns)) {
+            add(pattern);
+        }
+        return this;
+    }
+
+    private GlobPatternSet add(GlobPattern pattern) {
+        patterns.add(pattern);
+        GlobPattern.Alternative[] alternatives = pattern.getAlternatives();
+        if (alternatives == null) {
+            regexPatterns.add(pattern);
+            return this;
+        }
+        for (GlobPattern.Alternative alternative : alternatives) {
+            GlobPattern.Token[] tokens = alternative.getTokens();
+            int literalCount = countLiterals(tokens, 0, tokens.length);
+            if (literalCount == tokens.length) {
+                literals.add(toLiteral(tokens, 0, tokens.length));
+            } else if (tokens[0].isStar() && countLiterals(tokens, 1, tokens.length) == tokens.length - 1) {
+                suffixes.add(new StringBuilder(toLiteral(tokens, 1, tokens.length)).reverse());
+            } else if (tokens[tokens.length - 1].isStar()
+                    && countLiterals(tokens, 0, tokens.length - 1) == tokens.length - 1) {
+                prefixes.add(toLiteral(tokens, 0, tokens.length - 1));
+            } else {
+                others.add(alternative);
+            }
+        }
+        return this;
+    }
+
+    private static int countLiterals(GlobPattern.Token[] tokens, int from, int to) {
+        int count = 0;
+        for (int i = from; i < to && tokens[i].literal() != -1; i++) {
+            count++;
+        }
+        return count;
+    }
+
+    private static String toLiteral(GlobPattern.Token[] tokens, int from, int to) {
+        StringBuilder literal = new StringBuilder(to - from);
+        for (int i = from; i < to; i++) {
+            literal.append((char) tokens[i].literal());
+        }
+        return literal.toString();
+    }
+
+    /**
+     * Match the input against all the patterns.
+     *
+     * @param input the input.
+     * @return {@code true} iff at least one pattern matches the entire input.
+     */
+    public boolean matchesAny(String input) {
+        if (!GlobPattern.isPlain(input)) {
+            for (GlobPattern pattern : patterns) {
+                if (pattern.matches(input)) {
+                    return true;
+                }
+            }
+            return false;
+        }
+        if (literals.contains(input) || suffixes.matchesSuffix(input) || prefixes.matchesPrefix(input)) {
+            return true;
+        }
+        for (GlobPattern.Alternative alternative : others) {
+            if (alternative.matches(input)) {
+                return true;
+            }
+        }
+        for (GlobPattern pattern : regexPatterns) {
+            if (pattern.matches(input)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * @return the number of GLOB patterns.
+     */
+    public int size() {
+        return patterns.size();
+    }
+
+    @Override
+    public String toString() {
+        return patterns.toString();
+    }
+
+    /**
+     * A character trie, with the children sorted for binary search.
+     */
+    private static class TrieNode {
+
+        private char[] keys = new char[0];
+
+        private TrieNode[] children = new TrieNode[0];
+
+        /**
+         * Whether a key ends here.
+         */
+        private boolean terminal;
+
+        void add(CharSequence key) {
+            TrieNode node = this;
+            for (int i = 0; i < key.length(); i++) {
+                node = node.getOrCreateChild(key.charAt(i));
+            }
+            node.terminal = true;
+        }
+
+        private TrieNode getOrCreateChild(char c) {
+            int index = Arrays.binarySearch(keys, c);
+            if (index >= 0) {
+                return children[index];
+            }
+            int insertionPoint = -index - 1;
+            char[] newKeys = new char[keys.length + 1];
+            TrieNode[] newChildren = new TrieNode[children.length + 1];
+            System.arraycopy(keys, 0, newKeys, 0, insertionPoint);
+            System.arraycopy(children, 0, newChildren, 0, insertionPoint);
+            System.arraycopy(keys, insertionPoint, newKeys, insertionPoint + 1, keys.length - insertionPoint);
+            System.arraycopy(children, insertionPoint, newChildren, insertionPoint + 1,
+                    children.length - insertionPoint);
+            TrieNode child = new TrieNode();
+            newKeys[insertionPoint] = c;
+            newChildren[insertionPoint] = child;
+            keys = newKeys;
+            children = newChildren;
+            return child;
+        }
+
+        private TrieNode getChild(char c) {
+            int index = Arrays.binarySearch(keys, c);
+            return index >= 0 ? children[index] : null;
+        }
+
+        /**
+         * Whether a key (stored reversed) is a suffix of the input.
+         */
+        boolean matchesSuffix(String input) {
+            TrieNode node = this;
+            for (int i = input.length() - 1; ; i--) {
+                if (node.terminal) {
+                    return true;
+                }
+                if (i < 0 || (node = node.getChild(input.charAt(i))) == null) {
+                    return false;
+                }
+            }
+        }
+
+        /**
+         * Whether a key is a prefix of the input.
+         */
+        boolean matchesPrefix(String input) {
+            TrieNode node = this;
+            for (int i = 0; ; i++) {
+                if (node.terminal) {
+                    return true;
+                }
+                if (i == input.length() || (node = node.getChild(input.charAt(i))) == null) {
+                    return false;
+                }
+            }
+        }
+    }
+
+}
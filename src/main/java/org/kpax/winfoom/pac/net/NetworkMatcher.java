@@ -0,0 +1,200 @@
+/*
+ * Copyright (c) 2020. Eugen Covaci
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and limitations under the License.
+ */
+
+package org.kpax.winfoom.pac.net;
+
+import inet.ipaddr.IPAddress;
+import inet.ipaddr.IPAddressString;
+
+import java.net.UnknownHostException;
+
+/**
+ * A network compiled into an IPv4 address range, matched with primitive comparisons.
+ * <p>Only the dotted decimal IPv4 addresses (like {@code 192.168.0.1}) are matched this way,
+ * without allocating. Any other address, or a network that is not an IPv4 range,
+ * goes through the original, allocating, implementation.
+ *
+ * @author Eugen Covaci
+ */
+public final class NetworkMatcher {
+
+    /**
+     * The inclusive range bounds, as unsigned IPv4 addresses, meaningless when not {@link #compiled}.
+     */
+    private final long lower;
+
+    private final long upper;
+
+    private final boolean compiled;
+
+    private final Fallback fallback;
+
+    private NetworkMatcher(long lower, long upper, boolean compiled, Fallback fallback) {
+        this.lower = lower;
+        this.upper = upper;
+        this.compiled = compiled;
+        this.fallback = fallback;
+    }
+
+    /**
+     * Create a matcher for the {@code isInNet} helper function.
+     * <p>It matches like {@code new IPAddressString(pattern + "/" + mask).contains(new IPAddressString(host))}.
+     *
+     * @param pattern the network address.
+     * @param mask    the network mask.
+     * @return the new matcher.
+     */
+    public static NetworkMatcher forNetmask(String pattern, String mask) {
+        IPAddressString network = new IPAddressString(pattern + "/" + mask);
+        Fallback fallback = host -> network.contains(new IPAddressString(host));
+        IPAddress address = network.getAddress();
+        if (address == null) {
+            // An invalid network contains nothing
+            return new NetworkMatcher(1, 0, true, fallback);
+        }
+        if (address.isIPv4() && address.isSequential()) {
+            return new NetworkMatcher(Integer.toUnsignedLong(address.getLower().toIPv4().intValue()),
+                    Integer.toUnsignedLong(address.getUpper().toIPv4().intValue()), true, fallback);
+        }
+        return new NetworkMatcher(1, 0, false, fallback);
+    }
+
+    /**
+     * Create a matcher for the {@code isInNetEx} helper function.
+     * <p>It matches like {@code new IpAddressMatcher(ipPrefix).matches(address)}.
+     *
+     * @param ipPrefix the IP address or the IP address with the prefix length (like {@code 10.0.0.0/8}).
+     * @return the new matcher.
+     */
+    public static NetworkMatcher forPrefix(String ipPrefix) {
+        Fallback fallback = address -> new IpAddressMatcher(ipPrefix).matches(address);
+        if (ipPrefix == null) {
+            return new NetworkMatcher(1, 0, false, fallback);
+        }
+        int slashPos = ipPrefix.indexOf('/');
+        long address = parseIPv4(slashPos > 0 ? ipPrefix.substring(0, slashPos) : ipPrefix);
+        if (address == -1) {
+            return new NetworkMatcher(1, 0, false, fallback);
+        }
+        if (slashPos < 0) {
+            return new NetworkMatcher(address, address, true, fallback);
+        }
+        int prefixLength = parsePrefixLength(ipPrefix.substring(slashPos + 1));
+        if (prefixLength == -1) {
+            // Let the original implementation report the error
+            return new NetworkMatcher(1, 0, false, fallback);
+        }
+        long hostMask = prefixLength == 0 ? 0xFFFFFFFFL : (1L << (32 - prefixLength)) - 1;
+        long lower = address & ~hostMask & 0xFFFFFFFFL;
+        return new NetworkMatcher(lower, lower | hostMask, true, fallback);
+    }
+
+    private static int parsePrefixLength(String str) {
+        if (str.isEmpty() || str.length() > 2) {
+            return -1;
+        }
+        int value = 0;
+        for (int i = 0; i < str.length(); i++) {
+            char c = str.charAt(i);
+            if (c < '0' || c > '9') {
+                return -1;
+            }
+            value = value * 10 + (c - '0');
+        }
+        return value <= 32 ? value : -1;
+    }
+
+    /**
+     * Parse a dotted decimal IPv4 address, without leading zeros (like {@code 192.168.0.1}).
+     *
+     * @param str the string to parse.
+     * @return the address as an unsigned integer, or {@code -1} if the string is not such an address.
+     */
+    public static long parseIPv4(String str) {
+        if (str == null) {
+            return -1;
+        }
+        int length = str.length();
+        if (length < 7 || length > 15) {
+            return -1;
+        }
+        long address = 0;
+        int octet = 0;
+        int digits = 0;
+        int dots = 0;
+        for (int i = 0; i < length; i++) {
+            char c = str.charAt(i);
+            if (c >= '0' && c <= '9') {
+                if (digits > 0 && octet == 0) {
+                    // Leading zero
+                    return -1;
+                }
+                octet = octet * 10 + (c - '0');
+                if (++digits > 3 || octet > 255) {
+                    return -1;
+                }
+            } else if (c == '.' && digits > 0 && ++dots < 4) {
+                address = (address << 8) | octet;
+                octet = 0;
+                digits = 0;
+            } else {
+                return -1;
+            }
+        }
+        if (dots != 3 || digits == 0) {
+            return -1;
+        }
+        return (address << 8) | octet;
+    }
+
+    /**
+     * @return {@code true} iff the dotted decimal IPv4 addresses are matched with primitive comparisons.
+     */
+    boolean isCompiled() {
+        return compiled;
+    }
+
+    long getLower() {
+        return lower;
+    }
+
+    long getUpper() {
+        return upper;
+    }
+
+    /**
+     * Check whether an address belongs to this network.
+     *
+     * @param address the address.
+     * @return {@code true} iff the address belongs to this network.
+     * @throws UnknownHostException as thrown by {@link IpAddressMatcher}.
+     */
+    public boolean matches(String address) throws UnknownHostException {
+        if (compiled) {
+            long ipv4 = parseIPv4(address);
+            if (ipv4 != -1) {
+                return matches(ipv4);
+            }
+        }
+        return fallback.matches(address);
+    }
+
+    boolean matches(long ipv4) {
+        return ipv4 >= lower && ipv4 <= upper;
+    }
+
+    @FunctionalInterface
+    private interface Fallback {
+        boolean matches(String address) throws UnknownHostException;
+    }
+
+}
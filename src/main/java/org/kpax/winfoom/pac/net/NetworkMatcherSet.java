@@ -0,0 +1,154 @@
+/*
+ * Copyright (c) 2020. Eugen Covaci
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and limitations under the License.
+ */
+
+package org.kpax.winfoom.pac.net;
+
+import org.springframework.util.Assert;
+
+import java.net.UnknownHostException;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+
+/**
+ * A set of {@link NetworkMatcher}s, testing an address against all of them at once.
+ * <p>The IPv4 ranges are merged and sorted, so a dotted decimal IPv4 address is looked up
+ * with a binary search. The networks that are not IPv4 ranges are matched one by one.
+ * <p>The networks are added before the set is shared, the matching is thread safe.
+ *
+ * @author Eugen Covaci
+ */
+public final class NetworkMatcherSet {
+
+    private final List<NetworkMatcher> matchers = new ArrayList<>();
+
+    private final List<NetworkMatcher> notCompiledMatchers = new ArrayList<>();
+
+    /**
+     * The merged, sorted, inclusive ranges.
+     */
+    private long[] lowers = new long[0];
+
+    private long[] uppers = new long[0];
+
+    /**
+     * Add a network.
+     *
+     * @param matcher the network.
+     * @return this instance.
+     */
+    public NetworkMatcherSet add(NetworkMatcher matcher) {
+        Assert.notNull(matcher, "matcher cannot be null");
+        matchers.add(matcher);
+        if (matcher.isCompiled()) {
+            mergeRanges();
+        } else {
+            notCompiledMatchers.add(matcher);
+        }
+        return this;
+    }
+
+    /**
+     * Add all the networks of another set.
+     *
+     * @param other the other set.
+     * @return this instance.
+     */
+    public NetworkMatcherSet addAll(NetworkMatcherSet other) {
+        Assert.notNull(other, "other cannot be null");
+        for (NetworkMatcher matcher : new ArrayList<>(other.matchers)) {
+            add(matcher);
+        }
+        return this;
+    }
+
+    private void mergeRanges() {
+        List<NetworkMatcher> ranges = new ArrayList<>();
+        for (NetworkMatcher matcher : matchers) {
+            // The empty ranges never match
+            if (matcher.isCompiled() && matcher.getLower() <= matcher.getUpper()) {
+                ranges.add(matcher);
+            }
+        }
+        ranges.sort(Comparator.comparingLong(NetworkMatcher::getLower));
+        List<long[]> merged = new ArrayList<>();
+        for (NetworkMatcher range : ranges) {
+            long[] last = merged.isEmpty() ? null : merged.get(merged.size() - 1);
+            if (last != null && range.getLower() <= last[1] + 1) {
+                last[1] = Math.max(last[1], range.getUpper());
+            } else {
+                merged.add(new long[]{range.getLower(), range.getUpper()});
+            }
+        }
+        long[] newLowers = new long[merged.size()];
+        long[] newUppers = new long[merged.size()];
+        for (int i = 0; i < merged.size(); i++) {
+            newLowers[i] = merged.get(i)[0];
+            newUppers[i] = merged.get(i)[1];
+        }
+        lowers = newLowers;
+        uppers = newUppers;
+    }
+
+    /**
+     * Check whether an address belongs to any of the networks.
+     *
+     * @param address the address.
+     * @return {@code true} iff the address belongs to at least one network.
+     * @throws UnknownHostException as thrown by {@link NetworkMatcher#matches(String)}.
+     */
+    public boolean matchesAny(String address) throws UnknownHostException {
+        long ipv4 = NetworkMatcher.parseIPv4(address);
+        if (ipv4 == -1) {
+            for (NetworkMatcher matcher : matchers) {
+                if (matcher.matches(address)) {
+                    return true;
+                }
+            }
+            return false;
+        }
+        if (containsInRanges(ipv4)) {
+            return true;
+        }
+        for (NetworkMatcher matcher : notCompiledMatchers) {
+            if (matcher.matches(address)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private boolean containsInRanges(long ipv4) {
+        // The last range starting at or before the address
+        int low = 0;
+        int high = lowers.length - 1;
+        int found = -1;
+        while (low <= high) {
+            int middle = (low + high) >>> 1;
+            if (lowers[middle] <= ipv4) {
+                found = middle;
+                low = middle + 1;
+            } else {
+                high = middle - 1;
+            }
+        }
+        return found != -1 && ipv4 <= uppers[found];
+    }
+
+    /**
+     * @return the number of networks.
+     */
+    public int size() {
+        return matchers.size();
+    }
+
+}
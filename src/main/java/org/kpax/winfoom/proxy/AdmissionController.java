@@ -0,0 +1,362 @@
+/*
+ * Copyright (c) 2020. Eugen Covaci
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and limitations under the License.
+ */
+
+package org.kpax.winfoom.proxy;
+
+import org.apache.http.HttpHeaders;
+import org.apache.http.HttpStatus;
+import org.kpax.winfoom.annotation.ProxySessionScope;
+import org.kpax.winfoom.config.SystemConfig;
+import org.kpax.winfoom.util.HttpUtils;
+import org.kpax.winfoom.util.InputOutputs;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.core.annotation.Order;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.PostConstruct;
+import java.net.Socket;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * It bounds the number of connections and tunnels handled concurrently.
+ * <p>A connection that cannot be handled right away waits in a bounded queue.
+ * When the queue is full or the connection has waited too long,
+ * the client gets a {@code 503} response with a {@code Retry-After} header,
+ * so no other thread is spawned.
+ * <p>The same deadline applies to a CONNECT request waiting for a tunnel permit.
+ * A CONNECT request gives up its connection permit before acquiring a tunnel permit, so an open tunnel
+ * only counts against the tunnels limit, and a CONNECT request waiting for a tunnel permit
+ * does not hold back the other connections.
+ *
+ * @author Eugen Covaci
+ */
+@Order(1)
+@ProxySessionScope
+@Component
+class AdmissionController implements AutoCloseable {
+
+    /**
+     * The reason phrase of the {@code 503} response.
+     */
+    static final String REJECTION_REASON = "Service Unavailable";
+
+    /**
+     * The maximum number of threads writing the rejection responses.
+     */
+    private static final int REJECTION_THREADS = 2;
+
+    /**
+     * The maximum number of rejections waiting to be written.
+     */
+    private static final int REJECTION_QUEUE_CAPACITY = 100;
+
+    /**
+     * The maximum waiting time for the request to arrive when rejecting a connection (milliseconds).
+     */
+    private static final int REJECTION_SO_TIMEOUT = 1000;
+
+    private final Logger logger = LoggerFactory.getLogger(AdmissionController.class);
+
+    @Autowired
+    private SystemConfig systemConfig;
+
+    @Autowired
+    private ProxyContext proxyContext;
+
+    @Autowired
+    private ProxyMetrics proxyMetrics;
+
+    private final AtomicInteger pendingTunnels = new AtomicInteger();
+
+    private final LongAdder rejectedConnections = new LongAdder();
+
+    private final LongAdder rejectedTunnels = new LongAdder();
+
+    private Semaphore connectionPermits;
+
+    private Semaphore tunnelPermits;
+
+    private BlockingQueue<PendingConnection> pendingConnections;
+
+    private ThreadPoolExecutor rejectionExecutor;
+
+    @PostConstruct
+    private void init() {
+        connectionPermits = new Semaphore(systemConfig.getAdmissionMaxConnections());
+        tunnelPermits = new Semaphore(systemConfig.getAdmissionMaxTunnels());
+        pendingConnections = new LinkedBlockingQueue<>(systemConfig.getAdmissionQueueCapacity());
+        rejectionExecutor = new ThreadPoolExecutor(REJECTION_THREADS, REJECTION_THREADS,
+                60L, TimeUnit.SECONDS, new ArrayBlockingQueue<>(REJECTION_QUEUE_CAPACITY),
+                new ProxyContext.DefaultThreadFactory());
+        rejectionExecutor.allowCoreThreadTimeOut(true);
+        logger.info("Admission limits: maxConnections={}, maxTunnels={}, queueCapacity={}",
+                systemConfig.getAdmissionMaxConnections(),
+                systemConfig.getAdmissionMaxTunnels(),
+                systemConfig.getAdmissionQueueCapacity());
+    }
+
+    /**
+     * Handle the connection on a thread provided by the {@link ProxyContext}, if the limit allows it.
+     * <p>Otherwise, the connection is queued until a permit becomes available or it expires.
+     * <p>A persistent connection is admitted again for each request: the connection permit is held
+     * only while the handler runs, not between two requests.
+     *
+     * @param persistentConnection the client's connection.
+     * @param handler              handles the connection, including closing the socket when done.
+     */
+    void admit(PersistentConnection persistentConnection, Runnable handler) {
+        PendingConnection connection = new PendingConnection(persistentConnection, handler,
+                System.currentTimeMillis() + systemConfig.getAdmissionQueueTimeout() * 1000L);
+        if (connectionPermits.tryAcquire()) {
+            execute(connection);
+        } else if (pendingConnections.offer(connection)) {
+            logger.debug("Connection queued, queue depth: {}", pendingConnections.size());
+
+            // A permit might have been released in the meantime
+            drainPendingConnections();
+        } else {
+            logger.debug("Connection rejected: the admission queue is full");
+            reject(connection);
+        }
+    }
+
+    /**
+     * Release the connection's permit, then acquire a tunnel permit, waiting up to the admission timeout.
+     * <p>A successful call must be followed by {@link #releaseTunnel()}.
+     *
+     * @param connection the CONNECT request's connection.
+     * @return {@code true} iff the permit has been acquired.
+     * @throws InterruptedException
+     */
+    boolean acquireTunnel(PersistentConnection connection) throws InterruptedException {
+        releaseConnection(connection);
+        if (tunnelPermits.tryAcquire()) {
+            return true;
+        }
+        pendingTunnels.incrementAndGet();
+        try {
+            if (tunnelPermits.tryAcquire(systemConfig.getAdmissionQueueTimeout(), TimeUnit.SECONDS)) {
+                return true;
+            }
+        } finally {
+            pendingTunnels.decrementAndGet();
+        }
+        logger.debug("Tunnel rejected: no permit available");
+        rejectedTunnels.increment();
+        return false;
+    }
+
+    void releaseTunnel() {
+        tunnelPermits.release();
+    }
+
+    /**
+     * Write the {@code 503} response for a rejected request.
+     *
+     * @param clientConnection the client's connection.
+     */
+    void writeRejection(ClientConnection clientConnection) {
+        clientConnection.writeErrorResponse(clientConnection.getRequestLine().getProtocolVersion(),
+                HttpStatus.SC_SERVICE_UNAVAILABLE,
+                REJECTION_REASON,
+                HttpUtils.createHttpHeader(HttpHeaders.RETRY_AFTER,
+                        String.valueOf(systemConfig.getAdmissionRetryAfter())));
+    }
+
+    /**
+     * @return the number of connections waiting for admission.
+     */
+    public int getPendingConnections() {
+        return pendingConnections.size();
+    }
+
+    /**
+     * @return the number of CONNECT requests waiting for a tunnel permit.
+     */
+    public int getPendingTunnels() {
+        return pendingTunnels.get();
+    }
+
+    /**
+     * @return the number of connections being handled.
+     */
+    public int getActiveConnections() {
+        return systemConfig.getAdmissionMaxConnections() - connectionPermits.availablePermits();
+    }
+
+    /**
+     * @return the number of open tunnels, including those being established.
+     */
+    public int getActiveTunnels() {
+        return systemConfig.getAdmissionMaxTunnels() - tunnelPermits.availablePermits();
+    }
+
+    /**
+     * @return the number of connections rejected during this proxy session.
+     */
+    public long getRejectedConnections() {
+        return rejectedConnections.sum();
+    }
+
+    /**
+     * @return the number of tunnels rejected during this proxy session.
+     */
+    public long getRejectedTunnels() {
+        return rejectedTunnels.sum();
+    }
+
+    /**
+     * A job that rejects the expired pending connections.
+     */
+    @Scheduled(fixedRate = 1000)
+    void rejectExpiredConnections() {
+        if (proxyContext.isRunning()) {
+            long now = System.currentTimeMillis();
+            for (PendingConnection connection : pendingConnections) {
+                if (connection.isExpired(now) && pendingConnections.remove(connection)) {
+                    logger.debug("Connection rejected: admission timeout");
+                    reject(connection);
+                }
+            }
+            if (logger.isDebugEnabled() && !pendingConnections.isEmpty()) {
+                logger.debug("Admission statistics: active connections {}, pending connections {}, " +
+                                "active tunnels {}, pending tunnels {}",
+                        getActiveConnections(), getPendingConnections(),
+                        getActiveTunnels(), getPendingTunnels());
+            }
+        }
+    }
+
+    /**
+     * Run the connection's handler, the connection permit must be already acquired.
+     */
+    private void execute(PendingConnection connection) {
+        PersistentConnection persistentConnection = connection.persistentConnection;
+        persistentConnection.connectionPermitAcquired();
+        try {
+            proxyContext.executorService().execute(() -> {
+                try {
+                    connection.handler.run();
+                } finally {
+                    releaseConnection(persistentConnection);
+                }
+            });
+        } catch (RejectedExecutionException e) {
+            if (persistentConnection.releaseConnectionPermit()) {
+                connectionPermits.release();
+            }
+            logger.debug("Cannot execute the connection's handler", e);
+            InputOutputs.close(connection.socket);
+        }
+    }
+
+    /**
+     * Release the connection's permit, if still held, then hand it over to a pending connection.
+     * <p>It must be called before the connection is admitted again for its next request.
+     *
+     * @param connection the client's connection.
+     */
+    void releaseConnection(PersistentConnection connection) {
+        if (connection.releaseConnectionPermit()) {
+            connectionPermits.release();
+            drainPendingConnections();
+        }
+    }
+
+    /**
+     * Hand the available permits over to the pending connections.
+     */
+    private void drainPendingConnections() {
+        while (!pendingConnections.isEmpty() && connectionPermits.tryAcquire()) {
+            PendingConnection connection = pendingConnections.poll();
+            if (connection == null) {
+                connectionPermits.release();
+            } else if (connection.isExpired(System.currentTimeMillis())) {
+                connectionPermits.release();
+                logger.debug("Connection rejected: admission timeout");
+                reject(connection);
+            } else {
+                execute(connection);
+            }
+        }
+    }
+
+    /**
+     * Answer {@code 503} to the client, then close the connection.
+     * <p>The request must be parsed first, which is done on a small, bounded, thread pool.
+     * If the pool is saturated, the connection is simply closed.
+     */
+    private void reject(PendingConnection connection) {
+        rejectedConnections.increment();
+        try {
+            rejectionExecutor.execute(() -> {
+                try {
+                    connection.socket.setSoTimeout(REJECTION_SO_TIMEOUT);
+                    try (ClientConnection clientConnection = new ClientConnection(connection.socket,
+                            connection.persistentConnection.getInputStream(),
+                            connection.persistentConnection.getSessionInputBuffer())) {
+                        writeRejection(clientConnection);
+                        proxyMetrics.responseSent(clientConnection.getResponseStatus());
+                    }
+                } catch (Exception e) {
+                    logger.debug("Error on rejecting connection", e);
+                } finally {
+                    InputOutputs.close(connection.socket);
+                }
+            });
+        } catch (RejectedExecutionException e) {
+            logger.debug("Rejection pool saturated, close the connection");
+            InputOutputs.close(connection.socket);
+        }
+    }
+
+    @Override
+    public void close() {
+        logger.debug("Close the pending connections");
+        PendingConnection connection;
+        while ((connection = pendingConnections.poll()) != null) {
+            InputOutputs.close(connection.socket);
+        }
+        rejectionExecutor.shutdownNow();
+    }
+
+    /**
+     * A connection waiting for admission.
+     */
+    private static class PendingConnection {
+
+        private final PersistentConnection persistentConnection;
+
+        private final Socket socket;
+
+        private final Runnable handler;
+
+        private final long deadline;
+
+        PendingConnection(PersistentConnection persistentConnection, Runnable handler, long deadline) {
+            this.persistentConnection = persistentConnection;
+            this.socket = persistentConnection.getSocket();
+            this.handler = handler;
+            this.deadline = deadline;
+        }
+
+        boolean isExpired(long now) {
+            return now > deadline;
+        }
+    }
+
+}
@@ -95,6 +95,27 @@ final class ClientConnection implements AutoCloseable {
      */
     private boolean requestPrepared;
 
+    /**
+     * Whether the connection should be kept open after this request.
+     */
+    private boolean keepAlive;
+
+    /**
+     * Whether a complete, self-delimited, response has been written.<br>
+     * Only then the connection can be reused for the next request.
+     */
+    private boolean responseFramed;
+
+    /**
+     * The status code of the last status line written to the client, zero if none.
+     */
+    private int responseStatus;
+
+    /**
+     * The latency breakdown of this request.
+     */
+    private final RequestTiming requestTiming = new RequestTiming();
+
     /**
      * Constructor.<br>
      * Has the responsibility of parsing the request.
@@ -104,16 +125,39 @@ final class ClientConnection implements AutoCloseable {
      * @throws HttpException
      */
     ClientConnection(Socket socket) throws IOException, HttpException {
+        this(socket, socket.getInputStream());
+    }
+
+    /**
+     * Constructor.<br>
+     * Has the responsibility of parsing the request.
+     *
+     * @param socket      the underlying socket.
+     * @param inputStream the socket's input stream, possibly preceded by some already read bytes.
+     * @throws IOException
+     * @throws HttpException
+     */
+    ClientConnection(Socket socket, InputStream inputStream) throws IOException, HttpException {
+        this(socket, inputStream, createSessionInputBuffer(inputStream));
+    }
+
+    /**
+     * Constructor.<br>
+     * Has the responsibility of parsing the request.
+     * <p>Used for the subsequent requests of a persistent connection, which share the same session input buffer.
+     *
+     * @param socket             the underlying socket.
+     * @param inputStream        the socket's input stream, possibly preceded by some already read bytes.
+     * @param sessionInputBuffer the session input buffer bound to the {@code inputStream}.
+     * @throws IOException
+     * @throws HttpException
+     */
+    ClientConnection(Socket socket, InputStream inputStream, SessionInputBufferImpl sessionInputBuffer)
+            throws IOException, HttpException {
         this.socket = socket;
-        this.inputStream = socket.getInputStream();
+        this.inputStream = inputStream;
         this.outputStream = socket.getOutputStream();
-        this.sessionInputBuffer = new SessionInputBufferImpl(
-                new HttpTransportMetricsImpl(),
-                InputOutputs.DEFAULT_BUFFER_SIZE,
-                InputOutputs.DEFAULT_BUFFER_SIZE,
-                MessageConstraints.DEFAULT,
-                StandardCharsets.UTF_8.newDecoder());
-        this.sessionInputBuffer.bind(this.inputStream);
+        this.sessionInputBuffer = sessionInputBuffer;
         this.httpRequest = new DefaultHttpRequestParser(this.sessionInputBuffer).parse();
         this.requestLine = httpRequest.getRequestLine();
         try {
@@ -121,6 +165,38 @@ final class ClientConnection implements AutoCloseable {
         } catch (URISyntaxException e) {
             throw new HttpException("Invalid request uri", e);
         }
+
+        // A CONNECT request ends up in a tunnel, while a request
+        // body not delimited by the client cannot be reliably consumed
+        this.keepAlive = HttpUtils.isKeepAlive(httpRequest)
+                && !HttpUtils.HTTP_CONNECT.equalsIgnoreCase(requestLine.getMethod())
+                && (!(httpRequest instanceof HttpEntityEnclosingRequest)
+                || HttpUtils.getContentLength(httpRequest) >= 0
+                || HttpUtils.isChunked(httpRequest));
+    }
+
+    /**
+     * Create a {@link SessionInputBufferImpl} bound to the input stream.
+     *
+     * @param inputStream the socket's input stream.
+     * @return the new {@link SessionInputBufferImpl} instance.
+     */
+    static SessionInputBufferImpl createSessionInputBuffer(InputStream inputStream) {
+        SessionInputBufferImpl sessionInputBuffer = new SessionInputBufferImpl(
+                new HttpTransportMetricsImpl(),
+                InputOutputs.DEFAULT_BUFFER_SIZE,
+                InputOutputs.DEFAULT_BUFFER_SIZE,
+                MessageConstraints.DEFAULT,
+                StandardCharsets.UTF_8.newDecoder());
+        sessionInputBuffer.bind(inputStream);
+        return sessionInputBuffer;
+    }
+
+    /**
+     * @return the client's socket
+     */
+    Socket getSocket() {
+        return socket;
     }
 
     /**
@@ -158,6 +234,33 @@ final class ClientConnection implements AutoCloseable {
         return requestUri;
     }
 
+    /**
+     * Transfer the bytes already read from the client, but not consumed by the request parsing
+     * (like the beginning of a TLS handshake sent right after a CONNECT request).
+     * <p>Only makes sense before relaying the client's socket, since it reads everything available without blocking.
+     *
+     * @param outputStream where to write the bytes.
+     * @throws IOException
+     */
+    void transferBufferedBytes(OutputStream outputStream) throws IOException {
+        byte[] buffer = new byte[InputOutputs.DEFAULT_BUFFER_SIZE];
+        int length;
+        while (sessionInputBuffer.length() > 0) {
+            length = sessionInputBuffer.read(buffer, 0, Math.min(buffer.length, sessionInputBuffer.length()));
+            outputStream.write(buffer, 0, length);
+        }
+
+        // The input stream might hold some already read bytes too
+        while (inputStream.available() > 0) {
+            length = inputStream.read(buffer, 0, Math.min(buffer.length, inputStream.available()));
+            if (length <= 0) {
+                break;
+            }
+            outputStream.write(buffer, 0, length);
+        }
+        outputStream.flush();
+    }
+
     /**
      * Write an object to the output stream using CRLF format.
      *
@@ -165,6 +268,9 @@ final class ClientConnection implements AutoCloseable {
      * @throws IOException
      */
     void write(Object obj) throws IOException {
+        if (obj instanceof StatusLine) {
+            responseStatus = ((StatusLine) obj).getStatusCode();
+        }
         outputStream.write(ObjectFormat.toCrlf(obj));
     }
 
@@ -177,6 +283,18 @@ final class ClientConnection implements AutoCloseable {
         outputStream.write(ObjectFormat.CRLF.getBytes());
     }
 
+    /**
+     * Write a {@code 100 Continue} interim response, so that the client sends the request's body.
+     * <p>Being interim, it is not recorded as the response's status.
+     *
+     * @throws IOException
+     */
+    void writeContinue() throws IOException {
+        outputStream.write(ObjectFormat.toCrlf(HttpUtils.toStatusLine(HttpVersion.HTTP_1_1, HttpStatus.SC_CONTINUE)));
+        writeln();
+        outputStream.flush();
+    }
+
     /**
      * Write a simple response with only the status line with protocol version 1.1, followed by an empty line.
      *
@@ -195,9 +313,25 @@ final class ClientConnection implements AutoCloseable {
      * @param reasonPhrase    the request's reason code
      */
     void writeErrorResponse(ProtocolVersion protocolVersion, int statusCode, String reasonPhrase) {
+        writeErrorResponse(protocolVersion, statusCode, reasonPhrase, new Header[0]);
+    }
+
+    /**
+     * Write a simple response with only the status line and the provided headers, followed by an empty line.
+     *
+     * @param protocolVersion the request's HTTP version.
+     * @param statusCode      the request's status code.
+     * @param reasonPhrase    the request's reason code
+     * @param headers         additional headers (like {@code Retry-After}).
+     */
+    void writeErrorResponse(ProtocolVersion protocolVersion, int statusCode, String reasonPhrase,
+                            Header... headers) {
         try {
             write(HttpUtils.toStatusLine(protocolVersion, statusCode, reasonPhrase));
             write(HttpUtils.createHttpHeader(HTTP.DATE_HEADER, new HeaderDateGenerator().getCurrentDate()));
+            for (Header header : headers) {
+                write(header);
+            }
             writeln();
         } catch (Exception ex) {
             logger.debug("Error on writing error response", ex);
@@ -259,6 +393,52 @@ final class ClientConnection implements AutoCloseable {
         this.requestPrepared = true;
     }
 
+    /**
+     * Whether the connection should be kept open after this request.
+     *
+     * @return {@code true} iff the client asked for a persistent connection and it has not been disabled.
+     */
+    boolean isKeepAlive() {
+        return keepAlive;
+    }
+
+    /**
+     * Close the connection after this request, whatever the client asked for.
+     */
+    void disableKeepAlive() {
+        this.keepAlive = false;
+    }
+
+    /**
+     * Whether a complete, self-delimited, response has been written.
+     *
+     * @return <code>true</code> iff the response has been marked as framed.
+     */
+    boolean isResponseFramed() {
+        return responseFramed;
+    }
+
+    /**
+     * Mark the response as complete and self-delimited, so the connection can be reused.
+     */
+    void responseFramed() {
+        this.responseFramed = true;
+    }
+
+    /**
+     * @return the status code of the response written to the client, zero if no status line has been written.
+     */
+    int getResponseStatus() {
+        return responseStatus;
+    }
+
+    /**
+     * @return the latency breakdown of this request.
+     */
+    RequestTiming getRequestTiming() {
+        return requestTiming;
+    }
+
     /**
      * @return {@code true} iff the underlying socket is closed.
      */
@@ -18,7 +18,9 @@ import org.apache.http.HttpHost;
 import org.apache.http.HttpStatus;
 import org.apache.http.RequestLine;
 import org.apache.http.protocol.HTTP;
+import org.apache.http.impl.io.SessionInputBufferImpl;
 import org.kpax.winfoom.config.ProxyConfig;
+import org.kpax.winfoom.config.SystemConfig;
 import org.kpax.winfoom.exception.PacScriptException;
 import org.kpax.winfoom.pac.PacScriptEvaluator;
 import org.kpax.winfoom.util.*;
@@ -29,13 +31,16 @@ import org.springframework.context.annotation.Lazy;
 import org.springframework.stereotype.Component;
 
 import java.io.IOException;
+import java.io.InputStream;
 import java.io.OutputStream;
 import java.net.ConnectException;
 import java.net.Socket;
+import java.net.SocketException;
 import java.net.URI;
 import java.util.Collections;
 import java.util.Iterator;
 import java.util.List;
+import java.util.concurrent.TimeUnit;
 
 /**
  * Responsible for handling client's connection.
@@ -45,9 +50,14 @@ class ClientConnectionHandler {
 
     private final Logger logger = LoggerFactory.getLogger(getClass());
 
+    private final Logger slowRequestLogger = LoggerFactory.getLogger(RequestTiming.SLOW_REQUEST_LOGGER);
+
     @Autowired
     private ProxyConfig proxyConfig;
 
+    @Autowired
+    private SystemConfig systemConfig;
+
     @Lazy
     @Autowired
     private PacScriptEvaluator pacScriptEvaluator;
@@ -59,6 +69,12 @@ class ClientConnectionHandler {
     @Autowired
     private ClientProcessorSelector clientProcessorSelector;
 
+    @Autowired
+    private AdmissionController admissionController;
+
+    @Autowired
+    private ProxyMetrics proxyMetrics;
+
     /**
      * Process the client connection with each available proxy.<br>
      * Un un-responding to connect proxy is blacklisted only if it is not the last
@@ -71,10 +87,85 @@ class ClientConnectionHandler {
      * @throws HttpException
      */
     void handleConnection(final Socket socket) throws IOException, HttpException {
+        handleConnection(socket, socket.getInputStream());
+    }
+
+    /**
+     * Same as {@link #handleConnection(Socket)}, except the request is read from the provided input stream.
+     * <p>On a persistent connection (HTTP keep-alive), the requests are handled one after another,
+     * until the client closes the connection, the idle timeout expires or
+     * the maximum number of requests per connection is reached.
+     *
+     * @param socket      the client's socket
+     * @param inputStream the socket's input stream, possibly preceded by the already read request head.
+     * @throws IOException
+     * @throws HttpException
+     */
+    void handleConnection(final Socket socket, final InputStream inputStream) throws IOException, HttpException {
+        PersistentConnection connection = new PersistentConnection(socket, inputStream, 0);
+        boolean keepAlive;
+        do {
+            keepAlive = handleNextRequest(connection);
+        } while (keepAlive && awaitNextRequest(connection));
+    }
 
-        final ClientConnection clientConnection;
+    /**
+     * Handle the next request of a connection.
+     * <p>The caller is responsible for waiting for the request after, or closing the connection.
+     *
+     * @param connection the client's connection
+     * @return {@code true} iff the connection is to be kept open for the next request.
+     * @throws IOException
+     * @throws HttpException
+     */
+    boolean handleNextRequest(final PersistentConnection connection) throws IOException, HttpException {
+        ClientConnection clientConnection = createClientConnection(connection.getSocket(),
+                connection.getInputStream(),
+                connection.getSessionInputBuffer());
+        if (connection.requestStarted() >= systemConfig.getKeepAliveMaxRequests()) {
+            clientConnection.disableKeepAlive();
+        }
+        handleRequest(connection, clientConnection);
+        return clientConnection.isKeepAlive() && clientConnection.isResponseFramed();
+    }
+
+    /**
+     * Wait for the next request on a persistent connection, no longer than the keep-alive idle timeout.
+     * <p>The calling thread is blocked meanwhile.
+     *
+     * @param connection the client's connection
+     * @return {@code true} iff the next request has started to arrive.
+     * @throws SocketException
+     */
+    boolean awaitNextRequest(final PersistentConnection connection) throws SocketException {
+        SessionInputBufferImpl sessionInputBuffer = connection.getSessionInputBuffer();
+        if (sessionInputBuffer.hasBufferedData()) {
+            return true;
+        }
+        Socket socket = connection.getSocket();
+        int soTimeout = socket.getSoTimeout();
+        socket.setSoTimeout(systemConfig.getKeepAliveIdleTimeout() * 1000);
         try {
-            clientConnection = new ClientConnection(socket);
+            return sessionInputBuffer.fillBuffer() != -1;
+        } catch (IOException e) {
+            logger.debug("No further request on the persistent connection", e);
+            return false;
+        } finally {
+            if (!socket.isClosed()) {
+                socket.setSoTimeout(soTimeout);
+            }
+        }
+    }
+
+    /**
+     * Parse the request into a {@link ClientConnection}.<br>
+     * On parsing error, a bad request response is sent to the client.
+     */
+    private ClientConnection createClientConnection(final Socket socket, final InputStream inputStream,
+                                                    final SessionInputBufferImpl sessionInputBuffer)
+            throws IOException, HttpException {
+        try {
+            return new ClientConnection(socket, inputStream, sessionInputBuffer);
         } catch (HttpException e) {
             // Most likely a bad request
             // even though might not always be the case
@@ -86,18 +177,49 @@ class ClientConnectionHandler {
             outputStream.write(
                     ObjectFormat.toCrlf(HttpUtils.createHttpHeader(HTTP.DATE_HEADER, new HeaderDateGenerator().getCurrentDate())));
             outputStream.write(ObjectFormat.CRLF.getBytes());
+            proxyMetrics.responseSent(HttpStatus.SC_BAD_REQUEST);
             throw e;
         }
+    }
 
+    /**
+     * Process the request with each available proxy, then close the {@link ClientConnection}.
+     *
+     * @param connection       the client's connection
+     * @param clientConnection the client's request
+     */
+    private void handleRequest(final PersistentConnection connection, final ClientConnection clientConnection) {
         RequestLine requestLine = clientConnection.getRequestLine();
         logger.debug("Handle request: {}", requestLine);
 
+        RequestTiming requestTiming = clientConnection.getRequestTiming();
+        boolean isConnect = HttpUtils.HTTP_CONNECT.equalsIgnoreCase(requestLine.getMethod());
+        try {
+            if (isConnect) {
+                long admissionStart = System.nanoTime();
+                boolean admitted = admissionController.acquireTunnel(connection);
+                requestTiming.record(RequestTiming.Phase.ADMISSION, admissionStart);
+                if (!admitted) {
+                    admissionController.writeRejection(clientConnection);
+                    requestDone(clientConnection);
+                    InputOutputs.close(clientConnection);
+                    return;
+                }
+            }
+        } catch (InterruptedException e) {
+            InputOutputs.close(clientConnection);
+            Thread.currentThread().interrupt();
+            return;
+        }
+
         try {
             List<ProxyInfo> proxyInfoList;
             if (proxyConfig.isAutoConfig()) {
                 URI requestUri = clientConnection.getRequestUri();
                 logger.debug("Extracted URI from request {}", requestUri);
+                long pacStart = System.nanoTime();
                 proxyInfoList = pacScriptEvaluator.findProxyForURL(requestUri);
+                requestTiming.record(RequestTiming.Phase.PAC, pacStart);
             } else {
 
                 // Manual proxy case
@@ -114,13 +236,14 @@ class ClientConnectionHandler {
                 if (itr.hasNext()) {
                     if (proxyBlacklist.checkBlacklist(proxyInfo)) {
                         logger.debug("Blacklisted proxy {} - skip it", proxyInfo);
+                        proxyMetrics.blacklistedProxySkipped();
                         continue;
                     }
                 }
                 connectionProcessor = clientProcessorSelector.selectClientProcessor(requestLine, proxyInfo);
                 try {
                     logger.debug("Process connection with proxy: {}", proxyInfo);
-                    connectionProcessor.process(clientConnection, proxyInfo);
+                    processRequest(connectionProcessor, clientConnection, proxyInfo);
 
                     // Success, break the iteration
                     break;
@@ -130,7 +253,9 @@ class ClientConnectionHandler {
                         if (itr.hasNext()) {
                             logger.debug("Failed to process connection with proxy: {}, retry with the next one",
                                     proxyInfo);
-                            proxyBlacklist.blacklist(proxyInfo);
+                            if (proxyBlacklist.blacklist(proxyInfo) != null) {
+                                proxyMetrics.proxyBlacklisted();
+                            }
                         } else {
                             logger.debug("Failed to process connection with proxy: {}, send the error response",
                                     proxyInfo);
@@ -162,9 +287,45 @@ class ClientConnectionHandler {
                     e.getMessage());
             logger.debug("Error on handling request", e);
         } finally {
+            if (isConnect) {
+                admissionController.releaseTunnel();
+            }
+            requestDone(clientConnection);
             InputOutputs.close(clientConnection);
         }
         logger.debug("Done handling request: {}", requestLine);
 
     }
+
+    /**
+     * Record the request's outcome and latency breakdown, logging it when slow.
+     *
+     * @param clientConnection the client's connection
+     */
+    private void requestDone(final ClientConnection clientConnection) {
+        RequestTiming requestTiming = clientConnection.getRequestTiming();
+        proxyMetrics.responseSent(clientConnection.getResponseStatus());
+        boolean slow = systemConfig.getSlowRequestThreshold() > 0
+                && requestTiming.getLatency() >= TimeUnit.MILLISECONDS.toNanos(systemConfig.getSlowRequestThreshold());
+        proxyMetrics.requestTimed(requestTiming, slow);
+        if (slow && slowRequestLogger.isInfoEnabled()) {
+            slowRequestLogger.info("{} {}: {}", clientConnection.getRequestLine(),
+                    clientConnection.getResponseStatus(), requestTiming);
+        }
+    }
+
+    /**
+     * Process the request with the selected processor, while recording its metrics.
+     */
+    private void processRequest(final ClientConnectionProcessor connectionProcessor,
+                                final ClientConnection clientConnection,
+                                final ProxyInfo proxyInfo) throws Exception {
+        proxyMetrics.requestStarted(connectionProcessor);
+        long start = System.nanoTime();
+        try {
+            connectionProcessor.process(clientConnection, proxyInfo);
+        } finally {
+            proxyMetrics.requestEnded(connectionProcessor, System.nanoTime() - start);
+        }
+    }
 }
@@ -15,8 +15,10 @@ package org.kpax.winfoom.proxy;
 import org.apache.http.config.Registry;
 import org.apache.http.config.RegistryBuilder;
 import org.apache.http.conn.HttpClientConnectionManager;
+import org.apache.http.conn.routing.HttpRoute;
 import org.apache.http.conn.socket.ConnectionSocketFactory;
 import org.apache.http.impl.conn.PoolingHttpClientConnectionManager;
+import org.apache.http.pool.PoolStats;
 import org.kpax.winfoom.annotation.ProxySessionScope;
 import org.kpax.winfoom.config.SystemConfig;
 import org.kpax.winfoom.util.InputOutputs;
@@ -30,7 +32,9 @@ import org.springframework.stereotype.Component;
 import org.springframework.util.Assert;
 
 import java.util.ArrayList;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
 import java.util.concurrent.TimeUnit;
 
 /**
@@ -112,6 +116,31 @@ class ConnectionPoolingManager implements AutoCloseable {
         return activeConnectionManagers;
     }
 
+    /**
+     * @return the total statistics of each active connection manager, by proxy type.
+     */
+    Map<String, PoolStats> getPoolStats() {
+        Map<String, PoolStats> poolStats = new LinkedHashMap<>();
+        if (httpSupplier.hasValue()) {
+            poolStats.put("http", httpSupplier.get().getTotalStats());
+        }
+        if (socksSupplier.hasValue()) {
+            poolStats.put("socks5", socksSupplier.get().getTotalStats());
+        }
+        if (socks4Supplier.hasValue()) {
+            poolStats.put("socks4", socks4Supplier.get().getTotalStats());
+        }
+        return poolStats;
+    }
+
+    /**
+     * @param route the HTTP route.
+     * @return the statistics of the route's connections, within the HTTP connection manager.
+     */
+    PoolStats getHttpRouteStats(HttpRoute route) {
+        return httpSupplier.hasValue() ? httpSupplier.get().getStats(route) : new PoolStats(0, 0, 0, 0);
+    }
+
     /**
      * A job that closes the idle/expired HTTP connections.
      */
@@ -0,0 +1,102 @@
+/*
+ * Copyright (c) 2020. Eugen Covaci
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and limitations under the License.
+ */
+
+package org.kpax.winfoom.proxy;
+
+import org.apache.http.HttpHeaders;
+import org.apache.http.HttpRequest;
+import org.apache.http.entity.AbstractHttpEntity;
+import org.apache.http.util.Asserts;
+import org.kpax.winfoom.util.HttpUtils;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+
+/**
+ * The entity of a request carrying the {@code Expect: 100-continue} header.
+ * <p>The client waits for a {@code 100 Continue} interim response before sending the body,
+ * and so does the HTTP client, since the expectation is forwarded upstream.
+ * The body is read only when the HTTP client writes it, that is after the upstream's {@code 100 Continue}:
+ * at that moment, the {@code 100 Continue} is sent to the client, then the body is streamed through, once,
+ * without caching.
+ * <p>When the upstream answers with a final response instead, like a {@code 407} authentication challenge,
+ * the body is neither read nor sent, so the request can be retried, once authenticated,
+ * although the entity is not repeatable.
+ *
+ * @author Eugen Covaci
+ */
+class ExpectContinueHttpEntity extends AbstractHttpEntity {
+
+    private final ClientConnection clientConnection;
+
+    /**
+     * The body's stream, delimited like the client sent it.
+     */
+    private final InputStream content;
+
+    private final long contentLength;
+
+    /**
+     * Whether the {@code 100 Continue} has been sent and the body read.
+     */
+    private boolean consumed;
+
+    ExpectContinueHttpEntity(final ClientConnection clientConnection,
+                             final InputStream content,
+                             final HttpRequest request) {
+        this.clientConnection = clientConnection;
+        this.content = content;
+        this.contentType = request.getFirstHeader(HttpHeaders.CONTENT_TYPE);
+        this.contentEncoding = request.getFirstHeader(HttpHeaders.CONTENT_ENCODING);
+        this.contentLength = HttpUtils.getContentLength(request);
+    }
+
+    @Override
+    public boolean isRepeatable() {
+        return false;
+    }
+
+    @Override
+    public long getContentLength() {
+        return contentLength;
+    }
+
+    @Override
+    public InputStream getContent() throws IOException {
+        Asserts.check(!consumed, "Content has been consumed");
+        clientConnection.writeContinue();
+        consumed = true;
+        return content;
+    }
+
+    @Override
+    public void writeTo(OutputStream outStream) throws IOException {
+        try (InputStream inputStream = getContent()) {
+            byte[] buffer = new byte[OUTPUT_BUFFER_SIZE];
+            int length;
+            while ((length = inputStream.read(buffer)) != -1) {
+                outStream.write(buffer, 0, length);
+            }
+            outStream.flush();
+        }
+    }
+
+    /**
+     * @return {@code true} until the body is read.
+     */
+    @Override
+    public boolean isStreaming() {
+        return !consumed;
+    }
+
+}
@@ -15,23 +15,45 @@ package org.kpax.winfoom.proxy;
 import org.apache.http.HttpHost;
 import org.apache.http.client.CredentialsProvider;
 import org.apache.http.client.config.RequestConfig;
+import org.apache.http.conn.routing.HttpRoutePlanner;
+import org.apache.http.impl.client.CloseableHttpClient;
 import org.apache.http.impl.client.HttpClientBuilder;
 import org.apache.http.impl.client.HttpClients;
 import org.apache.http.impl.client.WinHttpClients;
 import org.apache.http.impl.conn.DefaultProxyRoutePlanner;
+import org.apache.http.impl.conn.DefaultRoutePlanner;
+import org.apache.http.impl.conn.DefaultSchemePortResolver;
+import org.apache.http.impl.conn.SystemDefaultRoutePlanner;
+import org.apache.http.protocol.HttpRequestExecutor;
+import org.kpax.winfoom.annotation.ProxySessionScope;
 import org.kpax.winfoom.config.SystemConfig;
+import org.kpax.winfoom.util.InputOutputs;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
 import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.core.annotation.Order;
 import org.springframework.stereotype.Component;
 
+import java.net.ProxySelector;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
 /**
  * A factory for {@link HttpClientBuilder} for different proxy types.
+ * <p>The built {@link CloseableHttpClient} instances are cached per {@link ProxyInfo},
+ * since they are thread safe and share the connection managers of {@link ConnectionPoolingManager}.
+ * The cache lives as long as the proxy session.
  * <p><b>Note:</b> The {@link HttpClientBuilder} class is not thread safe.
  *
  * @author Eugen Covaci {@literal eugen.covaci.q@gmail.com}
  * Created on 4/10/2020
  */
+@Order(1)
+@ProxySessionScope
 @Component
-class HttpClientBuilderFactory {
+class HttpClientBuilderFactory implements AutoCloseable {
+
+    private final Logger logger = LoggerFactory.getLogger(HttpClientBuilderFactory.class);
 
     @Autowired
     private SystemConfig systemConfig;
@@ -42,6 +64,50 @@ class HttpClientBuilderFactory {
     @Autowired
     private ConnectionPoolingManager connectionPoolingManager;
 
+    /**
+     * The ready-made clients, per proxy.
+     */
+    private final Map<ProxyInfo, CloseableHttpClient> httpClients = new ConcurrentHashMap<>();
+
+    /**
+     * The route planners of the HTTP proxy and direct clients, per proxy.
+     */
+    private final Map<ProxyInfo, HttpRoutePlanner> routePlanners = new ConcurrentHashMap<>();
+
+    /**
+     * Get the {@link CloseableHttpClient} for the requested proxy, building it on first use.
+     * <p>The returned client is shared, so it must not be closed by the caller.
+     *
+     * @param proxyInfo the proxy.
+     * @return the cached {@link CloseableHttpClient} instance for the requested proxy.
+     */
+    CloseableHttpClient getHttpClient(ProxyInfo proxyInfo) {
+        return httpClients.computeIfAbsent(proxyInfo, key -> {
+            logger.debug("Build HTTP client for {}", key);
+            return createClientBuilder(key).build();
+        });
+    }
+
+    /**
+     * Get the route planner used by the HTTP proxy or direct client for the requested proxy,
+     * so that the caller computes the same routes as the client's connection manager.
+     *
+     * @param proxyInfo the HTTP or direct proxy.
+     * @return the route planner.
+     */
+    HttpRoutePlanner getRoutePlanner(ProxyInfo proxyInfo) {
+        return routePlanners.computeIfAbsent(proxyInfo, key -> {
+            if (key.getType().isHttp()) {
+                return new DefaultProxyRoutePlanner(
+                        new HttpHost(key.getProxyHost().getHostName(), key.getProxyHost().getPort()));
+            } else if (systemConfig.isUseSystemProperties()) {
+                return new SystemDefaultRoutePlanner(DefaultSchemePortResolver.INSTANCE, ProxySelector.getDefault());
+            } else {
+                return new DefaultRoutePlanner(DefaultSchemePortResolver.INSTANCE);
+            }
+        });
+    }
+
     /**
      * Create a new instance of {@link HttpClientBuilder} according to the requested proxy.
      *
@@ -54,7 +120,7 @@ class HttpClientBuilderFactory {
         } else if (proxyInfo.getType().isHttp()) {
             return createHttpClientBuilder(proxyInfo);
         } else {
-            return createDirectClientBuilder();
+            return createDirectClientBuilder(proxyInfo);
         }
     }
 
@@ -73,7 +139,8 @@ class HttpClientBuilderFactory {
                 .setConnectionManager(connectionPoolingManager.getHttpConnectionManager())
                 .setConnectionManagerShared(true)
                 .setDefaultRequestConfig(requestConfig)
-                .setRoutePlanner(new DefaultProxyRoutePlanner(requestConfig.getProxy()))
+                .setRoutePlanner(getRoutePlanner(proxyInfo))
+                .setRequestExecutor(new HttpRequestExecutor(systemConfig.getExpectContinueWaitTimeout()))
                 .disableAutomaticRetries()
                 .disableRedirectHandling()
                 .disableCookieManagement();
@@ -87,15 +154,18 @@ class HttpClientBuilderFactory {
     /**
      * For no proxy case.
      *
+     * @param proxyInfo the direct proxy.
      * @return a pre-configured {@link HttpClientBuilder} instance for direct connections (no proxy).
      */
-    private HttpClientBuilder createDirectClientBuilder() {
+    private HttpClientBuilder createDirectClientBuilder(ProxyInfo proxyInfo) {
         HttpClientBuilder builder = HttpClients.custom()
                 .setConnectionManager(connectionPoolingManager.getHttpConnectionManager())
                 .setConnectionManagerShared(true)
+                .setRoutePlanner(getRoutePlanner(proxyInfo))
                 .setDefaultRequestConfig(systemConfig.applyConfig(RequestConfig.custom())
                         .setCircularRedirectsAllowed(true)
                         .build())
+                .setRequestExecutor(new HttpRequestExecutor(systemConfig.getExpectContinueWaitTimeout()))
                 .disableAutomaticRetries()
                 .disableRedirectHandling()
                 .disableCookieManagement();
@@ -121,6 +191,7 @@ class HttpClientBuilderFactory {
                         .setCircularRedirectsAllowed(true)
                         .build())
                 .setConnectionManagerShared(true)
+                .setRequestExecutor(new HttpRequestExecutor(systemConfig.getExpectContinueWaitTimeout()))
                 .disableAutomaticRetries()
                 .disableRedirectHandling()
                 .disableCookieManagement();
@@ -131,5 +202,14 @@ class HttpClientBuilderFactory {
         return builder;
     }
 
+    @Override
+    public void close() {
+        logger.debug("Close the cached HTTP clients");
+
+        // The connection managers are shared, so they are not closed along with the clients
+        httpClients.values().forEach(InputOutputs::close);
+        httpClients.clear();
+        routePlanners.clear();
+    }
 
 }
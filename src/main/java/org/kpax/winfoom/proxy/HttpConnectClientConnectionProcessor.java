@@ -17,7 +17,6 @@ import org.apache.http.HttpException;
 import org.apache.http.HttpHost;
 import org.apache.http.RequestLine;
 import org.apache.http.impl.execchain.TunnelRefusedException;
-import org.kpax.winfoom.util.InputOutputs;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.springframework.beans.factory.annotation.Autowired;
@@ -37,10 +36,10 @@ class HttpConnectClientConnectionProcessor implements ClientConnectionProcessor
     private final Logger logger = LoggerFactory.getLogger(HttpConnectClientConnectionProcessor.class);
 
     @Autowired
-    private ProxyContext proxyContext;
+    private TunnelConnection tunnelConnection;
 
     @Autowired
-    private TunnelConnection tunnelConnection;
+    private TunnelRelay tunnelRelay;
 
     @Override
     public void process(final ClientConnection clientConnection, final ProxyInfo proxyInfo)
@@ -50,7 +49,8 @@ class HttpConnectClientConnectionProcessor implements ClientConnectionProcessor
         HttpHost target = HttpHost.create(requestLine.getUri());
         HttpHost proxy = new HttpHost(proxyInfo.getProxyHost().getHostName(), proxyInfo.getProxyHost().getPort());
 
-        try (Tunnel tunnel = tunnelConnection.open(proxy, target, requestLine.getProtocolVersion())) {
+        try (Tunnel tunnel = tunnelConnection.open(proxy, target, requestLine.getProtocolVersion(),
+                clientConnection.getRequestTiming())) {
             try {
                 // Handle the tunnel response
                 logger.debug("Write status line");
@@ -64,12 +64,7 @@ class HttpConnectClientConnectionProcessor implements ClientConnectionProcessor
 
                 // The proxy facade mediates the full duplex communication
                 // between the client and the remote proxy.
-                // This usually ends on connection reset, timeout or any other error
-                InputOutputs.duplex(proxyContext.executorService(),
-                        tunnel.getInputStream(),
-                        tunnel.getOutputStream(),
-                        clientConnection.getInputStream(),
-                        clientConnection.getOutputStream());
+                tunnelRelay.relay(clientConnection, tunnel.getConnection().getSocket());
 
             } catch (Exception e) {
                 logger.debug("Error on handling CONNECT response", e);
@@ -23,9 +23,14 @@ import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.core.annotation.Order;
 import org.springframework.stereotype.Component;
 
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.SequenceInputStream;
+import java.net.InetSocketAddress;
 import java.net.ServerSocket;
 import java.net.Socket;
 import java.net.SocketException;
+import java.nio.channels.ServerSocketChannel;
 
 /**
  * The local proxy server.
@@ -52,8 +57,13 @@ class LocalProxyServer implements AutoCloseable {
     @Autowired
     private ClientConnectionHandler clientConnectionHandler;
 
+    @Autowired
+    private AdmissionController admissionController;
+
     private ServerSocket serverSocket;
 
+    private SelectorServerEngine selectorServerEngine;
+
     /**
      * Start the local proxy server.
      * <p>This means:
@@ -62,7 +72,11 @@ class LocalProxyServer implements AutoCloseable {
      * <li>When a connection arrives, it delegates the handling to the {@link ClientConnectionHandler}, on a new
      * thread.</li>
      * </ul>
-     * The proxy settings are saved after the local proxy server successfully starts.
+     * When the {@link SystemConfig.ServerEngine#SELECTOR} engine is configured, the connections are accepted
+     * by a {@link SelectorServerEngine} instead, and delegated only when the request head is available.
+     * <p>Between two requests, a persistent connection does not hold any connection permit. It waits for
+     * the next request on the {@link SelectorServerEngine}, if configured, or on a thread of the {@link ProxyContext}.
+     * <p>The proxy settings are saved after the local proxy server successfully starts.
      *
      * @throws IllegalStateException if the server had been started.
      * @throws Exception
@@ -71,38 +85,11 @@ class LocalProxyServer implements AutoCloseable {
         logger.info("Start local proxy server with userConfig {}", proxyConfig);
 
         try {
-            serverSocket = new ServerSocket(proxyConfig.getLocalPort(),
-                    systemConfig.getServerSocketBacklog());
-            proxyContext.executorService().execute(() -> {
-                while (true) {
-                    try {
-                        Socket socket = serverSocket.accept();
-                        socket.setSoTimeout(systemConfig.getSocketSoTimeout() * 1000);
-                        proxyContext.executorService().execute(() -> {
-                            try {
-                                clientConnectionHandler.handleConnection(socket);
-                            } catch (Exception e) {
-                                logger.debug("Error on handling connection", e);
-                            } finally {
-                                InputOutputs.close(socket);
-                            }
-                        });
-                    } catch (SocketException e) {
-
-                        // The ServerSocket has been closed, exit the while loop
-                        if (StringUtils.startsWithIgnoreCase(e.getMessage(), "Socket is closed")) {
-                            break;
-                        }
-
-                        // Get this whenever stop the server socket.
-                        if (!StringUtils.startsWithIgnoreCase(e.getMessage(), "Interrupted function call")) {
-                            logger.debug("Socket error on getting connection", e);
-                        }
-                    } catch (Exception e) {
-                        logger.debug("Generic error on getting connection", e);
-                    }
-                }
-            });
+            if (systemConfig.getServerEngine().isSelector()) {
+                startSelectorEngine();
+            } else {
+                startBlockingEngine();
+            }
 
             try {
                 // Save the user properties
@@ -119,14 +106,138 @@ class LocalProxyServer implements AutoCloseable {
         }
     }
 
+    private void startBlockingEngine() throws IOException {
+        // The accepted sockets are backed by channels, so the tunnels can be relayed by a ChannelRelay
+        ServerSocketChannel serverChannel = ServerSocketChannel.open();
+        serverSocket = serverChannel.socket();
+        serverSocket.bind(new InetSocketAddress(proxyConfig.getLocalPort()),
+                systemConfig.getServerSocketBacklog());
+        proxyContext.executorService().execute(() -> {
+            while (true) {
+                try {
+                    Socket socket = serverSocket.accept();
+                    socket.setSoTimeout(systemConfig.getSocketSoTimeout() * 1000);
+                    dispatch(new PersistentConnection(socket, socket.getInputStream(), 0));
+                } catch (SocketException e) {
+
+                    // The ServerSocket has been closed, exit the while loop
+                    if (serverSocket.isClosed()
+                            || StringUtils.startsWithIgnoreCase(e.getMessage(), "Socket is closed")) {
+                        break;
+                    }
+
+                    // Get this whenever stop the server socket.
+                    if (!StringUtils.startsWithIgnoreCase(e.getMessage(), "Interrupted function call")) {
+                        logger.debug("Socket error on getting connection", e);
+                    }
+                } catch (Exception e) {
+                    if (serverSocket.isClosed()) {
+                        break;
+                    }
+                    logger.debug("Generic error on getting connection", e);
+                }
+            }
+        });
+    }
+
+    private void startSelectorEngine() throws IOException {
+        selectorServerEngine = new SelectorServerEngine(proxyConfig.getLocalPort(),
+                systemConfig.getServerSocketBacklog(),
+                systemConfig.getServerSelectorIoThreads(),
+                systemConfig.getSocketSoTimeout() * 1000L,
+                (socket, requestHead) -> dispatch(socket, requestHead, 0));
+        selectorServerEngine.start();
+    }
+
+    /**
+     * Dispatch a connection whose request head has been read by the {@link SelectorServerEngine}.
+     *
+     * @param socket          the client's socket.
+     * @param requestHead     the bytes already read from the socket.
+     * @param handledRequests the number of requests already handled on this connection.
+     */
+    private void dispatch(final Socket socket, final byte[] requestHead, final int handledRequests) {
+        try {
+            socket.setSoTimeout(systemConfig.getSocketSoTimeout() * 1000);
+            dispatch(new PersistentConnection(socket,
+                    new SequenceInputStream(new ByteArrayInputStream(requestHead), socket.getInputStream()),
+                    handledRequests));
+        } catch (Exception e) {
+            logger.debug("Error on dispatching connection", e);
+            InputOutputs.close(socket);
+        }
+    }
+
+    /**
+     * Delegate the handling of the connection's next request to the {@link ClientConnectionHandler},
+     * on a new thread, once the {@link AdmissionController} allows it.
+     *
+     * @param connection the client's connection.
+     */
+    private void dispatch(final PersistentConnection connection) {
+        Socket socket = connection.getSocket();
+        admissionController.admit(connection, () -> {
+            boolean keepAlive = false;
+            try {
+                keepAlive = clientConnectionHandler.handleNextRequest(connection);
+                if (keepAlive) {
+                    admissionController.releaseConnection(connection);
+                    awaitNextRequest(connection);
+                }
+            } catch (Exception e) {
+                keepAlive = false;
+                logger.debug("Error on handling connection", e);
+            } finally {
+                if (!keepAlive) {
+                    InputOutputs.close(socket);
+                }
+            }
+        });
+    }
+
+    /**
+     * Hand over a persistent connection, to wait for its next request
+     * once the current thread has released the connection permit.
+     *
+     * @param connection the client's connection.
+     * @throws IOException
+     */
+    private void awaitNextRequest(final PersistentConnection connection) throws IOException {
+        if (connection.hasBufferedData()) {
+
+            // A pipelined request
+            dispatch(connection);
+        } else if (selectorServerEngine != null) {
+            selectorServerEngine.resume(connection.getSocket().getChannel(),
+                    systemConfig.getKeepAliveIdleTimeout() * 1000L,
+                    (socket, requestHead) -> dispatch(socket, requestHead, connection.getHandledRequests()));
+        } else {
+            proxyContext.executorService().execute(() -> {
+                try {
+                    if (clientConnectionHandler.awaitNextRequest(connection)) {
+                        dispatch(connection);
+                        return;
+                    }
+                } catch (Exception e) {
+                    logger.debug("Error on waiting for the next request", e);
+                }
+                InputOutputs.close(connection.getSocket());
+            });
+        }
+    }
+
     @Override
     public synchronized void close() {
         logger.info("Now stop running the local proxy server");
-        try {
-            logger.info("Close the server socket");
-            serverSocket.close();
-        } catch (Exception e) {
-            logger.warn("Error on closing server socket", e);
+        if (selectorServerEngine != null) {
+            selectorServerEngine.close();
+        } else {
+            try {
+                logger.info("Close the server socket");
+                serverSocket.close();
+            } catch (Exception e) {
+                logger.warn("Error on closing server socket", e);
+            }
         }
     }
 
@@ -0,0 +1,194 @@
+/*
+ * Copyright (c) 2020. Eugen Covaci
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and limitations under the License.
+ */
+
+package org.kpax.winfoom.proxy;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+import org.apache.http.HttpStatus;
+import org.apache.http.pool.PoolStats;
+import org.kpax.winfoom.config.SystemConfig;
+import org.kpax.winfoom.util.HttpExchanges;
+import org.kpax.winfoom.util.Histogram;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.context.annotation.Lazy;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.util.Map;
+
+/**
+ * A read-only HTTP endpoint, bound to the loopback interface, that serves the {@link ProxyMetrics}
+ * in the Prometheus text format on {@code GET /metrics}.
+ * <p>Disabled unless the {@code metrics.http.port} setting is positive.
+ * Never lazily initialized, since no other bean depends on it.
+ *
+ * @author Eugen Covaci
+ */
+@Lazy(false)
+@Component
+class MetricsEndpoint {
+
+    static final String PATH = "/metrics";
+
+    private static final String CONTENT_TYPE = "text/plain; version=0.0.4; charset=utf-8";
+
+    private final Logger logger = LoggerFactory.getLogger(MetricsEndpoint.class);
+
+    @Autowired
+    private SystemConfig systemConfig;
+
+    @Autowired
+    private ProxyMetrics proxyMetrics;
+
+    private HttpServer httpServer;
+
+    @PostConstruct
+    private void init() {
+        if (systemConfig.getMetricsHttpPort() > 0) {
+            try {
+                httpServer = HttpServer.create(
+                        new InetSocketAddress(InetAddress.getLoopbackAddress(), systemConfig.getMetricsHttpPort()), 0);
+                httpServer.createContext(PATH, this::handle);
+                httpServer.start();
+                logger.info("Metrics endpoint listening on http://{}:{}{}",
+                        InetAddress.getLoopbackAddress().getHostAddress(), getPort(), PATH);
+            } catch (IOException e) {
+                logger.warn("Cannot start the metrics endpoint", e);
+            }
+        }
+    }
+
+    @PreDestroy
+    private void destroy() {
+        if (httpServer != null) {
+            httpServer.stop(0);
+        }
+    }
+
+    /**
+     * @return the bound port, {@code -1} if the endpoint is not running.
+     */
+    int getPort() {
+        return httpServer != null ? httpServer.getAddress().getPort() : -1;
+    }
+
+    private void handle(HttpExchange exchange) throws IOException {
+        try {
+            if (!"GET".equalsIgnoreCase(exchange.getRequestMethod())) {
+                exchange.getResponseHeaders().set("Allow", "GET");
+                HttpExchanges.respond(exchange, HttpStatus.SC_METHOD_NOT_ALLOWED, CONTENT_TYPE, "Use GET\n");
+                return;
+            }
+            if (!PATH.equals(exchange.getRequestURI().getPath())) {
+                HttpExchanges.respond(exchange, HttpStatus.SC_NOT_FOUND, CONTENT_TYPE, "Not found\n");
+                return;
+            }
+            HttpExchanges.respond(exchange, HttpStatus.SC_OK, CONTENT_TYPE, toText());
+        } catch (Exception e) {
+            logger.debug("Error on serving the metrics", e);
+            throw e;
+        } finally {
+            exchange.close();
+        }
+    }
+
+    /**
+     * @return the metrics in the Prometheus text exposition format.
+     */
+    String toText() {
+        StringBuilder builder = new StringBuilder();
+        proxyMetrics.getTotalConnectionsByProcessor().forEach((processor, value) ->
+                sample(builder, "winfoom_requests_total", "processor", processor, value));
+        proxyMetrics.getActiveConnectionsByProcessor().forEach((processor, value) ->
+                sample(builder, "winfoom_requests_active", "processor", processor, value));
+        proxyMetrics.getRequestDurationMillisByProcessor().forEach((processor, snapshot) ->
+                summary(builder, "winfoom_request_duration_millis", "processor", processor, snapshot));
+
+        sample(builder, "winfoom_admission_active_connections", proxyMetrics.getAdmissionActiveConnections());
+        sample(builder, "winfoom_admission_pending_connections", proxyMetrics.getAdmissionPendingConnections());
+        sample(builder, "winfoom_admission_rejected_connections", proxyMetrics.getAdmissionRejectedConnections());
+        sample(builder, "winfoom_admission_active_tunnels", proxyMetrics.getAdmissionActiveTunnels());
+        sample(builder, "winfoom_admission_pending_tunnels", proxyMetrics.getAdmissionPendingTunnels());
+        sample(builder, "winfoom_admission_rejected_tunnels", proxyMetrics.getAdmissionRejectedTunnels());
+        sample(builder, "winfoom_tunnel_socket_pool_total", "result", "hit", proxyMetrics.getTunnelSocketPoolHits());
+        sample(builder, "winfoom_tunnel_socket_pool_total", "result", "miss", proxyMetrics.getTunnelSocketPoolMisses());
+        sample(builder, "winfoom_tunnel_socket_pool_idle", proxyMetrics.getTunnelSocketPoolIdle());
+
+        sample(builder, "winfoom_tunnels_total", proxyMetrics.getTotalTunnels());
+        sample(builder, "winfoom_tunnels_open", proxyMetrics.getOpenTunnels());
+        summary(builder, "winfoom_tunnel_duration_millis", null, null, proxyMetrics.getTunnelDurationMillis());
+        sample(builder, "winfoom_tunnel_bytes_total", "direction", "upstream", proxyMetrics.getTunnelBytesToUpstream());
+        sample(builder, "winfoom_tunnel_bytes_total", "direction", "client", proxyMetrics.getTunnelBytesToClient());
+        sample(builder, "winfoom_relay_bytes_total", "buffer", "direct", proxyMetrics.getRelayDirectBytes());
+        sample(builder, "winfoom_relay_bytes_total", "buffer", "heap", proxyMetrics.getRelayHeapBytes());
+        sample(builder, "winfoom_request_body_memory_bytes", proxyMetrics.getRequestBodyMemoryBytes());
+        sample(builder, "winfoom_request_body_spills_total", proxyMetrics.getRequestBodySpills());
+        sample(builder, "winfoom_request_bodies_total", "mode", "streamed", proxyMetrics.getStreamedRequestBodies());
+        sample(builder, "winfoom_request_bodies_total", "mode", "buffered", proxyMetrics.getBufferedRequestBodies());
+        sample(builder, "winfoom_request_body_stream_failures_total", proxyMetrics.getRequestBodyStreamFailures());
+
+        proxyMetrics.getPhaseDurationMicros().forEach((phase, snapshot) ->
+                summary(builder, "winfoom_request_phase_micros", "phase", phase, snapshot));
+        sample(builder, "winfoom_slow_requests_total", proxyMetrics.getSlowRequests());
+
+        sample(builder, "winfoom_pac_cache_hits_total", proxyMetrics.getPacCacheHits());
+        sample(builder, "winfoom_pac_cache_misses_total", proxyMetrics.getPacCacheMisses());
+        sample(builder, "winfoom_dns_cache_hits_total", proxyMetrics.getDnsCacheHits());
+        sample(builder, "winfoom_dns_cache_misses_total", proxyMetrics.getDnsCacheMisses());
+
+        sample(builder, "winfoom_blacklist_events_total", proxyMetrics.getBlacklistEvents());
+        sample(builder, "winfoom_blacklist_skips_total", proxyMetrics.getBlacklistSkips());
+        sample(builder, "winfoom_blacklisted_proxies", proxyMetrics.getBlacklistedProxies());
+
+        for (Map.Entry<String, PoolStats> entry : proxyMetrics.getConnectionPools().entrySet()) {
+            PoolStats poolStats = entry.getValue();
+            sample(builder, "winfoom_pool_leased", "pool", entry.getKey(), poolStats.getLeased());
+            sample(builder, "winfoom_pool_available", "pool", entry.getKey(), poolStats.getAvailable());
+            sample(builder, "winfoom_pool_pending", "pool", entry.getKey(), poolStats.getPending());
+            sample(builder, "winfoom_pool_max", "pool", entry.getKey(), poolStats.getMax());
+        }
+
+        proxyMetrics.getErrorResponses().forEach((statusCode, value) ->
+                sample(builder, "winfoom_error_responses_total", "status", String.valueOf(statusCode), value));
+        return builder.toString();
+    }
+
+    private static void sample(StringBuilder builder, String name, Number value) {
+        builder.append(name).append(' ').append(value).append('\n');
+    }
+
+    private static void sample(StringBuilder builder, String name, String label, String labelValue, Number value) {
+        builder.append(name).append('{').append(label).append("=\"").append(labelValue).append("\"} ")
+                .append(value).append('\n');
+    }
+
+    private static void summary(StringBuilder builder, String name, String label, String labelValue,
+                                Histogram.Snapshot snapshot) {
+        String labels = label != null ? label + "=\"" + labelValue + "\"," : "";
+        builder.append(name).append('{').append(labels).append("quantile=\"0.5\"} ").append(snapshot.getP50()).append('\n');
+        builder.append(name).append('{').append(labels).append("quantile=\"0.9\"} ").append(snapshot.getP90()).append('\n');
+        builder.append(name).append('{').append(labels).append("quantile=\"0.99\"} ").append(snapshot.getP99()).append('\n');
+        String suffixLabels = label != null ? "{" + label + "=\"" + labelValue + "\"}" : "";
+        builder.append(name).append("_max").append(suffixLabels).append(' ').append(snapshot.getMax()).append('\n');
+        builder.append(name).append("_count").append(suffixLabels).append(' ').append(snapshot.getCount()).append('\n');
+        builder.append(name).append("_sum").append(suffixLabels).append(' ')
+                .append(Math.round(snapshot.getMean() * snapshot.getCount())).append('\n');
+    }
+
+}
@@ -14,22 +14,29 @@ package org.kpax.winfoom.proxy;
 
 import org.apache.commons.lang3.StringUtils;
 import org.apache.http.*;
+import org.apache.http.client.ClientProtocolException;
+import org.apache.http.client.NonRepeatableRequestException;
 import org.apache.http.client.methods.CloseableHttpResponse;
 import org.apache.http.client.protocol.HttpClientContext;
+import org.apache.http.conn.routing.HttpRoute;
 import org.apache.http.entity.AbstractHttpEntity;
 import org.apache.http.entity.InputStreamEntity;
 import org.apache.http.impl.client.CloseableHttpClient;
+import org.apache.http.impl.io.*;
 import org.apache.http.protocol.HTTP;
 import org.apache.http.util.EntityUtils;
 import org.kpax.winfoom.config.ProxyConfig;
 import org.kpax.winfoom.config.SystemConfig;
 import org.kpax.winfoom.util.HttpUtils;
+import org.kpax.winfoom.util.InputOutputs;
+import org.kpax.winfoom.util.Throwables;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.stereotype.Component;
 
 import java.io.IOException;
+import java.io.InputStream;
 import java.net.InetSocketAddress;
 import java.net.URI;
 import java.util.Arrays;
@@ -62,6 +69,15 @@ class NonConnectClientConnectionProcessor implements ClientConnectionProcessor {
     private static final List<String> DEFAULT_BANNED_HEADERS = Collections.singletonList(
             HttpHeaders.PROXY_AUTHORIZATION);
 
+    /**
+     * These hop-by-hop headers are not forwarded to the client,
+     * the persistence of the client's connection being decided locally.
+     */
+    private static final List<String> CONNECTION_HEADERS = Arrays.asList(
+            HTTP.CONN_DIRECTIVE,
+            HttpUtils.PROXY_CONNECTION,
+            HTTP.CONN_KEEP_ALIVE);
+
     private final Logger logger = LoggerFactory.getLogger(NonConnectClientConnectionProcessor.class);
 
     @Autowired
@@ -73,32 +89,88 @@ class NonConnectClientConnectionProcessor implements ClientConnectionProcessor {
     @Autowired
     private HttpClientBuilderFactory clientBuilderFactory;
 
+    @Autowired
+    private ProxyContext proxyContext;
+
+    @Autowired
+    private RouteAuthTracker routeAuthTracker;
+
+    @Autowired
+    private ProxyMetrics proxyMetrics;
+
     @Override
     public void process(final ClientConnection clientConnection, final ProxyInfo proxyInfo)
             throws IOException {
         logger.debug("Handle non-connect request");
         HttpRequest request = clientConnection.getHttpRequest();
 
+        URI uri = clientConnection.getRequestUri();
+        HttpHost target = new HttpHost(uri.getHost(),
+                uri.getPort(),
+                uri.getScheme());
+
+        HttpClientContext context = HttpClientContext.create();
+        HttpRoute route = null;
+        if (proxyInfo.getType().isSocks()) {
+            InetSocketAddress proxySocketAddress = new InetSocketAddress(proxyInfo.getProxyHost().getHostName(),
+                    proxyInfo.getProxyHost().getPort());
+            context.setAttribute(HttpUtils.SOCKS_ADDRESS, proxySocketAddress);
+        } else {
+
+            // The same route as the one the client will lease a connection for
+            try {
+                route = clientBuilderFactory.getRoutePlanner(proxyInfo).determineRoute(target, request, context);
+            } catch (HttpException e) {
+                throw new ClientProtocolException(e);
+            }
+            routeAuthTracker.prepareContext(route, context);
+        }
+
         if (!clientConnection.isRequestPrepared()) {
 
             // Prepare the request for execution
             AbstractHttpEntity entity;
             if (request instanceof HttpEntityEnclosingRequest) {
                 logger.debug("Set enclosing entity");
-                if (proxyConfig.getProxyType().isSocks()) {
+                if (HttpUtils.isExpectContinue(request)) {
+
+                    // The Expect header is forwarded, so the body is read
+                    // only after the upstream's 100 Continue, when it is
+                    // unlikely to be sent again: no need for caching.
+                    logger.debug("Expect 100-continue, stream the body once");
+                    entity = new ExpectContinueHttpEntity(clientConnection,
+                            createRequestContent(clientConnection.getSessionInputBuffer(), request),
+                            request);
+                } else if (proxyConfig.getProxyType().isSocks()
+                        || (route != null && isStreamable(request) && routeAuthTracker.isRetryUnlikely(route))) {
 
                     // There is no need for caching since
-                    // SOCKS communication is one step only
-                    entity = new InputStreamEntity(clientConnection.getInputStream(),
-                            HttpUtils.getContentLength(request),
-                            HttpUtils.getContentType(request));
+                    // SOCKS communication is one step only,
+                    // or no authentication challenge is expected on this route.
+                    // Read the body through the session input buffer, delimited
+                    // like the client sent it, so the next request stays intact.
+                    // On close, the stream consumes whatever is left of the body.
+                    InputStream content = createRequestContent(clientConnection.getSessionInputBuffer(), request);
+                    clientConnection.registerAutoCloseable(content);
+                    entity = new InputStreamEntity(content, HttpUtils.getContentLength(request));
+                    entity.setContentType(request.getFirstHeader(HttpHeaders.CONTENT_TYPE));
+                    entity.setContentEncoding(request.getFirstHeader(HttpHeaders.CONTENT_ENCODING));
+                    if (route != null) {
+
+                        // An unexpected challenge then comes before the body is sent,
+                        // so HttpClient can still answer it with the unread body
+                        logger.debug("Stream the body after the upstream's 100 Continue");
+                        request.setHeader(HTTP.EXPECT_DIRECTIVE, HTTP.EXPECT_CONTINUE);
+                    }
                 } else {
                     entity = new RepeatableHttpEntity(clientConnection.getSessionInputBuffer(),
                             proxyConfig.getTempDirectory(),
+                            proxyContext.requestBodyBufferPool(),
                             request,
                             systemConfig.getInternalBufferLength());
                     clientConnection.registerAutoCloseable((RepeatableHttpEntity) entity);
                 }
+                proxyMetrics.requestBodyPrepared(entity instanceof RepeatableHttpEntity);
 
                 Header transferEncoding = request.getFirstHeader(HTTP.TRANSFER_ENCODING);
                 if (transferEncoding != null
@@ -148,34 +220,89 @@ class NonConnectClientConnectionProcessor implements ClientConnectionProcessor {
             clientConnection.requestPrepared();
         }
 
-        try (CloseableHttpClient httpClient = clientBuilderFactory.createClientBuilder(proxyInfo).build()) {
-
-            URI uri = clientConnection.getRequestUri();
-            HttpHost target = new HttpHost(uri.getHost(),
-                    uri.getPort(),
-                    uri.getScheme());
+        // The client is cached per proxy and shared, do not close it
+        CloseableHttpClient httpClient = clientBuilderFactory.getHttpClient(proxyInfo);
 
-            HttpClientContext context = HttpClientContext.create();
-            if (proxyInfo.getType().isSocks()) {
-                InetSocketAddress proxySocketAddress = new InetSocketAddress(proxyInfo.getProxyHost().getHostName(),
-                        proxyInfo.getProxyHost().getPort());
-                context.setAttribute(HttpUtils.SOCKS_ADDRESS, proxySocketAddress);
+        // Execute the request
+        RequestTiming requestTiming = clientConnection.getRequestTiming();
+        long executeStart = System.nanoTime();
+        try (CloseableHttpResponse response = httpClient.execute(target, request, context)) {
+            long transferStart = requestTiming.record(RequestTiming.Phase.FIRST_BYTE, executeStart);
+            if (route != null) {
+                routeAuthTracker.exchangeDone(route, context);
             }
 
-            // Execute the request
-            try (CloseableHttpResponse response = httpClient.execute(target, request, context)) {
+            // If the request body has not been entirely read, the connection cannot be reused
+            if (request instanceof HttpEntityEnclosingRequest) {
+                HttpEntity requestEntity = ((HttpEntityEnclosingRequest) request).getEntity();
+                if ((requestEntity instanceof RepeatableHttpEntity || requestEntity instanceof ExpectContinueHttpEntity)
+                        && requestEntity.isStreaming() && requestEntity.getContentLength() != 0) {
+                    logger.debug("Request body not consumed, disable keep-alive");
+                    clientConnection.disableKeepAlive();
+                }
+            }
 
-                try {
-                    handleResponse(response, clientConnection);
-                } catch (Exception e) {
-                    logger.debug("Error on handling non CONNECT response", e);
+            try {
+                handleResponse(response, clientConnection);
+            } catch (Exception e) {
+                logger.debug("Error on handling non CONNECT response", e);
+            } finally {
+                requestTiming.record(RequestTiming.Phase.TRANSFER, transferStart);
+            }
+        } catch (ClientProtocolException e) {
+            if (Throwables.getRootCause(e, NonRepeatableRequestException.class).isPresent()) {
+
+                // The upstream ignored the expectation and challenged after the streamed body:
+                // nothing to replay, let the client retry
+                logger.debug("Authentication challenge after streaming the request body", e);
+                if (route != null) {
+                    routeAuthTracker.challengedWhileStreaming(route);
                 }
+                proxyMetrics.requestBodyStreamFailed();
+                clientConnection.writeErrorResponse(clientConnection.getRequestLine().getProtocolVersion(),
+                        HttpStatus.SC_SERVICE_UNAVAILABLE,
+                        "Proxy authentication required, retry the request");
+            } else {
+                throw e;
             }
         }
     }
 
+    /**
+     * A body is streamed with the {@code Expect: 100-continue} header,
+     * which HTTP/1.0 servers must ignore.
+     *
+     * @param request the HTTP request.
+     * @return {@code true} iff the request's version supports the expectation.
+     */
+    private static boolean isStreamable(final HttpRequest request) {
+        return request.getRequestLine().getProtocolVersion().greaterEquals(HttpVersion.HTTP_1_1);
+    }
+
+    /**
+     * Create the request body's stream, reading from the session input buffer.
+     *
+     * @param sessionInputBuffer the client's session input buffer.
+     * @param request            the HTTP request.
+     * @return the request body's stream.
+     */
+    private InputStream createRequestContent(final SessionInputBufferImpl sessionInputBuffer,
+                                             final HttpRequest request) {
+        if (HttpUtils.isChunked(request)) {
+            return new ChunkedInputStream(sessionInputBuffer);
+        }
+        long contentLength = HttpUtils.getContentLength(request);
+        if (contentLength >= 0) {
+            return new ContentLengthInputStream(sessionInputBuffer, contentLength);
+        }
+        return new IdentityInputStream(sessionInputBuffer);
+    }
+
     /**
      * Handles the Http response for non-CONNECT requests.
+     * <p>If the client's connection is persistent, the response must be self-delimited:
+     * when the response's length is unknown, the body is re-chunked for HTTP/1.1 clients,
+     * otherwise the connection is closed after the response.
      *
      * @param response The Http response.
      */
@@ -185,12 +312,26 @@ class NonConnectClientConnectionProcessor implements ClientConnectionProcessor {
         logger.debug("Write status line: {}", statusLine);
         clientConnection.write(statusLine);
 
-        clientConnection.write(HttpUtils.createViaHeader(clientConnection.getRequestLine().getProtocolVersion(),
+        ProtocolVersion clientVersion = clientConnection.getRequestLine().getProtocolVersion();
+        clientConnection.write(HttpUtils.createViaHeader(clientVersion,
                 response.getFirstHeader(HttpHeaders.VIA)));
         response.removeHeaders(HttpHeaders.VIA);
 
+        HttpEntity entity = response.getEntity();
+        boolean rechunk = false;
+        if (clientConnection.isKeepAlive() && entity != null && entity.getContentLength() < 0) {
+            if (clientVersion.lessEquals(HttpVersion.HTTP_1_0)) {
+                logger.debug("Unknown response length for HTTP/1.0 client, disable keep-alive");
+                clientConnection.disableKeepAlive();
+            } else {
+                rechunk = true;
+            }
+        }
+
         for (Header header : response.getAllHeaders()) {
-            if (HttpHeaders.TRANSFER_ENCODING.equals(header.getName())) {
+            if (CONNECTION_HEADERS.stream().anyMatch(name -> name.equalsIgnoreCase(header.getName()))) {
+                logger.debug("Skip response header: {}", header);
+            } else if (HttpHeaders.TRANSFER_ENCODING.equals(header.getName())) {
 
                 // Strip 'chunked' from Transfer-Encoding header's value
                 // since the response is not chunked
@@ -209,20 +350,48 @@ class NonConnectClientConnectionProcessor implements ClientConnectionProcessor {
             }
         }
 
+        if (rechunk) {
+            logger.debug("Re-chunk the response");
+            clientConnection.write(HttpUtils.createHttpHeader(HttpHeaders.TRANSFER_ENCODING, HTTP.CHUNK_CODING));
+        }
+
+        if (clientConnection.isKeepAlive()) {
+            if (clientVersion.lessEquals(HttpVersion.HTTP_1_0)) {
+                clientConnection.write(HttpUtils.createHttpHeader(HTTP.CONN_DIRECTIVE, HTTP.CONN_KEEP_ALIVE));
+            }
+        } else {
+            clientConnection.write(HttpUtils.createHttpHeader(HTTP.CONN_DIRECTIVE, HTTP.CONN_CLOSE));
+        }
+
         // Empty line marking the end
         // of header's section
         clientConnection.writeln();
 
         // Now write the request body, if any
-        HttpEntity entity = response.getEntity();
         if (entity != null) {
             logger.debug("Start writing entity content");
-            entity.writeTo(clientConnection.getOutputStream());
+            if (rechunk) {
+                SessionOutputBufferImpl outputBuffer = new SessionOutputBufferImpl(new HttpTransportMetricsImpl(),
+                        InputOutputs.DEFAULT_BUFFER_SIZE);
+                outputBuffer.bind(clientConnection.getOutputStream());
+
+                // Closing it writes the last chunk, without closing the client's stream
+                try (ChunkedOutputStream chunkedOutputStream =
+                             new ChunkedOutputStream(InputOutputs.DEFAULT_BUFFER_SIZE, outputBuffer)) {
+                    entity.writeTo(chunkedOutputStream);
+                }
+            } else {
+                entity.writeTo(clientConnection.getOutputStream());
+            }
             logger.debug("End writing entity content");
 
             // Make sure the entity is fully consumed
             EntityUtils.consume(entity);
         }
 
+        if (clientConnection.isKeepAlive()) {
+            clientConnection.responseFramed();
+        }
+
     }
 }
@@ -0,0 +1,106 @@
+/*
+ * Copyright (c) 2020. Eugen Covaci
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and limitations under the License.
+ */
+
+package org.kpax.winfoom.proxy;
+
+import org.apache.http.impl.io.SessionInputBufferImpl;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.Socket;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * A client's connection, possibly kept open for several requests (HTTP keep-alive).
+ * <p>It holds what the successive requests share: the input stream, the session input buffer
+ * and the number of the requests already handled. It also tells whether the current request
+ * holds a connection permit of the {@link AdmissionController}.
+ *
+ * @author Eugen Covaci
+ */
+final class PersistentConnection {
+
+    private final Socket socket;
+
+    private final InputStream inputStream;
+
+    private final SessionInputBufferImpl sessionInputBuffer;
+
+    private int handledRequests;
+
+    private final AtomicBoolean connectionPermit = new AtomicBoolean();
+
+    /**
+     * Constructor.
+     *
+     * @param socket          the client's socket.
+     * @param inputStream     the socket's input stream, possibly preceded by the already read request head.
+     * @param handledRequests the number of requests already handled on this connection.
+     */
+    PersistentConnection(Socket socket, InputStream inputStream, int handledRequests) {
+        this.socket = socket;
+        this.inputStream = inputStream;
+        this.sessionInputBuffer = ClientConnection.createSessionInputBuffer(inputStream);
+        this.handledRequests = handledRequests;
+    }
+
+    Socket getSocket() {
+        return socket;
+    }
+
+    InputStream getInputStream() {
+        return inputStream;
+    }
+
+    SessionInputBufferImpl getSessionInputBuffer() {
+        return sessionInputBuffer;
+    }
+
+    /**
+     * @return the number of requests handled on this connection.
+     */
+    int getHandledRequests() {
+        return handledRequests;
+    }
+
+    /**
+     * Count a new request.
+     *
+     * @return the number of requests handled on this connection, including the new one.
+     */
+    int requestStarted() {
+        return ++handledRequests;
+    }
+
+    void connectionPermitAcquired() {
+        connectionPermit.set(true);
+    }
+
+    /**
+     * Give up the connection permit, if held.
+     *
+     * @return {@code true} iff the connection permit was held, so it must be released.
+     */
+    boolean releaseConnectionPermit() {
+        return connectionPermit.compareAndSet(true, false);
+    }
+
+    /**
+     * @return {@code true} iff some bytes of the next request have already been read from the socket
+     * (a pipelined request).
+     * @throws IOException
+     */
+    boolean hasBufferedData() throws IOException {
+        return sessionInputBuffer.hasBufferedData() || inputStream.available() > 0;
+    }
+
+}
@@ -0,0 +1,172 @@
+/*
+ * Copyright (c) 2020. Eugen Covaci
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and limitations under the License.
+ */
+
+package org.kpax.winfoom.proxy;
+
+import org.apache.http.Header;
+import org.apache.http.HttpHost;
+import org.apache.http.HttpRequest;
+import org.apache.http.auth.*;
+import org.apache.http.client.CredentialsProvider;
+import org.apache.http.client.config.AuthSchemes;
+import org.apache.http.client.protocol.HttpClientContext;
+import org.apache.http.config.Lookup;
+import org.apache.http.message.BasicHeader;
+import org.apache.http.protocol.HttpContext;
+import org.kpax.winfoom.annotation.ProxySessionScope;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.stereotype.Component;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Remember, for each upstream proxy, the authentication scheme negotiated by the last successful CONNECT,
+ * so that the next CONNECT requests authenticate preemptively, saving the {@code 407} round trip.
+ * <ul>
+ * <li>For Basic and Digest, the scheme itself is kept, with the realm or the nonce, and reused by all the tunnels:
+ * the Digest nonce count keeps increasing. The credentials are looked up each time.</li>
+ * <li>For the connection based schemes (SPNEGO, NTLM), only the preference is kept: each tunnel starts
+ * the handshake with a new instance, without waiting for the challenge. The proxy's challenge
+ * then carries on this handshake.</li>
+ * </ul>
+ * <p>When the preemptive authentication is rejected, the caller falls back to the challenge flow.
+ * <p>The state lives as long as the proxy session.
+ *
+ * @author Eugen Covaci
+ */
+@ProxySessionScope
+@Component
+class ProxyAuthCache {
+
+    private final Logger logger = LoggerFactory.getLogger(ProxyAuthCache.class);
+
+    private final Map<HttpHost, CachedAuth> cachedAuths = new ConcurrentHashMap<>();
+
+    /**
+     * Authenticate the CONNECT request preemptively, if an authentication scheme is known for this proxy.
+     * <p>A Basic/Digest authorization header is added to the request right away,
+     * while a connection based scheme is put into the authentication state, to be carried on by the
+     * {@link org.apache.http.impl.auth.HttpAuthenticator}.
+     *
+     * @param proxy     the proxy.
+     * @param connect   the CONNECT request.
+     * @param authState the tunnel's proxy authentication state.
+     * @param context   the tunnel's context, providing the credentials and the schemes registry.
+     * @return {@code true} iff the request has been authenticated preemptively.
+     */
+    boolean preempt(HttpHost proxy, HttpRequest connect, AuthState authState, HttpContext context) {
+        CachedAuth cachedAuth = cachedAuths.get(proxy);
+        if (cachedAuth == null) {
+            return false;
+        }
+        ContextAwareAuthScheme authScheme = cachedAuth.authScheme;
+        HttpClientContext clientContext = HttpClientContext.adapt(context);
+        CredentialsProvider credentialsProvider = clientContext.getCredentialsProvider();
+        Credentials credentials = credentialsProvider.getCredentials(new AuthScope(proxy,
+                authScheme != null ? authScheme.getRealm() : AuthScope.ANY_REALM,
+                cachedAuth.schemeName));
+        if (credentials == null) {
+            logger.debug("No credentials for the cached {} authentication", cachedAuth.schemeName);
+            return false;
+        }
+
+        if (authScheme == null) {
+            Lookup<AuthSchemeProvider> authSchemeRegistry = clientContext.getAuthSchemeRegistry();
+            AuthSchemeProvider authSchemeProvider = authSchemeRegistry.lookup(cachedAuth.schemeName);
+            if (authSchemeProvider == null) {
+                return false;
+            }
+            AuthScheme connectionScheme = authSchemeProvider.create(context);
+            try {
+                // Start the handshake as if challenged without a token,
+                // so that the scheme sends its initial message
+                connectionScheme.processChallenge(new BasicHeader(AUTH.PROXY_AUTH, cachedAuth.schemeName));
+            } catch (MalformedChallengeException e) {
+                logger.debug("Cannot start the handshake preemptively", e);
+                return false;
+            }
+            authState.update(connectionScheme, credentials);
+
+            // The handshake is under way, the proxy's challenge carries it on
+            authState.setState(AuthProtocolState.CHALLENGED);
+        } else {
+
+            // Shared by the concurrent tunnels: the Digest scheme
+            // keeps track of the nonce count
+            try {
+                Header header;
+                synchronized (authScheme) {
+                    header = authScheme.authenticate(credentials, connect, context);
+                }
+                connect.addHeader(header);
+            } catch (AuthenticationException e) {
+                logger.debug("Cannot authenticate preemptively", e);
+                return false;
+            }
+        }
+        logger.debug("Preemptive {} authentication for proxy {}", cachedAuth.schemeName, proxy);
+        return true;
+    }
+
+    /**
+     * Remember the authentication scheme of an established tunnel.
+     *
+     * @param proxy     the proxy.
+     * @param authState the tunnel's proxy authentication state.
+     */
+    void authSucceeded(HttpHost proxy, AuthState authState) {
+        AuthScheme authScheme = authState.getAuthScheme();
+        if (authState.getState() == AuthProtocolState.SUCCESS && authScheme != null && isCachable(authScheme)) {
+            logger.debug("Cache {} authentication for proxy {}", authScheme.getSchemeName(), proxy);
+            cachedAuths.put(proxy, new CachedAuth(authScheme));
+        }
+    }
+
+    /**
+     * Forget the authentication scheme of a proxy.
+     *
+     * @param proxy the proxy.
+     */
+    void invalidate(HttpHost proxy) {
+        cachedAuths.remove(proxy);
+    }
+
+    /**
+     * The Basic and Digest schemes of HttpClient are context aware,
+     * so the deprecated {@link AuthScheme#authenticate(Credentials, HttpRequest)} is never needed.
+     */
+    private static boolean isCachable(AuthScheme authScheme) {
+        String schemeName = authScheme.getSchemeName();
+        return authScheme.isConnectionBased()
+                || (authScheme instanceof ContextAwareAuthScheme
+                && (schemeName.equalsIgnoreCase(AuthSchemes.BASIC) || schemeName.equalsIgnoreCase(AuthSchemes.DIGEST)));
+    }
+
+    private static class CachedAuth {
+
+        private final String schemeName;
+
+        /**
+         * The reusable scheme, {@code null} for a connection based one.
+         */
+        private final ContextAwareAuthScheme authScheme;
+
+        private CachedAuth(AuthScheme authScheme) {
+            this.schemeName = authScheme.getSchemeName();
+            this.authScheme = authScheme.isConnectionBased() ? null : (ContextAwareAuthScheme) authScheme;
+        }
+
+    }
+
+}
@@ -14,7 +14,12 @@ package org.kpax.winfoom.proxy;
 
 import org.kpax.winfoom.config.ProxyConfig;
 import org.kpax.winfoom.config.ScopeConfiguration;
+import org.kpax.winfoom.config.SystemConfig;
+import org.kpax.winfoom.pac.DnsResolverCache;
 import org.kpax.winfoom.pac.net.IpAddresses;
+import org.kpax.winfoom.util.BoundedBufferPool;
+import org.kpax.winfoom.util.DirectBufferPool;
+import org.kpax.winfoom.util.VirtualThreads;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.springframework.beans.factory.annotation.Autowired;
@@ -23,6 +28,7 @@ import org.springframework.util.Assert;
 
 import javax.annotation.PostConstruct;
 import java.net.Authenticator;
+import java.util.Optional;
 import java.util.concurrent.*;
 import java.util.concurrent.atomic.AtomicInteger;
 
@@ -35,7 +41,7 @@ import java.util.concurrent.atomic.AtomicInteger;
 @Component
 public class ProxyContext implements AutoCloseable {
 
-    private final Logger logger = LoggerFactory.getLogger(ProxyContext.class);
+    private static final Logger logger = LoggerFactory.getLogger(ProxyContext.class);
 
     private final ProxyLifecycle proxyLifecycle = new ProxyLifecycle();
 
@@ -48,19 +54,57 @@ public class ProxyContext implements AutoCloseable {
     @Autowired
     private LocalProxyServer localProxyServer;
 
-    private ThreadPoolExecutor threadPool;
+    @Autowired
+    private SystemConfig systemConfig;
+
+    @Autowired
+    private DnsResolverCache dnsResolverCache;
+
+    private ExecutorService threadPool;
+
+    private DirectBufferPool relayBufferPool;
+
+    private BoundedBufferPool requestBodyBufferPool;
 
     @PostConstruct
     private void init() {
         logger.info("Create thread pool");
 
-        this.threadPool = new ThreadPoolExecutor(0, Integer.MAX_VALUE,
-                60L, TimeUnit.SECONDS, new SynchronousQueue<>(),
-                new DefaultThreadFactory());
+        this.threadPool = createExecutorService(systemConfig.getExecutorThreadType());
+        this.relayBufferPool = new DirectBufferPool(systemConfig.getRelayBufferSize(),
+                systemConfig.getRelayBufferMaxTotalSize());
+        this.requestBodyBufferPool = new BoundedBufferPool(systemConfig.getRequestBodyChunkSize(),
+                systemConfig.getRequestBodyMemoryBudget(),
+                systemConfig.isRequestBodyDirectBuffers());
 
         logger.info("Done proxy context's initialization");
     }
 
+    /**
+     * Create the {@link ExecutorService} for the requested thread type.
+     * <p>For {@link SystemConfig.ThreadType#VIRTUAL}, a new virtual thread is started for each task.
+     * If the JVM does not support virtual threads, it falls back to platform threads.
+     * <p>The pool itself is not bounded: the {@link AdmissionController} bounds the connections and the tunnels,
+     * while the tasks it does not control (the accept loop, the relay's second direction, the background top ups)
+     * must never be rejected.
+     *
+     * @param threadType the thread type.
+     * @return the new {@link ExecutorService} instance.
+     */
+    static ExecutorService createExecutorService(SystemConfig.ThreadType threadType) {
+        if (threadType.isVirtual()) {
+            Optional<ExecutorService> virtualExecutor = VirtualThreads.newThreadPerTaskExecutor("virtual-thread-");
+            if (virtualExecutor.isPresent()) {
+                logger.info("Use virtual threads");
+                return virtualExecutor.get();
+            }
+            logger.warn("Virtual threads are not supported by this JVM, fall back to platform threads");
+        }
+        return new ThreadPoolExecutor(0, Integer.MAX_VALUE,
+                60L, TimeUnit.SECONDS, new SynchronousQueue<>(),
+                new DefaultThreadFactory());
+    }
+
     /**
      * Begin a proxy session by calling {@link  ProxyLifecycle#start()} .
      *
@@ -91,6 +135,20 @@ public class ProxyContext implements AutoCloseable {
         return threadPool;
     }
 
+    /**
+     * @return the direct buffers pool used for relaying the tunnels.
+     */
+    public DirectBufferPool relayBufferPool() {
+        return relayBufferPool;
+    }
+
+    /**
+     * @return the buffers pool caching the request bodies in memory, within the memory budget.
+     */
+    public BoundedBufferPool requestBodyBufferPool() {
+        return requestBodyBufferPool;
+    }
+
     @Override
     public void close() {
         logger.info("Close all context's resources");
@@ -174,6 +232,7 @@ public class ProxyContext implements AutoCloseable {
                 // Though unlikely, we take no chances.
                 IpAddresses.allPrimaryAddresses.reset();
                 IpAddresses.primaryIPv4Address.reset();
+                dnsResolverCache.clear();
             }
         }
 
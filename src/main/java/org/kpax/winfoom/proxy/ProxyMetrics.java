@@ -0,0 +1,473 @@
+/*
+ * Copyright (c) 2020. Eugen Covaci
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and limitations under the License.
+ */
+
+package org.kpax.winfoom.proxy;
+
+import org.apache.http.pool.PoolStats;
+import org.kpax.winfoom.config.ScopeConfiguration;
+import org.kpax.winfoom.config.SystemConfig;
+import org.kpax.winfoom.pac.DefaultPacScriptEvaluator;
+import org.kpax.winfoom.pac.DnsResolverCache;
+import org.kpax.winfoom.util.ChannelRelay;
+import org.kpax.winfoom.util.Histogram;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.context.annotation.Lazy;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+import javax.management.InstanceAlreadyExistsException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+import java.lang.management.ManagementFactory;
+import java.util.Collections;
+import java.util.EnumMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Optional;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * The runtime metrics of the local proxy.
+ * <p>Recording is cheap enough for the request path: striped counters ({@link LongAdder})
+ * and lock-free {@link Histogram}s, no lock and no allocation once a processor has been seen.
+ * The proxy session values (admission, pools, blacklist, PAC cache) are read from their owners on demand,
+ * only if they have already been created within the current proxy session: reading a metric never creates any bean.
+ * <p>The metrics are exposed through JMX and, optionally, a local HTTP endpoint (see {@link MetricsEndpoint}).
+ * Never lazily initialized, so the MBean is registered at startup rather than on the first request.
+ *
+ * @author Eugen Covaci
+ */
+@Lazy(false)
+@Component
+class ProxyMetrics implements ProxyMetricsMXBean {
+
+    private final Logger logger = LoggerFactory.getLogger(ProxyMetrics.class);
+
+    @Autowired
+    private SystemConfig systemConfig;
+
+    @Autowired
+    private ProxyContext proxyContext;
+
+    @Autowired
+    private ScopeConfiguration scopeConfiguration;
+
+    @Autowired
+    private DnsResolverCache dnsResolverCache;
+
+    /**
+     * Key = the processor's class.
+     */
+    private final Map<Class<?>, ProcessorMetrics> processorMetrics = new ConcurrentHashMap<>();
+
+    private final LongAdder totalTunnels = new LongAdder();
+
+    private final LongAdder openTunnels = new LongAdder();
+
+    private final Histogram tunnelDurations = new Histogram();
+
+    private final LongAdder tunnelBytesToUpstream = new LongAdder();
+
+    private final LongAdder tunnelBytesToClient = new LongAdder();
+
+    /**
+     * The duration of each request phase (microseconds).
+     */
+    private final Map<RequestTiming.Phase, Histogram> phaseDurations = new EnumMap<>(RequestTiming.Phase.class);
+
+    private final LongAdder slowRequests = new LongAdder();
+
+    private final LongAdder streamedRequestBodies = new LongAdder();
+
+    private final LongAdder bufferedRequestBodies = new LongAdder();
+
+    private final LongAdder requestBodyStreamFailures = new LongAdder();
+
+    private final LongAdder blacklistEvents = new LongAdder();
+
+    private final LongAdder blacklistSkips = new LongAdder();
+
+    /**
+     * Key = the status code.
+     */
+    private final Map<Integer, LongAdder> errorResponses = new ConcurrentHashMap<>();
+
+    private ObjectName objectName;
+
+    ProxyMetrics() {
+        for (RequestTiming.Phase phase : RequestTiming.Phase.values()) {
+            phaseDurations.put(phase, new Histogram());
+        }
+    }
+
+    @PostConstruct
+    private void init() {
+        if (systemConfig.isMetricsJmxEnabled()) {
+            try {
+                MBeanServer mBeanServer = ManagementFactory.getPlatformMBeanServer();
+                ObjectName name = new ObjectName(OBJECT_NAME);
+                mBeanServer.registerMBean(this, name);
+                objectName = name;
+                logger.info("Proxy metrics registered as {}", OBJECT_NAME);
+            } catch (InstanceAlreadyExistsException e) {
+                logger.warn("Proxy metrics already registered as {}", OBJECT_NAME);
+            } catch (Exception e) {
+                logger.warn("Cannot register the proxy metrics", e);
+            }
+        }
+    }
+
+    @PreDestroy
+    private void destroy() {
+        if (objectName != null) {
+            try {
+                ManagementFactory.getPlatformMBeanServer().unregisterMBean(objectName);
+            } catch (Exception e) {
+                logger.debug("Cannot unregister the proxy metrics", e);
+            }
+        }
+    }
+
+    /**
+     * Record the start of a request's processing.
+     *
+     * @param processor the processor handling the request.
+     */
+    void requestStarted(ClientConnectionProcessor processor) {
+        processorMetrics(processor).active.increment();
+    }
+
+    /**
+     * Record the end of a request's processing, whatever the outcome.
+     *
+     * @param processor      the processor that handled the request.
+     * @param durationNanos the processing duration (nanoseconds).
+     */
+    void requestEnded(ClientConnectionProcessor processor, long durationNanos) {
+        ProcessorMetrics metrics = processorMetrics(processor);
+        metrics.active.decrement();
+        metrics.total.increment();
+        metrics.durations.record(TimeUnit.NANOSECONDS.toMillis(durationNanos));
+    }
+
+    /**
+     * Record an established CONNECT tunnel, before relaying it.
+     */
+    void tunnelOpened() {
+        totalTunnels.increment();
+        openTunnels.increment();
+    }
+
+    /**
+     * Record a closed CONNECT tunnel.
+     *
+     * @param durationNanos   the relaying duration (nanoseconds).
+     * @param bytesToUpstream the bytes relayed from the client to the upstream side.
+     * @param bytesToClient   the bytes relayed from the upstream side to the client.
+     */
+    void tunnelClosed(long durationNanos, long bytesToUpstream, long bytesToClient) {
+        openTunnels.decrement();
+        tunnelDurations.record(TimeUnit.NANOSECONDS.toMillis(durationNanos));
+        tunnelBytesToUpstream.add(bytesToUpstream);
+        tunnelBytesToClient.add(bytesToClient);
+    }
+
+    /**
+     * Record the latency breakdown of a handled request.
+     *
+     * @param requestTiming the request's timing.
+     * @param slow          whether the request is above the slow request threshold.
+     */
+    void requestTimed(RequestTiming requestTiming, boolean slow) {
+        phaseDurations.forEach((phase, histogram) -> {
+            long duration = requestTiming.getDuration(phase);
+            if (duration >= 0) {
+                histogram.record(TimeUnit.NANOSECONDS.toMicros(duration));
+            }
+        });
+        if (slow) {
+            slowRequests.increment();
+        }
+    }
+
+    /**
+     * Record a request body about to be sent upstream.
+     *
+     * @param buffered whether the body is cached for a possible authentication retry.
+     */
+    void requestBodyPrepared(boolean buffered) {
+        if (buffered) {
+            bufferedRequestBodies.increment();
+        } else {
+            streamedRequestBodies.increment();
+        }
+    }
+
+    /**
+     * Record an authentication challenge received after a streamed request body.
+     */
+    void requestBodyStreamFailed() {
+        requestBodyStreamFailures.increment();
+    }
+
+    void proxyBlacklisted() {
+        blacklistEvents.increment();
+    }
+
+    void blacklistedProxySkipped() {
+        blacklistSkips.increment();
+    }
+
+    /**
+     * Record the status of a response sent to a client, only the error ones are counted.
+     *
+     * @param statusCode the response's status code, zero if no response has been sent.
+     */
+    void responseSent(int statusCode) {
+        if (statusCode >= 400) {
+            errorResponses.computeIfAbsent(statusCode, key -> new LongAdder()).increment();
+        }
+    }
+
+    private ProcessorMetrics processorMetrics(ClientConnectionProcessor processor) {
+        return processorMetrics.computeIfAbsent(processor.getClass(), ProcessorMetrics::new);
+    }
+
+    @Override
+    public Map<String, Long> getTotalConnectionsByProcessor() {
+        Map<String, Long> values = new TreeMap<>();
+        processorMetrics.values().forEach(metrics -> values.put(metrics.name, metrics.total.sum()));
+        return values;
+    }
+
+    @Override
+    public Map<String, Long> getActiveConnectionsByProcessor() {
+        Map<String, Long> values = new TreeMap<>();
+        processorMetrics.values().forEach(metrics -> values.put(metrics.name, metrics.active.sum()));
+        return values;
+    }
+
+    @Override
+    public Map<String, Histogram.Snapshot> getRequestDurationMillisByProcessor() {
+        Map<String, Histogram.Snapshot> values = new TreeMap<>();
+        processorMetrics.values().forEach(metrics -> values.put(metrics.name, metrics.durations.snapshot()));
+        return values;
+    }
+
+    @Override
+    public int getAdmissionActiveConnections() {
+        return sessionBean(AdmissionController.class).map(AdmissionController::getActiveConnections).orElse(0);
+    }
+
+    @Override
+    public int getAdmissionPendingConnections() {
+        return sessionBean(AdmissionController.class).map(AdmissionController::getPendingConnections).orElse(0);
+    }
+
+    @Override
+    public long getAdmissionRejectedConnections() {
+        return sessionBean(AdmissionController.class).map(AdmissionController::getRejectedConnections).orElse(0L);
+    }
+
+    @Override
+    public int getAdmissionActiveTunnels() {
+        return sessionBean(AdmissionController.class).map(AdmissionController::getActiveTunnels).orElse(0);
+    }
+
+    @Override
+    public int getAdmissionPendingTunnels() {
+        return sessionBean(AdmissionController.class).map(AdmissionController::getPendingTunnels).orElse(0);
+    }
+
+    @Override
+    public long getAdmissionRejectedTunnels() {
+        return sessionBean(AdmissionController.class).map(AdmissionController::getRejectedTunnels).orElse(0L);
+    }
+
+    @Override
+    public long getTunnelSocketPoolHits() {
+        return sessionBean(UpstreamSocketPool.class).map(UpstreamSocketPool::getHits).orElse(0L);
+    }
+
+    @Override
+    public long getTunnelSocketPoolMisses() {
+        return sessionBean(UpstreamSocketPool.class).map(UpstreamSocketPool::getMisses).orElse(0L);
+    }
+
+    @Override
+    public int getTunnelSocketPoolIdle() {
+        return sessionBean(UpstreamSocketPool.class).map(UpstreamSocketPool::getIdleSockets).orElse(0);
+    }
+
+    @Override
+    public long getTotalTunnels() {
+        return totalTunnels.sum();
+    }
+
+    @Override
+    public long getOpenTunnels() {
+        return openTunnels.sum();
+    }
+
+    @Override
+    public Histogram.Snapshot getTunnelDurationMillis() {
+        return tunnelDurations.snapshot();
+    }
+
+    @Override
+    public long getTunnelBytesToUpstream() {
+        return tunnelBytesToUpstream.sum();
+    }
+
+    @Override
+    public long getTunnelBytesToClient() {
+        return tunnelBytesToClient.sum();
+    }
+
+    @Override
+    public long getRelayDirectBytes() {
+        return ChannelRelay.getDirectBytes();
+    }
+
+    @Override
+    public long getRelayHeapBytes() {
+        return ChannelRelay.getHeapBytes();
+    }
+
+    @Override
+    public long getRequestBodyMemoryBytes() {
+        return proxyContext.requestBodyBufferPool().getUsedSize();
+    }
+
+    @Override
+    public long getRequestBodySpills() {
+        return RequestBodyStore.getSpills();
+    }
+
+    @Override
+    public long getStreamedRequestBodies() {
+        return streamedRequestBodies.sum();
+    }
+
+    @Override
+    public long getBufferedRequestBodies() {
+        return bufferedRequestBodies.sum();
+    }
+
+    @Override
+    public long getRequestBodyStreamFailures() {
+        return requestBodyStreamFailures.sum();
+    }
+
+    @Override
+    public Histogram.Snapshot getPacEvaluationMicros() {
+        return phaseDurations.get(RequestTiming.Phase.PAC).snapshot();
+    }
+
+    @Override
+    public Map<String, Histogram.Snapshot> getPhaseDurationMicros() {
+        Map<String, Histogram.Snapshot> values = new LinkedHashMap<>();
+        phaseDurations.forEach((phase, histogram) -> values.put(phase.getLabel(), histogram.snapshot()));
+        return values;
+    }
+
+    @Override
+    public long getSlowRequests() {
+        return slowRequests.sum();
+    }
+
+    @Override
+    public long getPacCacheHits() {
+        return sessionBean(DefaultPacScriptEvaluator.class).map(DefaultPacScriptEvaluator::getCacheHits).orElse(0L);
+    }
+
+    @Override
+    public long getPacCacheMisses() {
+        return sessionBean(DefaultPacScriptEvaluator.class).map(DefaultPacScriptEvaluator::getCacheMisses).orElse(0L);
+    }
+
+    /**
+     * Get a proxy session bean, without creating it.
+     *
+     * @param type the bean's type.
+     * @return the bean, if already created within the current proxy session.
+     */
+    private <T> Optional<T> sessionBean(Class<T> type) {
+        return scopeConfiguration.getProxySessionScope().getIfCreated(type);
+    }
+
+    @Override
+    public long getDnsCacheHits() {
+        return dnsResolverCache.getHits();
+    }
+
+    @Override
+    public long getDnsCacheMisses() {
+        return dnsResolverCache.getMisses();
+    }
+
+    @Override
+    public long getBlacklistEvents() {
+        return blacklistEvents.sum();
+    }
+
+    @Override
+    public long getBlacklistSkips() {
+        return blacklistSkips.sum();
+    }
+
+    @Override
+    public int getBlacklistedProxies() {
+        return sessionBean(ProxyBlacklist.class).map(proxyBlacklist -> proxyBlacklist.getActiveBlacklistMap().size())
+                .orElse(0);
+    }
+
+    @Override
+    public Map<String, PoolStats> getConnectionPools() {
+        return sessionBean(ConnectionPoolingManager.class).map(ConnectionPoolingManager::getPoolStats)
+                .orElse(Collections.emptyMap());
+    }
+
+    @Override
+    public Map<Integer, Long> getErrorResponses() {
+        Map<Integer, Long> values = new TreeMap<>();
+        errorResponses.forEach((statusCode, count) -> values.put(statusCode, count.sum()));
+        return values;
+    }
+
+    /**
+     * The metrics of a {@link ClientConnectionProcessor} implementation.
+     */
+    private static class ProcessorMetrics {
+
+        private final String name;
+
+        private final LongAdder active = new LongAdder();
+
+        private final LongAdder total = new LongAdder();
+
+        private final Histogram durations = new Histogram();
+
+        ProcessorMetrics(Class<?> processorClass) {
+            String simpleName = processorClass.getSimpleName();
+            int suffixIndex = simpleName.indexOf(ClientConnectionProcessor.class.getSimpleName());
+            this.name = suffixIndex > 0 ? simpleName.substring(0, suffixIndex) : simpleName;
+        }
+    }
+
+}
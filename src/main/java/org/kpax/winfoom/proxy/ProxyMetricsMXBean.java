@@ -0,0 +1,182 @@
+/*
+ * Copyright (c) 2020. Eugen Covaci
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and limitations under the License.
+ */
+
+package org.kpax.winfoom.proxy;
+
+import org.apache.http.pool.PoolStats;
+import org.kpax.winfoom.util.Histogram;
+
+import java.util.Map;
+
+/**
+ * The read-only JMX view of the {@link ProxyMetrics}.
+ * <p>The counters are cumulated since the application's start,
+ * while the admission, pool and blacklist values are those of the current proxy session.
+ *
+ * @author Eugen Covaci
+ */
+public interface ProxyMetricsMXBean {
+
+    /**
+     * The JMX object name.
+     */
+    String OBJECT_NAME = "org.kpax.winfoom:type=ProxyMetrics";
+
+    /**
+     * @return the number of handled requests, by connection processor.
+     */
+    Map<String, Long> getTotalConnectionsByProcessor();
+
+    /**
+     * @return the number of requests being handled, by connection processor.
+     */
+    Map<String, Long> getActiveConnectionsByProcessor();
+
+    /**
+     * @return the request handling durations (milliseconds), by connection processor.
+     */
+    Map<String, Histogram.Snapshot> getRequestDurationMillisByProcessor();
+
+    int getAdmissionActiveConnections();
+
+    int getAdmissionPendingConnections();
+
+    long getAdmissionRejectedConnections();
+
+    int getAdmissionActiveTunnels();
+
+    int getAdmissionPendingTunnels();
+
+    long getAdmissionRejectedTunnels();
+
+    /**
+     * @return the number of CONNECT requests served by an idle pooled socket during this proxy session.
+     */
+    long getTunnelSocketPoolHits();
+
+    /**
+     * @return the number of CONNECT requests that had to connect to the upstream proxy during this proxy session.
+     */
+    long getTunnelSocketPoolMisses();
+
+    /**
+     * @return the number of idle sockets connected to the upstream proxies.
+     */
+    int getTunnelSocketPoolIdle();
+
+    /**
+     * @return the number of established CONNECT tunnels.
+     */
+    long getTotalTunnels();
+
+    /**
+     * @return the number of CONNECT tunnels being relayed.
+     */
+    long getOpenTunnels();
+
+    /**
+     * @return the lifetime of the closed CONNECT tunnels (milliseconds).
+     */
+    Histogram.Snapshot getTunnelDurationMillis();
+
+    /**
+     * @return the number of bytes relayed from the clients to the upstream side of the tunnels.
+     * Only the tunnels relayed by a {@link org.kpax.winfoom.util.ChannelRelay} are counted.
+     */
+    long getTunnelBytesToUpstream();
+
+    /**
+     * @return the number of bytes relayed from the upstream side of the tunnels to the clients.
+     */
+    long getTunnelBytesToClient();
+
+    long getRelayDirectBytes();
+
+    long getRelayHeapBytes();
+
+    /**
+     * @return the total size of the request bodies currently cached in memory (bytes).
+     */
+    long getRequestBodyMemoryBytes();
+
+    /**
+     * @return the number of request bodies cached into a temporary file,
+     * for being larger than the internal buffer or for exceeding the memory budget.
+     */
+    long getRequestBodySpills();
+
+    /**
+     * @return the number of request bodies streamed upstream without caching.
+     */
+    long getStreamedRequestBodies();
+
+    /**
+     * @return the number of request bodies cached for a possible authentication retry.
+     */
+    long getBufferedRequestBodies();
+
+    /**
+     * @return the number of streamed request bodies that met an authentication challenge,
+     * the request failing since it could not be replayed.
+     */
+    long getRequestBodyStreamFailures();
+
+    /**
+     * @return the duration of the proxy auto-config evaluations, including the cached ones (microseconds).
+     */
+    Histogram.Snapshot getPacEvaluationMicros();
+
+    /**
+     * @return the duration of each request processing phase, like PAC evaluation, connect,
+     * tunnel handshake, time to first byte or transfer (microseconds).
+     */
+    Map<String, Histogram.Snapshot> getPhaseDurationMicros();
+
+    /**
+     * @return the number of requests above the slow request threshold.
+     */
+    long getSlowRequests();
+
+    long getPacCacheHits();
+
+    long getPacCacheMisses();
+
+    long getDnsCacheHits();
+
+    long getDnsCacheMisses();
+
+    /**
+     * @return the number of times a proxy failed to connect and has been blacklisted.
+     */
+    long getBlacklistEvents();
+
+    /**
+     * @return the number of times a blacklisted proxy has been skipped.
+     */
+    long getBlacklistSkips();
+
+    /**
+     * @return the number of currently blacklisted proxies.
+     */
+    int getBlacklistedProxies();
+
+    /**
+     * @return the leased, available and pending connections of each HTTP connection pool, by proxy type.
+     */
+    Map<String, PoolStats> getConnectionPools();
+
+    /**
+     * @return the number of error responses ({@code 4xx} and {@code 5xx}) sent to the clients, by status code.
+     */
+    Map<Integer, Long> getErrorResponses();
+
+}
@@ -20,6 +20,7 @@ import org.springframework.beans.factory.config.Scope;
 import org.springframework.core.annotation.AnnotationAwareOrderComparator;
 
 import java.util.Map;
+import java.util.Optional;
 import java.util.concurrent.ConcurrentHashMap;
 
 /**
@@ -74,6 +75,16 @@ public class ProxySessionScope implements Scope {
         return null;
     }
 
+    /**
+     * Get the instance of a proxySession bean, without creating it.
+     *
+     * @param type the bean's type.
+     * @param <T>  the bean's type.
+     * @return the instance, if already created within the current proxy session.
+     */
+    public <T> Optional<T> getIfCreated(Class<T> type) {
+        return scopedBeans.values().stream().filter(type::isInstance).map(type::cast).findFirst();
+    }
 
     void clear() {
         logger.debug("Clear the proxySession scope: found {} beans", scopedBeans.size());
@@ -17,19 +17,17 @@ import org.apache.http.HttpRequest;
 import org.apache.http.entity.AbstractHttpEntity;
 import org.apache.http.impl.io.ChunkedInputStream;
 import org.apache.http.impl.io.SessionInputBufferImpl;
+import org.kpax.winfoom.util.BoundedBufferPool;
 import org.kpax.winfoom.util.HttpUtils;
 import org.kpax.winfoom.util.InputOutputs;
 
 import java.io.*;
-import java.nio.ByteBuffer;
-import java.nio.channels.AsynchronousFileChannel;
-import java.nio.file.Files;
 import java.nio.file.Path;
-import java.nio.file.StandardOpenOption;
 
 /**
  * A special type of repeatable {@link AbstractHttpEntity}.
- * <p>The data is cached either internally or externally into a temporary file.
+ * <p>The data is cached into a {@link RequestBodyStore}: in memory, within the pool's budget,
+ * up to the internal buffer length, otherwise into a temporary file.
  *
  * @author Eugen Covaci {@literal eugen.covaci.q@gmail.com}
  * Created on 4/6/2020
@@ -44,31 +42,39 @@ class RepeatableHttpEntity extends AbstractHttpEntity implements Closeable {
     private final Path tempDirectory;
 
     /**
-     * The value of Content-Length header.
+     * The pool providing the in-memory chunks.
      */
-    private final long contentLength;
+    private final BoundedBufferPool bufferPool;
+
+    /**
+     * The maximum number of bytes cached in memory.
+     */
+    private final int internalBufferLength;
 
     /**
-     * Write into this buffer when contentLength < maximum buffered.
+     * The value of Content-Length header.
      */
-    private byte[] bufferedBytes;
+    private final long contentLength;
 
     /**
-     * The temporary file containing the cached data.
+     * The cached data, {@code null} until entirely read.
      */
-    private Path tempFilepath;
+    private RequestBodyStore bodyStore;
 
     /**
-     * Whether it reads from {@link SessionInputBufferImpl} or from the temp cache file.
+     * Whether it reads from {@link SessionInputBufferImpl} or from the cache.
      */
     private boolean streaming = true;
 
     public RepeatableHttpEntity(final SessionInputBufferImpl inputBuffer,
                                 final Path tempDirectory,
+                                final BoundedBufferPool bufferPool,
                                 final HttpRequest request,
                                 final int internalBufferLength) throws IOException {
         this.inputBuffer = inputBuffer;
         this.tempDirectory = tempDirectory;
+        this.bufferPool = bufferPool;
+        this.internalBufferLength = internalBufferLength;
         this.contentType = request.getFirstHeader(HttpHeaders.CONTENT_TYPE);
         this.contentEncoding = request.getFirstHeader(HttpHeaders.CONTENT_ENCODING);
         this.contentLength = HttpUtils.getContentLength(request);
@@ -79,26 +85,30 @@ class RepeatableHttpEntity extends AbstractHttpEntity implements Closeable {
     }
 
     /**
-     * Read from the {@link SessionInputBufferImpl} into an internal buffer,
+     * Read from the {@link SessionInputBufferImpl} into the cache,
      * no more than {@link #contentLength} bytes.
      *
      * @throws IOException
      */
     private void writeToBuffer() throws IOException {
-        int length;
-        byte[] buffer = new byte[OUTPUT_BUFFER_SIZE];
-        ByteArrayOutputStream out = new ByteArrayOutputStream();
-        long remaining = contentLength;
-        while (remaining > 0 && InputOutputs.isAvailable(inputBuffer)) {
-            length = inputBuffer.read(buffer, 0, (int) Math.min(OUTPUT_BUFFER_SIZE, remaining));
-            if (length == -1) {
-                break;
+        RequestBodyStore store = new RequestBodyStore(bufferPool, tempDirectory, internalBufferLength);
+        try {
+            int length;
+            byte[] buffer = new byte[OUTPUT_BUFFER_SIZE];
+            long remaining = contentLength;
+            while (remaining > 0 && InputOutputs.isAvailable(inputBuffer)) {
+                length = inputBuffer.read(buffer, 0, (int) Math.min(OUTPUT_BUFFER_SIZE, remaining));
+                if (length == -1) {
+                    break;
+                }
+                store.write(buffer, 0, length);
+                remaining -= length;
             }
-            out.write(buffer, 0, length);
-            remaining -= length;
+        } catch (IOException e) {
+            store.close();
+            throw e;
         }
-        out.flush();
-        bufferedBytes = out.toByteArray();
+        bodyStore = store;
     }
 
     @Override
@@ -113,119 +123,93 @@ class RepeatableHttpEntity extends AbstractHttpEntity implements Closeable {
 
     @Override
     public InputStream getContent() throws IOException, UnsupportedOperationException {
-        if (bufferedBytes != null) {
-            return new ByteArrayInputStream(bufferedBytes);
+        if (bodyStore != null) {
+            return bodyStore.newInputStream();
         } else if (contentLength == 0) {
             return new ByteArrayInputStream(new byte[0]);
         } else {
-            if (streaming) {
-                return new InputStream() {
-                    @Override
-                    public int read() {
-                        throw new UnsupportedOperationException("Do not use it");
-                    }
+            return new InputStream() {
+                @Override
+                public int read() {
+                    throw new UnsupportedOperationException("Do not use it");
+                }
 
-                    @Override
-                    public int read(byte[] b, int off, int len) throws IOException {
-                        return inputBuffer.read(b, off, len);
-                    }
-                };
-            } else {
-                return Files.newInputStream(tempFilepath);
-            }
+                @Override
+                public int read(byte[] b, int off, int len) throws IOException {
+                    return inputBuffer.read(b, off, len);
+                }
+            };
         }
     }
 
+    /**
+     * On the first call, the body is streamed from the {@link SessionInputBufferImpl} and cached along the way,
+     * the output stream being flushed only at the end. The next calls replay the cache.
+     */
     @Override
     public void writeTo(OutputStream outStream) throws IOException {
-        if (bufferedBytes != null) {
-            outStream.write(bufferedBytes);
+        if (bodyStore != null) {
+            bodyStore.writeTo(outStream);
             outStream.flush();
         } else if (contentLength != 0) {
-            if (streaming) {
-                tempFilepath = tempDirectory.resolve(InputOutputs.generateCacheFilename());
-                try (AsynchronousFileChannel tempFileChannel
-                             = AsynchronousFileChannel.open(tempFilepath,
-                        StandardOpenOption.WRITE,
-                        StandardOpenOption.CREATE)) {
-                    byte[] buffer = new byte[OUTPUT_BUFFER_SIZE];
-                    long position = 0;
-
-                    if (contentLength < 0) {
-                        if (isChunked()) {
-                            ChunkedInputStream chunkedInputStream = new ChunkedInputStream(inputBuffer);
-
-                            int length;
-                            while ((length = chunkedInputStream.read(buffer)) > 0) {
-
-                                outStream.write(buffer, 0, length);
-                                outStream.flush();
-
-                                // Write to file
-                                tempFileChannel.write(ByteBuffer.wrap(buffer, 0, length), position);
-                                position += length;
-                            }
-                        } else {
-
-                            // consume until EOF
-                            int length;
-                            while (InputOutputs.isAvailable(inputBuffer)) {
-                                length = inputBuffer.read(buffer);
-                                if (length == -1) {
-                                    break;
-                                }
-                                outStream.write(buffer, 0, length);
-                                outStream.flush();
-
-                                // Write to file
-                                tempFileChannel.write(ByteBuffer.wrap(buffer, 0, length), position);
-                                position += length;
-                            }
+            RequestBodyStore store = new RequestBodyStore(bufferPool, tempDirectory, internalBufferLength);
+            try {
+                byte[] buffer = new byte[OUTPUT_BUFFER_SIZE];
+                int length;
+                if (contentLength < 0) {
+                    if (isChunked()) {
+                        ChunkedInputStream chunkedInputStream = new ChunkedInputStream(inputBuffer);
+                        while ((length = chunkedInputStream.read(buffer)) > 0) {
+                            outStream.write(buffer, 0, length);
+                            store.write(buffer, 0, length);
                         }
-
                     } else {
-                        int length;
-                        long remaining = contentLength;
 
-                        // consume no more than maxLength
-                        while (remaining > 0 && InputOutputs.isAvailable(inputBuffer)) {
-                            length = inputBuffer.read(buffer, 0, (int) Math.min(OUTPUT_BUFFER_SIZE, remaining));
+                        // consume until EOF
+                        while (InputOutputs.isAvailable(inputBuffer)) {
+                            length = inputBuffer.read(buffer);
                             if (length == -1) {
                                 break;
                             }
                             outStream.write(buffer, 0, length);
-                            outStream.flush();
-                            remaining -= length;
-
-                            // Write to temp file
-                            tempFileChannel.write(ByteBuffer.wrap(buffer, 0, length), position);
-                            position += length;
+                            store.write(buffer, 0, length);
                         }
                     }
+                } else {
+                    long remaining = contentLength;
+
+                    // consume no more than maxLength
+                    while (remaining > 0 && InputOutputs.isAvailable(inputBuffer)) {
+                        length = inputBuffer.read(buffer, 0, (int) Math.min(OUTPUT_BUFFER_SIZE, remaining));
+                        if (length == -1) {
+                            break;
+                        }
+                        outStream.write(buffer, 0, length);
+                        store.write(buffer, 0, length);
+                        remaining -= length;
+                    }
                 }
-                streaming = false;
-            } else {
-
-                //read from file
-                try (InputStream inputStream = Files.newInputStream(tempFilepath)) {
-                    inputStream.transferTo(outStream);
-                    outStream.flush();
-                }
+                outStream.flush();
+            } catch (IOException e) {
+                store.close();
+                throw e;
             }
+            bodyStore = store;
+            streaming = false;
         }
     }
 
     @Override
     public boolean isStreaming() {
-        return bufferedBytes == null && streaming;
+        return bodyStore == null && streaming;
     }
 
     @Override
     public void close() throws IOException {
 
-        // Delete the temp file if exists
-        if (tempFilepath != null) {
-            Files.deleteIfExists(tempFilepath);
+        // Release the cache, deleting the temp file if exists
+        if (bodyStore != null) {
+            bodyStore.close();
         }
     }
 }
@@ -0,0 +1,265 @@
+/*
+ * Copyright (c) 2020. Eugen Covaci
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and limitations under the License.
+ */
+
+package org.kpax.winfoom.proxy;
+
+import org.kpax.winfoom.util.BoundedBufferPool;
+import org.kpax.winfoom.util.InputOutputs;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * A tiered store for a request body, written once then replayed any number of times.
+ * <p>The bytes go into chunks borrowed from a {@link BoundedBufferPool} until either the spill threshold
+ * is exceeded or the pool's memory budget is spent. Then the store spills: the chunks are written, in order,
+ * into a temporary file and given back to the pool, the rest of the body being appended to the same file.
+ * The writes are synchronous, so the file is complete as soon as the last {@link #write(byte[], int, int)} returns.
+ * <p>Not thread safe.
+ *
+ * @author Eugen Covaci
+ */
+final class RequestBodyStore implements Closeable {
+
+    /**
+     * The number of spilled stores, since the application started.
+     */
+    private static final LongAdder spills = new LongAdder();
+
+    private final BoundedBufferPool bufferPool;
+
+    /**
+     * The directory path containing the temporary files.
+     */
+    private final Path tempDirectory;
+
+    /**
+     * The maximum number of bytes kept in memory.
+     */
+    private final long spillThreshold;
+
+    /**
+     * The in-memory chunks, in write mode: the position is the number of bytes written.
+     */
+    private final List<ByteBuffer> chunks = new ArrayList<>();
+
+    /**
+     * The temporary file containing the data, once spilled.
+     */
+    private Path tempFilepath;
+
+    private FileChannel fileChannel;
+
+    private long size;
+
+    /**
+     * Constructor.
+     *
+     * @param bufferPool     the pool providing the in-memory chunks.
+     * @param tempDirectory  the directory of the temporary file.
+     * @param spillThreshold the maximum number of bytes kept in memory.
+     */
+    RequestBodyStore(BoundedBufferPool bufferPool, Path tempDirectory, long spillThreshold) {
+        this.bufferPool = bufferPool;
+        this.tempDirectory = tempDirectory;
+        this.spillThreshold = spillThreshold;
+    }
+
+    /**
+     * Append bytes to the store.
+     *
+     * @param b   the data.
+     * @param off the start offset in the data.
+     * @param len the number of bytes to write.
+     * @throws IOException on spilling or writing into the temporary file.
+     */
+    void write(byte[] b, int off, int len) throws IOException {
+        if (fileChannel == null && size + len > spillThreshold) {
+            spill();
+        }
+        while (fileChannel == null && len > 0) {
+            ByteBuffer chunk = chunks.isEmpty() ? null : chunks.get(chunks.size() - 1);
+            if (chunk == null || !chunk.hasRemaining()) {
+                chunk = bufferPool.acquire();
+                if (chunk == null) {
+                    spill();
+                    break;
+                }
+                chunks.add(chunk);
+            }
+            int length = Math.min(chunk.remaining(), len);
+            chunk.put(b, off, length);
+            off += length;
+            len -= length;
+            size += length;
+        }
+        if (len > 0) {
+            writeFully(ByteBuffer.wrap(b, off, len));
+            size += len;
+        }
+    }
+
+    /**
+     * Move the in-memory chunks into the temporary file, giving them back to the pool.
+     *
+     * @throws IOException
+     */
+    private void spill() throws IOException {
+        tempFilepath = tempDirectory.resolve(InputOutputs.generateCacheFilename());
+        fileChannel = FileChannel.open(tempFilepath,
+                StandardOpenOption.CREATE_NEW,
+                StandardOpenOption.WRITE,
+                StandardOpenOption.READ);
+        for (Iterator<ByteBuffer> itr = chunks.iterator(); itr.hasNext(); ) {
+            ByteBuffer chunk = itr.next();
+            writeFully(chunk.flip());
+            itr.remove();
+            bufferPool.release(chunk);
+        }
+        spills.increment();
+    }
+
+    private void writeFully(ByteBuffer buffer) throws IOException {
+        while (buffer.hasRemaining()) {
+            fileChannel.write(buffer);
+        }
+    }
+
+    /**
+     * @return a new stream over the stored bytes, reading from the chunks or from the temporary file.
+     */
+    InputStream newInputStream() {
+        return fileChannel != null ? new FileChannelInputStream() : new ChunksInputStream();
+    }
+
+    /**
+     * Write the stored bytes into an output stream, without flushing it.
+     *
+     * @param outStream the output stream.
+     * @throws IOException
+     */
+    void writeTo(OutputStream outStream) throws IOException {
+        try (InputStream inputStream = newInputStream()) {
+            inputStream.transferTo(outStream);
+        }
+    }
+
+    /**
+     * @return the number of stored bytes.
+     */
+    long size() {
+        return size;
+    }
+
+    /**
+     * @return the temporary file, {@code null} if not spilled.
+     */
+    Path getTempFilepath() {
+        return tempFilepath;
+    }
+
+    /**
+     * @return the number of spilled stores, since the application started.
+     */
+    static long getSpills() {
+        return spills.sum();
+    }
+
+    /**
+     * Give the chunks back to the pool, close and delete the temporary file - if any.
+     *
+     * @throws IOException
+     */
+    @Override
+    public void close() throws IOException {
+        for (ByteBuffer chunk : chunks) {
+            bufferPool.release(chunk);
+        }
+        chunks.clear();
+        if (fileChannel != null) {
+            try {
+                fileChannel.close();
+            } finally {
+                Files.deleteIfExists(tempFilepath);
+            }
+        }
+    }
+
+    private class ChunksInputStream extends InputStream {
+
+        private final Iterator<ByteBuffer> itr = chunks.stream().map(chunk -> chunk.duplicate().flip()).iterator();
+
+        private ByteBuffer current;
+
+        @Override
+        public int read() {
+            byte[] b = new byte[1];
+            return read(b, 0, 1) == -1 ? -1 : b[0] & 0xff;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) {
+            if (len == 0) {
+                return 0;
+            }
+            while (current == null || !current.hasRemaining()) {
+                if (!itr.hasNext()) {
+                    return -1;
+                }
+                current = itr.next();
+            }
+            int length = Math.min(current.remaining(), len);
+            current.get(b, off, length);
+            return length;
+        }
+
+    }
+
+    /**
+     * Positional reads, so that several replays share the same channel.
+     */
+    private class FileChannelInputStream extends InputStream {
+
+        private long position;
+
+        @Override
+        public int read() throws IOException {
+            byte[] b = new byte[1];
+            return read(b, 0, 1) == -1 ? -1 : b[0] & 0xff;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            if (len == 0) {
+                return 0;
+            }
+            int length = fileChannel.read(ByteBuffer.wrap(b, off, len), position);
+            if (length > 0) {
+                position += length;
+            }
+            return length;
+        }
+
+    }
+
+}
@@ -0,0 +1,156 @@
+/*
+ * Copyright (c) 2020. Eugen Covaci
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and limitations under the License.
+ */
+
+package org.kpax.winfoom.proxy;
+
+import java.util.Arrays;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * The latency breakdown of a request, by processing phase.
+ * <p>It is carried by the {@link ClientConnection}, so the handler and the processors
+ * can record the phases they go through. A phase can be recorded several times,
+ * like the connect attempts to several proxies, in which case the durations are cumulated.
+ * <p>Not thread safe: a request is handled by a single thread.
+ *
+ * @author Eugen Covaci
+ */
+final class RequestTiming {
+
+    /**
+     * The name of the logger of the slow requests.
+     */
+    static final String SLOW_REQUEST_LOGGER = "org.kpax.winfoom.SlowRequests";
+
+    private static final Phase[] PHASES = Phase.values();
+
+    private final long start = System.nanoTime();
+
+    /**
+     * The duration of each phase (nanoseconds), {@code -1} if the phase has not been reached.
+     */
+    private final long[] durations = new long[PHASES.length];
+
+    RequestTiming() {
+        Arrays.fill(durations, -1);
+    }
+
+    /**
+     * Record a phase that ends now.
+     *
+     * @param phase      the phase.
+     * @param phaseStart the {@link System#nanoTime()} at the phase's start.
+     * @return the current {@link System#nanoTime()}, that is the start of the next phase.
+     */
+    long record(Phase phase, long phaseStart) {
+        long now = System.nanoTime();
+        int index = phase.ordinal();
+        durations[index] = Math.max(durations[index], 0) + now - phaseStart;
+        return now;
+    }
+
+    /**
+     * @param phase the phase.
+     * @return the duration of the phase (nanoseconds), {@code -1} if the phase has not been reached.
+     */
+    long getDuration(Phase phase) {
+        return durations[phase.ordinal()];
+    }
+
+    /**
+     * @return the time elapsed since the request has started to be parsed (nanoseconds).
+     */
+    long getElapsed() {
+        return System.nanoTime() - start;
+    }
+
+    /**
+     * @return the time the client waited for the proxy, that is the elapsed time
+     * minus the tunnel relaying, which lasts as long as the client wants (nanoseconds).
+     */
+    long getLatency() {
+        return getElapsed() - Math.max(getDuration(Phase.RELAY), 0);
+    }
+
+    @Override
+    public String toString() {
+        StringBuilder builder = new StringBuilder("latency=")
+                .append(TimeUnit.NANOSECONDS.toMillis(getLatency())).append("ms");
+        for (Phase phase : PHASES) {
+            long duration = durations[phase.ordinal()];
+            if (duration >= 0) {
+                builder.append(", ").append(phase.getLabel()).append('=')
+                        .append(TimeUnit.NANOSECONDS.toMillis(duration)).append("ms");
+            }
+        }
+        return builder.toString();
+    }
+
+    /**
+     * The processing phases of a request.
+     */
+    enum Phase {
+
+        /**
+         * Waiting for a tunnel permit.
+         */
+        ADMISSION("admission"),
+
+        /**
+         * The proxy auto-config evaluation, including the DNS lookups of the PAC script.
+         */
+        PAC("pac"),
+
+        /**
+         * Resolving the upstream host.
+         */
+        DNS("dns"),
+
+        /**
+         * Connecting to the upstream host.
+         */
+        CONNECT("connect"),
+
+        /**
+         * Exchanging the CONNECT request with the upstream proxy, including the authentication.
+         */
+        HANDSHAKE("handshake"),
+
+        /**
+         * From sending the request until the response head has arrived.
+         * <p>For a non-CONNECT request, it includes getting a pooled connection, connecting
+         * and authenticating, which the HTTP client does not report separately.
+         */
+        FIRST_BYTE("firstByte"),
+
+        /**
+         * Writing the response to the client.
+         */
+        TRANSFER("transfer"),
+
+        /**
+         * Relaying an established tunnel.
+         */
+        RELAY("relay");
+
+        private final String label;
+
+        Phase(String label) {
+            this.label = label;
+        }
+
+        String getLabel() {
+            return label;
+        }
+    }
+
+}
@@ -0,0 +1,161 @@
+/*
+ * Copyright (c) 2020. Eugen Covaci
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and limitations under the License.
+ */
+
+package org.kpax.winfoom.proxy;
+
+import org.apache.http.auth.AuthProtocolState;
+import org.apache.http.auth.AuthState;
+import org.apache.http.client.protocol.HttpClientContext;
+import org.apache.http.conn.routing.HttpRoute;
+import org.cache2k.Cache;
+import org.cache2k.Cache2kBuilder;
+import org.kpax.winfoom.annotation.ProxySessionScope;
+import org.kpax.winfoom.config.SystemConfig;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.stereotype.Component;
+
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Keep track of the authentication state of each non-CONNECT route (the target host through an HTTP proxy, or direct),
+ * to decide whether a request body needs caching in case of an authentication retry.
+ * <p>After each exchange, the route records whether an authentication challenge has been received
+ * and the connection's state, like the principal of an NTLM authenticated connection:
+ * the next exchanges on the route lease the already authenticated connections.
+ * <p>A retry is unlikely when the last {@code requestBody.streamAfter} exchanges on the route
+ * have not been challenged, the route has an idle pooled connection and the upstream
+ * has never challenged a streamed request after its body.
+ * <p>The state lives as long as the proxy session, for at most {@link #MAX_ROUTES} routes,
+ * the least used being evicted first.
+ *
+ * @author Eugen Covaci
+ */
+@ProxySessionScope
+@Component
+class RouteAuthTracker implements AutoCloseable {
+
+    /**
+     * The maximum number of routes kept track of.
+     */
+    private static final int MAX_ROUTES = 10000;
+
+    private final Logger logger = LoggerFactory.getLogger(RouteAuthTracker.class);
+
+    @Autowired
+    private SystemConfig systemConfig;
+
+    @Autowired
+    private ConnectionPoolingManager connectionPoolingManager;
+
+    private final Cache<HttpRoute, RouteState> routeStates = new Cache2kBuilder<HttpRoute, RouteState>() {
+    }.entryCapacity(MAX_ROUTES)
+            .eternal(true)
+            .build();
+
+    /**
+     * Prepare the context of an exchange, so that an already authenticated connection is leased, if any.
+     *
+     * @param route   the route.
+     * @param context the exchange's context.
+     */
+    void prepareContext(HttpRoute route, HttpClientContext context) {
+        RouteState routeState = routeStates.peek(route);
+        if (routeState != null && routeState.userToken != null) {
+            context.setUserToken(routeState.userToken);
+        }
+    }
+
+    /**
+     * @param route the route.
+     * @return {@code true} iff the request body can be streamed without caching.
+     */
+    boolean isRetryUnlikely(HttpRoute route) {
+        int streamAfter = systemConfig.getRequestBodyStreamAfter();
+        if (streamAfter <= 0) {
+            return false;
+        }
+        RouteState routeState = routeStates.peek(route);
+        return routeState != null
+                && !routeState.expectationIgnored
+                && routeState.unchallenged.get() >= streamAfter
+                && connectionPoolingManager.getHttpRouteStats(route).getAvailable() > 0;
+    }
+
+    /**
+     * Record the outcome of an exchange.
+     *
+     * @param route   the route.
+     * @param context the exchange's context.
+     */
+    void exchangeDone(HttpRoute route, HttpClientContext context) {
+        RouteState routeState = getRouteState(route);
+        if (isChallenged(context.getProxyAuthState()) || isChallenged(context.getTargetAuthState())) {
+            logger.debug("Challenged exchange on route {}", route);
+            routeState.unchallenged.set(0);
+        } else {
+            routeState.unchallenged.incrementAndGet();
+        }
+        Object userToken = context.getUserToken();
+        if (userToken != null) {
+            routeState.userToken = userToken;
+        }
+    }
+
+    /**
+     * Record an authentication challenge received after a streamed request body has been sent,
+     * that is the upstream did not honor the {@code Expect: 100-continue} header.
+     * The request bodies are cached on this route from now on.
+     *
+     * @param route the route.
+     */
+    void challengedWhileStreaming(HttpRoute route) {
+        RouteState routeState = getRouteState(route);
+        routeState.expectationIgnored = true;
+        routeState.unchallenged.set(0);
+    }
+
+    private RouteState getRouteState(HttpRoute route) {
+        return routeStates.computeIfAbsent(route, RouteState::new);
+    }
+
+    private static boolean isChallenged(AuthState authState) {
+        return authState != null && authState.getState() != AuthProtocolState.UNCHALLENGED;
+    }
+
+    private static class RouteState {
+
+        /**
+         * The number of consecutive exchanges without an authentication challenge.
+         */
+        private final AtomicInteger unchallenged = new AtomicInteger();
+
+        /**
+         * The state of the last authenticated connection.
+         */
+        private volatile Object userToken;
+
+        /**
+         * Whether the upstream sent an authentication challenge after a streamed request body.
+         */
+        private volatile boolean expectationIgnored;
+
+    }
+
+    @Override
+    public void close() {
+        logger.debug("Close the route states");
+        routeStates.close();
+    }
+
+}
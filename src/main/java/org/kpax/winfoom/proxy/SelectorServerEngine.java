@@ -0,0 +1,448 @@
+/*
+ * Copyright (c) 2020. Eugen Covaci
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and limitations under the License.
+ */
+
+package org.kpax.winfoom.proxy;
+
+import org.kpax.winfoom.util.InputOutputs;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.util.Assert;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.nio.channels.*;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * A selector based engine for the local proxy server.
+ * <p>A fixed number of I/O threads accept the client's connections and read the request head in non-blocking mode.
+ * Only when the request head is complete, the connection is switched back to blocking mode and handed
+ * to a {@link ConnectionDispatcher}, so the idle connections do not hold any thread.
+ * <p>A persistent connection can be {@link #resume resumed} after a request has been handled,
+ * so that it waits for the next request the same way.
+ *
+ * @author Eugen Covaci
+ */
+final class SelectorServerEngine implements AutoCloseable {
+
+    /**
+     * The maximum size of the request head kept in memory by an I/O thread.
+     * <p>Beyond this limit, the connection is dispatched anyway and the rest of the head is read in blocking mode.
+     */
+    static final int MAX_REQUEST_HEAD_SIZE = 64 * 1024;
+
+    /**
+     * The initial size of the request head buffer.
+     */
+    private static final int INITIAL_REQUEST_HEAD_SIZE = 1024;
+
+    /**
+     * The maximum time an I/O thread blocks waiting for events (milliseconds).
+     */
+    private static final long SELECT_TIMEOUT = 1000;
+
+    private final Logger logger = LoggerFactory.getLogger(SelectorServerEngine.class);
+
+    private final int port;
+
+    private final int backlog;
+
+    private final int ioThreadCount;
+
+    /**
+     * A connection that does not send a complete request head within this timeout is closed (milliseconds).
+     */
+    private final long idleTimeout;
+
+    private final ConnectionDispatcher dispatcher;
+
+    /**
+     * Used for distributing the accepted connections to the I/O threads, round-robin.
+     */
+    private final AtomicInteger ioLoopIndex = new AtomicInteger();
+
+    private ServerSocketChannel serverChannel;
+
+    private IoLoop[] ioLoops;
+
+    private Thread[] ioThreads;
+
+    private volatile boolean closed;
+
+    /**
+     * Constructor.
+     *
+     * @param port          the local port.
+     * @param backlog       the maximum number of pending connections.
+     * @param ioThreadCount the number of I/O threads.
+     * @param idleTimeout   the maximum waiting time for the request head (milliseconds).
+     * @param dispatcher    handles the connections having a complete request head.
+     */
+    SelectorServerEngine(int port, int backlog, int ioThreadCount, long idleTimeout,
+                         ConnectionDispatcher dispatcher) {
+        Assert.isTrue(ioThreadCount > 0, "ioThreadCount must be positive");
+        Assert.notNull(dispatcher, "dispatcher cannot be null");
+        this.port = port;
+        this.backlog = backlog;
+        this.ioThreadCount = ioThreadCount;
+        this.idleTimeout = idleTimeout;
+        this.dispatcher = dispatcher;
+    }
+
+    /**
+     * Bind the server channel then start the I/O threads.
+     *
+     * @throws IOException
+     */
+    synchronized void start() throws IOException {
+        Assert.state(serverChannel == null, "Already started");
+        serverChannel = ServerSocketChannel.open();
+        serverChannel.bind(new InetSocketAddress(port), backlog);
+        serverChannel.configureBlocking(false);
+
+        ioLoops = new IoLoop[ioThreadCount];
+        for (int i = 0; i < ioThreadCount; i++) {
+            ioLoops[i] = new IoLoop();
+        }
+
+        // The first I/O thread also accepts the connections
+        serverChannel.register(ioLoops[0].selector, SelectionKey.OP_ACCEPT);
+
+        ioThreads = new Thread[ioThreadCount];
+        for (int i = 0; i < ioThreadCount; i++) {
+            ioThreads[i] = new Thread(ioLoops[i], "selector-io-" + i);
+            ioThreads[i].setDaemon(true);
+            ioThreads[i].start();
+        }
+        logger.info("Selector engine started with {} I/O threads", ioThreadCount);
+    }
+
+    /**
+     * Take back a connection, to wait for its next request.
+     *
+     * @param channel     the client's channel, in blocking mode, with no unread data.
+     * @param idleTimeout the maximum waiting time for the next request head (milliseconds).
+     * @param dispatcher  handles the connection, when the next request head is complete.
+     * @throws IOException on switching the channel to non-blocking mode.
+     */
+    void resume(SocketChannel channel, long idleTimeout, ConnectionDispatcher dispatcher) throws IOException {
+        Assert.state(!closed, "Already closed");
+        channel.configureBlocking(false);
+        nextIoLoop().addChannel(new RequestHead(channel, idleTimeout, dispatcher));
+    }
+
+    private IoLoop nextIoLoop() {
+        return ioLoops[Math.floorMod(ioLoopIndex.getAndIncrement(), ioLoops.length)];
+    }
+
+    @Override
+    public synchronized void close() {
+        logger.info("Close the selector engine");
+        closed = true;
+        InputOutputs.close(serverChannel);
+        if (ioLoops != null) {
+            for (IoLoop ioLoop : ioLoops) {
+                if (ioLoop != null) {
+                    ioLoop.selector.wakeup();
+                }
+            }
+        }
+
+        // The listening socket is only released once its key
+        // is deregistered, that is when the accepting selector is closed
+        if (ioThreads != null) {
+            for (Thread ioThread : ioThreads) {
+                if (ioThread != null && ioThread != Thread.currentThread()) {
+                    try {
+                        ioThread.join(SELECT_TIMEOUT);
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                        break;
+                    }
+                }
+            }
+        }
+    }
+
+    /**
+     * Handles a connection whose request head has been read.
+     */
+    @FunctionalInterface
+    interface ConnectionDispatcher {
+
+        /**
+         * Dispatch the connection, this method must not block.
+         *
+         * @param socket      the client's socket, in blocking mode.
+         * @param requestHead the bytes already read from the socket.
+         */
+        void dispatch(Socket socket, byte[] requestHead);
+    }
+
+    /**
+     * The request head being read.
+     */
+    private static class RequestHead {
+
+        private final SocketChannel channel;
+
+        /**
+         * The maximum waiting time for the complete head (milliseconds).
+         */
+        private final long idleTimeout;
+
+        private final ConnectionDispatcher dispatcher;
+
+        private ByteBuffer buffer = ByteBuffer.allocate(INITIAL_REQUEST_HEAD_SIZE);
+
+        /**
+         * Where to start looking for the end of the head.
+         */
+        private int searchIndex;
+
+        private long lastActivity = System.currentTimeMillis();
+
+        RequestHead(SocketChannel channel, long idleTimeout, ConnectionDispatcher dispatcher) {
+            this.channel = channel;
+            this.idleTimeout = idleTimeout;
+            this.dispatcher = dispatcher;
+        }
+
+        /**
+         * @return {@code true} iff nothing has been read within the idle timeout.
+         */
+        boolean isIdle(long now) {
+            return now - lastActivity > idleTimeout;
+        }
+
+        /**
+         * @return {@code true} iff the empty line marking the end of the head has been read.
+         */
+        boolean isComplete() {
+            byte[] bytes = buffer.array();
+            int end = buffer.position();
+            for (int i = searchIndex; i <= end - 4; i++) {
+                if (bytes[i] == '\r' && bytes[i + 1] == '\n' && bytes[i + 2] == '\r' && bytes[i + 3] == '\n') {
+                    return true;
+                }
+            }
+            searchIndex = Math.max(0, end - 3);
+            return false;
+        }
+
+        /**
+         * Double the buffer's capacity, if possible.
+         *
+         * @return {@code false} iff the maximum size has been reached.
+         */
+        boolean grow() {
+            if (buffer.capacity() >= MAX_REQUEST_HEAD_SIZE) {
+                return false;
+            }
+            ByteBuffer newBuffer = ByteBuffer.allocate(Math.min(buffer.capacity() * 2, MAX_REQUEST_HEAD_SIZE));
+            buffer.flip();
+            newBuffer.put(buffer);
+            buffer = newBuffer;
+            return true;
+        }
+
+        byte[] toByteArray() {
+            return Arrays.copyOf(buffer.array(), buffer.position());
+        }
+
+    }
+
+    /**
+     * An I/O thread's event loop.
+     */
+    private class IoLoop implements Runnable {
+
+        private final Selector selector;
+
+        /**
+         * The accepted connections waiting to be registered with this loop's selector.
+         */
+        private final Queue<RequestHead> pendingChannels = new ConcurrentLinkedQueue<>();
+
+        private long lastIdleCheck = System.currentTimeMillis();
+
+        IoLoop() throws IOException {
+            this.selector = Selector.open();
+        }
+
+        void addChannel(RequestHead requestHead) {
+            pendingChannels.add(requestHead);
+            selector.wakeup();
+        }
+
+        @Override
+        public void run() {
+            try {
+                while (!closed) {
+                    try {
+                        selector.select(SELECT_TIMEOUT);
+                        registerPendingChannels();
+                        processSelectedKeys();
+                        closeIdleChannels();
+                    } catch (ClosedSelectorException e) {
+                        break;
+                    } catch (Exception e) {
+                        logger.debug("Error on selector loop", e);
+                    }
+                }
+            } finally {
+                closeAll();
+            }
+        }
+
+        private void registerPendingChannels() {
+            RequestHead requestHead;
+            while ((requestHead = pendingChannels.poll()) != null) {
+                try {
+                    requestHead.channel.register(selector, SelectionKey.OP_READ, requestHead);
+                } catch (Exception e) {
+                    logger.debug("Error on registering channel", e);
+                    InputOutputs.close(requestHead.channel);
+                }
+            }
+        }
+
+        private void processSelectedKeys() throws IOException {
+            List<SelectionKey> completedKeys = new ArrayList<>();
+            for (Iterator<SelectionKey> itr = selector.selectedKeys().iterator(); itr.hasNext(); ) {
+                SelectionKey key = itr.next();
+                itr.remove();
+                if (!key.isValid()) {
+                    continue;
+                }
+                if (key.isAcceptable()) {
+                    accept();
+                } else if (key.isReadable()) {
+                    if (read(key)) {
+                        completedKeys.add(key);
+                    }
+                }
+            }
+
+            if (!completedKeys.isEmpty()) {
+                for (SelectionKey key : completedKeys) {
+                    key.cancel();
+                }
+
+                // Flush the cancelled keys so the channels
+                // can be switched back to blocking mode
+                selector.selectNow();
+                for (SelectionKey key : completedKeys) {
+                    dispatch((RequestHead) key.attachment());
+                }
+            }
+        }
+
+        private void accept() {
+            SocketChannel channel;
+            try {
+                while ((channel = serverChannel.accept()) != null) {
+                    try {
+                        channel.configureBlocking(false);
+                        nextIoLoop().addChannel(new RequestHead(channel, idleTimeout, dispatcher));
+                    } catch (Exception e) {
+                        logger.debug("Error on configuring the accepted channel", e);
+                        InputOutputs.close(channel);
+                    }
+                }
+            } catch (IOException e) {
+                if (!closed) {
+                    logger.debug("Error on accepting connection", e);
+                }
+            }
+        }
+
+        /**
+         * Read from the channel into the request head buffer.
+         *
+         * @param key the channel's selection key.
+         * @return {@code true} iff the connection is ready to be dispatched.
+         */
+        private boolean read(SelectionKey key) {
+            SocketChannel channel = (SocketChannel) key.channel();
+            RequestHead requestHead = (RequestHead) key.attachment();
+            try {
+                if (channel.read(requestHead.buffer) == -1) {
+                    logger.debug("Connection closed before sending the request");
+                    key.cancel();
+                    InputOutputs.close(channel);
+                    return false;
+                }
+            } catch (IOException e) {
+                logger.debug("Error on reading request head", e);
+                key.cancel();
+                InputOutputs.close(channel);
+                return false;
+            }
+            requestHead.lastActivity = System.currentTimeMillis();
+            if (requestHead.isComplete()) {
+                return true;
+            }
+            return !requestHead.buffer.hasRemaining() && !requestHead.grow();
+        }
+
+        private void dispatch(RequestHead requestHead) {
+            try {
+                requestHead.channel.configureBlocking(true);
+                requestHead.dispatcher.dispatch(requestHead.channel.socket(), requestHead.toByteArray());
+            } catch (Exception e) {
+                logger.debug("Error on dispatching connection", e);
+                InputOutputs.close(requestHead.channel);
+            }
+        }
+
+        private void closeIdleChannels() {
+            long now = System.currentTimeMillis();
+            if (now - lastIdleCheck < SELECT_TIMEOUT) {
+                return;
+            }
+            lastIdleCheck = now;
+            for (SelectionKey key : selector.keys()) {
+                if (key.isValid() && key.attachment() instanceof RequestHead
+                        && ((RequestHead) key.attachment()).isIdle(now)) {
+                    logger.debug("Close idle connection");
+                    key.cancel();
+                    InputOutputs.close(key.channel());
+                }
+            }
+        }
+
+        private void closeAll() {
+            try {
+                for (SelectionKey key : selector.keys()) {
+                    if (key.channel() != serverChannel) {
+                        InputOutputs.close(key.channel());
+                    }
+                }
+            } catch (ClosedSelectorException e) {
+                // Ignore
+            }
+            pendingChannels.forEach(requestHead -> InputOutputs.close(requestHead.channel));
+            pendingChannels.clear();
+            InputOutputs.close(selector);
+        }
+    }
+
+}
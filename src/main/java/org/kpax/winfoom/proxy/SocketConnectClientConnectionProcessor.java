@@ -19,7 +19,6 @@ import org.apache.http.protocol.HTTP;
 import org.kpax.winfoom.config.SystemConfig;
 import org.kpax.winfoom.util.HeaderDateGenerator;
 import org.kpax.winfoom.util.HttpUtils;
-import org.kpax.winfoom.util.InputOutputs;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.springframework.beans.factory.annotation.Autowired;
@@ -27,6 +26,7 @@ import org.springframework.stereotype.Component;
 
 import java.io.IOException;
 import java.net.*;
+import java.nio.channels.SocketChannel;
 
 /**
  * Process a CONNECT request through a SOCKS proxy or no proxy.
@@ -42,7 +42,7 @@ class SocketConnectClientConnectionProcessor implements ClientConnectionProcesso
     private SystemConfig systemConfig;
 
     @Autowired
-    private ProxyContext proxyContext;
+    private TunnelRelay tunnelRelay;
 
     @Override
     public void process(final ClientConnection clientConnection, final ProxyInfo proxyInfo)
@@ -59,19 +59,25 @@ class SocketConnectClientConnectionProcessor implements ClientConnectionProcesso
             proxy = Proxy.NO_PROXY;
         }
 
-        try (Socket socket = new Socket(proxy)) {
+        // Without proxy, the socket is backed by a channel, so it can be relayed by a ChannelRelay
+        try (Socket socket = proxy == Proxy.NO_PROXY ? SocketChannel.open().socket() : new Socket(proxy)) {
             socket.setSoTimeout(systemConfig.getSocketSoTimeout() * 1000);
             if (proxyInfo.getType().isSocks4()) {
                 HttpUtils.setSocks4(socket);
             }
             logger.debug("Open connection");
+            RequestTiming requestTiming = clientConnection.getRequestTiming();
+            long dnsStart = System.nanoTime();
+            InetSocketAddress targetAddress = new InetSocketAddress(target.getHostName(), target.getPort());
+            long connectStart = requestTiming.record(RequestTiming.Phase.DNS, dnsStart);
             try {
-                socket.connect(new InetSocketAddress(target.getHostName(), target.getPort()),
-                        systemConfig.getSocketConnectTimeout() * 1000);
+                socket.connect(targetAddress, systemConfig.getSocketConnectTimeout() * 1000);
             } catch (SocketException e) {
                 if (StringUtils.startsWithIgnoreCase(e.getMessage(), "Connection refused")) {
                     throw new ConnectException(e.getMessage());
                 }
+            } finally {
+                requestTiming.record(RequestTiming.Phase.CONNECT, connectStart);
             }
             logger.debug("Connected to {}", target);
 
@@ -85,12 +91,7 @@ class SocketConnectClientConnectionProcessor implements ClientConnectionProcesso
             try {
                 // The proxy facade mediates the full duplex communication
                 // between the client and the remote proxy
-                // This usually ends on connection reset, timeout or any other error
-                InputOutputs.duplex(proxyContext.executorService(),
-                        socket.getInputStream(),
-                        socket.getOutputStream(),
-                        clientConnection.getInputStream(),
-                        clientConnection.getOutputStream());
+                tunnelRelay.relay(clientConnection, socket);
             } catch (Exception e) {
                 logger.error("Error on full duplex", e);
             }
@@ -70,9 +70,43 @@ public class TunnelConnection {
     @Autowired
     private SystemConfig systemConfig;
 
+    @Autowired
+    private ProxyAuthCache proxyAuthCache;
+
+    @Autowired
+    private UpstreamSocketPool upstreamSocketPool;
+
+    /**
+     * The authentication schemes supported for the upstream proxies.
+     */
+    private Registry<AuthSchemeProvider> authSchemeRegistry = RegistryBuilder.<AuthSchemeProvider>create()
+            .register(AuthSchemes.BASIC, new BasicSchemeFactory())
+            .register(AuthSchemes.DIGEST, new DigestSchemeFactory())
+            .register(AuthSchemes.NTLM, new WindowsNTLMSchemeFactory(null))
+            .register(AuthSchemes.SPNEGO, new WindowsNegotiateSchemeFactory(null))
+            .build();
+
     public Tunnel open(final HttpHost proxy, final HttpHost target,
                        final ProtocolVersion protocolVersion)
             throws IOException, HttpException {
+        return open(proxy, target, protocolVersion, new RequestTiming());
+    }
+
+    /**
+     * Same as {@link #open(HttpHost, HttpHost, ProtocolVersion)}, except the DNS, connect
+     * and handshake phases are recorded.
+     *
+     * @param proxy           the proxy host.
+     * @param target          the target host.
+     * @param protocolVersion the client's HTTP version.
+     * @param requestTiming   the latency breakdown of the CONNECT request.
+     * @return the established tunnel.
+     * @throws IOException
+     * @throws HttpException
+     */
+    Tunnel open(final HttpHost proxy, final HttpHost target,
+                final ProtocolVersion protocolVersion, final RequestTiming requestTiming)
+            throws IOException, HttpException {
         Args.notNull(proxy, "Proxy host");
         Args.notNull(target, "Target host");
 
@@ -84,13 +118,6 @@ public class TunnelConnection {
         AuthState proxyAuthState = new AuthState();
         ConnectionReuseStrategy reuseStrategy = new DefaultConnectionReuseStrategy();
 
-        Registry<AuthSchemeProvider> authSchemeRegistry = RegistryBuilder.<AuthSchemeProvider>create()
-                .register(AuthSchemes.BASIC, new BasicSchemeFactory())
-                .register(AuthSchemes.DIGEST, new DigestSchemeFactory())
-                .register(AuthSchemes.NTLM, new WindowsNTLMSchemeFactory(null))
-                .register(AuthSchemes.SPNEGO, new WindowsNegotiateSchemeFactory(null))
-                .build();
-
         HttpHost host = target;
         if (host.getPort() <= 0) {
             host = new HttpHost(host.getHostName(), 80, host.getSchemeName());
@@ -114,16 +141,22 @@ public class TunnelConnection {
 
         requestExec.preProcess(connect, httpProcessor, context);
 
+        // Skip the challenge when the proxy's authentication scheme is known
+        boolean preemptive = proxyAuthCache.preempt(proxy, connect, proxyAuthState, context);
+
         HttpResponse response;
         while (true) {
             if (!connection.isOpen()) {
-                Socket socket = new Socket(proxy.getHostName(), proxy.getPort());
+                // Backed by a channel, so the tunnel can be relayed by a ChannelRelay
+                Socket socket = upstreamSocketPool.lease(proxy, requestTiming);
                 socket.setSoTimeout(systemConfig.getSocketSoTimeout() * 1000);
                 connection.bind(socket);
             }
 
+            long handshakeStart = System.nanoTime();
             authenticator.generateAuthResponse(connect, proxyAuthState, context);
             response = requestExec.execute(connect, connection, context);
+            requestTiming.record(RequestTiming.Phase.HANDSHAKE, handshakeStart);
 
             final int status = response.getStatusLine().getStatusCode();
             logger.debug("Tunnel status code: {}", status);
@@ -133,8 +166,19 @@ public class TunnelConnection {
 
             if (authenticator.isAuthenticationRequested(
                     proxy, response, proxyAuthStrategy, proxyAuthState, context)) {
-                if (authenticator.handleAuthChallenge(
-                        proxy, response, proxyAuthStrategy, proxyAuthState, context)) {
+                boolean retry = authenticator.handleAuthChallenge(
+                        proxy, response, proxyAuthStrategy, proxyAuthState, context);
+                if (!retry && preemptive) {
+                    // The cached authentication has been rejected,
+                    // answer the challenge from scratch
+                    logger.debug("Preemptive authentication failed, fall back to the challenge");
+                    proxyAuthCache.invalidate(proxy);
+                    proxyAuthState.reset();
+                    retry = authenticator.handleAuthChallenge(
+                            proxy, response, proxyAuthStrategy, proxyAuthState, context);
+                }
+                preemptive = false;
+                if (retry) {
                     // Retry request
                     if (reuseStrategy.keepAlive(response, context)) {
                         // Consume response content
@@ -170,6 +214,7 @@ public class TunnelConnection {
             throw new TunnelRefusedException("CONNECT refused by proxy: " + response.getStatusLine(), response);
         }
 
+        proxyAuthCache.authSucceeded(proxy, proxyAuthState);
         return new Tunnel(connection, response);
     }
 
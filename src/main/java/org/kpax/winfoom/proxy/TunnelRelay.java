@@ -0,0 +1,124 @@
+/*
+ * Copyright (c) 2020. Eugen Covaci
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and limitations under the License.
+ */
+
+package org.kpax.winfoom.proxy;
+
+import org.apache.commons.io.output.CountingOutputStream;
+import org.kpax.winfoom.config.SystemConfig;
+import org.kpax.winfoom.util.ChannelRelay;
+import org.kpax.winfoom.util.ChannelStreams;
+import org.kpax.winfoom.util.InputOutputs;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.stereotype.Component;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.Socket;
+
+/**
+ * Relay the bytes of an established CONNECT tunnel, between the client and the upstream side.
+ * <p>When both sockets are backed by a channel, the tunnel is relayed by a {@link ChannelRelay},
+ * otherwise by {@link InputOutputs#duplex}. A socket backed by a channel is then read and written
+ * through {@link ChannelStreams}: the streams of its socket adaptor would block each other.
+ * <p>The tunnel, its duration and the relayed bytes are recorded into {@link ProxyMetrics} even when the relay fails.
+ *
+ * @author Eugen Covaci
+ */
+@Component
+class TunnelRelay {
+
+    private final Logger logger = LoggerFactory.getLogger(TunnelRelay.class);
+
+    @Autowired
+    private SystemConfig systemConfig;
+
+    @Autowired
+    private ProxyContext proxyContext;
+
+    @Autowired
+    private ProxyMetrics proxyMetrics;
+
+    /**
+     * Relay the bytes until the tunnel is closed, starting with whatever the client has sent along the CONNECT request.
+     * <p>This usually ends on connection reset, timeout or any other error.
+     *
+     * @param clientConnection the client's connection.
+     * @param upstreamSocket   the upstream side's socket, connected to the proxy or the target.
+     * @throws IOException on getting the sockets' streams or transferring the buffered bytes.
+     */
+    void relay(final ClientConnection clientConnection, final Socket upstreamSocket) throws IOException {
+        Socket clientSocket = clientConnection.getSocket();
+        CountingOutputStream bufferedOutput = null;
+        ChannelRelay channelRelay = null;
+        CountingOutputStream upstreamOutput = null;
+        CountingOutputStream clientOutput = null;
+        ChannelStreams upstreamStreams = null;
+        ChannelStreams clientStreams = null;
+        proxyMetrics.tunnelOpened();
+        long start = System.nanoTime();
+        try {
+            bufferedOutput = new CountingOutputStream(upstreamSocket.getOutputStream());
+            clientConnection.transferBufferedBytes(bufferedOutput);
+            if (ChannelRelay.isSupported(upstreamSocket, clientSocket)) {
+                logger.debug("Relay the tunnel through channels");
+                channelRelay = new ChannelRelay(upstreamSocket.getChannel(),
+                        clientSocket.getChannel(),
+                        proxyContext.relayBufferPool(),
+                        systemConfig.getSocketSoTimeout() * 1000L);
+                channelRelay.run();
+            } else {
+                InputStream upstreamInput = upstreamSocket.getInputStream();
+                OutputStream upstreamSocketOutput = upstreamSocket.getOutputStream();
+                if (upstreamSocket.getChannel() != null) {
+                    upstreamStreams = new ChannelStreams(upstreamSocket.getChannel());
+                    upstreamInput = upstreamStreams.getInputStream();
+                    upstreamSocketOutput = upstreamStreams.getOutputStream();
+                }
+
+                // The buffered bytes have already been transferred,
+                // so the client's socket can be read directly
+                InputStream clientInput = clientConnection.getInputStream();
+                OutputStream clientSocketOutput = clientConnection.getOutputStream();
+                if (clientSocket.getChannel() != null) {
+                    clientStreams = new ChannelStreams(clientSocket.getChannel());
+                    clientInput = clientStreams.getInputStream();
+                    clientSocketOutput = clientStreams.getOutputStream();
+                }
+                upstreamOutput = new CountingOutputStream(upstreamSocketOutput);
+                clientOutput = new CountingOutputStream(clientSocketOutput);
+                InputOutputs.duplex(proxyContext.executorService(),
+                        upstreamInput,
+                        upstreamOutput,
+                        clientInput,
+                        clientOutput);
+            }
+        } finally {
+            InputOutputs.close(upstreamStreams);
+            InputOutputs.close(clientStreams);
+            clientConnection.getRequestTiming().record(RequestTiming.Phase.RELAY, start);
+            long bytesToUpstream = bufferedOutput != null ? bufferedOutput.getByteCount() : 0;
+            long bytesToClient;
+            if (channelRelay != null) {
+                bytesToUpstream += channelRelay.getSecondToFirstBytes();
+                bytesToClient = channelRelay.getFirstToSecondBytes();
+            } else {
+                bytesToUpstream += upstreamOutput != null ? upstreamOutput.getByteCount() : 0;
+                bytesToClient = clientOutput != null ? clientOutput.getByteCount() : 0;
+            }
+            proxyMetrics.tunnelClosed(System.nanoTime() - start, bytesToUpstream, bytesToClient);
+        }
+    }
+
+}
@@ -0,0 +1,262 @@
+/*
+ * Copyright (c) 2020. Eugen Covaci
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and limitations under the License.
+ */
+
+package org.kpax.winfoom.proxy;
+
+import org.apache.http.HttpHost;
+import org.kpax.winfoom.annotation.ProxySessionScope;
+import org.kpax.winfoom.config.SystemConfig;
+import org.kpax.winfoom.pac.DnsResolverCache;
+import org.kpax.winfoom.util.InputOutputs;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.core.annotation.Order;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Component;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.net.UnknownHostException;
+import java.nio.ByteBuffer;
+import java.nio.channels.SocketChannel;
+import java.util.Deque;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedDeque;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * A pool of idle sockets, already connected to the upstream proxies, handed out to the CONNECT tunnels.
+ * <p>Every lease tops up, in background, the proxy's idle sockets to {@code tunnel.pool.spareSockets},
+ * so the TCP setup is off the critical path of the next tunnels. The proxy's address is taken from
+ * the {@link DnsResolverCache} and the connect is bounded by {@code socket.connectTimeout}.
+ * <p>An idle socket is validated before being handed out: it must not be closed by the proxy,
+ * nor have received any data. It expires after {@code tunnel.pool.idleTimeout} seconds,
+ * below the usual proxy's idle timeout.
+ * <p>The idle sockets are not authenticated: the connection based authentication (NTLM, SPNEGO)
+ * is bound to the CONNECT exchange itself.
+ * <p>The sockets are backed by a channel, so that the tunnel can be relayed by a {@link org.kpax.winfoom.util.ChannelRelay}.
+ *
+ * @author Eugen Covaci
+ */
+@Order(1)
+@ProxySessionScope
+@Component
+class UpstreamSocketPool implements AutoCloseable {
+
+    private final Logger logger = LoggerFactory.getLogger(UpstreamSocketPool.class);
+
+    @Autowired
+    private SystemConfig systemConfig;
+
+    @Autowired
+    private ProxyContext proxyContext;
+
+    @Autowired
+    private DnsResolverCache dnsResolverCache;
+
+    /**
+     * The idle sockets by proxy, the most recently connected last.
+     */
+    private final Map<HttpHost, Deque<IdleSocket>> idleSockets = new ConcurrentHashMap<>();
+
+    /**
+     * The proxies being topped up.
+     */
+    private final Set<HttpHost> toppingUp = ConcurrentHashMap.newKeySet();
+
+    private final LongAdder hits = new LongAdder();
+
+    private final LongAdder misses = new LongAdder();
+
+    private volatile boolean closed;
+
+    /**
+     * Take a connected socket from the pool, or connect a new one if none is available.
+     *
+     * @param proxy         the proxy.
+     * @param requestTiming the latency breakdown of the CONNECT request, recording the DNS and connect phases.
+     * @return the connected socket.
+     * @throws IOException on connecting a new socket.
+     */
+    Socket lease(HttpHost proxy, RequestTiming requestTiming) throws IOException {
+        if (systemConfig.getTunnelPoolSpareSockets() <= 0 || !proxyContext.isRunning()) {
+            return connect(proxy, requestTiming);
+        }
+        Deque<IdleSocket> sockets = idleSockets.computeIfAbsent(proxy, key -> new ConcurrentLinkedDeque<>());
+        Socket socket = null;
+        for (IdleSocket idleSocket; socket == null && (idleSocket = sockets.pollLast()) != null; ) {
+            if (isUsable(idleSocket)) {
+                socket = idleSocket.socket;
+            } else {
+                InputOutputs.close(idleSocket.socket);
+            }
+        }
+        topUp(proxy, sockets);
+        if (socket != null) {
+            logger.debug("Pooled socket leased for proxy {}", proxy);
+            hits.increment();
+            return socket;
+        }
+        misses.increment();
+        return connect(proxy, requestTiming);
+    }
+
+    /**
+     * Connect a new socket in background, until the proxy has enough idle sockets.
+     * <p>There is at most one top up in progress per proxy.
+     *
+     * @param proxy   the proxy.
+     * @param sockets the proxy's idle sockets.
+     */
+    private void topUp(HttpHost proxy, Deque<IdleSocket> sockets) {
+        if (sockets.size() < systemConfig.getTunnelPoolSpareSockets() && toppingUp.add(proxy)) {
+            proxyContext.executorService().execute(() -> {
+                try {
+                    while (!closed && sockets.size() < systemConfig.getTunnelPoolSpareSockets()) {
+                        sockets.offerLast(new IdleSocket(connect(proxy, null)));
+                    }
+                    if (closed) {
+                        closeAll(sockets);
+                    }
+                } catch (Exception e) {
+                    logger.debug("Cannot top up the idle sockets for proxy " + proxy, e);
+                } finally {
+                    toppingUp.remove(proxy);
+                }
+            });
+        }
+    }
+
+    private Socket connect(HttpHost proxy, RequestTiming requestTiming) throws IOException {
+        long dnsStart = System.nanoTime();
+        List<InetAddress> addresses = dnsResolverCache.resolve(proxy.getHostName(), null);
+        long connectStart = requestTiming != null ?
+                requestTiming.record(RequestTiming.Phase.DNS, dnsStart) : System.nanoTime();
+        IOException lastException = null;
+        for (InetAddress address : addresses) {
+            Socket socket = SocketChannel.open().socket();
+            try {
+                socket.connect(new InetSocketAddress(address, proxy.getPort()),
+                        systemConfig.getSocketConnectTimeout() * 1000);
+                if (requestTiming != null) {
+                    requestTiming.record(RequestTiming.Phase.CONNECT, connectStart);
+                }
+                return socket;
+            } catch (IOException e) {
+                logger.debug("Cannot connect to {}", address);
+                InputOutputs.close(socket);
+                lastException = e;
+            }
+        }
+        throw lastException != null ? lastException : new UnknownHostException(proxy.getHostName());
+    }
+
+    /**
+     * Check the idle socket: neither expired, nor closed by the proxy, nor with unexpected data to read.
+     *
+     * @param idleSocket the idle socket.
+     * @return {@code true} iff the socket can be used for a CONNECT.
+     */
+    private boolean isUsable(IdleSocket idleSocket) {
+        if (isExpired(idleSocket, System.nanoTime()) || idleSocket.socket.isClosed()) {
+            return false;
+        }
+        SocketChannel channel = idleSocket.socket.getChannel();
+        try {
+            channel.configureBlocking(false);
+            try {
+                return channel.read(ByteBuffer.allocate(1)) == 0;
+            } finally {
+                channel.configureBlocking(true);
+            }
+        } catch (IOException e) {
+            logger.debug("Invalid idle socket", e);
+            return false;
+        }
+    }
+
+    private boolean isExpired(IdleSocket idleSocket, long now) {
+        return now - idleSocket.idleSince > TimeUnit.SECONDS.toNanos(systemConfig.getTunnelPoolIdleTimeout());
+    }
+
+    /**
+     * A job that closes the expired idle sockets.
+     */
+    @Scheduled(fixedRate = 1000)
+    void closeExpiredSockets() {
+        if (proxyContext.isRunning()) {
+            long now = System.nanoTime();
+            for (Deque<IdleSocket> sockets : idleSockets.values()) {
+                for (IdleSocket idleSocket : sockets) {
+                    if ((isExpired(idleSocket, now) || idleSocket.socket.isClosed()) && sockets.remove(idleSocket)) {
+                        logger.debug("Close expired idle socket");
+                        InputOutputs.close(idleSocket.socket);
+                    }
+                }
+            }
+        }
+    }
+
+    /**
+     * @return the number of CONNECT requests served by an idle socket during this proxy session.
+     */
+    long getHits() {
+        return hits.sum();
+    }
+
+    /**
+     * @return the number of CONNECT requests that had to connect a new socket during this proxy session.
+     */
+    long getMisses() {
+        return misses.sum();
+    }
+
+    /**
+     * @return the number of idle sockets, for all the proxies.
+     */
+    int getIdleSockets() {
+        return idleSockets.values().stream().mapToInt(Deque::size).sum();
+    }
+
+    private void closeAll(Deque<IdleSocket> sockets) {
+        for (IdleSocket idleSocket; (idleSocket = sockets.pollFirst()) != null; ) {
+            InputOutputs.close(idleSocket.socket);
+        }
+    }
+
+    @Override
+    public void close() {
+        logger.debug("Close all idle sockets");
+        closed = true;
+        idleSockets.values().forEach(this::closeAll);
+    }
+
+    private static class IdleSocket {
+
+        private final Socket socket;
+
+        private final long idleSince = System.nanoTime();
+
+        private IdleSocket(Socket socket) {
+            this.socket = socket;
+        }
+
+    }
+
+}
@@ -0,0 +1,122 @@
+/*
+ * Copyright (c) 2020. Eugen Covaci
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and limitations under the License.
+ */
+
+package org.kpax.winfoom.util;
+
+import org.springframework.util.Assert;
+
+import java.nio.ByteBuffer;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A pool of reusable {@link ByteBuffer}s, all of the same size, either heap or direct (off-heap) buffers.
+ * <p>The total size of the buffers in use is capped by a memory budget, shared by all the borrowers.
+ * When the budget is spent, {@link #acquire()} returns {@code null}
+ * and the caller is expected to fall back to another storage.
+ * <p>Unlike {@link DirectBufferPool}, the budget applies to the buffers in use, not to the allocated ones:
+ * the free buffers are kept for reuse but never more than the budget allows.
+ *
+ * @author Eugen Covaci
+ */
+public final class BoundedBufferPool {
+
+    private final int bufferSize;
+
+    private final long memoryBudget;
+
+    private final boolean direct;
+
+    private final Queue<ByteBuffer> freeBuffers = new ConcurrentLinkedQueue<>();
+
+    /**
+     * The total size of the buffers in use.
+     */
+    private final AtomicLong usedSize = new AtomicLong();
+
+    /**
+     * Constructor.
+     *
+     * @param bufferSize   the size of each buffer (bytes).
+     * @param memoryBudget the maximum total size of the buffers in use (bytes).
+     * @param direct       whether to allocate direct buffers.
+     */
+    public BoundedBufferPool(int bufferSize, long memoryBudget, boolean direct) {
+        Assert.isTrue(bufferSize > 0, "bufferSize must be positive");
+        Assert.isTrue(memoryBudget >= 0, "memoryBudget cannot be negative");
+        this.bufferSize = bufferSize;
+        this.memoryBudget = memoryBudget;
+        this.direct = direct;
+    }
+
+    /**
+     * Take a buffer from the pool, allocating a new one if none is free, within the memory budget.
+     *
+     * @return a cleared buffer or {@code null} if the memory budget is spent.
+     */
+    public ByteBuffer acquire() {
+        long used;
+        do {
+            used = usedSize.get();
+            if (used + bufferSize > memoryBudget) {
+                return null;
+            }
+        } while (!usedSize.compareAndSet(used, used + bufferSize));
+        ByteBuffer buffer = freeBuffers.poll();
+        if (buffer != null) {
+            return buffer;
+        }
+        return direct ? ByteBuffer.allocateDirect(bufferSize) : ByteBuffer.allocate(bufferSize);
+    }
+
+    /**
+     * Give the buffer back to the pool.
+     *
+     * @param buffer a buffer obtained by {@link #acquire()}.
+     */
+    public void release(ByteBuffer buffer) {
+        Assert.isTrue(buffer.isDirect() == direct && buffer.capacity() == bufferSize, "Not a buffer of this pool");
+        buffer.clear();
+        freeBuffers.offer(buffer);
+        usedSize.addAndGet(-bufferSize);
+    }
+
+    /**
+     * @return the size of each buffer (bytes).
+     */
+    public int getBufferSize() {
+        return bufferSize;
+    }
+
+    /**
+     * @return the maximum total size of the buffers in use (bytes).
+     */
+    public long getMemoryBudget() {
+        return memoryBudget;
+    }
+
+    /**
+     * @return the total size of the buffers in use (bytes).
+     */
+    public long getUsedSize() {
+        return usedSize.get();
+    }
+
+    /**
+     * @return the number of buffers waiting to be reused.
+     */
+    public int getFreeBufferCount() {
+        return freeBuffers.size();
+    }
+
+}
@@ -0,0 +1,298 @@
+/*
+ * Copyright (c) 2020. Eugen Covaci
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and limitations under the License.
+ */
+
+package org.kpax.winfoom.util;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.util.Assert;
+
+import java.io.IOException;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Relay the bytes between two socket channels, in both directions, on the calling thread.
+ * <p>Unlike {@link InputOutputs#duplex}, which needs a thread for each direction,
+ * the channels are switched to non-blocking mode and driven by a single {@link Selector}.
+ * <p>When one side closes its output, the other side's output is shut down once the pending bytes
+ * are written (half-close), while the opposite direction keeps flowing.
+ * The relay ends when both directions are done, on error or when there is no traffic for the idle timeout.
+ * <p>When a {@link DirectBufferPool} is provided, each direction borrows a direct buffer from it,
+ * so the bytes move between the two sockets without being copied through the Java heap.
+ * If the pool is exhausted, a heap buffer is used instead.
+ *
+ * @author Eugen Covaci
+ */
+public final class ChannelRelay {
+
+    private static final Logger logger = LoggerFactory.getLogger(ChannelRelay.class);
+
+    /**
+     * The total number of bytes relayed through direct buffers.
+     */
+    private static final LongAdder directBytes = new LongAdder();
+
+    /**
+     * The total number of bytes relayed through heap buffers.
+     */
+    private static final LongAdder heapBytes = new LongAdder();
+
+    private final SocketChannel first;
+
+    private final SocketChannel second;
+
+    private final int bufferSize;
+
+    private final DirectBufferPool bufferPool;
+
+    /**
+     * The maximum time without any traffic (milliseconds).
+     */
+    private final long idleTimeout;
+
+    private long firstToSecondBytes;
+
+    private long secondToFirstBytes;
+
+    /**
+     * Constructor.
+     *
+     * @param first       the first channel, in blocking mode.
+     * @param second      the second channel, in blocking mode.
+     * @param bufferSize  the size of the buffer used for each direction.
+     * @param idleTimeout the maximum time without any traffic (milliseconds), zero means no timeout.
+     */
+    public ChannelRelay(SocketChannel first, SocketChannel second, int bufferSize, long idleTimeout) {
+        this(first, second, bufferSize, null, idleTimeout);
+    }
+
+    /**
+     * Constructor.
+     *
+     * @param first       the first channel, in blocking mode.
+     * @param second      the second channel, in blocking mode.
+     * @param bufferPool  provides the direct buffers used for each direction.
+     * @param idleTimeout the maximum time without any traffic (milliseconds), zero means no timeout.
+     */
+    public ChannelRelay(SocketChannel first, SocketChannel second, DirectBufferPool bufferPool, long idleTimeout) {
+        this(first, second, bufferPool.getBufferSize(), bufferPool, idleTimeout);
+    }
+
+    private ChannelRelay(SocketChannel first, SocketChannel second, int bufferSize,
+                         DirectBufferPool bufferPool, long idleTimeout) {
+        Assert.notNull(first, "first cannot be null");
+        Assert.notNull(second, "second cannot be null");
+        Assert.isTrue(bufferSize > 0, "bufferSize must be positive");
+        this.first = first;
+        this.second = second;
+        this.bufferSize = bufferSize;
+        this.bufferPool = bufferPool;
+        this.idleTimeout = idleTimeout;
+    }
+
+    /**
+     * @return the total number of bytes relayed through direct buffers, that is, without heap copies.
+     */
+    public static long getDirectBytes() {
+        return directBytes.sum();
+    }
+
+    /**
+     * @return the total number of bytes relayed through heap buffers.
+     */
+    public static long getHeapBytes() {
+        return heapBytes.sum();
+    }
+
+    /**
+     * @return the number of bytes relayed from the first channel to the second one, once {@link #run()} returns.
+     */
+    public long getFirstToSecondBytes() {
+        return firstToSecondBytes;
+    }
+
+    /**
+     * @return the number of bytes relayed from the second channel to the first one, once {@link #run()} returns.
+     */
+    public long getSecondToFirstBytes() {
+        return secondToFirstBytes;
+    }
+
+    /**
+     * Check whether the sockets can be relayed by a {@link ChannelRelay}.
+     *
+     * @param sockets the sockets.
+     * @return {@code true} iff all the sockets have an associated {@link SocketChannel}.
+     */
+    public static boolean isSupported(Socket... sockets) {
+        for (Socket socket : sockets) {
+            if (socket == null || socket.getChannel() == null) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Relay the bytes until both directions are done.
+     * <p>Like {@link InputOutputs#duplex}, the errors (usually a connection reset) end the relay and are only logged.
+     * On return, the channels are left open and back in blocking mode, if possible.
+     */
+    public void run() {
+        logger.debug("Start channel relay");
+        Direction firstToSecond = new Direction(first, second);
+        Direction secondToFirst = new Direction(second, first);
+        try (Selector selector = Selector.open()) {
+            first.configureBlocking(false);
+            second.configureBlocking(false);
+            SelectionKey firstKey = first.register(selector, 0);
+            SelectionKey secondKey = second.register(selector, 0);
+            long lastActivity = System.currentTimeMillis();
+            while (!firstToSecond.isDone() || !secondToFirst.isDone()) {
+                boolean active = firstToSecond.pump() | secondToFirst.pump();
+                if (active) {
+                    lastActivity = System.currentTimeMillis();
+                    continue;
+                }
+                if (firstToSecond.isDone() && secondToFirst.isDone()) {
+                    break;
+                }
+                firstKey.interestOps(firstToSecond.readInterest() | secondToFirst.writeInterest());
+                secondKey.interestOps(secondToFirst.readInterest() | firstToSecond.writeInterest());
+                if (selector.select(idleTimeout) == 0
+                        && idleTimeout > 0
+                        && System.currentTimeMillis() - lastActivity >= idleTimeout) {
+                    logger.debug("Channel relay idle timeout");
+                    break;
+                }
+                selector.selectedKeys().clear();
+            }
+        } catch (IOException e) {
+            logger.debug("Error on channel relay", e);
+        } finally {
+            firstToSecond.releaseBuffer();
+            secondToFirst.releaseBuffer();
+            firstToSecondBytes = firstToSecond.relayed;
+            secondToFirstBytes = secondToFirst.relayed;
+            restoreBlocking(first);
+            restoreBlocking(second);
+        }
+        logger.debug("End channel relay");
+    }
+
+    private static void restoreBlocking(SocketChannel channel) {
+        if (channel.isOpen()) {
+            try {
+                // The selector is closed, so the channel is no longer registered
+                channel.configureBlocking(true);
+            } catch (Exception e) {
+                logger.debug("Cannot restore blocking mode", e);
+            }
+        }
+    }
+
+    /**
+     * A one way transfer between two channels.
+     */
+    private class Direction {
+
+        private final SocketChannel source;
+
+        private final SocketChannel target;
+
+        private final ByteBuffer buffer;
+
+        private final LongAdder transferred;
+
+        private long relayed;
+
+        private boolean eof;
+
+        private boolean outputShutdown;
+
+        Direction(SocketChannel source, SocketChannel target) {
+            this.source = source;
+            this.target = target;
+            ByteBuffer directBuffer = bufferPool != null ? bufferPool.acquire() : null;
+            if (directBuffer != null) {
+                this.buffer = directBuffer;
+                this.transferred = directBytes;
+            } else {
+                if (bufferPool != null) {
+                    logger.debug("Direct buffer pool exhausted, use a heap buffer");
+                }
+                this.buffer = ByteBuffer.allocate(bufferSize);
+                this.transferred = heapBytes;
+            }
+        }
+
+        /**
+         * Read from source and write to target, as much as possible without blocking.
+         *
+         * @return {@code true} iff any byte has been transferred.
+         * @throws IOException
+         */
+        boolean pump() throws IOException {
+            boolean active = false;
+            if (!eof && buffer.hasRemaining()) {
+                int read = source.read(buffer);
+                if (read == -1) {
+                    eof = true;
+                } else if (read > 0) {
+                    active = true;
+                }
+            }
+            if (buffer.position() > 0) {
+                buffer.flip();
+                int written = target.write(buffer);
+                buffer.compact();
+                if (written > 0) {
+                    transferred.add(written);
+                    relayed += written;
+                    active = true;
+                }
+            }
+            if (eof && buffer.position() == 0 && !outputShutdown) {
+                logger.debug("Half-close the target's output");
+                outputShutdown = true;
+                if (target.isOpen()) {
+                    target.shutdownOutput();
+                }
+            }
+            return active;
+        }
+
+        boolean isDone() {
+            return outputShutdown;
+        }
+
+        int readInterest() {
+            return !eof && buffer.hasRemaining() ? SelectionKey.OP_READ : 0;
+        }
+
+        int writeInterest() {
+            return buffer.position() > 0 ? SelectionKey.OP_WRITE : 0;
+        }
+
+        void releaseBuffer() {
+            if (buffer.isDirect()) {
+                bufferPool.release(buffer);
+            }
+        }
+    }
+
+}
@@ -0,0 +1,168 @@
+/*
+ * Copyright (c) 2020. Eugen Covaci
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and limitations under the License.
+ */
+
+package org.kpax.winfoom.util;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.util.Assert;
+
+import java.io.*;
+import java.net.SocketTimeoutException;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+
+/**
+ * An input and an output stream over a socket channel, to be used at the same time by two threads,
+ * like the ones of {@link InputOutputs#duplex}.
+ * <p>Up to JDK 12, the streams of a channel's socket adaptor share the channel's blocking lock:
+ * while a thread is blocked on reading, another one cannot write, so a full duplex relay stalls
+ * until the read times out. Here the channel is switched to non-blocking mode and each stream waits
+ * on its own {@link Selector}, so the reads and the writes never block each other.
+ * <p>The reads time out like the socket's ones, the writes wait for as long as it takes.
+ * A thread waiting on a stream is interruptible.
+ * <p>Closing this instance restores the blocking mode, without closing the channel.
+ *
+ * @author Eugen Covaci
+ */
+public final class ChannelStreams implements Closeable {
+
+    private static final Logger logger = LoggerFactory.getLogger(ChannelStreams.class);
+
+    private final SocketChannel channel;
+
+    private final Selector readSelector;
+
+    private final Selector writeSelector;
+
+    /**
+     * The read timeout (milliseconds), zero means no timeout.
+     */
+    private final long readTimeout;
+
+    private final InputStream inputStream = new InputStream() {
+        @Override
+        public int read() throws IOException {
+            byte[] b = new byte[1];
+            return read(b, 0, 1) == -1 ? -1 : b[0] & 0xff;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            return ChannelStreams.this.read(ByteBuffer.wrap(b, off, len));
+        }
+    };
+
+    private final OutputStream outputStream = new OutputStream() {
+        @Override
+        public void write(int b) throws IOException {
+            write(new byte[]{(byte) b}, 0, 1);
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            ChannelStreams.this.write(ByteBuffer.wrap(b, off, len));
+        }
+    };
+
+    /**
+     * Constructor.
+     *
+     * @param channel the connected channel, in blocking mode.
+     * @throws IOException on switching the channel to non-blocking mode.
+     */
+    public ChannelStreams(SocketChannel channel) throws IOException {
+        Assert.notNull(channel, "channel cannot be null");
+        this.channel = channel;
+        this.readTimeout = channel.socket().getSoTimeout();
+        Selector readSelector = null;
+        Selector writeSelector = null;
+        try {
+            readSelector = Selector.open();
+            writeSelector = Selector.open();
+            channel.configureBlocking(false);
+            channel.register(readSelector, SelectionKey.OP_READ);
+            channel.register(writeSelector, SelectionKey.OP_WRITE);
+        } catch (IOException e) {
+            InputOutputs.close(readSelector);
+            InputOutputs.close(writeSelector);
+            restoreBlocking();
+            throw e;
+        }
+        this.readSelector = readSelector;
+        this.writeSelector = writeSelector;
+    }
+
+    public InputStream getInputStream() {
+        return inputStream;
+    }
+
+    public OutputStream getOutputStream() {
+        return outputStream;
+    }
+
+    private int read(ByteBuffer buffer) throws IOException {
+        if (!buffer.hasRemaining()) {
+            return 0;
+        }
+        long deadline = System.currentTimeMillis() + readTimeout;
+        int length;
+        while ((length = channel.read(buffer)) == 0) {
+            long timeout = 0;
+            if (readTimeout > 0) {
+                timeout = deadline - System.currentTimeMillis();
+                if (timeout <= 0) {
+                    throw new SocketTimeoutException("Read timed out");
+                }
+            }
+            await(readSelector, timeout);
+        }
+        return length;
+    }
+
+    private void write(ByteBuffer buffer) throws IOException {
+        while (buffer.hasRemaining()) {
+            if (channel.write(buffer) == 0) {
+                await(writeSelector, 0);
+            }
+        }
+    }
+
+    private static void await(Selector selector, long timeout) throws IOException {
+        selector.select(timeout);
+        selector.selectedKeys().clear();
+        if (Thread.interrupted()) {
+            throw new InterruptedIOException("Interrupted while waiting for the channel");
+        }
+    }
+
+    private void restoreBlocking() {
+        if (channel.isOpen()) {
+            try {
+                // The selectors are closed, so the channel is no longer registered
+                channel.configureBlocking(true);
+            } catch (Exception e) {
+                logger.debug("Cannot restore blocking mode", e);
+            }
+        }
+    }
+
+    @Override
+    public void close() {
+        InputOutputs.close(readSelector);
+        InputOutputs.close(writeSelector);
+        restoreBlocking();
+    }
+
+}
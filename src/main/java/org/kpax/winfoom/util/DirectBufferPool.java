@@ -0,0 +1,108 @@
+/*
+ * Copyright (c) 2020. Eugen Covaci
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and limitations under the License.
+ */
+
+package org.kpax.winfoom.util;
+
+import org.springframework.util.Assert;
+
+import java.nio.ByteBuffer;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A pool of reusable direct {@link ByteBuffer}s, all of the same size.
+ * <p>The direct buffers are allocated lazily, up to a maximum total size.
+ * When the limit is reached and no buffer is free, {@link #acquire()} returns {@code null}
+ * and the caller is expected to fall back to a heap buffer.
+ *
+ * @author Eugen Covaci
+ */
+public final class DirectBufferPool {
+
+    private final int bufferSize;
+
+    private final long maxTotalSize;
+
+    private final Queue<ByteBuffer> freeBuffers = new ConcurrentLinkedQueue<>();
+
+    /**
+     * The total size of the allocated direct buffers.
+     */
+    private final AtomicLong allocatedSize = new AtomicLong();
+
+    /**
+     * Constructor.
+     *
+     * @param bufferSize   the size of each buffer (bytes).
+     * @param maxTotalSize the maximum total size of the allocated buffers (bytes).
+     */
+    public DirectBufferPool(int bufferSize, long maxTotalSize) {
+        Assert.isTrue(bufferSize > 0, "bufferSize must be positive");
+        Assert.isTrue(maxTotalSize >= 0, "maxTotalSize cannot be negative");
+        this.bufferSize = bufferSize;
+        this.maxTotalSize = maxTotalSize;
+    }
+
+    /**
+     * Take a buffer from the pool, allocating a new one if the limit allows it.
+     *
+     * @return a cleared direct buffer or {@code null} if the pool is exhausted.
+     */
+    public ByteBuffer acquire() {
+        ByteBuffer buffer = freeBuffers.poll();
+        if (buffer != null) {
+            return buffer;
+        }
+        long allocated;
+        do {
+            allocated = allocatedSize.get();
+            if (allocated + bufferSize > maxTotalSize) {
+                return null;
+            }
+        } while (!allocatedSize.compareAndSet(allocated, allocated + bufferSize));
+        return ByteBuffer.allocateDirect(bufferSize);
+    }
+
+    /**
+     * Give the buffer back to the pool.
+     *
+     * @param buffer a buffer obtained by {@link #acquire()}.
+     */
+    public void release(ByteBuffer buffer) {
+        Assert.isTrue(buffer.isDirect() && buffer.capacity() == bufferSize, "Not a buffer of this pool");
+        buffer.clear();
+        freeBuffers.offer(buffer);
+    }
+
+    /**
+     * @return the size of each buffer (bytes).
+     */
+    public int getBufferSize() {
+        return bufferSize;
+    }
+
+    /**
+     * @return the total size of the allocated direct buffers (bytes).
+     */
+    public long getAllocatedSize() {
+        return allocatedSize.get();
+    }
+
+    /**
+     * @return the number of allocated buffers waiting to be reused.
+     */
+    public int getFreeBufferCount() {
+        return freeBuffers.size();
+    }
+
+}
@@ -0,0 +1,50 @@
+/*
+ * Copyright (c) 2020. Eugen Covaci
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and limitations under the License.
+ */
+
+package org.kpax.winfoom.util;
+
+import com.sun.net.httpserver.HttpExchange;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Utility methods for the local endpoints served by the JDK's {@link com.sun.net.httpserver.HttpServer}.
+ */
+public class HttpExchanges {
+
+    private HttpExchanges() {
+    }
+
+    /**
+     * Send a text response.
+     * <p>Always send a body: the JDK's server resets a kept-alive connection
+     * after a response without one ({@code -1} length).
+     *
+     * @param exchange    the exchange.
+     * @param statusCode  the response's status code.
+     * @param contentType the value of the {@code Content-Type} header.
+     * @param text        the response's body.
+     * @throws IOException on writing the response.
+     */
+    public static void respond(HttpExchange exchange, int statusCode, String contentType, String text)
+            throws IOException {
+        byte[] body = text.getBytes(StandardCharsets.UTF_8);
+        exchange.getResponseHeaders().set("Content-Type", contentType);
+        exchange.sendResponseHeaders(statusCode, body.length);
+        try (OutputStream outputStream = exchange.getResponseBody()) {
+            outputStream.write(body);
+        }
+    }
+
+}
@@ -54,6 +54,11 @@ public final class HttpUtils {
      */
     public static final int MAX_HTTP_SUCCESS_CODE = 299;
 
+    /**
+     * The non-standard, but widely used, Proxy-Connection header.
+     */
+    public static final String PROXY_CONNECTION = "Proxy-Connection";
+
     private HttpUtils() {
     }
 
@@ -160,6 +165,59 @@ public final class HttpUtils {
         return getFirstHeaderValue(request, HttpHeaders.CONTENT_LENGTH).map(Long::parseLong).orElse(-1L);
     }
 
+    /**
+     * Check whether the request's body is chunk encoded.
+     *
+     * @param request the HTTP request.
+     * @return {@code true} iff the Transfer-Encoding header contains the chunked directive.
+     */
+    public static boolean isChunked(HttpRequest request) {
+        return getFirstHeaderValue(request, HttpHeaders.TRANSFER_ENCODING)
+                .map(value -> StringUtils.containsIgnoreCase(value, HTTP.CHUNK_CODING))
+                .orElse(false);
+    }
+
+    /**
+     * Check whether the client waits for a {@code 100 Continue} interim response before sending the request's body.
+     * <p>The expectation is ignored for HTTP/1.0 requests.
+     *
+     * @param request the HTTP request.
+     * @return {@code true} iff the Expect header's value is {@code 100-continue}.
+     */
+    public static boolean isExpectContinue(HttpRequest request) {
+        if (request.getRequestLine().getProtocolVersion().lessEquals(HttpVersion.HTTP_1_0)) {
+            return false;
+        }
+        return getFirstHeaderValue(request, HTTP.EXPECT_DIRECTIVE)
+                .map(value -> HTTP.EXPECT_CONTINUE.equalsIgnoreCase(value.trim()))
+                .orElse(false);
+    }
+
+    /**
+     * Check whether the client wants the connection kept open after this request.
+     * <p>Both {@code Connection} and {@code Proxy-Connection} headers are honored.
+     * Without any of them, the connection is persistent for HTTP/1.1 and above.
+     *
+     * @param request the HTTP request.
+     * @return {@code true} iff the connection should be kept open.
+     */
+    public static boolean isKeepAlive(HttpRequest request) {
+        boolean keepAlive = !request.getRequestLine().getProtocolVersion().lessEquals(HttpVersion.HTTP_1_0);
+        for (Header header : request.getAllHeaders()) {
+            if (HTTP.CONN_DIRECTIVE.equalsIgnoreCase(header.getName())
+                    || PROXY_CONNECTION.equalsIgnoreCase(header.getName())) {
+                for (String token : header.getValue().split(",")) {
+                    if (HTTP.CONN_CLOSE.equalsIgnoreCase(token.trim())) {
+                        return false;
+                    } else if (HTTP.CONN_KEEP_ALIVE.equalsIgnoreCase(token.trim())) {
+                        keepAlive = true;
+                    }
+                }
+            }
+        }
+        return keepAlive;
+    }
+
     /**
      * Create a {@link BasicHeader} instance.
      *
@@ -0,0 +1,98 @@
+/*
+ * Copyright (c) 2020. Eugen Covaci
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and limitations under the License.
+ */
+
+package org.kpax.winfoom.util;
+
+import org.kpax.winfoom.util.functional.SingletonSupplier;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.lang.reflect.Method;
+import java.util.Optional;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+
+/**
+ * Virtual threads support, when the JVM provides it.
+ * <p>The application is compiled for Java 11, so the virtual threads API is accessed by reflection.
+ *
+ * @author Eugen Covaci
+ */
+public final class VirtualThreads {
+
+    private static final Logger logger = LoggerFactory.getLogger(VirtualThreads.class);
+
+    /**
+     * Supplies the {@code Executors.newThreadPerTaskExecutor(ThreadFactory)} method, if available.
+     */
+    private static final SingletonSupplier<Optional<Method>> threadPerTaskExecutorMethod =
+            new SingletonSupplier<>(() -> {
+                try {
+                    return Optional.of(Executors.class.
+                            getMethod("newThreadPerTaskExecutor", ThreadFactory.class));
+                } catch (NoSuchMethodException e) {
+                    return Optional.empty();
+                }
+            });
+
+    private VirtualThreads() {
+    }
+
+    /**
+     * Create a {@link ThreadFactory} for virtual threads.
+     *
+     * @param namePrefix the threads name prefix.
+     * @return the {@link ThreadFactory} or empty if the JVM does not support virtual threads.
+     */
+    public static Optional<ThreadFactory> threadFactory(String namePrefix) {
+        try {
+            Class<?> builderClass = Class.forName("java.lang.Thread$Builder");
+            Object builder = Thread.class.getMethod("ofVirtual").invoke(null);
+            builder = builderClass.getMethod("name", String.class, long.class).invoke(builder, namePrefix, 1L);
+            return Optional.of((ThreadFactory) builderClass.getMethod("factory").invoke(builder));
+        } catch (Exception e) {
+            // Either missing or a preview feature not enabled
+            logger.debug("Virtual threads not available", e);
+            return Optional.empty();
+        }
+    }
+
+    /**
+     * Create an {@link ExecutorService} that starts a new virtual thread for each task.
+     *
+     * @param namePrefix the threads name prefix.
+     * @return the {@link ExecutorService} or empty if the JVM does not support virtual threads.
+     */
+    public static Optional<ExecutorService> newThreadPerTaskExecutor(String namePrefix) {
+        Optional<Method> method = threadPerTaskExecutorMethod.get();
+        if (method.isPresent()) {
+            Optional<ThreadFactory> threadFactory = threadFactory(namePrefix);
+            if (threadFactory.isPresent()) {
+                try {
+                    return Optional.of((ExecutorService) method.get().invoke(null, threadFactory.get()));
+                } catch (Exception e) {
+                    logger.debug("Cannot create virtual thread executor", e);
+                }
+            }
+        }
+        return Optional.empty();
+    }
+
+    /**
+     * @return {@code true} iff the JVM supports virtual threads.
+     */
+    public static boolean isSupported() {
+        return threadPerTaskExecutorMethod.get().isPresent() && threadFactory("probe-").isPresent();
+    }
+
+}
@@ -20,6 +20,8 @@ public interface TestConstants {
 
     int PROXY_PORT = 8100;
     int LOCAL_PROXY_PORT = 3128;
+    int METRICS_PORT = 8101;
+    int CONTROL_PORT = 8102;
     String USERNAME = "user";
     String PASSWORD = "pass";
 
@@ -0,0 +1,187 @@
+/*
+ * Copyright (c) 2020. Eugen Covaci
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and limitations under the License.
+ */
+
+package org.kpax.winfoom.headless;
+
+import org.apache.http.HttpHeaders;
+import org.apache.http.HttpHost;
+import org.apache.http.HttpStatus;
+import org.apache.http.client.methods.CloseableHttpResponse;
+import org.apache.http.client.methods.HttpGet;
+import org.apache.http.client.methods.HttpPost;
+import org.apache.http.client.methods.HttpUriRequest;
+import org.apache.http.entity.StringEntity;
+import org.apache.http.impl.bootstrap.HttpServer;
+import org.apache.http.impl.bootstrap.ServerBootstrap;
+import org.apache.http.impl.client.CloseableHttpClient;
+import org.apache.http.impl.client.HttpClients;
+import org.apache.http.util.EntityUtils;
+import org.junit.jupiter.api.*;
+import org.junit.jupiter.api.extension.ExtendWith;
+import org.kpax.winfoom.FoomApplicationTest;
+import org.kpax.winfoom.config.ProxyConfig;
+import org.kpax.winfoom.exception.InvalidProxySettingsException;
+import org.kpax.winfoom.proxy.ProxyContext;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.test.context.SpringBootTest;
+import org.springframework.boot.test.mock.mockito.MockBean;
+import org.springframework.test.annotation.DirtiesContext;
+import org.springframework.test.context.ActiveProfiles;
+import org.springframework.test.context.junit.jupiter.SpringExtension;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.jupiter.api.Assertions.*;
+import static org.kpax.winfoom.TestConstants.CONTROL_PORT;
+import static org.kpax.winfoom.TestConstants.LOCAL_PROXY_PORT;
+import static org.mockito.Mockito.when;
+
+@DirtiesContext(classMode = DirtiesContext.ClassMode.AFTER_CLASS)
+@ExtendWith(SpringExtension.class)
+@ActiveProfiles({"test", "headless"})
+@SpringBootTest(classes = FoomApplicationTest.class, properties = "headless.control.port=" + CONTROL_PORT)
+@TestInstance(TestInstance.Lifecycle.PER_CLASS)
+@Timeout(10)
+class HeadlessProxyControllerTests {
+
+    @MockBean
+    private ProxyConfig proxyConfig;
+
+    @Autowired
+    private ProxyContext proxyContext;
+
+    @Autowired
+    private HeadlessProxyController headlessProxyController;
+
+    @Autowired
+    private ControlEndpoint controlEndpoint;
+
+    private HttpServer remoteServer;
+
+    @BeforeAll
+    void beforeAll() throws Exception {
+        remoteServer = ServerBootstrap.bootstrap()
+                .setLocalAddress(InetAddress.getLoopbackAddress())
+                .registerHandler("*", (request, response, context) -> response.setEntity(new StringEntity("OK")))
+                .create();
+        remoteServer.start();
+        headlessProxyController.stop();
+    }
+
+    @BeforeEach
+    void beforeEach() {
+        when(proxyConfig.getLocalPort()).thenReturn(LOCAL_PROXY_PORT);
+        when(proxyConfig.getProxyType()).thenReturn(ProxyConfig.Type.DIRECT);
+        when(proxyConfig.getProxyTestUrl()).thenReturn("http://localhost:" + remoteServer.getLocalPort());
+    }
+
+    @AfterAll
+    void afterAll() {
+        when(proxyConfig.getProxyType()).thenReturn(ProxyConfig.Type.DIRECT);
+        headlessProxyController.stop();
+        remoteServer.shutdown(0, TimeUnit.SECONDS);
+    }
+
+    @Test
+    void control_StartStopReload_StatusReported() throws Exception {
+        try (CloseableHttpClient httpClient = HttpClients.createDefault()) {
+            String status = execute(httpClient, new HttpPost(ControlEndpoint.START_PATH), HttpStatus.SC_OK);
+            assertTrue(status.contains("state=running"), status);
+            assertTrue(status.contains("localPort=" + LOCAL_PROXY_PORT), status);
+            assertTrue(proxyContext.isRunning());
+
+            status = execute(httpClient, new HttpGet(ControlEndpoint.STATUS_PATH), HttpStatus.SC_OK);
+            assertTrue(status.contains("state=running"), status);
+            assertTrue(status.contains("proxyType=DIRECT"), status);
+
+            status = execute(httpClient, new HttpPost(ControlEndpoint.STOP_PATH), HttpStatus.SC_OK);
+            assertTrue(status.contains("state=stopped"), status);
+            assertFalse(proxyContext.isRunning());
+
+            status = execute(httpClient, new HttpPost(ControlEndpoint.RELOAD_PATH), HttpStatus.SC_OK);
+            assertTrue(status.contains("state=running"), status);
+            assertTrue(proxyContext.isRunning());
+        }
+    }
+
+    @Test
+    void control_WrongRequest_Rejected() throws Exception {
+        try (CloseableHttpClient httpClient = HttpClients.createDefault()) {
+            execute(httpClient, new HttpGet(ControlEndpoint.STOP_PATH), HttpStatus.SC_METHOD_NOT_ALLOWED);
+            execute(httpClient, new HttpPost(ControlEndpoint.STATUS_PATH), HttpStatus.SC_METHOD_NOT_ALLOWED);
+            execute(httpClient, new HttpGet("/other"), HttpStatus.SC_NOT_FOUND);
+        }
+    }
+
+    @Test
+    void control_NoTokenOrForeignRequest_Rejected() throws Exception {
+        try (CloseableHttpClient httpClient = HttpClients.createDefault()) {
+            HttpHost endpoint = new HttpHost(InetAddress.getLoopbackAddress(), CONTROL_PORT);
+
+            HttpGet noToken = new HttpGet(ControlEndpoint.STATUS_PATH);
+            assertStatus(httpClient.execute(endpoint, noToken), HttpStatus.SC_UNAUTHORIZED);
+
+            HttpGet wrongToken = new HttpGet(ControlEndpoint.STATUS_PATH);
+            wrongToken.setHeader(HttpHeaders.AUTHORIZATION, "Bearer wrong");
+            assertStatus(httpClient.execute(endpoint, wrongToken), HttpStatus.SC_UNAUTHORIZED);
+
+            HttpPost withOrigin = authorized(new HttpPost(ControlEndpoint.STOP_PATH));
+            withOrigin.setHeader("Origin", "http://attacker.test");
+            assertStatus(httpClient.execute(endpoint, withOrigin), HttpStatus.SC_FORBIDDEN);
+
+            HttpPost foreignHost = authorized(new HttpPost(ControlEndpoint.STOP_PATH));
+            foreignHost.setHeader(HttpHeaders.HOST, "attacker.test:" + CONTROL_PORT);
+            assertStatus(httpClient.execute(endpoint, foreignHost), HttpStatus.SC_FORBIDDEN);
+        }
+    }
+
+    @Test
+    void start_InvalidSettings_ErrorReported() {
+        headlessProxyController.stop();
+        when(proxyConfig.getLocalPort()).thenReturn(0);
+        assertThrows(InvalidProxySettingsException.class, () -> headlessProxyController.start());
+        assertFalse(proxyContext.isRunning());
+        String status = headlessProxyController.getStatus();
+        assertTrue(status.contains("state=stopped"), status);
+        assertTrue(status.contains("lastError=Fill in a valid local proxy port"), status);
+    }
+
+    private String execute(CloseableHttpClient httpClient, HttpUriRequest request, int expectedStatus)
+            throws IOException {
+        HttpHost endpoint = new HttpHost(InetAddress.getLoopbackAddress(), CONTROL_PORT);
+        try (CloseableHttpResponse response = httpClient.execute(endpoint, authorized(request))) {
+            assertEquals(expectedStatus, response.getStatusLine().getStatusCode());
+            return response.getEntity() != null ? EntityUtils.toString(response.getEntity()) : "";
+        }
+    }
+
+    private static void assertStatus(CloseableHttpResponse response, int expectedStatus) throws IOException {
+        try (response) {
+            assertEquals(expectedStatus, response.getStatusLine().getStatusCode());
+            EntityUtils.consume(response.getEntity());
+        }
+    }
+
+    /**
+     * Add the token, as read from the token file.
+     */
+    private <T extends HttpUriRequest> T authorized(T request) throws IOException {
+        String token = new String(Files.readAllBytes(controlEndpoint.getTokenFile()), StandardCharsets.US_ASCII);
+        request.setHeader(HttpHeaders.AUTHORIZATION, "Bearer " + token);
+        return request;
+    }
+
+}
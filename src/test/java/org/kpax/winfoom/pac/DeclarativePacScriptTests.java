@@ -0,0 +1,141 @@
+/*
+ * Copyright (c) 2020. Eugen Covaci
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and limitations under the License.
+ */
+
+package org.kpax.winfoom.pac;
+
+import org.apache.commons.io.IOUtils;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.TestInstance;
+import org.junit.jupiter.api.extension.ExtendWith;
+import org.kpax.winfoom.FoomApplicationTest;
+import org.kpax.winfoom.config.ProxyConfig;
+import org.kpax.winfoom.util.HttpUtils;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.test.context.SpringBootTest;
+import org.springframework.boot.test.mock.mockito.MockBean;
+import org.springframework.test.annotation.DirtiesContext;
+import org.springframework.test.context.ActiveProfiles;
+import org.springframework.test.context.junit.jupiter.SpringExtension;
+
+import javax.script.Invocable;
+import javax.script.ScriptEngine;
+import javax.script.ScriptEngineManager;
+import java.net.URI;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Objects;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * Check that the natively evaluated PAC scripts give the same results as the script engine.
+ */
+@DirtiesContext(classMode = DirtiesContext.ClassMode.AFTER_CLASS)
+@SpringBootTest(classes = FoomApplicationTest.class)
+@ExtendWith(SpringExtension.class)
+@ActiveProfiles("test")
+@TestInstance(TestInstance.Lifecycle.PER_CLASS)
+class DeclarativePacScriptTests {
+
+    /**
+     * The IP hosts are resolved without any DNS lookup.
+     */
+    private static final List<String> URLS = Arrays.asList(
+            "http://www.localdomain.com/path",
+            "http://localdomain.com/folder/file",
+            "http://localdomain.com/other",
+            "http://www.localdomain.org/",
+            "ftp://ftp.example.com/file",
+            "http://intranet/home",
+            "http://server.local/",
+            "http://10.1.2.3/",
+            "http://172.16.5.6:8080/",
+            "http://172.32.0.1/",
+            "http://192.168.1.1/",
+            "http://127.0.0.1/",
+            "http://8.8.8.8/",
+            "https://1.1.1.1:443/");
+
+    @MockBean
+    private ProxyConfig proxyConfig;
+
+    @Autowired
+    private DefaultPacHelperMethods pacHelperMethods;
+
+    @Test
+    void compile_DeclarativeScripts_SameResultsAsScriptEngine() throws Exception {
+        for (String pacFile : Arrays.asList("proxy-complex.pac", "proxy-simple.pac", "proxy-simple-http.pac",
+                "proxy-simple-socks4.pac", "proxy-simple-socks4-http.pac", "proxy-simple-http-socks4.pac",
+                "proxy-simple-null.pac")) {
+            assertSameResults(readResource(pacFile));
+        }
+    }
+
+    @Test
+    void compile_AllSupportedConstructs_SameResultsAsScriptEngine() throws Exception {
+        assertSameResults("/* All the supported constructs */\n" +
+                "function FindProxyForURL(url, host) {\n" +
+                "    if (localHostOrDomainIs(host, 'intranet.localdomain.com') && !isPlainHostName(host)) {\n" +
+                "        return 'PROXY 1.1.1.1:80';\n" +
+                "    } else if (host === '8.8.8.8' || dnsResolve(host) == \"1.1.1.1\") {\n" +
+                "        return \"SOCKS 2.2.2.2:1080\";\n" +
+                "    } else if (url.substring(0, 6) != 'https:' && (shExpMatch(host, '*.local')\n" +
+                "            || isInNet(host, '172.16.0.0', '255.240.0.0'))) {\n" +
+                "        ;\n" +
+                "        return null;\n" +
+                "    }\n" +
+                "    // Fallback\n" +
+                "    return 'DIRECT';\n" +
+                "}\n");
+    }
+
+    @Test
+    void compile_NonDeclarativeScripts_Empty() throws Exception {
+        assertFalse(DeclarativePacScript.compile(readResource("proxy-simple-all-helpers.pac"), pacHelperMethods).isPresent());
+        assertFalse(DeclarativePacScript.compile(readResource("proxy-invalid.pac"), pacHelperMethods).isPresent());
+        assertFalse(DeclarativePacScript.compile("function FindProxyForURL(url, host) {\n" +
+                "    var proxy = 'DIRECT';\n" +
+                "    return proxy;\n" +
+                "}", pacHelperMethods).isPresent());
+        assertFalse(DeclarativePacScript.compile("function FindProxyForURL(url, host) {\n" +
+                "    if (isPlainHostName(host)) return 'DIRECT';\n" +
+                "}", pacHelperMethods).isPresent());
+    }
+
+    private void assertSameResults(String pacSource) throws Exception {
+        DeclarativePacScript declarativePacScript = DeclarativePacScript.compile(pacSource, pacHelperMethods)
+                .orElseThrow(() -> new AssertionError("Not compiled: " + pacSource));
+        Invocable scriptEngine = createScriptEngine(pacSource);
+        for (String url : URLS) {
+            URI uri = new URI(url);
+            String strippedUrl = HttpUtils.toStrippedURLStr(uri);
+            String expected = Objects.toString(
+                    scriptEngine.invokeFunction(PacScriptEvaluator.STANDARD_PAC_MAIN_FUNCTION, strippedUrl, uri.getHost()),
+                    null);
+            assertEquals(expected, declarativePacScript.findProxyForURL(strippedUrl, uri.getHost()), url);
+        }
+    }
+
+    private Invocable createScriptEngine(String pacSource) throws Exception {
+        ScriptEngine engine = new ScriptEngineManager().getEngineByName("Nashorn");
+        engine.eval(pacSource);
+        ((Invocable) engine).invokeMethod(engine.eval(readResource("javascript/pacFunctions.js")),
+                "call", null, pacHelperMethods);
+        return (Invocable) engine;
+    }
+
+    private String readResource(String name) throws Exception {
+        return IOUtils.toString(getClass().getClassLoader().getResourceAsStream(name), StandardCharsets.UTF_8);
+    }
+
+}
@@ -0,0 +1,121 @@
+/*
+ * Copyright (c) 2020. Eugen Covaci
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and limitations under the License.
+ */
+
+package org.kpax.winfoom.pac;
+
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.TestInstance;
+import org.junit.jupiter.api.Timeout;
+import org.junit.jupiter.api.extension.ExtendWith;
+import org.kpax.winfoom.FoomApplicationTest;
+import org.kpax.winfoom.config.ProxyConfig;
+import org.kpax.winfoom.proxy.ProxyInfo;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.test.context.SpringBootTest;
+import org.springframework.boot.test.mock.mockito.MockBean;
+import org.springframework.context.annotation.Lazy;
+import org.springframework.test.annotation.DirtiesContext;
+import org.springframework.test.context.ActiveProfiles;
+import org.springframework.test.context.junit.jupiter.SpringExtension;
+
+import java.io.IOException;
+import java.net.URI;
+import java.util.*;
+import java.util.concurrent.*;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.mockito.Mockito.when;
+
+/**
+ * Stress the PAC script engine pool: the results of the concurrent evaluations
+ * must match the results of the sequential, single engine, evaluations.
+ */
+@DirtiesContext(classMode = DirtiesContext.ClassMode.AFTER_CLASS)
+@SpringBootTest(classes = FoomApplicationTest.class,
+        properties = {"pac.cache.ttl=0", "pac.engine.poolSize=4", "pac.native.enabled=false"})
+@ExtendWith(SpringExtension.class)
+@ActiveProfiles("test")
+@TestInstance(TestInstance.Lifecycle.PER_CLASS)
+@Timeout(60)
+class DefaultPacScriptEvaluatorConcurrencyTests {
+
+    private static final int THREADS = 16;
+
+    private static final int ROUNDS = 50;
+
+    /**
+     * The IP hosts are resolved without any DNS lookup.
+     */
+    private static final List<String> URLS = Arrays.asList(
+            "http://www.localdomain.com/path",
+            "http://localdomain.com/folder/file",
+            "ftp://ftp.example.com/file",
+            "http://intranet/home",
+            "http://server.local/",
+            "http://10.1.2.3/",
+            "http://172.16.5.6:8080/",
+            "http://192.168.1.1/",
+            "http://127.0.0.1/",
+            "http://8.8.8.8/",
+            "https://1.1.1.1:443/");
+
+    @MockBean
+    private ProxyConfig proxyConfig;
+
+    @Lazy
+    @Autowired
+    private PacScriptEvaluator pacScriptEvaluator;
+
+    @BeforeEach
+    void beforeEach() throws IOException {
+        when(proxyConfig.getProxyPacFileLocationAsURL()).
+                thenReturn(getClass().getClassLoader().getResource("proxy-complex.pac"));
+    }
+
+    @Test
+    void findProxyForURL_ConcurrentEvaluations_SameResultsAsSequential() throws Exception {
+        // Sequential calls always get the same engine back
+        Map<String, List<ProxyInfo>> expected = new HashMap<>();
+        for (String url : URLS) {
+            expected.put(url, pacScriptEvaluator.findProxyForURL(new URI(url)));
+        }
+
+        ExecutorService executorService = Executors.newFixedThreadPool(THREADS);
+        try {
+            CountDownLatch start = new CountDownLatch(1);
+            List<Future<Map<String, List<ProxyInfo>>>> futures = new ArrayList<>();
+            for (int i = 0; i < THREADS; i++) {
+                int offset = i;
+                futures.add(executorService.submit(() -> {
+                    start.await();
+                    Map<String, List<ProxyInfo>> mismatches = new HashMap<>();
+                    for (int round = 0; round < ROUNDS; round++) {
+                        String url = URLS.get((offset + round) % URLS.size());
+                        List<ProxyInfo> actual = pacScriptEvaluator.findProxyForURL(new URI(url));
+                        if (!expected.get(url).equals(actual)) {
+                            mismatches.put(url, actual);
+                        }
+                    }
+                    return mismatches;
+                }));
+            }
+            start.countDown();
+            for (Future<Map<String, List<ProxyInfo>>> future : futures) {
+                assertEquals(Collections.emptyMap(), future.get());
+            }
+        } finally {
+            executorService.shutdownNow();
+        }
+    }
+
+}
@@ -0,0 +1,157 @@
+/*
+ * Copyright (c) 2020. Eugen Covaci
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and limitations under the License.
+ */
+
+package org.kpax.winfoom.pac;
+
+import com.sun.net.httpserver.HttpServer;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.Timeout;
+import org.junit.jupiter.api.extension.ExtendWith;
+import org.junit.jupiter.api.io.TempDir;
+import org.kpax.winfoom.FoomApplicationTest;
+import org.kpax.winfoom.config.ProxyConfig;
+import org.kpax.winfoom.proxy.ProxyInfo;
+import org.kpax.winfoom.util.HttpUtils;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.test.context.SpringBootTest;
+import org.springframework.boot.test.mock.mockito.MockBean;
+import org.springframework.context.annotation.Lazy;
+import org.springframework.test.annotation.DirtiesContext;
+import org.springframework.test.context.ActiveProfiles;
+import org.springframework.test.context.junit.jupiter.SpringExtension;
+
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.URI;
+import java.net.URL;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.FileTime;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import static org.mockito.Mockito.when;
+
+/**
+ * Check that a changed PAC file replaces the current script, while a failed refresh keeps it.
+ */
+@DirtiesContext(classMode = DirtiesContext.ClassMode.AFTER_CLASS)
+@SpringBootTest(classes = FoomApplicationTest.class, properties = {"pac.refresh.interval=1"})
+@ExtendWith(SpringExtension.class)
+@ActiveProfiles("test")
+@Timeout(60)
+class DefaultPacScriptEvaluatorRefreshTests {
+
+    private static final String FIRST_SCRIPT = "function FindProxyForURL(url, host) { return \"PROXY first:3128\"; }";
+
+    /**
+     * Not declarative, so it is evaluated by the script engines.
+     */
+    private static final String SECOND_SCRIPT = "var proxy = \"PROXY second:3128\";\n" +
+            "function FindProxyForURL(url, host) { return proxy; }";
+
+    private static final String INVALID_SCRIPT = "function FindProxyForURL(url, host) { return ";
+
+    private static final URI TEST_URI = URI.create("http://www.example.com/path");
+
+    @MockBean
+    private ProxyConfig proxyConfig;
+
+    @Lazy
+    @Autowired
+    private DefaultPacScriptEvaluator pacScriptEvaluator;
+
+    @AfterEach
+    void afterEach() throws Exception {
+        pacScriptEvaluator.close();
+    }
+
+    @Test
+    void refresh_FileModified_ScriptReplacedUnlessInvalid(@TempDir Path tempDir) throws Exception {
+        Path pacFile = tempDir.resolve("proxy.pac");
+        Files.write(pacFile, FIRST_SCRIPT.getBytes(StandardCharsets.UTF_8));
+        Files.setLastModifiedTime(pacFile, FileTime.fromMillis(System.currentTimeMillis() - 60_000));
+        when(proxyConfig.getProxyPacFileLocationAsURL()).thenReturn(pacFile.toUri().toURL());
+        assertEquals(proxyLine("PROXY first:3128"), pacScriptEvaluator.findProxyForURL(TEST_URI));
+
+        // The cached result is dropped along with the replaced script
+        Files.write(pacFile, SECOND_SCRIPT.getBytes(StandardCharsets.UTF_8));
+        Files.setLastModifiedTime(pacFile, FileTime.fromMillis(System.currentTimeMillis() - 30_000));
+        awaitProxyLine("PROXY second:3128");
+
+        Files.write(pacFile, INVALID_SCRIPT.getBytes(StandardCharsets.UTF_8));
+        Files.setLastModifiedTime(pacFile, FileTime.fromMillis(System.currentTimeMillis()));
+        TimeUnit.SECONDS.sleep(3);
+        assertEquals(proxyLine("PROXY second:3128"), pacScriptEvaluator.findProxyForURL(TEST_URI));
+    }
+
+    @Test
+    void refresh_HttpLocation_ConditionalRequests() throws Exception {
+        AtomicReference<String> script = new AtomicReference<>(FIRST_SCRIPT);
+        AtomicInteger version = new AtomicInteger(1);
+        AtomicInteger notModifiedCount = new AtomicInteger();
+        HttpServer server = HttpServer.create(new InetSocketAddress("localhost", 0), 0);
+        server.createContext("/proxy.pac", exchange -> {
+            String etag = "\"v" + version.get() + "\"";
+            if (etag.equals(exchange.getRequestHeaders().getFirst("If-None-Match"))) {
+                notModifiedCount.incrementAndGet();
+                exchange.sendResponseHeaders(304, -1);
+            } else {
+                byte[] body = script.get().getBytes(StandardCharsets.UTF_8);
+                exchange.getResponseHeaders().set("ETag", etag);
+                exchange.sendResponseHeaders(200, body.length);
+                try (OutputStream outputStream = exchange.getResponseBody()) {
+                    outputStream.write(body);
+                }
+            }
+            exchange.close();
+        });
+        server.start();
+        try {
+            when(proxyConfig.getProxyPacFileLocationAsURL()).
+                    thenReturn(new URL("http://localhost:" + server.getAddress().getPort() + "/proxy.pac"));
+            assertEquals(proxyLine("PROXY first:3128"), pacScriptEvaluator.findProxyForURL(TEST_URI));
+            long deadline = System.currentTimeMillis() + 10_000;
+            while (notModifiedCount.get() == 0 && System.currentTimeMillis() < deadline) {
+                TimeUnit.MILLISECONDS.sleep(100);
+            }
+            assertTrue(notModifiedCount.get() > 0, "No conditional request");
+
+            script.set(SECOND_SCRIPT);
+            version.incrementAndGet();
+            awaitProxyLine("PROXY second:3128");
+        } finally {
+            server.stop(0);
+        }
+    }
+
+    private void awaitProxyLine(String expected) throws Exception {
+        long deadline = System.currentTimeMillis() + 10_000;
+        List<ProxyInfo> actual = pacScriptEvaluator.findProxyForURL(TEST_URI);
+        while (!proxyLine(expected).equals(actual) && System.currentTimeMillis() < deadline) {
+            TimeUnit.MILLISECONDS.sleep(100);
+            actual = pacScriptEvaluator.findProxyForURL(TEST_URI);
+        }
+        assertEquals(proxyLine(expected), actual);
+    }
+
+    private static List<ProxyInfo> proxyLine(String proxyLine) {
+        return HttpUtils.parsePacProxyLine(proxyLine);
+    }
+
+}
@@ -0,0 +1,174 @@
+/*
+ * Copyright (c) 2020. Eugen Covaci
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and limitations under the License.
+ */
+
+package org.kpax.winfoom.pac;
+
+import org.junit.jupiter.api.*;
+import org.junit.jupiter.api.extension.ExtendWith;
+import org.kpax.winfoom.FoomApplicationTest;
+import org.kpax.winfoom.config.ProxyConfig;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.test.context.SpringBootTest;
+import org.springframework.boot.test.mock.mockito.MockBean;
+import org.springframework.test.annotation.DirtiesContext;
+import org.springframework.test.context.ActiveProfiles;
+import org.springframework.test.context.junit.jupiter.SpringExtension;
+import org.springframework.test.util.ReflectionTestUtils;
+
+import java.net.InetAddress;
+import java.net.UnknownHostException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.LongSupplier;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+@DirtiesContext(classMode = DirtiesContext.ClassMode.AFTER_CLASS)
+@SpringBootTest(classes = FoomApplicationTest.class,
+        properties = {"dns.cache.ttl=1", "dns.cache.negativeTtl=60", "dns.cache.staleTtl=60"})
+@ExtendWith(SpringExtension.class)
+@ActiveProfiles("test")
+@TestInstance(TestInstance.Lifecycle.PER_CLASS)
+@Timeout(10)
+class DnsResolverCacheTests {
+
+    private static final String KNOWN_HOST = "known.example.com";
+
+    private static final String UNKNOWN_HOST = "unknown.example.com";
+
+    @MockBean
+    private ProxyConfig proxyConfig;
+
+    @Autowired
+    private DnsResolverCache dnsResolverCache;
+
+    private final AtomicInteger lookupCount = new AtomicInteger();
+
+    private volatile CountDownLatch lookupLatch = new CountDownLatch(0);
+
+    /**
+     * The fake clock of the cache, advanced by the tests.
+     */
+    private final AtomicLong nanoTime = new AtomicLong();
+
+    @BeforeAll
+    void beforeAll() {
+        ReflectionTestUtils.setField(dnsResolverCache, "nanoClock", (LongSupplier) nanoTime::get);
+        ReflectionTestUtils.setField(dnsResolverCache, "hostLookup", (DnsResolverCache.HostLookup) host -> {
+            lookupCount.incrementAndGet();
+            try {
+                lookupLatch.await();
+            } catch (InterruptedException e) {
+                throw new UnknownHostException(host);
+            }
+            if (host.startsWith("unknown")) {
+                throw new UnknownHostException(host);
+            }
+            return new InetAddress[]{InetAddress.getByAddress(host, new byte[]{10, 0, 0, (byte) lookupCount.get()})};
+        });
+    }
+
+    @BeforeEach
+    void beforeEach() {
+        dnsResolverCache.clear();
+        lookupCount.set(0);
+        lookupLatch = new CountDownLatch(0);
+        nanoTime.set(0);
+    }
+
+    @Test
+    void resolve_ConcurrentCalls_SingleLookup() throws Exception {
+        int threads = 8;
+        long misses = dnsResolverCache.getMisses();
+        long lookups = dnsResolverCache.getLookups();
+        lookupLatch = new CountDownLatch(1);
+        ExecutorService executorService = Executors.newFixedThreadPool(threads);
+        try {
+            List<Future<List<InetAddress>>> futures = new ArrayList<>();
+            for (int i = 0; i < threads; i++) {
+                futures.add(executorService.submit(() -> dnsResolverCache.resolve(KNOWN_HOST, null)));
+            }
+
+            // Release the lookup only when all the callers are waiting for it
+            while (dnsResolverCache.getMisses() - misses < threads) {
+                Thread.sleep(10);
+            }
+            Thread.sleep(100);
+            lookupLatch.countDown();
+            for (Future<List<InetAddress>> future : futures) {
+                assertEquals("10.0.0.1", future.get().get(0).getHostAddress());
+            }
+            assertEquals(1, lookupCount.get());
+            assertEquals(1, dnsResolverCache.getLookups() - lookups);
+        } finally {
+            executorService.shutdownNow();
+        }
+    }
+
+    @Test
+    void resolve_UnknownHost_NegativeCached() {
+        assertThrows(UnknownHostException.class, () -> dnsResolverCache.resolve(UNKNOWN_HOST, null));
+        assertThrows(UnknownHostException.class, () -> dnsResolverCache.resolve(UNKNOWN_HOST, null));
+        assertEquals(1, lookupCount.get());
+
+        // Looked up again once the negative TTL (60 seconds) has passed
+        nanoTime.addAndGet(TimeUnit.SECONDS.toNanos(60));
+        assertThrows(UnknownHostException.class, () -> dnsResolverCache.resolve(UNKNOWN_HOST, null));
+        assertEquals(2, lookupCount.get());
+    }
+
+    @Test
+    void resolve_ExpiredEntry_StaleThenRefreshed() throws Exception {
+        assertEquals("10.0.0.1", dnsResolverCache.resolve(KNOWN_HOST, null).get(0).getHostAddress());
+
+        // Still fresh just before the TTL (1 second), then stale
+        nanoTime.addAndGet(TimeUnit.MILLISECONDS.toNanos(999));
+        long hits = dnsResolverCache.getHits();
+        assertEquals("10.0.0.1", dnsResolverCache.resolve(KNOWN_HOST, null).get(0).getHostAddress());
+        assertEquals(hits + 1, dnsResolverCache.getHits());
+        nanoTime.addAndGet(TimeUnit.MILLISECONDS.toNanos(1));
+
+        // The stale value is returned while refreshing in background
+        long staleHits = dnsResolverCache.getStaleHits();
+        assertEquals("10.0.0.1", dnsResolverCache.resolve(KNOWN_HOST, null).get(0).getHostAddress());
+        assertEquals(staleHits + 1, dnsResolverCache.getStaleHits());
+        while (!"10.0.0.2".equals(dnsResolverCache.resolve(KNOWN_HOST, null).get(0).getHostAddress())) {
+            Thread.sleep(50);
+        }
+        assertEquals(2, lookupCount.get());
+    }
+
+    @Test
+    void resolve_AfterClear_NewLookup() throws Exception {
+        dnsResolverCache.resolve(KNOWN_HOST, null);
+        long hits = dnsResolverCache.getHits();
+        dnsResolverCache.resolve(KNOWN_HOST, null);
+        assertEquals(hits + 1, dnsResolverCache.getHits());
+        assertEquals(1, lookupCount.get());
+
+        dnsResolverCache.clear();
+        dnsResolverCache.resolve(KNOWN_HOST, null);
+        assertEquals(2, lookupCount.get());
+    }
+
+    @Test
+    void resolve_IpAddress_NoLookup() throws Exception {
+        assertEquals(Collections.singletonList(InetAddress.getByName("192.168.1.1")),
+                dnsResolverCache.resolve("192.168.1.1", null));
+        assertEquals(0, lookupCount.get());
+    }
+
+}
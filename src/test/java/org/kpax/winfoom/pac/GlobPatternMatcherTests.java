@@ -14,11 +14,46 @@ package org.kpax.winfoom.pac;
 
 import org.junit.jupiter.api.Assertions;
 import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.extension.ExtendWith;
+import org.kpax.winfoom.config.SystemConfig;
+import org.mockito.InjectMocks;
+import org.mockito.Mock;
+import org.mockito.junit.jupiter.MockitoExtension;
 
 import java.util.regex.Pattern;
 
+import static org.mockito.Mockito.when;
+
+@ExtendWith(MockitoExtension.class)
 public class GlobPatternMatcherTests {
 
+    @Mock
+    private SystemConfig systemConfig;
+
+    @InjectMocks
+    private GlobPatternMatcher globPatternMatcher;
+
+    @Test
+    void toGlobPattern_SameGlob_Precompiled() {
+        when(systemConfig.getCacheGlobPatternCapacity()).thenReturn(10);
+        Assertions.assertSame(globPatternMatcher.toGlobPattern("*.example.com"),
+                globPatternMatcher.toGlobPattern("*.example.com"));
+        Assertions.assertSame(globPatternMatcher.toPattern("*.example.com"),
+                globPatternMatcher.toPattern("*.example.com"));
+    }
+
+    @Test
+    void toGlobPattern_CapacityReached_CompiledEveryTime() {
+        when(systemConfig.getCacheGlobPatternCapacity()).thenReturn(1);
+        GlobPattern first = globPatternMatcher.toGlobPattern("*.example.com");
+        GlobPattern second = globPatternMatcher.toGlobPattern("*.example.org");
+        Assertions.assertNotSame(second, globPatternMatcher.toGlobPattern("*.example.org"));
+        Assertions.assertTrue(second.matches("www.example.org"));
+
+        // The patterns already compiled are kept
+        Assertions.assertSame(first, globPatternMatcher.toGlobPattern("*.example.com"));
+    }
+
     @Test
     void convertGlobToRegEx_StartWithStar_Matches () {
         Pattern pattern = Pattern.compile(GlobPatternMatcher.convertGlobToRegEx("*.java"));
@@ -0,0 +1,126 @@
+/*
+ * Copyright (c) 2020. Eugen Covaci
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and limitations under the License.
+ */
+
+package org.kpax.winfoom.pac;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+import java.util.regex.Pattern;
+import java.util.regex.PatternSyntaxException;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * Check that {@link GlobPattern} and {@link GlobPatternSet} match like the regular expressions
+ * created by {@link GlobPatternMatcher#convertGlobToRegEx(String)}.
+ */
+class GlobPatternTests {
+
+    private static final List<String> GLOBS = Arrays.asList(
+            "", "*", "**", "?", "*.localdomain.com", "(*.localdomain.com)", "http://localdomain.com/folder/*",
+            "www.example.com", "*.example.*", "a?c", "a*b*c", "*a*a*a*", "[abc]x", "[!abc]x", "[^abc]x", "[a-c]*",
+            "[-a]", "[a-]", "[.\\\\]", "x(ab|cd|)y", "(a|b)(c|d)*", "a\\b", "a!b", "  *.padded.com  ",
+            // Left to the regular expression
+            "a+", "x{2}", "((a))", "^a", "a$", "a|b", "[a&&b]", "[a-c-e]", "[a*]", "[a?]", "[!*]x", "*.([a*]|b)",
+            "[*-a]");
+
+    private static final List<String> INPUTS = Arrays.asList(
+            "", "a", "ab", "abc", "aaa", "aXbYc", "www.localdomain.com", "localdomain.com", ".localdomain.com",
+            "http://localdomain.com/folder/file", "www.example.com", "www.example.org", "bx", "dx", "-", "x",
+            ".", "\\", "xaby", "xy", "xcdy", "acd", "bdd", "a\\b", "a!b", "www.padded.com", "aa", "xx", "a\nb",
+            "\n", "😀", "a😀c", "1", "{", "x..", "*", "?", "*x");
+
+    @Test
+    void matches_KnownGlobs_SameAsRegex() {
+        for (String glob : GLOBS) {
+            assertSameMatches(glob, INPUTS);
+        }
+    }
+
+    @Test
+    void matches_RandomGlobs_SameAsRegex() {
+        String[] globParts = {"a", "b", ".", "*", "?", "[ab]", "[!a]", "[a-b]", "(a|b*)", "(|.)", "[a*]", "[?b]",
+                "[!*]"};
+        String[] inputParts = {"a", "b", "c", ".", "\n", "*", "?"};
+        Random random = new Random(42);
+        for (int i = 0; i < 2000; i++) {
+            StringBuilder glob = new StringBuilder();
+            for (int j = random.nextInt(6); j >= 0; j--) {
+                glob.append(globParts[random.nextInt(globParts.length)]);
+            }
+            List<String> inputs = new ArrayList<>();
+            for (int k = 0; k < 20; k++) {
+                StringBuilder input = new StringBuilder();
+                for (int j = random.nextInt(8); j > 0; j--) {
+                    input.append(inputParts[random.nextInt(inputParts.length)]);
+                }
+                inputs.add(input.toString());
+            }
+            assertSameMatches(glob.toString(), inputs);
+        }
+    }
+
+    @Test
+    void compile_InvalidRegexFallback_Throws() {
+        assertThrows(PatternSyntaxException.class, () -> GlobPattern.compile("[b-a]"));
+        assertThrows(PatternSyntaxException.class, () -> GlobPattern.compile("a)"));
+    }
+
+    @Test
+    void compile_CommonGlobs_NoRegexFallback() {
+        for (String glob : Arrays.asList("*.localdomain.com", "(*.localdomain.com)", "[a-c]*", "x(ab|cd|)y")) {
+            assertNotNull(GlobPattern.compile(glob).getAlternatives(), glob);
+        }
+        assertNull(GlobPattern.compile("a+").getAlternatives());
+    }
+
+    @Test
+    void matchesAny_AllGlobs_SameAsAnyRegex() {
+        GlobPatternSet patternSet = new GlobPatternSet();
+        List<Pattern> regexPatterns = new ArrayList<>();
+        for (String glob : GLOBS) {
+            patternSet.add(glob);
+            regexPatterns.add(Pattern.compile(GlobPatternMatcher.convertGlobToRegEx(glob.trim())));
+        }
+        assertEquals(GLOBS.size(), patternSet.size());
+        for (String input : INPUTS) {
+            assertEquals(regexPatterns.stream().anyMatch(pattern -> pattern.matcher(input).matches()),
+                    patternSet.matchesAny(input), input);
+        }
+    }
+
+    @Test
+    void matchesAny_EachGlobAlone_SameAsRegex() {
+        for (String glob : GLOBS) {
+            GlobPatternSet patternSet = new GlobPatternSet().addAll(new GlobPatternSet().add(glob));
+            Pattern regexPattern = Pattern.compile(GlobPatternMatcher.convertGlobToRegEx(glob.trim()));
+            for (String input : INPUTS) {
+                assertEquals(regexPattern.matcher(input).matches(), patternSet.matchesAny(input),
+                        () -> glob + " on " + input);
+            }
+        }
+    }
+
+    private void assertSameMatches(String glob, List<String> inputs) {
+        Pattern regexPattern = Pattern.compile(GlobPatternMatcher.convertGlobToRegEx(glob.trim()));
+        GlobPattern globPattern = GlobPattern.compile(glob);
+        for (String input : inputs) {
+            assertEquals(regexPattern.matcher(input).matches(), globPattern.matches(input),
+                    () -> glob + " on " + input.replace("\n", "\\n"));
+        }
+    }
+
+}
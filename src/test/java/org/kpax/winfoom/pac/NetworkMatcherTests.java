@@ -0,0 +1,179 @@
+/*
+ * Copyright (c) 2020. Eugen Covaci
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and limitations under the License.
+ */
+
+package org.kpax.winfoom.pac;
+
+import inet.ipaddr.IPAddressString;
+import org.junit.jupiter.api.Test;
+import org.kpax.winfoom.pac.net.IpAddressMatcher;
+import org.kpax.winfoom.pac.net.NetworkMatcher;
+import org.kpax.winfoom.pac.net.NetworkMatcherSet;
+
+import java.net.UnknownHostException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * Check that the compiled networks match like the original {@code isInNet} and {@code isInNetEx} implementations.
+ */
+class NetworkMatcherTests {
+
+    private static final List<String[]> NETMASKS = Arrays.asList(
+            new String[]{"10.0.0.0", "255.0.0.0"},
+            new String[]{"172.16.0.0", "255.240.0.0"},
+            new String[]{"192.168.0.0", "255.255.0.0"},
+            new String[]{"127.0.0.0", "255.255.255.0"},
+            new String[]{"10.1.2.3", "255.0.0.0"},
+            new String[]{"10.1.2.3", "255.255.255.255"},
+            new String[]{"0.0.0.0", "0.0.0.0"},
+            new String[]{"10.0.0.0", "255.0.255.0"},
+            new String[]{"10.0.0.0", "8"},
+            new String[]{"10.0.0.0", "invalid"},
+            new String[]{"invalid", "255.0.0.0"},
+            new String[]{"2001:db8::", "ffff:ffff::"},
+            new String[]{"null", "null"});
+
+    private static final List<String> PREFIXES = Arrays.asList(
+            "10.0.0.0/8", "172.16.0.0/12", "10.1.2.3/8", "192.168.1.1", "0.0.0.0/0", "10.0.0.0/32",
+            "10.0.0.0/08", "10.1/16", "::1", "2001:db8::/32");
+
+    private static final List<String> ADDRESSES = Arrays.asList(
+            "10.0.0.0", "10.255.255.255", "11.0.0.0", "9.255.255.255", "172.16.5.6", "172.32.0.1", "192.168.1.1",
+            "127.0.0.1", "127.0.1.1", "10.1.2.3", "10.1.2.4", "0.0.0.0", "255.255.255.255", "8.8.8.8",
+            "010.0.0.1", "10.1", "::1", "2001:db8::1", "::ffff:10.0.0.1", "10.0.0.1/8", "", "a.b.c.d");
+
+    @Test
+    void forNetmask_KnownNetworks_SameAsIPAddressString() {
+        for (String[] netmask : NETMASKS) {
+            NetworkMatcher matcher = NetworkMatcher.forNetmask(netmask[0], netmask[1]);
+            IPAddressString network = new IPAddressString(netmask[0] + "/" + netmask[1]);
+            for (String address : ADDRESSES) {
+                assertEquals(network.contains(new IPAddressString(address)), matches(matcher, address),
+                        () -> netmask[0] + "/" + netmask[1] + " on " + address);
+            }
+        }
+    }
+
+    @Test
+    void forNetmask_RandomNetworks_SameAsIPAddressString() {
+        Random random = new Random(42);
+        for (int i = 0; i < 500; i++) {
+            int prefixLength = random.nextInt(33);
+            String pattern = randomAddress(random);
+            String mask = toDotted(prefixLength == 0 ? 0 : (0xFFFFFFFFL << (32 - prefixLength)) & 0xFFFFFFFFL);
+            NetworkMatcher matcher = NetworkMatcher.forNetmask(pattern, mask);
+            IPAddressString network = new IPAddressString(pattern + "/" + mask);
+            for (int j = 0; j < 20; j++) {
+                String address = j % 2 == 0 ? randomAddress(random) : pattern.substring(0, pattern.lastIndexOf('.'))
+                        + "." + random.nextInt(256);
+                assertEquals(network.contains(new IPAddressString(address)), matches(matcher, address),
+                        () -> pattern + "/" + mask + " on " + address);
+            }
+        }
+    }
+
+    @Test
+    void forPrefix_KnownPrefixes_SameAsIpAddressMatcher() {
+        for (String prefix : PREFIXES) {
+            NetworkMatcher matcher = NetworkMatcher.forPrefix(prefix);
+            for (String address : ADDRESSES) {
+                if (address.isEmpty() || address.contains("/") || address.equals("a.b.c.d")) {
+                    // Avoid any DNS lookup
+                    continue;
+                }
+                assertEquals(ipAddressMatcherMatches(prefix, address), matches(matcher, address),
+                        () -> prefix + " on " + address);
+            }
+        }
+    }
+
+    @Test
+    void matchesAny_AllNetworks_SameAsAnyNetwork() {
+        NetworkMatcherSet matcherSet = new NetworkMatcherSet();
+        List<NetworkMatcher> matchers = new ArrayList<>();
+        for (String[] netmask : NETMASKS) {
+            NetworkMatcher matcher = NetworkMatcher.forNetmask(netmask[0], netmask[1]);
+            // Merge the networks of another set, as the declarative scripts do
+            matcherSet.addAll(new NetworkMatcherSet().add(matcher));
+            matchers.add(matcher);
+        }
+        assertEquals(NETMASKS.size(), matcherSet.size());
+        for (String address : ADDRESSES) {
+            assertEquals(matchers.stream().anyMatch(matcher -> matches(matcher, address)),
+                    matchesAny(matcherSet, address), address);
+        }
+    }
+
+    @Test
+    void isInNet_ComputedNetworksOverCapacity_SameResults() {
+        DefaultPacHelperMethods pacHelperMethods = new DefaultPacHelperMethods();
+        for (int round = 0; round < 2; round++) {
+            for (int i = 0; i < 1500; i++) {
+                String network = "10." + (i / 256) + "." + (i % 256);
+                assertTrue(pacHelperMethods.isInNet(network + ".5", network + ".0", "255.255.255.0"));
+                assertFalse(pacHelperMethods.isInNet("11.0.0.5", network + ".0", "255.255.255.0"));
+                assertTrue(pacHelperMethods.isInNetEx(network + ".5", network + ".0/24"));
+                assertFalse(pacHelperMethods.isInNetEx("11.0.0.5", network + ".0/24"));
+            }
+        }
+    }
+
+    @Test
+    void parseIPv4_Variants_OnlyDottedDecimal() {
+        assertEquals(0x0A000001L, NetworkMatcher.parseIPv4("10.0.0.1"));
+        assertEquals(0xFFFFFFFFL, NetworkMatcher.parseIPv4("255.255.255.255"));
+        assertEquals(0L, NetworkMatcher.parseIPv4("0.0.0.0"));
+        for (String invalid : Arrays.asList("010.0.0.1", "10.0.0", "10.0.0.256", "10.0.0.1.", ".10.0.0.1",
+                "10..0.1", "1000.0.0.1", "10.0.0.1/8", "::1", "", null)) {
+            assertEquals(-1, NetworkMatcher.parseIPv4(invalid), invalid);
+        }
+    }
+
+    private static boolean matches(NetworkMatcher matcher, String address) {
+        try {
+            return matcher.matches(address);
+        } catch (UnknownHostException e) {
+            return false;
+        }
+    }
+
+    private static boolean matchesAny(NetworkMatcherSet matcherSet, String address) {
+        try {
+            return matcherSet.matchesAny(address);
+        } catch (UnknownHostException e) {
+            return false;
+        }
+    }
+
+    private static boolean ipAddressMatcherMatches(String prefix, String address) {
+        try {
+            return new IpAddressMatcher(prefix).matches(address);
+        } catch (UnknownHostException e) {
+            return false;
+        }
+    }
+
+    private static String randomAddress(Random random) {
+        return toDotted(random.nextInt() & 0xFFFFFFFFL);
+    }
+
+    private static String toDotted(long address) {
+        return (address >> 24 & 0xFF) + "." + (address >> 16 & 0xFF) + "." + (address >> 8 & 0xFF) + "." + (address & 0xFF);
+    }
+
+}
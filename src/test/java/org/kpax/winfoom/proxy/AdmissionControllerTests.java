@@ -0,0 +1,274 @@
+/*
+ * Copyright (c) 2020. Eugen Covaci
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and limitations under the License.
+ */
+
+package org.kpax.winfoom.proxy;
+
+import org.junit.jupiter.api.*;
+import org.junit.jupiter.api.extension.ExtendWith;
+import org.apache.http.entity.StringEntity;
+import org.apache.http.impl.bootstrap.HttpServer;
+import org.apache.http.impl.bootstrap.ServerBootstrap;
+import org.kpax.winfoom.FoomApplicationTest;
+import org.kpax.winfoom.config.ProxyConfig;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.test.context.SpringBootTest;
+import org.springframework.boot.test.mock.mockito.MockBean;
+import org.springframework.test.annotation.DirtiesContext;
+import org.springframework.test.context.ActiveProfiles;
+import org.springframework.test.context.junit.jupiter.SpringExtension;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.jupiter.api.Assertions.*;
+import static org.kpax.winfoom.TestConstants.LOCAL_PROXY_PORT;
+import static org.kpax.winfoom.TestConstants.PROXY_PORT;
+import static org.mockito.Mockito.when;
+
+@DirtiesContext(classMode = DirtiesContext.ClassMode.AFTER_CLASS)
+@ExtendWith(SpringExtension.class)
+@ActiveProfiles("test")
+@SpringBootTest(classes = FoomApplicationTest.class,
+        properties = {"admission.maxConnections=1", "admission.maxTunnels=1",
+                "admission.queue.capacity=1", "admission.queue.timeout=1", "admission.retryAfter=7"})
+@TestInstance(TestInstance.Lifecycle.PER_CLASS)
+@Timeout(10)
+class AdmissionControllerTests {
+
+    @MockBean
+    private ProxyConfig proxyConfig;
+
+    @Autowired
+    private AdmissionController admissionController;
+
+    @Autowired
+    private ProxyContext proxyContext;
+
+    private ServerSocket serverSocket;
+
+    private HttpServer remoteServer;
+
+    private String request;
+
+    @BeforeAll
+    void before() throws Exception {
+        serverSocket = new ServerSocket(LOCAL_PROXY_PORT);
+        remoteServer = ServerBootstrap.bootstrap()
+                .setLocalAddress(InetAddress.getLoopbackAddress())
+                .registerHandler("*", (request, response, context) -> response.setEntity(new StringEntity("12345")))
+                .create();
+        remoteServer.start();
+        request = "GET http://localhost:" + remoteServer.getLocalPort() + "/get HTTP/1.1\r\n" +
+                "Host: localhost:" + remoteServer.getLocalPort() + "\r\n\r\n";
+    }
+
+    @Test
+    void admit_LimitReached_QueueThenReject() throws Exception {
+        CountDownLatch firstStarted = new CountDownLatch(1);
+        CountDownLatch releaseFirst = new CountDownLatch(1);
+        CountDownLatch secondStarted = new CountDownLatch(1);
+
+        try (Socket firstClient = new Socket("localhost", LOCAL_PROXY_PORT);
+             Socket secondClient = new Socket("localhost", LOCAL_PROXY_PORT);
+             Socket thirdClient = new Socket("localhost", LOCAL_PROXY_PORT)) {
+
+            Socket first = serverSocket.accept();
+            admissionController.admit(new PersistentConnection(first, first.getInputStream(), 0), () -> {
+                firstStarted.countDown();
+                try {
+                    releaseFirst.await();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+            });
+            assertTrue(firstStarted.await(5, TimeUnit.SECONDS));
+
+            // No permit left, the second connection is queued
+            Socket second = serverSocket.accept();
+            admissionController.admit(new PersistentConnection(second, second.getInputStream(), 0),
+                    secondStarted::countDown);
+            assertEquals(1, admissionController.getPendingConnections());
+
+            // The queue is full, the third connection is rejected
+            Socket third = serverSocket.accept();
+            admissionController.admit(new PersistentConnection(third, third.getInputStream(), 0),
+                    () -> fail("Must not be admitted"));
+            thirdClient.getOutputStream().write(
+                    "GET http://example.com/ HTTP/1.1\r\nHost: example.com\r\n\r\n"
+                            .getBytes(StandardCharsets.US_ASCII));
+            BufferedReader reader = new BufferedReader(
+                    new InputStreamReader(thirdClient.getInputStream(), StandardCharsets.US_ASCII));
+            assertEquals("HTTP/1.1 503 " + AdmissionController.REJECTION_REASON, reader.readLine());
+            String line;
+            boolean hasRetryAfter = false;
+            while ((line = reader.readLine()) != null && !line.isEmpty()) {
+                hasRetryAfter |= line.equals("Retry-After: 7");
+            }
+            assertTrue(hasRetryAfter);
+            assertEquals(1, admissionController.getRejectedConnections());
+
+            // Releasing the first connection admits the second
+            releaseFirst.countDown();
+            assertTrue(secondStarted.await(5, TimeUnit.SECONDS));
+            assertEquals(0, admissionController.getPendingConnections());
+        }
+    }
+
+    @Test
+    void acquireTunnel_NoPermit_RejectedAfterTimeout() throws Exception {
+        try (Socket firstClient = new Socket("localhost", LOCAL_PROXY_PORT);
+             Socket first = serverSocket.accept();
+             Socket secondClient = new Socket("localhost", LOCAL_PROXY_PORT);
+             Socket second = serverSocket.accept();
+             Socket thirdClient = new Socket("localhost", LOCAL_PROXY_PORT);
+             Socket third = serverSocket.accept()) {
+            assertTrue(acquireTunnelOnAdmission(first).get(5, TimeUnit.SECONDS));
+            try {
+                // The connection permit has been handed over, so the second connection is admitted
+                assertEquals(0, admissionController.getActiveConnections());
+                long start = System.currentTimeMillis();
+                assertFalse(acquireTunnelOnAdmission(second).get(5, TimeUnit.SECONDS));
+                assertTrue(System.currentTimeMillis() - start >= 900);
+                assertEquals(1, admissionController.getRejectedTunnels());
+            } finally {
+                admissionController.releaseTunnel();
+            }
+            assertTrue(acquireTunnelOnAdmission(third).get(5, TimeUnit.SECONDS));
+            admissionController.releaseTunnel();
+        }
+    }
+
+    @Test
+    void admit_IdlePersistentConnection_PermitReleased() throws Exception {
+        startDirectProxy();
+        try (Socket firstClient = new Socket("localhost", PROXY_PORT);
+             Socket secondClient = new Socket("localhost", PROXY_PORT)) {
+            BufferedReader firstReader = new BufferedReader(
+                    new InputStreamReader(firstClient.getInputStream(), StandardCharsets.US_ASCII));
+            firstClient.getOutputStream().write(request.getBytes(StandardCharsets.US_ASCII));
+            assertEquals("HTTP/1.1 200 OK", readResponse(firstReader));
+
+            // The first connection is kept open, idle, still the second one is admitted
+            BufferedReader secondReader = new BufferedReader(
+                    new InputStreamReader(secondClient.getInputStream(), StandardCharsets.US_ASCII));
+            secondClient.getOutputStream().write(request.getBytes(StandardCharsets.US_ASCII));
+            assertEquals("HTTP/1.1 200 OK", readResponse(secondReader));
+
+            // Then the first connection handles its next request
+            firstClient.getOutputStream().write(request.getBytes(StandardCharsets.US_ASCII));
+            assertEquals("HTTP/1.1 200 OK", readResponse(firstReader));
+        } finally {
+            proxyContext.stop();
+        }
+    }
+
+    @Test
+    void acquireTunnel_ConnectWaiting_ConnectionPermitReleased() throws Exception {
+        try (Socket tunnelClient = new Socket("localhost", LOCAL_PROXY_PORT);
+             Socket tunnel = serverSocket.accept()) {
+
+            // The only tunnel permit is taken before any proxy connection is admitted
+            assertTrue(acquireTunnelOnAdmission(tunnel).get(5, TimeUnit.SECONDS));
+        }
+        startDirectProxy();
+        try (Socket connectClient = new Socket("localhost", PROXY_PORT);
+             Socket client = new Socket("localhost", PROXY_PORT)) {
+
+            // The CONNECT request waits for the tunnel permit
+            try {
+                connectClient.getOutputStream().write(String.format("CONNECT localhost:%d HTTP/1.1\r\n" +
+                                "Host: localhost:%d\r\n\r\n", remoteServer.getLocalPort(), remoteServer.getLocalPort())
+                        .getBytes(StandardCharsets.US_ASCII));
+                while (admissionController.getPendingTunnels() == 0) {
+                    Thread.sleep(10);
+                }
+
+                // Meanwhile, the only connection permit is free for another connection
+                BufferedReader reader = new BufferedReader(
+                        new InputStreamReader(client.getInputStream(), StandardCharsets.US_ASCII));
+                client.getOutputStream().write(request.getBytes(StandardCharsets.US_ASCII));
+                assertEquals("HTTP/1.1 200 OK", readResponse(reader));
+                assertEquals(1, admissionController.getPendingTunnels());
+            } finally {
+                admissionController.releaseTunnel();
+            }
+            BufferedReader connectReader = new BufferedReader(
+                    new InputStreamReader(connectClient.getInputStream(), StandardCharsets.US_ASCII));
+            assertTrue(connectReader.readLine().startsWith("HTTP/1.1 200"));
+        } finally {
+            proxyContext.stop();
+        }
+    }
+
+    /**
+     * Admit the connection, then acquire a tunnel permit like a CONNECT request does.
+     *
+     * @return whether the tunnel permit has been acquired.
+     */
+    private CompletableFuture<Boolean> acquireTunnelOnAdmission(Socket socket) throws IOException {
+        CompletableFuture<Boolean> acquired = new CompletableFuture<>();
+        PersistentConnection connection = new PersistentConnection(socket, socket.getInputStream(), 0);
+        admissionController.admit(connection, () -> {
+            try {
+                acquired.complete(admissionController.acquireTunnel(connection));
+            } catch (Exception e) {
+                acquired.completeExceptionally(e);
+            }
+        });
+        return acquired;
+    }
+
+    private void startDirectProxy() throws Exception {
+        Path tempDirectory = Paths.get(System.getProperty("user.dir"), "target", "temp");
+        Files.createDirectories(tempDirectory);
+        when(proxyConfig.getTempDirectory()).thenReturn(tempDirectory);
+        when(proxyConfig.getLocalPort()).thenReturn(PROXY_PORT);
+        when(proxyConfig.getProxyType()).thenReturn(ProxyConfig.Type.DIRECT);
+        proxyContext.start();
+    }
+
+    /**
+     * Read a response having a {@code Content-Length} header.
+     *
+     * @return the status line.
+     */
+    private String readResponse(BufferedReader reader) throws IOException {
+        String statusLine = reader.readLine();
+        int contentLength = 0;
+        String line;
+        while ((line = reader.readLine()) != null && !line.isEmpty()) {
+            if (line.toLowerCase().startsWith("content-length:")) {
+                contentLength = Integer.parseInt(line.substring("content-length:".length()).trim());
+            }
+        }
+        assertEquals(contentLength, reader.skip(contentLength));
+        return statusLine;
+    }
+
+    @AfterAll
+    void after() throws Exception {
+        serverSocket.close();
+        remoteServer.shutdown(0, TimeUnit.SECONDS);
+    }
+
+}
@@ -35,8 +35,12 @@ import org.springframework.test.context.ActiveProfiles;
 import org.springframework.test.context.junit.jupiter.SpringExtension;
 
 import java.io.IOException;
+import java.net.URI;
 import java.net.URL;
+import java.util.List;
 
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertSame;
 import static org.mockito.Mockito.when;
 
 @DirtiesContext(classMode = DirtiesContext.ClassMode.AFTER_CLASS)
@@ -91,6 +95,25 @@ class DefaultPacScriptEvaluatorTests {
         scopeConfiguration.getProxySessionScope().clear();
     }
 
+    @Test
+    void findProxyForURL_SameStrippedUrl_CachedResult() throws Exception {
+        when(proxyConfig.getProxyPacFileLocationAsURL()).thenReturn(getClass().getClassLoader().getResource("proxy-simple.pac"));
+        scopeConfiguration.getProxySessionScope().clear();
+
+        List<ProxyInfo> proxies = pacScriptEvaluator.findProxyForURL(new URI("http://localhost:80/first"));
+        assertEquals(0, pacScriptEvaluator.getCacheHits());
+        assertEquals(1, pacScriptEvaluator.getCacheMisses());
+
+        // Same stripped URL, the script is not evaluated again
+        assertSame(proxies, pacScriptEvaluator.findProxyForURL(new URI("http://localhost:80/second?param=val")));
+        assertEquals(1, pacScriptEvaluator.getCacheHits());
+        assertEquals(1, pacScriptEvaluator.getCacheMisses());
+
+        pacScriptEvaluator.findProxyForURL(new URI("http://localhost:8080/first"));
+        assertEquals(2, pacScriptEvaluator.getCacheMisses());
+        scopeConfiguration.getProxySessionScope().clear();
+    }
+
     @AfterAll
     void after() {
         remoteServer.stop();
@@ -17,14 +17,17 @@ import org.apache.http.HttpHost;
 import org.apache.http.HttpRequest;
 import org.apache.http.HttpResponse;
 import org.apache.http.HttpStatus;
+import org.apache.http.config.MessageConstraints;
 import org.apache.http.client.config.RequestConfig;
 import org.apache.http.client.methods.CloseableHttpResponse;
 import org.apache.http.client.methods.HttpGet;
+import org.apache.http.entity.InputStreamEntity;
 import org.apache.http.entity.StringEntity;
 import org.apache.http.impl.bootstrap.HttpServer;
 import org.apache.http.impl.bootstrap.ServerBootstrap;
 import org.apache.http.impl.client.CloseableHttpClient;
 import org.apache.http.impl.client.HttpClientBuilder;
+import org.apache.http.impl.io.*;
 import org.apache.http.message.BasicHttpRequest;
 import org.apache.http.protocol.HttpContext;
 import org.apache.http.protocol.HttpRequestHandler;
@@ -34,6 +37,7 @@ import org.junit.jupiter.api.extension.ExtendWith;
 import org.kpax.winfoom.FoomApplicationTest;
 import org.kpax.winfoom.TestConstants;
 import org.kpax.winfoom.config.ProxyConfig;
+import org.kpax.winfoom.util.InputOutputs;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.springframework.beans.factory.annotation.Autowired;
@@ -43,12 +47,15 @@ import org.springframework.test.annotation.DirtiesContext;
 import org.springframework.test.context.ActiveProfiles;
 import org.springframework.test.context.junit.jupiter.SpringExtension;
 
+import java.io.ByteArrayInputStream;
 import java.io.IOException;
+import java.io.InputStream;
 import java.net.ServerSocket;
 import java.net.Socket;
 import java.net.SocketException;
+import java.nio.charset.StandardCharsets;
 
-import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.*;
 import static org.kpax.winfoom.TestConstants.LOCAL_PROXY_PORT;
 import static org.kpax.winfoom.TestConstants.PROXY_PORT;
 import static org.mockito.Mockito.when;
@@ -96,6 +103,13 @@ public class DirectProxyClientConnectionTests {
                 response.setEntity(new StringEntity("12345"));
             }
 
+        }).registerHandler("/unknownLength", new HttpRequestHandler() {
+
+            @Override
+            public void handle(HttpRequest request, HttpResponse response, HttpContext context) {
+                response.setEntity(new InputStreamEntity(new ByteArrayInputStream("67890".getBytes())));
+            }
+
         }).create();
         remoteServer.start();
 
@@ -115,6 +129,8 @@ public class DirectProxyClientConnectionTests {
                             clientConnectionHandler.handleConnection(socket);
                         } catch (Exception e) {
                             logger.error("Error on handling connection", e);
+                        } finally {
+                            InputOutputs.close(socket);
                         }
                     }).start();
                 } catch (SocketException e) {
@@ -162,6 +178,55 @@ public class DirectProxyClientConnectionTests {
         }
     }
 
+    @Test
+    @Order(2)
+    void directProxy_KeepAlive_SameConnectionReused() throws Exception {
+        try (Socket socket = new Socket("localhost", LOCAL_PROXY_PORT)) {
+            SessionInputBufferImpl inputBuffer = new SessionInputBufferImpl(new HttpTransportMetricsImpl(), 1024);
+            inputBuffer.bind(socket.getInputStream());
+
+            for (String path : new String[]{"/get", "/unknownLength", "/get"}) {
+                writeRequest(socket, path, null);
+                HttpResponse response = new DefaultHttpResponseParser(inputBuffer).parse();
+                assertEquals(HttpStatus.SC_OK, response.getStatusLine().getStatusCode());
+                assertNull(response.getFirstHeader("Connection"));
+                assertEquals(path.equals("/get") ? "12345" : "67890", readBody(inputBuffer, response));
+            }
+        }
+    }
+
+    @Test
+    @Order(3)
+    void directProxy_ConnectionClose_ConnectionClosed() throws Exception {
+        try (Socket socket = new Socket("localhost", LOCAL_PROXY_PORT)) {
+            SessionInputBufferImpl inputBuffer = new SessionInputBufferImpl(new HttpTransportMetricsImpl(), 1024);
+            inputBuffer.bind(socket.getInputStream());
+
+            writeRequest(socket, "/get", "close");
+            HttpResponse response = new DefaultHttpResponseParser(inputBuffer).parse();
+            assertEquals(HttpStatus.SC_OK, response.getStatusLine().getStatusCode());
+            assertTrue("close".equalsIgnoreCase(response.getFirstHeader("Connection").getValue()));
+            assertEquals("12345", readBody(inputBuffer, response));
+            assertEquals(-1, inputBuffer.fillBuffer());
+        }
+    }
+
+    private void writeRequest(Socket socket, String path, String connection) throws IOException {
+        String request = "GET http://localhost:" + remoteServer.getLocalPort() + path + " HTTP/1.1\r\n" +
+                "Host: localhost:" + remoteServer.getLocalPort() + "\r\n" +
+                (connection != null ? "Proxy-Connection: " + connection + "\r\n" : "") +
+                "\r\n";
+        socket.getOutputStream().write(request.getBytes(StandardCharsets.US_ASCII));
+    }
+
+    private String readBody(SessionInputBufferImpl inputBuffer, HttpResponse response) throws IOException {
+        InputStream body = response.containsHeader("Content-Length")
+                ? new ContentLengthInputStream(inputBuffer,
+                Long.parseLong(response.getFirstHeader("Content-Length").getValue()))
+                : new ChunkedInputStream(inputBuffer, MessageConstraints.DEFAULT);
+        return new String(body.readAllBytes(), StandardCharsets.US_ASCII);
+    }
+
     @AfterAll
     void after() {
         try {
@@ -0,0 +1,296 @@
+/*
+ * Copyright (c) 2020. Eugen Covaci
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and limitations under the License.
+ */
+
+package org.kpax.winfoom.proxy;
+
+import org.apache.commons.lang3.StringUtils;
+import org.apache.http.*;
+import org.apache.http.entity.StringEntity;
+import org.apache.http.impl.bootstrap.HttpServer;
+import org.apache.http.impl.bootstrap.ServerBootstrap;
+import org.apache.http.impl.io.ContentLengthInputStream;
+import org.apache.http.impl.io.DefaultHttpResponseParser;
+import org.apache.http.impl.io.HttpTransportMetricsImpl;
+import org.apache.http.impl.io.SessionInputBufferImpl;
+import org.apache.http.protocol.HTTP;
+import org.apache.http.util.EntityUtils;
+import org.junit.jupiter.api.*;
+import org.junit.jupiter.api.extension.ExtendWith;
+import org.kpax.winfoom.FoomApplicationTest;
+import org.kpax.winfoom.config.ProxyConfig;
+import org.mockserver.integration.ClientAndServer;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.test.context.SpringBootTest;
+import org.springframework.boot.test.mock.mockito.MockBean;
+import org.springframework.test.annotation.DirtiesContext;
+import org.springframework.test.context.ActiveProfiles;
+import org.springframework.test.context.junit.jupiter.SpringExtension;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.*;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static org.junit.jupiter.api.Assertions.*;
+import static org.kpax.winfoom.TestConstants.*;
+import static org.mockito.Mockito.when;
+
+/**
+ * The upstream proxy answers a request carrying {@code Expect: 100-continue} with a {@code 407} challenge,
+ * before reading the body, unless the request is authenticated.
+ * <p>Behind the SOCKS proxy, the target server ignores the expectation and challenges after reading the body.
+ * The system properties are used, so that HttpClient answers the target's challenge
+ * with the {@link Authenticator}'s credentials.
+ */
+@DirtiesContext(classMode = DirtiesContext.ClassMode.AFTER_CLASS)
+@ExtendWith(SpringExtension.class)
+@ActiveProfiles("test")
+@SpringBootTest(classes = FoomApplicationTest.class, properties = "useSystemProperties=true")
+@TestInstance(TestInstance.Lifecycle.PER_CLASS)
+@Timeout(10)
+class ExpectContinueClientConnectionTests {
+
+    private static final String REJECT_HEADER = "Reject";
+
+    /**
+     * Larger than the default internal buffer.
+     */
+    private static final int BODY_SIZE = 200000;
+
+    private final Logger logger = LoggerFactory.getLogger(getClass());
+
+    private final int socketTimeout = 3; // seconds
+
+    @MockBean
+    private ProxyConfig proxyConfig;
+
+    @Autowired
+    private ClientConnectionHandler clientConnectionHandler;
+
+    @Autowired
+    private ProxyContext proxyContext;
+
+    private ServerSocket serverSocket;
+
+    private HttpServer remoteProxyServer;
+
+    private ClientAndServer socksRemoteProxyServer;
+
+    private HttpServer targetServer;
+
+    private final AtomicInteger challenges = new AtomicInteger();
+
+    private final AtomicInteger targetChallenges = new AtomicInteger();
+
+    private final AtomicLong receivedBodyBytes = new AtomicLong();
+
+    @BeforeAll
+    void before() throws Exception {
+        remoteProxyServer = ServerBootstrap.bootstrap()
+                .setLocalAddress(InetAddress.getLoopbackAddress())
+                .setExpectationVerifier((request, response, context) -> {
+                    if (!request.containsHeader(HttpHeaders.PROXY_AUTHORIZATION)
+                            || request.containsHeader(REJECT_HEADER)) {
+                        challenges.incrementAndGet();
+                        response.setStatusCode(HttpStatus.SC_PROXY_AUTHENTICATION_REQUIRED);
+                        response.addHeader(HttpHeaders.PROXY_AUTHENTICATE, "Basic realm=\"upstream\"");
+                        response.setEntity(new StringEntity("Authenticate first", StandardCharsets.UTF_8));
+                    }
+                })
+                .registerHandler("*", (request, response, context) -> {
+                    byte[] body = EntityUtils.toByteArray(((HttpEntityEnclosingRequest) request).getEntity());
+                    receivedBodyBytes.addAndGet(body.length);
+                    response.setEntity(new StringEntity("received=" + body.length));
+                })
+                .create();
+        remoteProxyServer.start();
+
+        socksRemoteProxyServer = ClientAndServer.startClientAndServer(PROXY_PORT);
+        targetServer = ServerBootstrap.bootstrap()
+                .setLocalAddress(InetAddress.getLoopbackAddress())
+                .registerHandler("*", (request, response, context) -> {
+                    byte[] body = EntityUtils.toByteArray(((HttpEntityEnclosingRequest) request).getEntity());
+                    if (request.containsHeader(HttpHeaders.AUTHORIZATION)) {
+                        receivedBodyBytes.addAndGet(body.length);
+                        response.setEntity(new StringEntity("received=" + body.length));
+                    } else {
+                        targetChallenges.incrementAndGet();
+                        response.setStatusCode(HttpStatus.SC_UNAUTHORIZED);
+                        response.addHeader(HttpHeaders.WWW_AUTHENTICATE, "Basic realm=\"target\"");
+                    }
+                })
+                .create();
+        targetServer.start();
+
+        serverSocket = new ServerSocket(LOCAL_PROXY_PORT);
+
+        if (!proxyContext.isRunning()) {
+            proxyContext.start();
+        }
+
+        new Thread(() -> {
+            while (!serverSocket.isClosed()) {
+                try {
+                    Socket socket = serverSocket.accept();
+                    socket.setSoTimeout(socketTimeout * 1000);
+                    new Thread(() -> {
+
+                        // Handle this connection.
+                        try {
+                            clientConnectionHandler.handleConnection(socket);
+                        } catch (Exception e) {
+                            logger.error("Error on handling connection", e);
+                        }
+                    }).start();
+                } catch (SocketException e) {
+                    if (!StringUtils.startsWithIgnoreCase(e.getMessage(), "Interrupted function call")) {
+                        logger.error("Socket error on getting connection", e);
+                    }
+                } catch (Exception e) {
+                    logger.error("Error on getting connection", e);
+                }
+            }
+        }).start();
+    }
+
+    @BeforeEach
+    void beforeEach() {
+        when(proxyConfig.getProxyHost()).thenReturn("localhost");
+        when(proxyConfig.getProxyPort()).thenReturn(remoteProxyServer.getLocalPort());
+        when(proxyConfig.getProxyType()).thenReturn(ProxyConfig.Type.HTTP);
+        challenges.set(0);
+        targetChallenges.set(0);
+        receivedBodyBytes.set(0);
+    }
+
+    @Test
+    void expectContinue_AuthChallenge_BodySentOnce() throws Exception {
+        long spills = RequestBodyStore.getSpills();
+        try (Socket socket = new Socket("localhost", LOCAL_PROXY_PORT)) {
+            OutputStream outputStream = socket.getOutputStream();
+            outputStream.write(requestHead(remoteProxyServer, false));
+            outputStream.flush();
+
+            SessionInputBufferImpl inputBuffer = new SessionInputBufferImpl(new HttpTransportMetricsImpl(), 8192);
+            inputBuffer.bind(socket.getInputStream());
+
+            // The body is sent only after the interim response
+            HttpResponse interimResponse = new DefaultHttpResponseParser(inputBuffer).parse();
+            assertEquals(HttpStatus.SC_CONTINUE, interimResponse.getStatusLine().getStatusCode());
+            byte[] body = new byte[BODY_SIZE];
+            Arrays.fill(body, (byte) 'x');
+            outputStream.write(body);
+            outputStream.flush();
+
+            HttpResponse response = new DefaultHttpResponseParser(inputBuffer).parse();
+            assertEquals(HttpStatus.SC_OK, response.getStatusLine().getStatusCode());
+            assertEquals("received=" + BODY_SIZE, readContent(inputBuffer, response));
+        }
+        assertEquals(1, challenges.get());
+        assertEquals(BODY_SIZE, receivedBodyBytes.get());
+        assertEquals(spills, RequestBodyStore.getSpills());
+    }
+
+    @Test
+    void expectContinue_AuthRejected_407WithoutBody() throws Exception {
+        try (Socket socket = new Socket("localhost", LOCAL_PROXY_PORT)) {
+            OutputStream outputStream = socket.getOutputStream();
+            outputStream.write(requestHead(remoteProxyServer, true));
+            outputStream.flush();
+
+            SessionInputBufferImpl inputBuffer = new SessionInputBufferImpl(new HttpTransportMetricsImpl(), 8192);
+            inputBuffer.bind(socket.getInputStream());
+
+            // No interim response, the final one closes the connection
+            HttpResponse response = new DefaultHttpResponseParser(inputBuffer).parse();
+            assertEquals(HttpStatus.SC_PROXY_AUTHENTICATION_REQUIRED, response.getStatusLine().getStatusCode());
+            assertEquals(HTTP.CONN_CLOSE, response.getFirstHeader(HTTP.CONN_DIRECTIVE).getValue());
+            assertEquals("Authenticate first", readContent(inputBuffer, response));
+        }
+        assertTrue(challenges.get() > 0);
+        assertEquals(0, receivedBodyBytes.get());
+    }
+
+    @Test
+    void expectContinue_SocksTargetChallengedAfterBody_503() throws Exception {
+        when(proxyConfig.getProxyPort()).thenReturn(PROXY_PORT);
+        when(proxyConfig.getProxyType()).thenReturn(ProxyConfig.Type.SOCKS4);
+        Authenticator.setDefault(new Authenticator() {
+            @Override
+            protected PasswordAuthentication getPasswordAuthentication() {
+                return new PasswordAuthentication(USERNAME, PASSWORD.toCharArray());
+            }
+        });
+        try (Socket socket = new Socket("localhost", LOCAL_PROXY_PORT)) {
+            OutputStream outputStream = socket.getOutputStream();
+            outputStream.write(requestHead(targetServer, false));
+            outputStream.flush();
+
+            SessionInputBufferImpl inputBuffer = new SessionInputBufferImpl(new HttpTransportMetricsImpl(), 8192);
+            inputBuffer.bind(socket.getInputStream());
+            HttpResponse interimResponse = new DefaultHttpResponseParser(inputBuffer).parse();
+            assertEquals(HttpStatus.SC_CONTINUE, interimResponse.getStatusLine().getStatusCode());
+            byte[] body = new byte[BODY_SIZE];
+            Arrays.fill(body, (byte) 'x');
+            outputStream.write(body);
+            outputStream.flush();
+
+            // The streamed body cannot be sent again with the credentials
+            HttpResponse response = new DefaultHttpResponseParser(inputBuffer).parse();
+            assertEquals(HttpStatus.SC_SERVICE_UNAVAILABLE, response.getStatusLine().getStatusCode());
+        } finally {
+            Authenticator.setDefault(null);
+        }
+        assertEquals(1, targetChallenges.get());
+        assertEquals(0, receivedBodyBytes.get());
+    }
+
+    private byte[] requestHead(HttpServer server, boolean rejected) {
+        String target = "localhost:" + server.getLocalPort();
+        return ("POST http://" + target + "/upload HTTP/1.1\r\n" +
+                "Host: " + target + "\r\n" +
+                "Content-Type: application/octet-stream\r\n" +
+                "Content-Length: " + BODY_SIZE + "\r\n" +
+                "Expect: 100-continue\r\n" +
+                (rejected ? REJECT_HEADER + ": true\r\n" : "") +
+                "\r\n").getBytes(StandardCharsets.US_ASCII);
+    }
+
+    private static String readContent(SessionInputBufferImpl inputBuffer, HttpResponse response) throws IOException {
+        long contentLength = Long.parseLong(response.getFirstHeader(HttpHeaders.CONTENT_LENGTH).getValue());
+        try (InputStream inputStream = new ContentLengthInputStream(inputBuffer, contentLength)) {
+            return new String(inputStream.readAllBytes(), StandardCharsets.UTF_8);
+        }
+    }
+
+    @AfterAll
+    void after() {
+        try {
+            serverSocket.close();
+        } catch (IOException e) {
+            // Ignore
+        }
+        remoteProxyServer.shutdown(0, TimeUnit.SECONDS);
+        targetServer.shutdown(0, TimeUnit.SECONDS);
+        socksRemoteProxyServer.stop();
+        when(proxyConfig.getProxyType()).thenReturn(ProxyConfig.Type.HTTP);
+        proxyContext.stop();
+    }
+
+}
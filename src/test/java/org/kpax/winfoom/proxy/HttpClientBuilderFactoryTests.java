@@ -0,0 +1,78 @@
+/*
+ * Copyright (c) 2020. Eugen Covaci
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and limitations under the License.
+ */
+
+package org.kpax.winfoom.proxy;
+
+import org.apache.http.HttpHost;
+import org.apache.http.client.CredentialsProvider;
+import org.apache.http.client.config.RequestConfig;
+import org.apache.http.conn.HttpClientConnectionManager;
+import org.apache.http.impl.client.CloseableHttpClient;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.extension.ExtendWith;
+import org.kpax.winfoom.config.SystemConfig;
+import org.mockito.InjectMocks;
+import org.mockito.Mock;
+import org.mockito.junit.jupiter.MockitoExtension;
+
+import static org.junit.jupiter.api.Assertions.*;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.Mockito.*;
+
+@ExtendWith(MockitoExtension.class)
+class HttpClientBuilderFactoryTests {
+
+    @Mock
+    private SystemConfig systemConfig;
+
+    @Mock
+    private CredentialsProvider credentialsProvider;
+
+    @Mock
+    private ConnectionPoolingManager connectionPoolingManager;
+
+    @Mock
+    private HttpClientConnectionManager httpConnectionManager;
+
+    @InjectMocks
+    private HttpClientBuilderFactory httpClientBuilderFactory;
+
+    @BeforeEach
+    void beforeEach() {
+        when(systemConfig.applyConfig(any(RequestConfig.Builder.class)))
+                .thenAnswer(invocation -> invocation.getArgument(0));
+        when(systemConfig.getExpectContinueWaitTimeout()).thenReturn(3000);
+        when(connectionPoolingManager.getHttpConnectionManager()).thenReturn(httpConnectionManager);
+    }
+
+    @Test
+    void getHttpClient_PerProxy_BuiltOnceUntilClosed() {
+        CloseableHttpClient httpClient = httpClientBuilderFactory.getHttpClient(
+                new ProxyInfo(ProxyInfo.PacType.PROXY, new HttpHost("proxy1", 3128)));
+
+        // An equal proxy gets the same client, another proxy gets its own
+        assertSame(httpClient, httpClientBuilderFactory.getHttpClient(
+                new ProxyInfo(ProxyInfo.PacType.PROXY, new HttpHost("proxy1", 3128))));
+        CloseableHttpClient otherHttpClient = httpClientBuilderFactory.getHttpClient(
+                new ProxyInfo(ProxyInfo.PacType.PROXY, new HttpHost("proxy2", 3128)));
+        assertNotSame(httpClient, otherHttpClient);
+        verify(connectionPoolingManager, times(2)).getHttpConnectionManager();
+
+        // The clients are closed along with the session, the shared connection manager is not
+        httpClientBuilderFactory.close();
+        verify(httpConnectionManager, never()).shutdown();
+        assertNotSame(httpClient, httpClientBuilderFactory.getHttpClient(
+                new ProxyInfo(ProxyInfo.PacType.PROXY, new HttpHost("proxy1", 3128))));
+    }
+
+}
@@ -0,0 +1,438 @@
+/*
+ * Copyright (c) 2020. Eugen Covaci
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and limitations under the License.
+ */
+
+package org.kpax.winfoom.proxy;
+
+import org.springframework.util.Assert;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryMXBean;
+import java.lang.management.ThreadMXBean;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.EnumMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * An open-loop load generator: it sends a mix of GET, POST and CONNECT requests to a proxy
+ * at a constant rate, then reports the throughput, the latency percentiles, the errors,
+ * the threads and the heap used.
+ * <p>The requests are scheduled at fixed intervals, whatever the response times,
+ * and each latency is measured from the scheduled time. So, when the proxy falls behind,
+ * the queueing delay shows up in the latencies instead of just lowering the rate.
+ * <p>The origin server must answer {@code GET /get} and {@code POST /post}.
+ * Each request uses a new connection, with {@code Connection: close}.
+ *
+ * @author Eugen Covaci
+ */
+class LoadGenerator {
+
+    private final InetSocketAddress proxyAddress;
+
+    private final String origin;
+
+    private final Settings settings;
+
+    private final Map<RequestType, Recorder> recorders = new EnumMap<>(RequestType.class);
+
+    private final AtomicLong maxHeapUsed = new AtomicLong();
+
+    /**
+     * Constructor.
+     *
+     * @param proxyAddress  the address of the proxy under load.
+     * @param originAddress the address of the origin server.
+     * @param settings      the load settings.
+     */
+    LoadGenerator(InetSocketAddress proxyAddress, InetSocketAddress originAddress, Settings settings) {
+        this.proxyAddress = proxyAddress;
+        this.origin = originAddress.getHostString() + ":" + originAddress.getPort();
+        this.settings = settings;
+        for (RequestType type : RequestType.values()) {
+            recorders.put(type, new Recorder());
+        }
+    }
+
+    /**
+     * Send the requests for the warmup, then for the measured duration.
+     *
+     * @return the report of the measured duration.
+     * @throws InterruptedException
+     */
+    Report run() throws InterruptedException {
+        ThreadMXBean threadMXBean = ManagementFactory.getThreadMXBean();
+        MemoryMXBean memoryMXBean = ManagementFactory.getMemoryMXBean();
+        ExecutorService workers = Executors.newFixedThreadPool(settings.threads);
+        try {
+            // The warmup results are discarded
+            schedule(workers, settings.warmupSeconds, false, memoryMXBean);
+            threadMXBean.resetPeakThreadCount();
+            maxHeapUsed.set(0);
+            long start = System.nanoTime();
+            schedule(workers, settings.durationSeconds, true, memoryMXBean);
+            workers.shutdown();
+            workers.awaitTermination(settings.timeoutSeconds + 5, TimeUnit.SECONDS);
+            long elapsed = System.nanoTime() - start;
+            return new Report(settings, recorders, elapsed, threadMXBean.getPeakThreadCount(),
+                    threadMXBean.getThreadCount(), maxHeapUsed.get(), memoryMXBean.getHeapMemoryUsage().getUsed());
+        } finally {
+            workers.shutdownNow();
+        }
+    }
+
+    private void schedule(ExecutorService workers, int seconds, boolean recorded, MemoryMXBean memoryMXBean) {
+        Random random = new Random(seconds);
+        long interval = TimeUnit.SECONDS.toNanos(1) / settings.rate;
+        long count = (long) settings.rate * seconds;
+        long start = System.nanoTime();
+        long nextSample = start;
+        for (long i = 0; i < count; i++) {
+            long scheduled = start + i * interval;
+            long delay;
+            while ((delay = scheduled - System.nanoTime()) > 0) {
+                LockSupport.parkNanos(delay);
+            }
+            if (System.nanoTime() >= nextSample) {
+                maxHeapUsed.accumulateAndGet(memoryMXBean.getHeapMemoryUsage().getUsed(), Math::max);
+                nextSample = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(100);
+            }
+            RequestType type = settings.nextType(random);
+            workers.execute(() -> {
+                boolean success;
+                try {
+                    success = execute(type) / 100 == 2;
+                } catch (Exception e) {
+                    success = false;
+                }
+                if (recorded) {
+                    recorders.get(type).record(System.nanoTime() - scheduled, success);
+                }
+            });
+        }
+    }
+
+    /**
+     * Send a request through the proxy, on a new connection.
+     *
+     * @param type the request type.
+     * @return the response status code.
+     * @throws IOException
+     */
+    private int execute(RequestType type) throws IOException {
+        try (Socket socket = new Socket()) {
+            socket.connect(proxyAddress, settings.timeoutSeconds * 1000);
+            socket.setSoTimeout(settings.timeoutSeconds * 1000);
+            OutputStream outputStream = socket.getOutputStream();
+            InputStream inputStream = new BufferedInputStream(socket.getInputStream());
+            switch (type) {
+                case GET:
+                    write(outputStream, "GET http://" + origin + "/get HTTP/1.1\r\n" +
+                            "Host: " + origin + "\r\n" +
+                            "Connection: close\r\n\r\n");
+                    return readResponse(inputStream);
+                case POST:
+                    write(outputStream, "POST http://" + origin + "/post HTTP/1.1\r\n" +
+                            "Host: " + origin + "\r\n" +
+                            "Content-Type: application/octet-stream\r\n" +
+                            "Content-Length: " + settings.body.length + "\r\n" +
+                            "Connection: close\r\n\r\n");
+                    outputStream.write(settings.body);
+                    outputStream.flush();
+                    return readResponse(inputStream);
+                default:
+                    write(outputStream, "CONNECT " + origin + " HTTP/1.1\r\n" +
+                            "Host: " + origin + "\r\n\r\n");
+                    int status = readHead(inputStream).status;
+                    if (status != 200) {
+                        return status;
+                    }
+                    // Through the tunnel, the request goes to the origin server as is
+                    write(outputStream, "GET /get HTTP/1.1\r\n" +
+                            "Host: " + origin + "\r\n" +
+                            "Connection: close\r\n\r\n");
+                    return readResponse(inputStream);
+            }
+        }
+    }
+
+    private static void write(OutputStream outputStream, String head) throws IOException {
+        outputStream.write(head.getBytes(StandardCharsets.US_ASCII));
+        outputStream.flush();
+    }
+
+    /**
+     * Read the response, consuming the body.
+     *
+     * @return the status code.
+     */
+    private static int readResponse(InputStream inputStream) throws IOException {
+        ResponseHead head = readHead(inputStream);
+        if (head.contentLength >= 0) {
+            inputStream.readNBytes(Math.toIntExact(head.contentLength));
+        } else {
+            inputStream.transferTo(OutputStream.nullOutputStream());
+        }
+        return head.status;
+    }
+
+    private static ResponseHead readHead(InputStream inputStream) throws IOException {
+        String statusLine = readLine(inputStream);
+        String[] parts = statusLine.split(" ");
+        if (parts.length < 2) {
+            throw new IOException("Invalid status line: " + statusLine);
+        }
+        ResponseHead head = new ResponseHead(Integer.parseInt(parts[1]));
+        String line;
+        while (!(line = readLine(inputStream)).isEmpty()) {
+            if (line.toLowerCase(Locale.ROOT).startsWith("content-length:")) {
+                head.contentLength = Long.parseLong(line.substring(line.indexOf(':') + 1).trim());
+            }
+        }
+        return head;
+    }
+
+    private static String readLine(InputStream inputStream) throws IOException {
+        ByteArrayOutputStream line = new ByteArrayOutputStream();
+        int b;
+        while ((b = inputStream.read()) != '\n') {
+            if (b == -1) {
+                throw new EOFException("Unexpected end of stream");
+            }
+            if (b != '\r') {
+                line.write(b);
+            }
+        }
+        return line.toString(StandardCharsets.US_ASCII);
+    }
+
+    enum RequestType {
+        GET, POST, CONNECT
+    }
+
+    private static class ResponseHead {
+        private final int status;
+        private long contentLength = -1;
+
+        ResponseHead(int status) {
+            this.status = status;
+        }
+    }
+
+    /**
+     * The load settings.
+     * <p>They are read from the system properties, so they can be given on the command line:
+     * <ul>
+     * <li>{@code load.rate}: the requests per second (default 20)</li>
+     * <li>{@code load.duration}: the measured duration, in seconds (default 3)</li>
+     * <li>{@code load.warmup}: the warmup duration, in seconds (default 1)</li>
+     * <li>{@code load.threads}: the number of client threads (default 50)</li>
+     * <li>{@code load.mix}: the weight of each request type (default {@code GET:60,POST:25,CONNECT:15})</li>
+     * <li>{@code load.bodySize}: the size of the POST bodies, in bytes (default 16384)</li>
+     * <li>{@code load.timeout}: the socket timeout, in seconds (default 10)</li>
+     * </ul>
+     */
+    static class Settings {
+
+        private final int rate;
+
+        private final int durationSeconds;
+
+        private final int warmupSeconds;
+
+        private final int threads;
+
+        private final int timeoutSeconds;
+
+        private final byte[] body;
+
+        private final List<RequestType> weightedTypes = new ArrayList<>();
+
+        private final String mix;
+
+        Settings(int rate, int durationSeconds, int warmupSeconds, int threads, String mix,
+                 int bodySize, int timeoutSeconds) {
+            Assert.isTrue(rate > 0, "rate must be positive");
+            Assert.isTrue(durationSeconds > 0, "durationSeconds must be positive");
+            Assert.isTrue(threads > 0, "threads must be positive");
+            this.rate = rate;
+            this.durationSeconds = durationSeconds;
+            this.warmupSeconds = warmupSeconds;
+            this.threads = threads;
+            this.timeoutSeconds = timeoutSeconds;
+            this.mix = mix;
+            this.body = new byte[bodySize];
+            Arrays.fill(body, (byte) 'x');
+            for (String entry : mix.split(",")) {
+                String[] weight = entry.trim().split(":");
+                RequestType type = RequestType.valueOf(weight[0].trim().toUpperCase(Locale.ROOT));
+                for (int i = Integer.parseInt(weight[1].trim()); i > 0; i--) {
+                    weightedTypes.add(type);
+                }
+            }
+            Assert.isTrue(!weightedTypes.isEmpty(), "The request mix is empty");
+        }
+
+        static Settings fromSystemProperties() {
+            return new Settings(Integer.getInteger("load.rate", 20),
+                    Integer.getInteger("load.duration", 3),
+                    Integer.getInteger("load.warmup", 1),
+                    Integer.getInteger("load.threads", 50),
+                    System.getProperty("load.mix", "GET:60,POST:25,CONNECT:15"),
+                    Integer.getInteger("load.bodySize", 16384),
+                    Integer.getInteger("load.timeout", 10));
+        }
+
+        RequestType nextType(Random random) {
+            return weightedTypes.get(random.nextInt(weightedTypes.size()));
+        }
+
+        @Override
+        public String toString() {
+            return "rate=" + rate + "/s, duration=" + durationSeconds + "s, warmup=" + warmupSeconds +
+                    "s, threads=" + threads + ", mix=" + mix + ", bodySize=" + body.length;
+        }
+    }
+
+    /**
+     * Records the latencies and the errors of a request type.
+     */
+    private static class Recorder {
+
+        private final LongAdder errors = new LongAdder();
+
+        private long[] latencies = new long[1024];
+
+        private int count;
+
+        synchronized void record(long latency, boolean success) {
+            if (count == latencies.length) {
+                latencies = Arrays.copyOf(latencies, count * 2);
+            }
+            latencies[count++] = latency;
+            if (!success) {
+                errors.increment();
+            }
+        }
+
+        synchronized long[] sortedLatencies() {
+            long[] sorted = Arrays.copyOf(latencies, count);
+            Arrays.sort(sorted);
+            return sorted;
+        }
+    }
+
+    /**
+     * The results of a load run.
+     */
+    static class Report {
+
+        private final String settings;
+
+        private final Map<RequestType, long[]> latencies = new EnumMap<>(RequestType.class);
+
+        private final Map<RequestType, Long> errors = new EnumMap<>(RequestType.class);
+
+        private final long elapsedNanos;
+
+        private final int peakThreads;
+
+        private final int liveThreads;
+
+        private final long maxHeapUsed;
+
+        private final long heapUsed;
+
+        private Report(Settings settings, Map<RequestType, Recorder> recorders, long elapsedNanos,
+                       int peakThreads, int liveThreads, long maxHeapUsed, long heapUsed) {
+            this.settings = settings.toString();
+            recorders.forEach((type, recorder) -> {
+                latencies.put(type, recorder.sortedLatencies());
+                errors.put(type, recorder.errors.sum());
+            });
+            this.elapsedNanos = elapsedNanos;
+            this.peakThreads = peakThreads;
+            this.liveThreads = liveThreads;
+            this.maxHeapUsed = maxHeapUsed;
+            this.heapUsed = heapUsed;
+        }
+
+        long getTotal() {
+            return latencies.values().stream().mapToLong(values -> values.length).sum();
+        }
+
+        long getErrors() {
+            return errors.values().stream().mapToLong(Long::longValue).sum();
+        }
+
+        double getThroughput() {
+            return getTotal() * 1e9 / elapsedNanos;
+        }
+
+        /**
+         * @param quantile the quantile, between {@code 0} and {@code 1}.
+         * @return the latency quantile of all the requests, in milliseconds.
+         */
+        double getLatencyMillis(double quantile) {
+            long[] all = latencies.values().stream().flatMapToLong(Arrays::stream).sorted().toArray();
+            return percentile(all, quantile);
+        }
+
+        private static double percentile(long[] sorted, double quantile) {
+            if (sorted.length == 0) {
+                return 0;
+            }
+            int index = (int) Math.ceil(quantile * sorted.length) - 1;
+            return sorted[Math.max(0, index)] / 1e6;
+        }
+
+        @Override
+        public String toString() {
+            StringBuilder builder = new StringBuilder("Load report (").append(settings).append(")\n");
+            builder.append(String.format(Locale.ROOT, "%-8s %8s %8s %9s %9s %9s %9s%n",
+                    "type", "count", "errors", "p50 ms", "p99 ms", "p999 ms", "max ms"));
+            latencies.forEach((type, values) -> appendRow(builder, type.name(), values, errors.get(type)));
+            appendRow(builder, "ALL", latencies.values().stream().flatMapToLong(Arrays::stream).sorted().toArray(),
+                    getErrors());
+            builder.append(String.format(Locale.ROOT,
+                    "throughput: %.1f req/s, error rate: %.3f%%, threads: peak %d, live %d, " +
+                            "heap used: max %d MB, end %d MB",
+                    getThroughput(), getTotal() == 0 ? 0.0 : getErrors() * 100.0 / getTotal(),
+                    peakThreads, liveThreads, maxHeapUsed >> 20, heapUsed >> 20));
+            return builder.toString();
+        }
+
+        private static void appendRow(StringBuilder builder, String name, long[] values, long errors) {
+            builder.append(String.format(Locale.ROOT, "%-8s %8d %8d %9.2f %9.2f %9.2f %9.2f%n",
+                    name, values.length, errors, percentile(values, 0.5), percentile(values, 0.99),
+                    percentile(values, 0.999), percentile(values, 1)));
+        }
+    }
+
+}
@@ -0,0 +1,130 @@
+/*
+ * Copyright (c) 2020. Eugen Covaci
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and limitations under the License.
+ */
+
+package org.kpax.winfoom.proxy;
+
+import org.apache.http.HttpEntityEnclosingRequest;
+import org.apache.http.entity.ByteArrayEntity;
+import org.apache.http.entity.StringEntity;
+import org.apache.http.impl.bootstrap.HttpServer;
+import org.apache.http.impl.bootstrap.ServerBootstrap;
+import org.apache.http.util.EntityUtils;
+import org.junit.jupiter.api.AfterAll;
+import org.junit.jupiter.api.BeforeAll;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.TestInstance;
+import org.junit.jupiter.api.extension.ExtendWith;
+import org.kpax.winfoom.FoomApplicationTest;
+import org.kpax.winfoom.config.ProxyConfig;
+import org.littleshoot.proxy.HttpProxyServer;
+import org.littleshoot.proxy.impl.DefaultHttpProxyServer;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.test.context.SpringBootTest;
+import org.springframework.boot.test.mock.mockito.MockBean;
+import org.springframework.test.annotation.DirtiesContext;
+import org.springframework.test.context.ActiveProfiles;
+import org.springframework.test.context.junit.jupiter.SpringExtension;
+
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.util.Arrays;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import static org.kpax.winfoom.TestConstants.LOCAL_PROXY_PORT;
+import static org.mockito.Mockito.when;
+
+/**
+ * Load the local proxy server, over loopback, with an upstream HTTP proxy stand-in and an origin server.
+ * <p>By default, this is a short smoke run. For sizing, run it alone with the {@link LoadGenerator.Settings}
+ * system properties, like: {@code mvn test -Dtest=LoadTests -Dload.rate=500 -Dload.duration=60}.
+ */
+@DirtiesContext(classMode = DirtiesContext.ClassMode.AFTER_CLASS)
+@ExtendWith(SpringExtension.class)
+@ActiveProfiles("test")
+@SpringBootTest(classes = FoomApplicationTest.class)
+@TestInstance(TestInstance.Lifecycle.PER_CLASS)
+class LoadTests {
+
+    private static final int RESPONSE_SIZE = 4096;
+
+    private final Logger logger = LoggerFactory.getLogger(LoadTests.class);
+
+    @MockBean
+    private ProxyConfig proxyConfig;
+
+    @Autowired
+    private ProxyContext proxyContext;
+
+    private HttpProxyServer upstreamProxyServer;
+
+    private HttpServer originServer;
+
+    @BeforeAll
+    void beforeAll() throws Exception {
+        byte[] responseBody = new byte[RESPONSE_SIZE];
+        Arrays.fill(responseBody, (byte) 'r');
+        originServer = ServerBootstrap.bootstrap()
+                .setLocalAddress(InetAddress.getLoopbackAddress())
+                .registerHandler("/get", (request, response, context) ->
+                        response.setEntity(new ByteArrayEntity(responseBody)))
+                .registerHandler("/post", (request, response, context) -> {
+                    if (request instanceof HttpEntityEnclosingRequest) {
+                        EntityUtils.consume(((HttpEntityEnclosingRequest) request).getEntity());
+                    }
+                    response.setEntity(new StringEntity("ok"));
+                }).create();
+        originServer.start();
+
+        upstreamProxyServer = DefaultHttpProxyServer.bootstrap()
+                .withAddress(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0))
+                .withName("LoadUpstreamProxy")
+                .start();
+    }
+
+    @BeforeEach
+    void beforeEach() throws Exception {
+        when(proxyConfig.getLocalPort()).thenReturn(LOCAL_PROXY_PORT);
+        when(proxyConfig.getProxyHost()).thenReturn("localhost");
+        when(proxyConfig.getProxyPort()).thenReturn(upstreamProxyServer.getListenAddress().getPort());
+        when(proxyConfig.getProxyType()).thenReturn(ProxyConfig.Type.HTTP);
+        if (!proxyContext.isRunning()) {
+            proxyContext.start();
+        }
+    }
+
+    @AfterAll
+    void afterAll() {
+        when(proxyConfig.getProxyType()).thenReturn(ProxyConfig.Type.HTTP);
+        proxyContext.stop();
+        upstreamProxyServer.abort();
+        originServer.shutdown(0, TimeUnit.SECONDS);
+    }
+
+    @Test
+    void load_RequestMix_NoError() throws Exception {
+        LoadGenerator.Settings settings = LoadGenerator.Settings.fromSystemProperties();
+        LoadGenerator loadGenerator = new LoadGenerator(
+                new InetSocketAddress(InetAddress.getLoopbackAddress(), LOCAL_PROXY_PORT),
+                new InetSocketAddress("localhost", originServer.getLocalPort()),
+                settings);
+        LoadGenerator.Report report = loadGenerator.run();
+        logger.info("{}", report);
+        assertTrue(report.getTotal() > 0);
+        assertEquals(0, report.getErrors(), () -> report.toString());
+    }
+
+}
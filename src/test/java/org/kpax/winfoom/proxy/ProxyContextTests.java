@@ -0,0 +1,94 @@
+/*
+ * Copyright (c) 2020. Eugen Covaci
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and limitations under the License.
+ */
+
+package org.kpax.winfoom.proxy;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.Timeout;
+import org.kpax.winfoom.config.SystemConfig;
+import org.kpax.winfoom.util.VirtualThreads;
+
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.jupiter.api.Assertions.*;
+import static org.junit.jupiter.api.Assumptions.assumeFalse;
+import static org.junit.jupiter.api.Assumptions.assumeTrue;
+
+/**
+ * The virtual threads tests run only on a JVM that supports them, the fallback test only on one that does not.
+ */
+@Timeout(10)
+class ProxyContextTests {
+
+    @Test
+    void createExecutorService_Platform_PlatformThreads() throws Exception {
+        ExecutorService executorService = ProxyContext.createExecutorService(SystemConfig.ThreadType.PLATFORM);
+        try {
+            assertTrue(executorService instanceof ThreadPoolExecutor);
+            assertFalse(executorService.submit(ProxyContextTests::isVirtualThread).get());
+        } finally {
+            shutdown(executorService);
+        }
+    }
+
+    @Test
+    void createExecutorService_VirtualSupported_VirtualThreads() throws Exception {
+        assumeTrue(VirtualThreads.isSupported(), "Virtual threads not supported by this JVM");
+        ExecutorService executorService = ProxyContext.createExecutorService(SystemConfig.ThreadType.VIRTUAL);
+        try {
+            assertFalse(executorService instanceof ThreadPoolExecutor);
+            Future<String> first = executorService.submit(() -> {
+                assertTrue(isVirtualThread());
+                return Thread.currentThread().getName();
+            });
+            Future<String> second = executorService.submit(() -> Thread.currentThread().getName());
+
+            // A new thread for each task
+            assertTrue(first.get().startsWith("virtual-thread-"));
+            assertTrue(second.get().startsWith("virtual-thread-"));
+            assertNotEquals(first.get(), second.get());
+        } finally {
+            shutdown(executorService);
+        }
+    }
+
+    @Test
+    void createExecutorService_VirtualNotSupported_PlatformThreads() throws Exception {
+        assumeFalse(VirtualThreads.isSupported(), "Virtual threads supported by this JVM");
+        ExecutorService executorService = ProxyContext.createExecutorService(SystemConfig.ThreadType.VIRTUAL);
+        try {
+            assertTrue(executorService instanceof ThreadPoolExecutor);
+            assertFalse(executorService.submit(ProxyContextTests::isVirtualThread).get());
+        } finally {
+            shutdown(executorService);
+        }
+    }
+
+    private static boolean isVirtualThread() {
+        try {
+            return (boolean) Thread.class.getMethod("isVirtual").invoke(Thread.currentThread());
+        } catch (NoSuchMethodException e) {
+            return false;
+        } catch (Exception e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    private static void shutdown(ExecutorService executorService) throws InterruptedException {
+        executorService.shutdown();
+        assertTrue(executorService.awaitTermination(5, TimeUnit.SECONDS));
+    }
+
+}
@@ -0,0 +1,230 @@
+/*
+ * Copyright (c) 2020. Eugen Covaci
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and limitations under the License.
+ */
+
+package org.kpax.winfoom.proxy;
+
+import org.apache.http.HttpHost;
+import org.apache.http.HttpStatus;
+import org.apache.http.client.methods.CloseableHttpResponse;
+import org.apache.http.client.methods.HttpGet;
+import org.apache.http.client.methods.HttpPost;
+import org.apache.http.entity.StringEntity;
+import org.apache.http.impl.bootstrap.HttpServer;
+import org.apache.http.impl.bootstrap.ServerBootstrap;
+import org.apache.http.impl.client.CloseableHttpClient;
+import org.apache.http.impl.client.HttpClients;
+import org.apache.http.util.EntityUtils;
+import org.junit.jupiter.api.*;
+import org.junit.jupiter.api.extension.ExtendWith;
+import org.kpax.winfoom.FoomApplicationTest;
+import org.kpax.winfoom.config.ProxyConfig;
+import org.kpax.winfoom.config.ScopeConfiguration;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.test.context.SpringBootTest;
+import org.springframework.boot.test.mock.mockito.MockBean;
+import org.springframework.test.annotation.DirtiesContext;
+import org.springframework.test.context.ActiveProfiles;
+import org.springframework.test.context.junit.jupiter.SpringExtension;
+
+import javax.management.MBeanAttributeInfo;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+import javax.management.openmbean.CompositeData;
+import javax.management.openmbean.TabularData;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.lang.management.ManagementFactory;
+import java.net.InetAddress;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.jupiter.api.Assertions.*;
+import static org.kpax.winfoom.TestConstants.LOCAL_PROXY_PORT;
+import static org.kpax.winfoom.TestConstants.METRICS_PORT;
+import static org.mockito.Mockito.when;
+
+@DirtiesContext(classMode = DirtiesContext.ClassMode.AFTER_CLASS)
+@ExtendWith(SpringExtension.class)
+@ActiveProfiles("test")
+@SpringBootTest(classes = FoomApplicationTest.class, properties = "metrics.http.port=" + METRICS_PORT)
+@TestInstance(TestInstance.Lifecycle.PER_CLASS)
+@Timeout(10)
+class ProxyMetricsTests {
+
+    @MockBean
+    private ProxyConfig proxyConfig;
+
+    @Autowired
+    private ProxyContext proxyContext;
+
+    @Autowired
+    private ProxyMetrics proxyMetrics;
+
+    @Autowired
+    private ScopeConfiguration scopeConfiguration;
+
+    private HttpServer remoteServer;
+
+    @BeforeAll
+    void beforeAll() throws Exception {
+        remoteServer = ServerBootstrap.bootstrap()
+                .setLocalAddress(InetAddress.getLoopbackAddress())
+                .registerHandler("/get", (request, response, context) -> response.setEntity(new StringEntity("12345")))
+                .registerHandler("/missing", (request, response, context) ->
+                        response.setStatusCode(HttpStatus.SC_NOT_FOUND))
+                .create();
+        remoteServer.start();
+    }
+
+    @BeforeEach
+    void beforeEach() throws Exception {
+        when(proxyConfig.getLocalPort()).thenReturn(LOCAL_PROXY_PORT);
+        when(proxyConfig.getProxyType()).thenReturn(ProxyConfig.Type.DIRECT);
+        if (!proxyContext.isRunning()) {
+            proxyContext.start();
+        }
+    }
+
+    @AfterAll
+    void afterAll() {
+        when(proxyConfig.getProxyType()).thenReturn(ProxyConfig.Type.DIRECT);
+        proxyContext.stop();
+        remoteServer.shutdown(0, TimeUnit.SECONDS);
+    }
+
+    @Test
+    void jmx_Requests_Recorded() throws Exception {
+        HttpHost localProxy = new HttpHost("localhost", LOCAL_PROXY_PORT);
+        HttpHost target = new HttpHost("localhost", remoteServer.getLocalPort());
+        try (CloseableHttpClient httpClient = HttpClients.custom().setProxy(localProxy).build()) {
+            try (CloseableHttpResponse response = httpClient.execute(target, new HttpGet("/get"))) {
+                assertEquals(HttpStatus.SC_OK, response.getStatusLine().getStatusCode());
+                EntityUtils.consume(response.getEntity());
+            }
+            try (CloseableHttpResponse response = httpClient.execute(target, new HttpGet("/missing"))) {
+                assertEquals(HttpStatus.SC_NOT_FOUND, response.getStatusLine().getStatusCode());
+                EntityUtils.consume(response.getEntity());
+            }
+        }
+
+        MBeanServer mBeanServer = ManagementFactory.getPlatformMBeanServer();
+        ObjectName objectName = new ObjectName(ProxyMetricsMXBean.OBJECT_NAME);
+
+        TabularData totalConnections = (TabularData) mBeanServer.getAttribute(objectName,
+                "TotalConnectionsByProcessor");
+        CompositeData nonConnect = totalConnections.get(new Object[]{"NonConnect"});
+        assertNotNull(nonConnect);
+        assertTrue((Long) nonConnect.get("value") >= 2);
+
+        TabularData durations = (TabularData) mBeanServer.getAttribute(objectName,
+                "RequestDurationMillisByProcessor");
+        CompositeData nonConnectDurations = (CompositeData) durations.get(new Object[]{"NonConnect"}).get("value");
+        assertTrue((Long) nonConnectDurations.get("count") >= 2);
+
+        TabularData errorResponses = (TabularData) mBeanServer.getAttribute(objectName, "ErrorResponses");
+        assertEquals(1L, errorResponses.get(new Object[]{HttpStatus.SC_NOT_FOUND}).get("value"));
+
+        TabularData phases = (TabularData) mBeanServer.getAttribute(objectName, "PhaseDurationMicros");
+        assertTrue((Long) ((CompositeData) phases.get(new Object[]{"firstByte"}).get("value")).get("count") >= 2);
+        assertTrue((Long) ((CompositeData) phases.get(new Object[]{"transfer"}).get("value")).get("count") >= 2);
+
+        TabularData connectionPools = (TabularData) mBeanServer.getAttribute(objectName, "ConnectionPools");
+        assertFalse(connectionPools.isEmpty());
+    }
+
+    @Test
+    void tunnel_Connect_DurationAndBytesRecorded() throws Exception {
+        long totalTunnels = proxyMetrics.getTotalTunnels();
+        long bytesToUpstream = proxyMetrics.getTunnelBytesToUpstream();
+        long bytesToClient = proxyMetrics.getTunnelBytesToClient();
+        long connectCount = proxyMetrics.getPhaseDurationMicros().get("connect").getCount();
+        String request = "GET /get HTTP/1.1\r\nHost: localhost\r\nConnection: close\r\n\r\n";
+        try (Socket socket = new Socket("localhost", LOCAL_PROXY_PORT)) {
+            OutputStream outputStream = socket.getOutputStream();
+            outputStream.write(String.format("CONNECT localhost:%d HTTP/1.1\r\nHost: localhost\r\n\r\n",
+                    remoteServer.getLocalPort()).getBytes(StandardCharsets.US_ASCII));
+            outputStream.flush();
+            assertTrue(readHead(socket).startsWith("HTTP/1.1 200"));
+
+            outputStream.write(request.getBytes(StandardCharsets.US_ASCII));
+            outputStream.flush();
+            String response = new String(socket.getInputStream().readAllBytes(), StandardCharsets.US_ASCII);
+            assertTrue(response.endsWith("12345"), response);
+        }
+
+        // The tunnel is recorded once the relay has ended
+        while (proxyMetrics.getOpenTunnels() > 0) {
+            Thread.sleep(50);
+        }
+        assertEquals(totalTunnels + 1, proxyMetrics.getTotalTunnels());
+        assertEquals(bytesToUpstream + request.length(), proxyMetrics.getTunnelBytesToUpstream());
+        assertTrue(proxyMetrics.getTunnelBytesToClient() > bytesToClient);
+        assertTrue(proxyMetrics.getTunnelDurationMillis().getCount() > 0);
+
+        // The request timing is recorded after the relay, on the same thread
+        for (int i = 0; i < 20 && proxyMetrics.getPhaseDurationMicros().get("connect").getCount() == connectCount; i++) {
+            Thread.sleep(50);
+        }
+        assertEquals(connectCount + 1, proxyMetrics.getPhaseDurationMicros().get("connect").getCount());
+        assertTrue(proxyMetrics.getPhaseDurationMicros().get("relay").getCount() > 0);
+    }
+
+    @Test
+    void endpoint_Get_PrometheusText() throws Exception {
+        HttpHost endpoint = new HttpHost(InetAddress.getLoopbackAddress(), METRICS_PORT);
+        try (CloseableHttpClient httpClient = HttpClients.createDefault()) {
+            try (CloseableHttpResponse response = httpClient.execute(endpoint, new HttpGet(MetricsEndpoint.PATH))) {
+                assertEquals(HttpStatus.SC_OK, response.getStatusLine().getStatusCode());
+                String body = EntityUtils.toString(response.getEntity());
+                assertTrue(body.contains("winfoom_tunnels_open "), body);
+                assertTrue(body.contains("winfoom_request_phase_micros{phase=\"relay\",quantile=\"0.99\"} "), body);
+            }
+            try (CloseableHttpResponse response = httpClient.execute(endpoint, new HttpPost(MetricsEndpoint.PATH))) {
+                assertEquals(HttpStatus.SC_METHOD_NOT_ALLOWED, response.getStatusLine().getStatusCode());
+            }
+            try (CloseableHttpResponse response = httpClient.execute(endpoint, new HttpGet("/other"))) {
+                assertEquals(HttpStatus.SC_NOT_FOUND, response.getStatusLine().getStatusCode());
+            }
+        }
+    }
+
+    @Test
+    void jmx_NewProxySession_NoSessionBeanCreated() throws Exception {
+        proxyContext.stop();
+        proxyContext.start();
+        MBeanServer mBeanServer = ManagementFactory.getPlatformMBeanServer();
+        ObjectName objectName = new ObjectName(ProxyMetricsMXBean.OBJECT_NAME);
+        for (MBeanAttributeInfo attribute : mBeanServer.getMBeanInfo(objectName).getAttributes()) {
+            mBeanServer.getAttribute(objectName, attribute.getName());
+        }
+
+        // Not needed by a direct proxy session without any request
+        ProxySessionScope proxySessionScope = scopeConfiguration.getProxySessionScope();
+        assertFalse(proxySessionScope.getIfCreated(UpstreamSocketPool.class).isPresent());
+        assertFalse(proxySessionScope.getIfCreated(ConnectionPoolingManager.class).isPresent());
+        assertFalse(proxySessionScope.getIfCreated(ProxyBlacklist.class).isPresent());
+    }
+
+    private static String readHead(Socket socket) throws IOException {
+        StringBuilder head = new StringBuilder();
+        while (head.indexOf("\r\n\r\n") < 0) {
+            int b = socket.getInputStream().read();
+            if (b == -1) {
+                break;
+            }
+            head.append((char) b);
+        }
+        return head.toString();
+    }
+
+}
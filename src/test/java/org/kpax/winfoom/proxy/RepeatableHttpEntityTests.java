@@ -24,6 +24,7 @@ import org.apache.http.protocol.HTTP;
 import org.apache.http.util.EntityUtils;
 import org.junit.jupiter.api.*;
 import org.kpax.winfoom.TestConstants;
+import org.kpax.winfoom.util.BoundedBufferPool;
 import org.kpax.winfoom.util.HttpUtils;
 import org.kpax.winfoom.util.InputOutputs;
 import org.slf4j.Logger;
@@ -57,11 +58,14 @@ class RepeatableHttpEntityTests {
     private final String tempFilenameHeader = "Temp-filename";
     private final String tempFileContentHeader = "Temp-file-content";
     private final String bufferedBytesHeader = "Buffered-bytes";
+    private final String replayedContentHeader = "Replayed-content";
 
     private ServerSocket serverSocket;
 
     private int bufferSize = 1024;
 
+    private BoundedBufferPool bufferPool;
+
     private Path tempDirectory;
 
     @BeforeAll
@@ -86,8 +90,8 @@ class RepeatableHttpEntityTests {
                             RepeatableHttpEntity requestEntity;
                             HttpRequest request = clientConnection.getHttpRequest();
                             try {
-                                requestEntity = new RepeatableHttpEntity(clientConnection.getSessionInputBuffer(), tempDirectory, request,
-                                        bufferSize);
+                                requestEntity = new RepeatableHttpEntity(clientConnection.getSessionInputBuffer(), tempDirectory,
+                                        bufferPool, request, bufferSize);
                                 Header transferEncoding = request.getFirstHeader(HTTP.TRANSFER_ENCODING);
                                 if (transferEncoding != null && HTTP.CHUNK_CODING.equalsIgnoreCase(transferEncoding.getValue())) {
                                     requestEntity.setChunked(true);
@@ -113,18 +117,21 @@ class RepeatableHttpEntityTests {
                                 boolean streaming = (Boolean) ReflectionTestUtils.getField(requestEntity, "streaming");
                                 clientConnection.write(HttpUtils.createHttpHeader(streamingHeader, String.valueOf(streaming)));
 
-                                Path tempFilepath = (Path) ReflectionTestUtils.getField(requestEntity, "tempFilepath");
-                                if (tempFilepath != null) {
-                                    clientConnection.write(HttpUtils.createHttpHeader(tempFilenameHeader, tempFilepath.getFileName().toString()));
-                                    clientConnection.write(HttpUtils.createHttpHeader(tempFileContentHeader, Files.readString(tempFilepath)));
-                                }
-
-                                byte[] bufferedBytes = (byte[]) ReflectionTestUtils.getField(requestEntity, "bufferedBytes");
-                                if (bufferedBytes != null) {
-                                    clientConnection.write(HttpUtils.createHttpHeader(bufferedBytesHeader, String.valueOf(bufferedBytes.length)));
+                                RequestBodyStore bodyStore = (RequestBodyStore) ReflectionTestUtils.getField(requestEntity, "bodyStore");
+                                if (bodyStore != null) {
+                                    Path tempFilepath = bodyStore.getTempFilepath();
+                                    if (tempFilepath != null) {
+                                        clientConnection.write(HttpUtils.createHttpHeader(tempFilenameHeader, tempFilepath.getFileName().toString()));
+                                        clientConnection.write(HttpUtils.createHttpHeader(tempFileContentHeader, Files.readString(tempFilepath)));
+                                    } else {
+                                        clientConnection.write(HttpUtils.createHttpHeader(bufferedBytesHeader, String.valueOf(bodyStore.size())));
+                                    }
+                                    clientConnection.write(HttpUtils.createHttpHeader(replayedContentHeader,
+                                            EntityUtils.toString(requestEntity)));
                                 }
 
                                 clientConnection.write(HttpUtils.createHttpHeader(HTTP.CONTENT_LEN, "0"));
+                                requestEntity.close();
                                 clientConnection.writeln();
                             }
 
@@ -145,6 +152,11 @@ class RepeatableHttpEntityTests {
         }).start();
     }
 
+    @BeforeEach
+    void beforeEach() {
+        bufferPool = new BoundedBufferPool(1024, 1048576, false);
+    }
+
     @Test
     void repeatable_BufferLessThanContentLength_UseTempFile() throws IOException {//OK
         this.bufferSize = 1;
@@ -161,6 +173,7 @@ class RepeatableHttpEntityTests {
                 assertEquals("false", response.getFirstHeader(streamingHeader).getValue());
                 assertTrue(response.containsHeader(tempFilenameHeader));
                 assertEquals(content, response.getFirstHeader(tempFileContentHeader).getValue());
+                assertEquals(content, response.getFirstHeader(replayedContentHeader).getValue());
             }
         }
     }
@@ -168,6 +181,7 @@ class RepeatableHttpEntityTests {
     @Test
     void repeatable_BufferEqualsContentLength_Buffering() throws IOException {//OK
         this.bufferSize = 5;
+        this.bufferPool = new BoundedBufferPool(2, 1024, false);
         final String content = "12345";
         try (CloseableHttpClient httpClient = HttpClientBuilder.create().build()) {
             HttpHost target = HttpHost.create("http://localhost:" + TestConstants.PROXY_PORT);
@@ -181,6 +195,7 @@ class RepeatableHttpEntityTests {
                 assertFalse(response.containsHeader(tempFilenameHeader));
                 assertEquals(String.valueOf(content.getBytes().length),
                         response.getFirstHeader(bufferedBytesHeader).getValue());
+                assertEquals(content, response.getFirstHeader(replayedContentHeader).getValue());
             }
         }
     }
@@ -206,7 +221,7 @@ class RepeatableHttpEntityTests {
     }
 
     @Test
-    void repeatable_NegativeContentLengthBufferBiggerThanRealContentLength_UseTempFile() throws IOException {//OK
+    void repeatable_NegativeContentLengthBufferBiggerThanRealContentLength_Buffering() throws IOException {//OK
         this.bufferSize = 10000000;
         final String content = "Sed ut perspiciatis unde omnis iste natus error sit voluptatem accusantium doloremque" +
                 " laudantium, totam rem aperiam, eaque ipsa quae ab illo inventore veritatis et quasi architecto " +
@@ -229,10 +244,34 @@ class RepeatableHttpEntityTests {
                 assertEquals(response.getStatusLine().getStatusCode(), HttpStatus.SC_OK);
                 EntityUtils.consume(response.getEntity());
                 assertEquals("false", response.getFirstHeader(streamingHeader).getValue());
+                assertFalse(response.containsHeader(tempFilenameHeader));
+                assertEquals(String.valueOf(content.getBytes().length),
+                        response.getFirstHeader(bufferedBytesHeader).getValue());
+                assertEquals(content, response.getFirstHeader(replayedContentHeader).getValue());
+            }
+        }
+    }
+
+    @Test
+    void repeatable_MemoryBudgetExhausted_UseTempFile() throws IOException {
+        this.bufferSize = 1024;
+        this.bufferPool = new BoundedBufferPool(2, 4, false);
+        final String content = "12345";
+        try (CloseableHttpClient httpClient = HttpClientBuilder.create().build()) {
+            HttpHost target = HttpHost.create("http://localhost:" + TestConstants.PROXY_PORT);
+            HttpPost request = new HttpPost("/");
+            request.setEntity(new StringEntity(content));
+
+            try (CloseableHttpResponse response = httpClient.execute(target, request)) {
+                assertEquals(response.getStatusLine().getStatusCode(), HttpStatus.SC_OK);
+                EntityUtils.consume(response.getEntity());
+                assertEquals("true", response.getFirstHeader(streamingHeader).getValue());
                 assertTrue(response.containsHeader(tempFilenameHeader));
                 assertEquals(content, response.getFirstHeader(tempFileContentHeader).getValue());
+                assertEquals(content, response.getFirstHeader(replayedContentHeader).getValue());
             }
         }
+        assertEquals(0, bufferPool.getUsedSize());
     }
 
     @Test
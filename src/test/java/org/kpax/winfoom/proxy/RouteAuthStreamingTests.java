@@ -0,0 +1,234 @@
+/*
+ * Copyright (c) 2020. Eugen Covaci
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and limitations under the License.
+ */
+
+package org.kpax.winfoom.proxy;
+
+import org.apache.http.*;
+import org.apache.http.client.methods.CloseableHttpResponse;
+import org.apache.http.client.methods.HttpPost;
+import org.apache.http.conn.routing.HttpRoute;
+import org.apache.http.entity.ByteArrayEntity;
+import org.apache.http.entity.StringEntity;
+import org.apache.http.impl.bootstrap.HttpServer;
+import org.apache.http.impl.bootstrap.ServerBootstrap;
+import org.apache.http.impl.client.CloseableHttpClient;
+import org.apache.http.impl.client.HttpClients;
+import org.apache.http.util.EntityUtils;
+import org.junit.jupiter.api.*;
+import org.junit.jupiter.api.extension.ExtendWith;
+import org.kpax.winfoom.FoomApplicationTest;
+import org.kpax.winfoom.config.ProxyConfig;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.test.context.SpringBootTest;
+import org.springframework.boot.test.mock.mockito.MockBean;
+import org.springframework.test.annotation.DirtiesContext;
+import org.springframework.test.context.ActiveProfiles;
+import org.springframework.test.context.junit.jupiter.SpringExtension;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.Arrays;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.kpax.winfoom.TestConstants.LOCAL_PROXY_PORT;
+import static org.mockito.Mockito.when;
+
+/**
+ * The upstream proxy challenges the requests with a {@code 407} only when asked to,
+ * so the request bodies get streamed once the route has been authenticated
+ * ({@code requestBody.streamAfter} unchallenged exchanges).
+ * The upstream answers the {@code Expect: 100-continue} of the streamed requests,
+ * unless asked to ignore it.
+ * Each test uses its own target host, that is its own route.
+ */
+@DirtiesContext(classMode = DirtiesContext.ClassMode.AFTER_CLASS)
+@ExtendWith(SpringExtension.class)
+@ActiveProfiles("test")
+@SpringBootTest(classes = FoomApplicationTest.class)
+@TestInstance(TestInstance.Lifecycle.PER_CLASS)
+@Timeout(10)
+class RouteAuthStreamingTests {
+
+    /**
+     * Larger than the default internal buffer.
+     */
+    private static final int BODY_SIZE = 200000;
+
+    @MockBean
+    private ProxyConfig proxyConfig;
+
+    @Autowired
+    private ProxyContext proxyContext;
+
+    @Autowired
+    private ProxyMetrics proxyMetrics;
+
+    @Autowired
+    private ConnectionPoolingManager connectionPoolingManager;
+
+    private HttpServer remoteProxyServer;
+
+    private Path tempDirectory;
+
+    private final AtomicBoolean challengeEnabled = new AtomicBoolean();
+
+    private final AtomicBoolean expectationIgnored = new AtomicBoolean();
+
+    private final AtomicInteger receivedBodies = new AtomicInteger();
+
+    @BeforeAll
+    void beforeAll() throws Exception {
+        remoteProxyServer = ServerBootstrap.bootstrap()
+                .setLocalAddress(InetAddress.getLoopbackAddress())
+                .setExpectationVerifier((request, response, context) -> {
+                    if (challengeEnabled.get() && !expectationIgnored.get()
+                            && !request.containsHeader(HttpHeaders.PROXY_AUTHORIZATION)) {
+                        response.setStatusCode(HttpStatus.SC_PROXY_AUTHENTICATION_REQUIRED);
+                        response.addHeader(HttpHeaders.PROXY_AUTHENTICATE, "Basic realm=\"upstream\"");
+                    }
+                })
+                .registerHandler("*", (request, response, context) -> {
+                    byte[] body = EntityUtils.toByteArray(((HttpEntityEnclosingRequest) request).getEntity());
+                    if (challengeEnabled.get() && !request.containsHeader(HttpHeaders.PROXY_AUTHORIZATION)) {
+                        response.setStatusCode(HttpStatus.SC_PROXY_AUTHENTICATION_REQUIRED);
+                        response.addHeader(HttpHeaders.PROXY_AUTHENTICATE, "Basic realm=\"upstream\"");
+                    } else {
+                        receivedBodies.incrementAndGet();
+                        response.setEntity(new StringEntity("received=" + body.length, StandardCharsets.UTF_8));
+                    }
+                })
+                .create();
+        remoteProxyServer.start();
+
+        tempDirectory = Paths.get(System.getProperty("user.dir"), "target", "temp");
+        Files.createDirectories(tempDirectory);
+    }
+
+    @BeforeEach
+    void beforeEach() throws Exception {
+        when(proxyConfig.getTempDirectory()).thenReturn(tempDirectory);
+        when(proxyConfig.getLocalPort()).thenReturn(LOCAL_PROXY_PORT);
+        when(proxyConfig.getProxyHost()).thenReturn("localhost");
+        when(proxyConfig.getProxyPort()).thenReturn(remoteProxyServer.getLocalPort());
+        when(proxyConfig.getProxyType()).thenReturn(ProxyConfig.Type.HTTP);
+        if (!proxyContext.isRunning()) {
+            proxyContext.start();
+        }
+        challengeEnabled.set(false);
+        expectationIgnored.set(false);
+        receivedBodies.set(0);
+    }
+
+    @Test
+    void streamAfter_UnchallengedRoute_Streamed() throws Exception {
+        long streamed = proxyMetrics.getStreamedRequestBodies();
+        long buffered = proxyMetrics.getBufferedRequestBodies();
+        try (CloseableHttpClient httpClient = HttpClients.custom()
+                .setProxy(new HttpHost("localhost", LOCAL_PROXY_PORT)).build()) {
+            for (int i = 0; i < 5; i++) {
+                assertEquals(HttpStatus.SC_OK, post(httpClient, "unchallenged.test"));
+                awaitIdleConnection("unchallenged.test");
+            }
+        }
+        assertEquals(3, proxyMetrics.getBufferedRequestBodies() - buffered);
+        assertEquals(2, proxyMetrics.getStreamedRequestBodies() - streamed);
+        assertEquals(5, receivedBodies.get());
+    }
+
+    @Test
+    void streamAfter_ChallengedWhileStreaming_AnsweredBeforeBody() throws Exception {
+        long streamFailures = proxyMetrics.getRequestBodyStreamFailures();
+        long streamed = proxyMetrics.getStreamedRequestBodies();
+        try (CloseableHttpClient httpClient = HttpClients.custom()
+                .setProxy(new HttpHost("localhost", LOCAL_PROXY_PORT)).build()) {
+            for (int i = 0; i < 3; i++) {
+                assertEquals(HttpStatus.SC_OK, post(httpClient, "challenged.test"));
+                awaitIdleConnection("challenged.test");
+            }
+            challengeEnabled.set(true);
+
+            // Streamed, challenged before the body is sent, then retried
+            assertEquals(HttpStatus.SC_OK, post(httpClient, "challenged.test"));
+        }
+        assertEquals(1, proxyMetrics.getStreamedRequestBodies() - streamed);
+        assertEquals(0, proxyMetrics.getRequestBodyStreamFailures() - streamFailures);
+        assertEquals(4, receivedBodies.get());
+    }
+
+    @Test
+    void streamAfter_ExpectationIgnored_BufferedFromNowOn() throws Exception {
+        long streamFailures = proxyMetrics.getRequestBodyStreamFailures();
+        long buffered = proxyMetrics.getBufferedRequestBodies();
+        try (CloseableHttpClient httpClient = HttpClients.custom()
+                .setProxy(new HttpHost("localhost", LOCAL_PROXY_PORT)).build()) {
+            for (int i = 0; i < 3; i++) {
+                assertEquals(HttpStatus.SC_OK, post(httpClient, "ignored.test"));
+                awaitIdleConnection("ignored.test");
+            }
+            challengeEnabled.set(true);
+            expectationIgnored.set(true);
+
+            // Streamed, then challenged after the body: nothing to replay
+            assertEquals(HttpStatus.SC_SERVICE_UNAVAILABLE, post(httpClient, "ignored.test"));
+            assertEquals(1, proxyMetrics.getRequestBodyStreamFailures() - streamFailures);
+            challengeEnabled.set(false);
+
+            // Never streamed again on this route
+            for (int i = 0; i < 4; i++) {
+                assertEquals(HttpStatus.SC_OK, post(httpClient, "ignored.test"));
+                awaitIdleConnection("ignored.test");
+            }
+        }
+        assertEquals(7, proxyMetrics.getBufferedRequestBodies() - buffered);
+        assertEquals(7, receivedBodies.get());
+    }
+
+    private int post(CloseableHttpClient httpClient, String targetHost) throws IOException {
+        byte[] body = new byte[BODY_SIZE];
+        Arrays.fill(body, (byte) 'x');
+        HttpPost request = new HttpPost("/upload");
+        request.setEntity(new ByteArrayEntity(body));
+        try (CloseableHttpResponse response = httpClient.execute(new HttpHost(targetHost), request)) {
+            EntityUtils.consume(response.getEntity());
+            return response.getStatusLine().getStatusCode();
+        }
+    }
+
+    /**
+     * The upstream connection is given back to the pool after the response has been relayed,
+     * wait for it so that the next request finds it.
+     */
+    private void awaitIdleConnection(String targetHost) throws InterruptedException {
+        HttpRoute route = new HttpRoute(new HttpHost(targetHost, 80),
+                null,
+                new HttpHost("localhost", remoteProxyServer.getLocalPort()),
+                false);
+        while (connectionPoolingManager.getHttpRouteStats(route).getAvailable() == 0) {
+            Thread.sleep(10);
+        }
+    }
+
+    @AfterAll
+    void afterAll() {
+        when(proxyConfig.getProxyType()).thenReturn(ProxyConfig.Type.HTTP);
+        proxyContext.stop();
+        remoteProxyServer.shutdown(0, TimeUnit.SECONDS);
+    }
+
+}
@@ -0,0 +1,126 @@
+/*
+ * Copyright (c) 2020. Eugen Covaci
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and limitations under the License.
+ */
+
+package org.kpax.winfoom.proxy;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.Timeout;
+
+import java.io.OutputStream;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.jupiter.api.Assertions.*;
+import static org.kpax.winfoom.TestConstants.LOCAL_PROXY_PORT;
+
+@Timeout(10)
+class SelectorServerEngineTests {
+
+    private final BlockingQueue<Object[]> dispatched = new LinkedBlockingQueue<>();
+
+    private SelectorServerEngine selectorServerEngine;
+
+    @Test
+    void dispatch_RequestHeadInSeveralParts_CompleteHead() throws Exception {
+        selectorServerEngine = new SelectorServerEngine(LOCAL_PROXY_PORT, 10, 2, 5000,
+                (socket, requestHead) -> dispatched.add(new Object[]{socket, requestHead}));
+        selectorServerEngine.start();
+
+        try (Socket client = new Socket("localhost", LOCAL_PROXY_PORT)) {
+            OutputStream outputStream = client.getOutputStream();
+            outputStream.write("GET http://example.com/ HTTP/1.1\r\n".getBytes(StandardCharsets.US_ASCII));
+            outputStream.flush();
+            Thread.sleep(200);
+            assertTrue(dispatched.isEmpty());
+
+            outputStream.write("Host: example.com\r\n\r\n".getBytes(StandardCharsets.US_ASCII));
+            outputStream.flush();
+
+            Object[] connection = dispatched.poll(5, TimeUnit.SECONDS);
+            assertNotNull(connection);
+            assertEquals("GET http://example.com/ HTTP/1.1\r\nHost: example.com\r\n\r\n",
+                    new String((byte[]) connection[1], StandardCharsets.US_ASCII));
+
+            // The dispatched socket must be usable in blocking mode
+            Socket socket = (Socket) connection[0];
+            socket.getOutputStream().write("HTTP/1.1 200 OK\r\n\r\n".getBytes(StandardCharsets.US_ASCII));
+            byte[] response = new byte[19];
+            int read = 0;
+            while (read < response.length) {
+                read += client.getInputStream().read(response, read, response.length - read);
+            }
+            assertEquals("HTTP/1.1 200 OK\r\n\r\n", new String(response, StandardCharsets.US_ASCII));
+            socket.close();
+        }
+    }
+
+    @Test
+    void dispatch_IdleConnection_Closed() throws Exception {
+        selectorServerEngine = new SelectorServerEngine(LOCAL_PROXY_PORT, 10, 1, 500,
+                (socket, requestHead) -> dispatched.add(new Object[]{socket, requestHead}));
+        selectorServerEngine.start();
+
+        try (Socket client = new Socket("localhost", LOCAL_PROXY_PORT)) {
+            client.setSoTimeout(5000);
+            assertEquals(-1, client.getInputStream().read());
+            assertTrue(dispatched.isEmpty());
+        }
+    }
+
+    @Test
+    void resume_PersistentConnection_NextHeadDispatched() throws Exception {
+        selectorServerEngine = new SelectorServerEngine(LOCAL_PROXY_PORT, 10, 2, 5000,
+                (socket, requestHead) -> dispatched.add(new Object[]{socket, requestHead}));
+        selectorServerEngine.start();
+
+        try (Socket client = new Socket("localhost", LOCAL_PROXY_PORT)) {
+            client.setSoTimeout(5000);
+            OutputStream outputStream = client.getOutputStream();
+            outputStream.write("GET http://example.com/ HTTP/1.1\r\nHost: example.com\r\n\r\n"
+                    .getBytes(StandardCharsets.US_ASCII));
+            Object[] connection = dispatched.poll(5, TimeUnit.SECONDS);
+            assertNotNull(connection);
+
+            // Wait for the next request, with its own dispatcher and idle timeout
+            BlockingQueue<byte[]> resumed = new LinkedBlockingQueue<>();
+            Socket socket = (Socket) connection[0];
+            selectorServerEngine.resume(socket.getChannel(), 5000, (resumedSocket, requestHead) -> {
+                assertSame(socket, resumedSocket);
+                resumed.add(requestHead);
+            });
+            outputStream.write("GET http://example.com/next HTTP/1.1\r\nHost: example.com\r\n\r\n"
+                    .getBytes(StandardCharsets.US_ASCII));
+            byte[] requestHead = resumed.poll(5, TimeUnit.SECONDS);
+            assertNotNull(requestHead);
+            assertEquals("GET http://example.com/next HTTP/1.1\r\nHost: example.com\r\n\r\n",
+                    new String(requestHead, StandardCharsets.US_ASCII));
+            assertTrue(dispatched.isEmpty());
+
+            // Idle beyond the resumed connection's timeout
+            selectorServerEngine.resume(socket.getChannel(), 500, (resumedSocket, head) -> resumed.add(head));
+            assertEquals(-1, client.getInputStream().read());
+            assertTrue(resumed.isEmpty());
+        }
+    }
+
+    @AfterEach
+    void afterEach() {
+        if (selectorServerEngine != null) {
+            selectorServerEngine.close();
+        }
+    }
+
+}
@@ -42,14 +42,19 @@ import org.springframework.boot.test.context.SpringBootTest;
 import org.springframework.boot.test.mock.mockito.MockBean;
 import org.springframework.test.annotation.DirtiesContext;
 import org.springframework.test.context.ActiveProfiles;
+import org.springframework.test.context.TestPropertySource;
 import org.springframework.test.context.junit.jupiter.SpringExtension;
 
 import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
 import java.net.ServerSocket;
 import java.net.Socket;
 import java.net.SocketException;
+import java.nio.charset.StandardCharsets;
 
 import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
 import static org.kpax.winfoom.TestConstants.LOCAL_PROXY_PORT;
 import static org.kpax.winfoom.TestConstants.PROXY_PORT;
 import static org.mockito.Mockito.when;
@@ -58,6 +63,7 @@ import static org.mockito.Mockito.when;
 @ExtendWith(SpringExtension.class)
 @ActiveProfiles("test")
 @SpringBootTest(classes = FoomApplicationTest.class)
+@TestPropertySource(properties = "socket.soTimeout=2")
 @TestInstance(TestInstance.Lifecycle.PER_CLASS)
 @TestMethodOrder(MethodOrderer.OrderAnnotation.class)
 @Timeout(10)
@@ -75,6 +81,9 @@ public class SocksProxyClientConnectionTests {
     @Autowired
     private ProxyContext proxyContext;
 
+    @Autowired
+    private ProxyMetrics proxyMetrics;
+
     private ClientAndServer socksRemoteProxyServer;
 
     private ServerSocket serverSocket;
@@ -203,6 +212,48 @@ public class SocksProxyClientConnectionTests {
         }
     }
 
+    @Test
+    @Order(4)
+    void socks5Proxy_ConnectTunnel_BytesRecorded() throws Exception {
+        when(proxyConfig.getProxyType()).thenReturn(ProxyConfig.Type.SOCKS5);
+        long totalTunnels = proxyMetrics.getTotalTunnels();
+        long bytesToUpstream = proxyMetrics.getTunnelBytesToUpstream();
+        long bytesToClient = proxyMetrics.getTunnelBytesToClient();
+        String request = "GET /get HTTP/1.1\r\nHost: localhost\r\nConnection: close\r\n\r\n";
+        StringBuilder response = new StringBuilder();
+        try (Socket socket = new Socket("localhost", LOCAL_PROXY_PORT)) {
+            socket.setSoTimeout(socketTimeout * 1000);
+            OutputStream outputStream = socket.getOutputStream();
+            outputStream.write(String.format("CONNECT localhost:%d HTTP/1.1\r\nHost: localhost\r\n\r\n",
+                    remoteServer.getLocalPort()).getBytes(StandardCharsets.US_ASCII));
+            outputStream.flush();
+            InputStream inputStream = socket.getInputStream();
+            readHead(inputStream, response);
+
+            // Relayed through the tunnel, then answered by the SOCKS proxy itself
+            outputStream.write(request.getBytes(StandardCharsets.US_ASCII));
+            outputStream.flush();
+            readHead(inputStream, response);
+        }
+        assertTrue(response.toString().startsWith("HTTP/1.1 200"), response.toString());
+        assertEquals(2, StringUtils.countMatches(response, "HTTP/1.1 "), response.toString());
+
+        // The tunnel is recorded once the relay has ended,
+        // the SOCKS proxy keeping its side open until the timeout
+        while (proxyMetrics.getTotalTunnels() == totalTunnels || proxyMetrics.getOpenTunnels() > 0) {
+            Thread.sleep(50);
+        }
+        assertEquals(bytesToUpstream + request.length(), proxyMetrics.getTunnelBytesToUpstream());
+        assertTrue(proxyMetrics.getTunnelBytesToClient() > bytesToClient);
+    }
+
+    private static void readHead(InputStream inputStream, StringBuilder response) throws IOException {
+        int heads = StringUtils.countMatches(response, "\r\n\r\n");
+        for (int b; StringUtils.countMatches(response, "\r\n\r\n") == heads && (b = inputStream.read()) != -1; ) {
+            response.append((char) b);
+        }
+    }
+
     @AfterAll
     void after() {
         try {
@@ -0,0 +1,296 @@
+/*
+ * Copyright (c) 2020. Eugen Covaci
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and limitations under the License.
+ */
+
+package org.kpax.winfoom.proxy;
+
+import org.apache.http.*;
+import org.apache.http.auth.*;
+import org.apache.http.client.CredentialsProvider;
+import org.apache.http.client.config.AuthSchemes;
+import org.apache.http.config.RegistryBuilder;
+import org.apache.http.impl.auth.BasicSchemeFactory;
+import org.apache.http.impl.auth.DigestSchemeFactory;
+import org.apache.http.impl.auth.NTLMScheme;
+import org.apache.http.impl.bootstrap.HttpServer;
+import org.apache.http.impl.bootstrap.ServerBootstrap;
+import org.apache.http.protocol.HttpRequestHandler;
+import org.apache.http.util.CharArrayBuffer;
+import org.junit.jupiter.api.*;
+import org.junit.jupiter.api.extension.ExtendWith;
+import org.kpax.winfoom.FoomApplicationTest;
+import org.kpax.winfoom.config.ProxyConfig;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.test.context.SpringBootTest;
+import org.springframework.boot.test.mock.mockito.MockBean;
+import org.springframework.test.annotation.DirtiesContext;
+import org.springframework.test.context.ActiveProfiles;
+import org.springframework.test.context.junit.jupiter.SpringExtension;
+import org.springframework.test.util.ReflectionTestUtils;
+
+import java.net.InetAddress;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.charset.StandardCharsets;
+import java.util.*;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import static org.junit.jupiter.api.Assertions.*;
+import static org.kpax.winfoom.TestConstants.PASSWORD;
+import static org.kpax.winfoom.TestConstants.USERNAME;
+
+/**
+ * The upstream proxy stand-ins answer each unauthenticated CONNECT with a {@code 407} challenge.
+ * Every CONNECT request received is a round trip: once the scheme is cached, a tunnel costs one instead of two.
+ * <p>The Windows native NTLM scheme is replaced by {@link HandshakeNTLMScheme}, as the connection based stand-in.
+ */
+@DirtiesContext(classMode = DirtiesContext.ClassMode.AFTER_CLASS)
+@ExtendWith(SpringExtension.class)
+@ActiveProfiles("test")
+@SpringBootTest(classes = FoomApplicationTest.class)
+@TestInstance(TestInstance.Lifecycle.PER_CLASS)
+@Timeout(10)
+class TunnelConnectionAuthTests {
+
+    private static final Pattern NONCE_PATTERN = Pattern.compile("nonce=\"([^\"]+)\"");
+
+    private static final Pattern NC_PATTERN = Pattern.compile("nc=([0-9a-f]{8})");
+
+    private static final int TUNNELS = 5;
+
+    @MockBean
+    private ProxyConfig proxyConfig;
+
+    @Autowired
+    private TunnelConnection tunnelConnection;
+
+    @Autowired
+    private CredentialsProvider credentialsProvider;
+
+    private final HttpHost target = HttpHost.create("https://example.com");
+
+    private final AtomicInteger roundTrips = new AtomicInteger();
+
+    private final AtomicInteger challenges = new AtomicInteger();
+
+    @BeforeAll
+    void beforeAll() {
+        ReflectionTestUtils.setField(tunnelConnection, "authSchemeRegistry",
+                RegistryBuilder.<AuthSchemeProvider>create()
+                        .register(AuthSchemes.BASIC, new BasicSchemeFactory())
+                        .register(AuthSchemes.DIGEST, new DigestSchemeFactory())
+                        .register(AuthSchemes.NTLM, context -> new HandshakeNTLMScheme())
+                        .build());
+    }
+
+    @BeforeEach
+    void beforeEach() {
+        credentialsProvider.clear();
+        credentialsProvider.setCredentials(AuthScope.ANY, new UsernamePasswordCredentials(USERNAME, PASSWORD));
+        roundTrips.set(0);
+        challenges.set(0);
+    }
+
+    @Test
+    void open_BasicProxy_PreemptiveAfterFirstTunnel() throws Exception {
+        String expected = "Basic " + Base64.getEncoder().encodeToString(
+                (USERNAME + ":" + PASSWORD).getBytes(StandardCharsets.ISO_8859_1));
+        HttpServer proxyServer = startProxyServer((request, response, context) -> {
+            Header authorization = request.getFirstHeader(HttpHeaders.PROXY_AUTHORIZATION);
+            if (authorization == null || !expected.equals(authorization.getValue())) {
+                challenge(response, "Basic realm=\"upstream\"");
+            }
+        });
+        try {
+            openTunnels(proxyServer, TUNNELS);
+        } finally {
+            proxyServer.shutdown(0, TimeUnit.SECONDS);
+        }
+        assertEquals(1, challenges.get());
+        assertEquals(TUNNELS + 1, roundTrips.get());
+    }
+
+    @Test
+    void open_DigestProxy_NonceReusedWithIncreasingCount() throws Exception {
+        List<String> nonceCounts = Collections.synchronizedList(new ArrayList<>());
+        HttpServer proxyServer = startProxyServer(new DigestHandler("nonce1", nonceCounts));
+        try {
+            openTunnels(proxyServer, TUNNELS);
+        } finally {
+            proxyServer.shutdown(0, TimeUnit.SECONDS);
+        }
+        assertEquals(1, challenges.get());
+        assertEquals(TUNNELS + 1, roundTrips.get());
+        assertEquals(Arrays.asList("00000001", "00000002", "00000003", "00000004", "00000005"), nonceCounts);
+    }
+
+    @Test
+    void open_DigestNonceExpired_FallbackToChallenge() throws Exception {
+        List<String> nonceCounts = Collections.synchronizedList(new ArrayList<>());
+        DigestHandler digestHandler = new DigestHandler("nonce1", nonceCounts);
+        HttpServer proxyServer = startProxyServer(digestHandler);
+        try {
+            openTunnels(proxyServer, 2);
+            assertEquals(3, roundTrips.get());
+
+            // The cached nonce is rejected, the tunnel is still established
+            digestHandler.nonce = "nonce2";
+            openTunnels(proxyServer, 1);
+            assertEquals(5, roundTrips.get());
+
+            // The new nonce is cached
+            openTunnels(proxyServer, 1);
+            assertEquals(6, roundTrips.get());
+        } finally {
+            proxyServer.shutdown(0, TimeUnit.SECONDS);
+        }
+        assertEquals(2, challenges.get());
+        assertEquals(Arrays.asList("00000001", "00000002", "00000001", "00000002"), nonceCounts);
+    }
+
+    @Test
+    void open_NtlmProxy_HandshakeStartedPreemptively() throws Exception {
+        credentialsProvider.setCredentials(AuthScope.ANY, new NTCredentials(USERNAME, PASSWORD, "workstation", "domain"));
+        List<Integer> messageTypes = Collections.synchronizedList(new ArrayList<>());
+        HttpServer proxyServer = startProxyServer((request, response, context) -> {
+            Header authorization = request.getFirstHeader(HttpHeaders.PROXY_AUTHORIZATION);
+            if (authorization == null) {
+                challenge(response, "NTLM");
+                return;
+            }
+            assertTrue(authorization.getValue().startsWith("NTLM "));
+            byte[] message = Base64.getDecoder().decode(authorization.getValue().substring(5));
+            messageTypes.add((int) message[8]);
+            if (message[8] == 1) {
+                challenge(response, "NTLM " + Base64.getEncoder().encodeToString(ntlmChallenge()));
+            }
+        });
+        try {
+            openTunnels(proxyServer, TUNNELS);
+        } finally {
+            proxyServer.shutdown(0, TimeUnit.SECONDS);
+        }
+
+        // Only the first tunnel waits for the proxy to ask for NTLM,
+        // the next ones carry on the preemptive handshake
+        assertEquals(TUNNELS + 1, challenges.get());
+        assertEquals(2 * TUNNELS + 1, roundTrips.get());
+        for (int i = 0; i < TUNNELS; i++) {
+            assertEquals(Arrays.asList(1, 3), messageTypes.subList(2 * i, 2 * i + 2));
+        }
+    }
+
+    private HttpServer startProxyServer(HttpRequestHandler handler) throws Exception {
+        HttpServer proxyServer = ServerBootstrap.bootstrap()
+                .setLocalAddress(InetAddress.getLoopbackAddress())
+                .registerHandler("*", (request, response, context) -> {
+                    roundTrips.incrementAndGet();
+                    handler.handle(request, response, context);
+                })
+                .create();
+        proxyServer.start();
+        return proxyServer;
+    }
+
+    private void openTunnels(HttpServer proxyServer, int count) throws Exception {
+        HttpHost proxy = new HttpHost("localhost", proxyServer.getLocalPort());
+        for (int i = 0; i < count; i++) {
+            try (Tunnel tunnel = tunnelConnection.open(proxy, target, HttpVersion.HTTP_1_1)) {
+                assertEquals(HttpStatus.SC_OK, tunnel.getResponse().getStatusLine().getStatusCode());
+            }
+        }
+    }
+
+    private void challenge(HttpResponse response, String authenticate) {
+        challenges.incrementAndGet();
+        response.setStatusCode(HttpStatus.SC_PROXY_AUTHENTICATION_REQUIRED);
+        response.addHeader(HttpHeaders.PROXY_AUTHENTICATE, authenticate);
+    }
+
+    /**
+     * A minimal NTLM type 2 message: Unicode and NTLM flags, a fixed server challenge,
+     * no target name nor target information.
+     */
+    private static byte[] ntlmChallenge() {
+        ByteBuffer buffer = ByteBuffer.allocate(48).order(ByteOrder.LITTLE_ENDIAN);
+        buffer.put("NTLMSSP\0".getBytes(StandardCharsets.US_ASCII));
+        buffer.putInt(2);
+        buffer.putShort((short) 0).putShort((short) 0).putInt(48);
+        buffer.putInt(0x00000201);
+        buffer.put(new byte[]{1, 2, 3, 4, 5, 6, 7, 8});
+        buffer.putLong(0);
+        buffer.putShort((short) 0).putShort((short) 0).putInt(48);
+        return buffer.array();
+    }
+
+    /**
+     * The portable NTLM scheme, except that a type 2 message is accepted only by the instance
+     * that has sent the type 1 message, like the SSPI or GSS security contexts behind SPNEGO.
+     */
+    private static class HandshakeNTLMScheme extends NTLMScheme {
+
+        private boolean initiated;
+
+        @Override
+        public Header authenticate(Credentials credentials, HttpRequest request) throws AuthenticationException {
+            Header header = super.authenticate(credentials, request);
+            initiated = true;
+            return header;
+        }
+
+        @Override
+        protected void parseChallenge(CharArrayBuffer buffer, int beginIndex, int endIndex)
+                throws MalformedChallengeException {
+            if (!initiated && !buffer.substringTrimmed(beginIndex, endIndex).isEmpty()) {
+                throw new MalformedChallengeException("Handshake not initiated by this instance");
+            }
+            super.parseChallenge(buffer, beginIndex, endIndex);
+        }
+
+    }
+
+    /**
+     * Accept any Digest response for the current nonce, recording the nonce count.
+     */
+    private class DigestHandler implements HttpRequestHandler {
+
+        private volatile String nonce;
+
+        private final List<String> nonceCounts;
+
+        DigestHandler(String nonce, List<String> nonceCounts) {
+            this.nonce = nonce;
+            this.nonceCounts = nonceCounts;
+        }
+
+        @Override
+        public void handle(HttpRequest request, HttpResponse response, org.apache.http.protocol.HttpContext context) {
+            Header authorization = request.getFirstHeader(HttpHeaders.PROXY_AUTHORIZATION);
+            if (authorization != null && authorization.getValue().startsWith("Digest ")) {
+                Matcher nonceMatcher = NONCE_PATTERN.matcher(authorization.getValue());
+                Matcher ncMatcher = NC_PATTERN.matcher(authorization.getValue());
+                assertTrue(ncMatcher.find());
+                if (nonceMatcher.find() && nonceMatcher.group(1).equals(nonce)) {
+                    nonceCounts.add(ncMatcher.group(1));
+                    return;
+                }
+                challenge(response, "Digest realm=\"upstream\", qop=\"auth\", nonce=\"" + nonce + "\", stale=true");
+                return;
+            }
+            challenge(response, "Digest realm=\"upstream\", qop=\"auth\", nonce=\"" + nonce + "\"");
+        }
+
+    }
+
+}
@@ -0,0 +1,166 @@
+/*
+ * Copyright (c) 2020. Eugen Covaci
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and limitations under the License.
+ */
+
+package org.kpax.winfoom.proxy;
+
+import org.apache.http.HttpHost;
+import org.junit.jupiter.api.*;
+import org.junit.jupiter.api.extension.ExtendWith;
+import org.kpax.winfoom.FoomApplicationTest;
+import org.kpax.winfoom.config.ProxyConfig;
+import org.kpax.winfoom.util.InputOutputs;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.test.context.SpringBootTest;
+import org.springframework.boot.test.mock.mockito.MockBean;
+import org.springframework.test.annotation.DirtiesContext;
+import org.springframework.test.context.ActiveProfiles;
+import org.springframework.test.context.junit.jupiter.SpringExtension;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.function.BooleanSupplier;
+
+import static org.junit.jupiter.api.Assertions.*;
+import static org.kpax.winfoom.TestConstants.LOCAL_PROXY_PORT;
+import static org.mockito.Mockito.when;
+
+/**
+ * The upstream proxy stand-in only accepts the TCP connections, recording them.
+ */
+@DirtiesContext(classMode = DirtiesContext.ClassMode.AFTER_CLASS)
+@ExtendWith(SpringExtension.class)
+@ActiveProfiles("test")
+@SpringBootTest(classes = FoomApplicationTest.class,
+        properties = {"tunnel.pool.spareSockets=" + UpstreamSocketPoolTests.SPARE_SOCKETS, "tunnel.pool.idleTimeout=1"})
+@TestInstance(TestInstance.Lifecycle.PER_CLASS)
+@Timeout(10)
+class UpstreamSocketPoolTests {
+
+    static final int SPARE_SOCKETS = 2;
+
+    @MockBean
+    private ProxyConfig proxyConfig;
+
+    @Autowired
+    private ProxyContext proxyContext;
+
+    @Autowired
+    private UpstreamSocketPool upstreamSocketPool;
+
+    private ServerSocket proxyServerSocket;
+
+    private final List<Socket> acceptedSockets = new CopyOnWriteArrayList<>();
+
+    @BeforeAll
+    void beforeAll() throws Exception {
+        proxyServerSocket = new ServerSocket(0, 50, InetAddress.getLoopbackAddress());
+        new Thread(() -> {
+            while (!proxyServerSocket.isClosed()) {
+                try {
+                    acceptedSockets.add(proxyServerSocket.accept());
+                } catch (IOException e) {
+                    // Closed
+                }
+            }
+        }).start();
+    }
+
+    @BeforeEach
+    void beforeEach() throws Exception {
+        when(proxyConfig.getLocalPort()).thenReturn(LOCAL_PROXY_PORT);
+        when(proxyConfig.getProxyType()).thenReturn(ProxyConfig.Type.HTTP);
+        if (!proxyContext.isRunning()) {
+            proxyContext.start();
+        }
+
+        // Let the idle sockets of the previous test expire
+        awaitUntil(() -> upstreamSocketPool.getIdleSockets() == 0);
+        acceptedSockets.forEach(InputOutputs::close);
+        acceptedSockets.clear();
+    }
+
+    @Test
+    void lease_SpareSocketsConnected_PooledSocketHandedOut() throws Exception {
+        HttpHost proxy = new HttpHost("localhost", proxyServerSocket.getLocalPort());
+        long hits = upstreamSocketPool.getHits();
+        long misses = upstreamSocketPool.getMisses();
+
+        // Connected on demand, then topped up
+        try (Socket socket = upstreamSocketPool.lease(proxy, new RequestTiming())) {
+            assertTrue(socket.isConnected());
+        }
+        awaitUntil(() -> upstreamSocketPool.getIdleSockets() == SPARE_SOCKETS);
+
+        // The connect completes from the backlog, before the stand-in accepts
+        awaitUntil(() -> acceptedSockets.size() == SPARE_SOCKETS + 1);
+
+        // No new connection on the critical path
+        try (Socket socket = upstreamSocketPool.lease(proxy, new RequestTiming())) {
+            assertTrue(socket.isConnected());
+            assertNotNull(socket.getChannel());
+        }
+        assertEquals(1, upstreamSocketPool.getHits() - hits);
+        assertEquals(1, upstreamSocketPool.getMisses() - misses);
+        awaitUntil(() -> upstreamSocketPool.getIdleSockets() == SPARE_SOCKETS);
+        awaitUntil(() -> acceptedSockets.size() == SPARE_SOCKETS + 2);
+    }
+
+    @Test
+    void lease_IdleSocketsClosedByProxy_NewSocketConnected() throws Exception {
+        HttpHost proxy = new HttpHost("localhost", proxyServerSocket.getLocalPort());
+        upstreamSocketPool.lease(proxy, new RequestTiming()).close();
+        awaitUntil(() -> upstreamSocketPool.getIdleSockets() == SPARE_SOCKETS);
+        awaitUntil(() -> acceptedSockets.size() == SPARE_SOCKETS + 1);
+        acceptedSockets.forEach(InputOutputs::close);
+        Thread.sleep(100);
+
+        long hits = upstreamSocketPool.getHits();
+        long misses = upstreamSocketPool.getMisses();
+        try (Socket socket = upstreamSocketPool.lease(proxy, new RequestTiming())) {
+            assertTrue(socket.isConnected());
+        }
+        assertEquals(0, upstreamSocketPool.getHits() - hits);
+        assertEquals(1, upstreamSocketPool.getMisses() - misses);
+    }
+
+    @Test
+    void closeExpiredSockets_IdleTimeout_SocketsClosed() throws Exception {
+        HttpHost proxy = new HttpHost("localhost", proxyServerSocket.getLocalPort());
+        upstreamSocketPool.lease(proxy, new RequestTiming()).close();
+        awaitUntil(() -> upstreamSocketPool.getIdleSockets() == SPARE_SOCKETS);
+
+        awaitUntil(() -> acceptedSockets.size() == SPARE_SOCKETS + 1);
+
+        // Not topped up without demand
+        awaitUntil(() -> upstreamSocketPool.getIdleSockets() == 0);
+        assertEquals(SPARE_SOCKETS + 1, acceptedSockets.size());
+    }
+
+    @AfterAll
+    void afterAll() throws IOException {
+        when(proxyConfig.getProxyType()).thenReturn(ProxyConfig.Type.HTTP);
+        proxyContext.stop();
+        proxyServerSocket.close();
+        acceptedSockets.forEach(InputOutputs::close);
+    }
+
+    private static void awaitUntil(BooleanSupplier condition) throws InterruptedException {
+        while (!condition.getAsBoolean()) {
+            Thread.sleep(20);
+        }
+    }
+
+}
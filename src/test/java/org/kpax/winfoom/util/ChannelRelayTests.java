@@ -0,0 +1,119 @@
+/*
+ * Copyright (c) 2020. Eugen Covaci
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and limitations under the License.
+ */
+
+package org.kpax.winfoom.util;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.Timeout;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+@Timeout(10)
+class ChannelRelayTests {
+
+    private ServerSocketChannel serverChannel;
+
+    /**
+     * The client's end and the relay's end of the first connection.
+     */
+    private Socket client;
+    private SocketChannel clientSide;
+
+    /**
+     * The server's end and the relay's end of the second connection.
+     */
+    private Socket server;
+    private SocketChannel serverSide;
+
+    @BeforeEach
+    void beforeEach() throws IOException {
+        serverChannel = ServerSocketChannel.open().bind(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0));
+        client = new Socket(InetAddress.getLoopbackAddress(), serverChannel.socket().getLocalPort());
+        clientSide = serverChannel.accept();
+        server = new Socket(InetAddress.getLoopbackAddress(), serverChannel.socket().getLocalPort());
+        serverSide = serverChannel.accept();
+    }
+
+    @Test
+    void run_HalfClose_OtherDirectionKeepsFlowing() throws Exception {
+        CompletableFuture<Void> relay = CompletableFuture.runAsync(
+                new ChannelRelay(clientSide, serverSide, 16, 5000)::run);
+
+        client.getOutputStream().write("request".getBytes(StandardCharsets.US_ASCII));
+        client.shutdownOutput();
+        assertEquals("request", new String(server.getInputStream().readAllBytes(), StandardCharsets.US_ASCII));
+
+        // The client has closed its output, still it must receive the response
+        byte[] response = new byte[64 * 1024];
+        server.getOutputStream().write(response);
+        server.shutdownOutput();
+        assertEquals(response.length, client.getInputStream().readAllBytes().length);
+
+        relay.get(5, TimeUnit.SECONDS);
+        assertTrue(clientSide.isOpen());
+        assertTrue(clientSide.isBlocking());
+    }
+
+    @Test
+    void run_PoolExhausted_FallBackToHeapAndReleaseBuffers() throws Exception {
+        // Room for a single direct buffer, the second direction gets a heap buffer
+        DirectBufferPool bufferPool = new DirectBufferPool(1024, 1024);
+        long directBytes = ChannelRelay.getDirectBytes();
+        long heapBytes = ChannelRelay.getHeapBytes();
+        CompletableFuture<Void> relay = CompletableFuture.runAsync(
+                new ChannelRelay(clientSide, serverSide, bufferPool, 5000)::run);
+
+        byte[] request = new byte[10 * 1024];
+        client.getOutputStream().write(request);
+        client.shutdownOutput();
+        assertEquals(request.length, server.getInputStream().readAllBytes().length);
+        byte[] response = new byte[20 * 1024];
+        server.getOutputStream().write(response);
+        server.shutdownOutput();
+        assertEquals(response.length, client.getInputStream().readAllBytes().length);
+
+        relay.get(5, TimeUnit.SECONDS);
+        assertEquals(request.length, ChannelRelay.getDirectBytes() - directBytes);
+        assertEquals(response.length, ChannelRelay.getHeapBytes() - heapBytes);
+        assertEquals(1, bufferPool.getFreeBufferCount());
+        assertEquals(1024, bufferPool.getAllocatedSize());
+    }
+
+    @Test
+    void run_NoTraffic_IdleTimeout() throws Exception {
+        long start = System.currentTimeMillis();
+        new ChannelRelay(clientSide, serverSide, 16, 500).run();
+        assertTrue(System.currentTimeMillis() - start >= 500);
+    }
+
+    @AfterEach
+    void afterEach() {
+        InputOutputs.close(client);
+        InputOutputs.close(server);
+        InputOutputs.close(clientSide);
+        InputOutputs.close(serverSide);
+        InputOutputs.close(serverChannel);
+    }
+
+}
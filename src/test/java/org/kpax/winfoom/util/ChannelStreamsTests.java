@@ -0,0 +1,106 @@
+/*
+ * Copyright (c) 2020. Eugen Covaci
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and limitations under the License.
+ */
+
+package org.kpax.winfoom.util;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.Timeout;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.net.SocketTimeoutException;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+@Timeout(10)
+class ChannelStreamsTests {
+
+    private ServerSocketChannel serverChannel;
+
+    /**
+     * The peer's end and the channel's end of the connection.
+     */
+    private Socket peer;
+    private SocketChannel channel;
+
+    @BeforeEach
+    void beforeEach() throws IOException {
+        serverChannel = ServerSocketChannel.open().bind(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0));
+        peer = new Socket(InetAddress.getLoopbackAddress(), serverChannel.socket().getLocalPort());
+        channel = serverChannel.accept();
+        channel.socket().setSoTimeout(5000);
+    }
+
+    @Test
+    void write_ReadPending_NotBlocked() throws Exception {
+        try (ChannelStreams channelStreams = new ChannelStreams(channel)) {
+            CompletableFuture<Integer> read = CompletableFuture.supplyAsync(() -> {
+                try {
+                    return channelStreams.getInputStream().read();
+                } catch (IOException e) {
+                    throw new IllegalStateException(e);
+                }
+            });
+
+            // Give the reader the time to block
+            Thread.sleep(200);
+            long start = System.currentTimeMillis();
+            channelStreams.getOutputStream().write("response".getBytes(StandardCharsets.US_ASCII));
+            assertTrue(System.currentTimeMillis() - start < 1000);
+            byte[] received = new byte[8];
+            peer.getInputStream().readNBytes(received, 0, received.length);
+            assertEquals("response", new String(received, StandardCharsets.US_ASCII));
+
+            peer.getOutputStream().write('r');
+            assertEquals('r', read.get(1, TimeUnit.SECONDS));
+        }
+        assertTrue(channel.isOpen());
+        assertTrue(channel.isBlocking());
+    }
+
+    @Test
+    void read_NoData_Timeout() throws Exception {
+        channel.socket().setSoTimeout(500);
+        try (ChannelStreams channelStreams = new ChannelStreams(channel)) {
+            long start = System.currentTimeMillis();
+            assertThrows(SocketTimeoutException.class, () -> channelStreams.getInputStream().read(new byte[16]));
+            assertTrue(System.currentTimeMillis() - start >= 500);
+        }
+    }
+
+    @Test
+    void read_PeerClosed_EndOfStream() throws Exception {
+        try (ChannelStreams channelStreams = new ChannelStreams(channel)) {
+            peer.getOutputStream().write("request".getBytes(StandardCharsets.US_ASCII));
+            peer.shutdownOutput();
+            assertEquals("request",
+                    new String(channelStreams.getInputStream().readAllBytes(), StandardCharsets.US_ASCII));
+        }
+    }
+
+    @AfterEach
+    void afterEach() {
+        InputOutputs.close(peer);
+        InputOutputs.close(channel);
+        InputOutputs.close(serverChannel);
+    }
+
+}